@@ -0,0 +1,108 @@
+package it.polimi.ds.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encoding and decoding of the Messages sent between the replicas, through the streams of two TCPClients
+ * connected on the loopback interface and in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private static final int REPLICAS = 10;
+    private static final int BATCH = 64;
+
+    @Param({"SERIALIZED", "BINARY"})
+    WireFormat wireFormat;
+    private TCPClient sender;
+    private TCPClient receiver;
+    private Message update;
+    private Message batch;
+
+    private static Update update(int sequence) {
+        VectorClock vectorClock = new VectorClock();
+        for (int i = 0; i < REPLICAS; i++)
+            vectorClock.set(ReplicaIds.idOf(new Address("127.0.0.1", 2000 + i)), sequence * 31 + i);
+        return new Update(vectorClock, new Address("127.0.0.1", 2000), "key" + sequence, "value" + sequence);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException, ExecutionException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // The object streams wait for the header of the other side, so the two sides are opened by different threads
+            CompletableFuture<TCPClient> accepted = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return TCPClient.accept(serverSocket.accept());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            sender = new TCPClient(new Socket("127.0.0.1", serverSocket.getLocalPort()), wireFormat);
+            receiver = accepted.get();
+        }
+        update = new Message(MessageType.UPDATE_FROM_REPLICA, update(1), 1);
+        List<Update> updates = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            updates.add(update(i));
+        batch = new Message(MessageType.UPDATE_BATCH, 1, updates);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public Message sendUpdate() throws IOException, ClassNotFoundException {
+        sender.send(update);
+        return receiver.receive();
+    }
+
+    @Benchmark
+    public Message sendBatch() throws IOException, ClassNotFoundException {
+        sender.send(batch);
+        return receiver.receive();
+    }
+
+    @Benchmark
+    public Message encodeDecode() throws IOException, ClassNotFoundException {
+        if (wireFormat == WireFormat.BINARY)
+            return BinaryCodec.decode(BinaryCodec.encode(update));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(update);
+        }
+        return (Message) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+}
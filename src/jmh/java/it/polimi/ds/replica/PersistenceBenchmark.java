@@ -0,0 +1,105 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Measures the writes of the clients waiting to be on disk, which share the flushes of the log, and the recovery of a replica
+ * from its last snapshot and the log written after it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final Address me = new Address("127.0.0.1", 5200);
+    private static final int RECORDS = 100000;
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Durable {
+        Path directory;
+        StatePersistence persistence;
+        StateHandler stateHandler;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            // The logs would measure the console
+            Logger.getLogger("StatePersistence").setLevel(java.util.logging.Level.WARNING);
+            directory = Files.createTempDirectory("durable");
+            persistence = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY);
+            stateHandler = new StateHandler(new ReplicaState(me), me, persistence);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stateHandler.close();
+            persistence.close();
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void durableWrite(Durable durable) throws IOException {
+        durable.stateHandler.clientWrite(Thread.currentThread().getName(), "value");
+        durable.stateHandler.awaitDurable();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Written {
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Logger.getLogger("StatePersistence").setLevel(java.util.logging.Level.WARNING);
+            directory = Files.createTempDirectory("recovery");
+            StatePersistence persistence = new StatePersistence(directory, RECORDS / 4);
+            StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, persistence);
+            for (int i = 0; i < RECORDS + RECORDS / 8; i++)
+                stateHandler.clientWrite("key" + i % 10000, String.valueOf(i));
+            stateHandler.awaitDurable();
+            // Without the last snapshot of StateHandler.close the recovery replays the records written after the previous one
+            persistence.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public ReplicaState recover(Written written) throws IOException {
+        try (StatePersistence persistence = new StatePersistence(written.directory, RECORDS / 4)) {
+            return persistence.getRecovered();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaIds;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the paths of StateHandler run for every write: the client writes, the updates from the other replicas
+ * received in order and out of order, the vector clock check and the drain of the queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateHandlerBenchmark {
+    private static final Address me = new Address("127.0.0.1", 5100);
+    private static final int KEYS = 1000;
+    private static final int BACKLOG = 1000;
+
+    private static Address origin(int i) {
+        return new Address("127.0.0.1", 5101 + i);
+    }
+
+    private static StateHandler stateHandler(int origins) {
+        // The logs would measure the console
+        Logger.getLogger("StateHandler").setLevel(java.util.logging.Level.WARNING);
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me);
+        for (int i = 0; i < origins; i++)
+            stateHandler.addAddressKey(origin(i));
+        return stateHandler;
+    }
+
+    @State(Scope.Thread)
+    public static class Writes {
+        @Param({"4", "32"})
+        int replicas;
+        StateHandler stateHandler;
+        VectorClock history;
+        Address from;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            stateHandler = stateHandler(replicas);
+            history = new VectorClock();
+            from = origin(0);
+        }
+    }
+
+    @Benchmark
+    public Update clientWrite(Writes writes) {
+        return writes.stateHandler.clientWrite("key" + writes.next++ % KEYS, "value");
+    }
+
+    @Benchmark
+    public void replicaWriteInOrder(Writes writes) {
+        writes.history.increment(writes.from);
+        writes.stateHandler.replicaWrite(new Update(new VectorClock(writes.history), writes.from, "key" + writes.next++ % KEYS, "value"), 0, 0);
+    }
+
+    /**
+     * A backlog where every update depends on all the previous ones, received in random order.
+     */
+    @State(Scope.Thread)
+    public static class Backlog {
+        @Param({"4", "32"})
+        int replicas;
+        StateHandler stateHandler;
+        List<Update> updates;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            stateHandler = stateHandler(replicas);
+            Random random = new Random(42);
+            VectorClock history = new VectorClock();
+            updates = new ArrayList<>(BACKLOG);
+            for (int i = 0; i < BACKLOG; i++) {
+                Address from = origin(random.nextInt(replicas));
+                history.increment(from);
+                updates.add(new Update(new VectorClock(history), from, "key" + i % KEYS, "value"));
+            }
+            Collections.shuffle(updates, random);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BACKLOG)
+    public void replicaWriteOutOfOrder(Backlog backlog) {
+        for (Update update : backlog.updates)
+            backlog.stateHandler.replicaWrite(update, 0, 0);
+    }
+
+    /**
+     * Updates from one replica all waiting in the queue for its first update, which is then received.
+     */
+    @State(Scope.Thread)
+    public static class Queued {
+        StateHandler stateHandler;
+        Update first;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            stateHandler = stateHandler(4);
+            VectorClock history = new VectorClock();
+            history.increment(origin(0));
+            first = new Update(new VectorClock(history), origin(0), "key", "value");
+            for (int i = 1; i < BACKLOG; i++) {
+                history.increment(origin(0));
+                stateHandler.replicaWrite(new Update(new VectorClock(history), origin(0), "key" + i % KEYS, "value"), 0, 0);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BACKLOG)
+    public void drainQueue(Queued queued) {
+        queued.stateHandler.replicaWrite(queued.first, 0, 0);
+    }
+
+    @State(Scope.Thread)
+    public static class Clocks {
+        @Param({"4", "32"})
+        int replicas;
+        VectorClock mine;
+        VectorClock incoming;
+        int from;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mine = new VectorClock();
+            incoming = new VectorClock();
+            for (int i = 0; i < replicas; i++) {
+                int id = ReplicaIds.idOf(origin(i));
+                mine.set(id, 100 + i);
+                incoming.set(id, 100 + i);
+            }
+            from = ReplicaIds.idOf(origin(replicas / 2));
+            incoming.increment(origin(replicas / 2));
+        }
+    }
+
+    @Benchmark
+    public long vectorCheck(Clocks clocks) {
+        return StateHandler.missingDependency(clocks.mine, clocks.incoming, clocks.from, true);
+    }
+}
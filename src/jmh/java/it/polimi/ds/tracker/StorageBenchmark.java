@@ -0,0 +1,48 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the assignment of a Client to a Replica chosen by each Placement from the load kept in the LoadHeap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageBenchmark {
+    @Param({"8", "64", "512", "4096"})
+    int replicas;
+    @Param({"LEAST_LOADED", "POWER_OF_TWO", "LATENCY_AWARE"})
+    Placement placement;
+    private Storage storage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        storage = new Storage(placement);
+        for (int i = 0; i < replicas; i++)
+            storage.addReplica(new Address("127.0.0.1", 5000 + i));
+    }
+
+    @Benchmark
+    public Address addClient() {
+        Address address = storage.addClient();
+        storage.removeClient(address);
+        return address;
+    }
+}
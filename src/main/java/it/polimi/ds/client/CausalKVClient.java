@@ -0,0 +1,327 @@
+package it.polimi.ds.client;
+
+import it.polimi.ds.network.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a client of the data store that can be embedded in other applications.
+ * The client asks the Tracker for a Replica and keeps a single session with it, shared by every request of the application:
+ * the requests are sent without waiting for the previous replies and the Replica serves them in order,
+ * so every read sees the writes made before by the same client.
+ * If the Replica cannot be reached or is leaving the network, the client asks the Tracker for another Replica and sends the request again.
+ * Every reply carries a causal token, the vector clock of the Replica after the request, which the client sends with its next requests:
+ * a Replica behind the token waits for the missing updates, so the client keeps reading its writes after moving to another Replica.
+ * When the keyspace is split in shards the client keeps a session with a Replica of every shard and sends every key to its shard:
+ * the order of the requests, and so causality, holds among the keys of the same shard, and a batch spanning many shards is
+ * split in a request per shard, each one applied on its own.
+ */
+public class CausalKVClient implements AutoCloseable {
+    public static final int DEFAULT_ATTEMPTS = 3;
+    private static final Logger logger = Logger.getLogger("CausalKVClient");
+    private final Address trackerAddress;
+    private final WireFormat wireFormat;
+    private final int attempts;
+    private final ExecutorService failover;
+    private Session[] sessions;
+    // The causal token of every shard, null until the first reply
+    private VectorClock[] tokens;
+    private ShardRing ring;
+    private boolean closed = false;
+
+    /**
+     * @param attempts the number of Replicas a request is sent to before failing
+     */
+    private CausalKVClient(Address trackerAddress, WireFormat wireFormat, int attempts) {
+        this.trackerAddress = trackerAddress;
+        this.wireFormat = wireFormat;
+        this.attempts = Math.max(1, attempts);
+        this.failover = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "client-failover");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a client connected to the Replica assigned by the Tracker.
+     *
+     * @throws IOException if the Tracker cannot be reached or there are no Replicas in the network
+     */
+    public static CausalKVClient connect(Address trackerAddress, WireFormat wireFormat) throws IOException {
+        return connect(trackerAddress, wireFormat, DEFAULT_ATTEMPTS);
+    }
+
+    public static CausalKVClient connect(Address trackerAddress) throws IOException {
+        return connect(trackerAddress, WireFormat.SERIALIZED);
+    }
+
+    /**
+     * @param attempts the number of Replicas a request is sent to before failing
+     */
+    public static CausalKVClient connect(Address trackerAddress, WireFormat wireFormat, int attempts) throws IOException {
+        CausalKVClient client = new CausalKVClient(trackerAddress, wireFormat, attempts);
+        client.join();
+        return client;
+    }
+
+    /**
+     * @return the Replica serving the client, of the first shard if the keyspace is split, null if the client is looking for a new one
+     */
+    public synchronized Address getReplica() {
+        return getReplica(0);
+    }
+
+    /**
+     * @return the Replica serving the client for a shard, null if the client is looking for a new one
+     */
+    public synchronized Address getReplica(int shard) {
+        return sessions[shard] == null ? null : sessions[shard].replica;
+    }
+
+    /**
+     * @return the ring of the shards the keys are sent to
+     */
+    public synchronized ShardRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the future completed with the value of the key, null if the key has no value
+     */
+    public CompletableFuture<String> get(String key) {
+        return request(getRing().shardOf(key), new Message(MessageType.READ_FROM_CLIENT, key)).thenApply(Message::getValue);
+    }
+
+    /**
+     * @return the future completed when the Replica has applied the write
+     */
+    public CompletableFuture<Void> put(String key, String value) {
+        return request(getRing().shardOf(key), new Message(MessageType.WRITE_FROM_CLIENT, key, value)).thenApply(reply -> null);
+    }
+
+    /**
+     * Reads many keys with a request per shard, the values of a shard are read together so that no write of another batch
+     * on the same shard is seen only in part.
+     *
+     * @return the future completed with the value of every key in the given order, null if the key has no value
+     */
+    public CompletableFuture<Map<String, String>> getAll(Collection<String> keys) {
+        List<String> resources = new ArrayList<>(new LinkedHashSet<>(keys));
+        Map<Integer, List<String>> byShard = new LinkedHashMap<>();
+        ShardRing shards = getRing();
+        for (String key : resources)
+            byShard.computeIfAbsent(shards.shardOf(key), shard -> new ArrayList<>()).add(key);
+        Map<String, String> read = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> replies = new ArrayList<>(byShard.size());
+        byShard.forEach((shard, shardKeys) -> replies.add(request(shard, new Message(MessageType.MGET_FROM_CLIENT, shardKeys))
+                .thenAccept(reply -> reply.getValues().forEach((key, value) -> {
+                    if (value != null)
+                        read.put(key, value);
+                }))));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (String key : resources)
+                values.put(key, read.get(key));
+            return values;
+        });
+    }
+
+    /**
+     * Writes many keys with a request per shard, every Replica applies its keys as a single update sent once to the other Replicas
+     * of its shard. The writes on different shards are not atomic: if a shard fails, the others may have applied theirs.
+     */
+    public CompletableFuture<Void> putAll(Map<String, String> values) {
+        Map<Integer, Map<String, String>> byShard = new LinkedHashMap<>();
+        ShardRing shards = getRing();
+        values.forEach((key, value) -> byShard.computeIfAbsent(shards.shardOf(key), shard -> new LinkedHashMap<>()).put(key, value));
+        List<CompletableFuture<Message>> replies = new ArrayList<>(byShard.size());
+        byShard.forEach((shard, shardValues) -> replies.add(request(shard, new Message(MessageType.MPUT_FROM_CLIENT, shardValues))));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Closes the sessions and informs the Tracker that their Replicas serve one client less.
+     */
+    @Override
+    public void close() {
+        Session[] last;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            last = sessions.clone();
+            Arrays.fill(sessions, null);
+        }
+        failover.shutdown();
+        for (Session session : last) {
+            if (session == null)
+                continue;
+            session.channel.close();
+            try {
+                TCPClient tracker = TCPClient.connect(trackerAddress, wireFormat);
+                tracker.send(new Message(MessageType.REMOVE_CLIENT, session.replica));
+                tracker.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not inform the tracker of the client closure.");
+            }
+        }
+    }
+
+    private CompletableFuture<Message> request(int shard, Message message) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        send(shard, message, reply, attempts);
+        return reply;
+    }
+
+    /**
+     * Sends the request on the current session, moving to another Replica if the request fails.
+     * The failover asks the Tracker with a blocking connection, so it runs on its own thread and not on the thread reading the replies.
+     */
+    private void send(int shard, Message message, CompletableFuture<Message> reply, int attemptsLeft) {
+        Session current;
+        try {
+            current = current(shard);
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+            return;
+        }
+        message.setToken(token(shard));
+        current.channel.request(message).whenComplete((answer, error) -> {
+            // A Replica leaving the network replies WAIT to the writes, a Replica behind the token to every request
+            if (error == null && answer.getType() != MessageType.WAIT) {
+                advance(shard, answer.getToken());
+                reply.complete(answer);
+                return;
+            }
+            if (attemptsLeft <= 1) {
+                reply.completeExceptionally(error != null ? error : new IOException("The replica " + current.replica + " is leaving the network."));
+                return;
+            }
+            logger.log(Level.INFO, () -> "The replica " + current.replica + " is no longer available, asking the tracker for another one.");
+            try {
+                failover.execute(() -> {
+                    replace(shard, current);
+                    send(shard, message, reply, attemptsLeft - 1);
+                });
+            } catch (RuntimeException e) {
+                reply.completeExceptionally(new IOException("The client has been closed."));
+            }
+        });
+    }
+
+    /**
+     * @return the session with the Replica serving the client for a shard, a new Replica is asked to the Tracker if there is none
+     */
+    private synchronized Session current(int shard) throws IOException {
+        if (closed)
+            throw new IOException("The client has been closed.");
+        if (sessions[shard] == null)
+            sessions[shard] = open(discover(shard));
+        return sessions[shard];
+    }
+
+    /**
+     * @return a copy of the causal token of a shard, null if the client has received none
+     */
+    private synchronized VectorClock token(int shard) {
+        return tokens[shard] == null ? null : new VectorClock(tokens[shard]);
+    }
+
+    /**
+     * Merges the token of a reply, the replies of the requests sent together can arrive in any order.
+     */
+    private synchronized void advance(int shard, VectorClock token) {
+        if (token == null)
+            return;
+        if (tokens[shard] == null)
+            tokens[shard] = new VectorClock(token);
+        else
+            tokens[shard].merge(token);
+    }
+
+    /**
+     * Drops a session that failed, unless another request has already replaced it.
+     */
+    private synchronized void replace(int shard, Session failed) {
+        if (sessions[shard] != failed)
+            return;
+        failed.channel.close();
+        sessions[shard] = null;
+    }
+
+    /**
+     * Asks the Tracker for the Replicas of the client, one for every shard if the keyspace is split, and opens the sessions with them.
+     */
+    private synchronized void join() throws IOException {
+        Message answer = askTracker(new Message(MessageType.ADD_CLIENT));
+        if (answer.getType() == MessageType.SEND_SHARD_REPLICAS) {
+            List<Address> replicas = answer.getAddressSet();
+            ring = new ShardRing(replicas.size());
+            sessions = new Session[replicas.size()];
+            tokens = new VectorClock[replicas.size()];
+            // The shards without Replicas are asked again to the Tracker by their first request
+            for (int i = 0; i < replicas.size(); i++)
+                if (replicas.get(i) != null)
+                    sessions[i] = open(replicas.get(i));
+            return;
+        }
+        ring = new ShardRing(1);
+        sessions = new Session[1];
+        tokens = new VectorClock[1];
+        if (answer.getAddress() == null)
+            throw new IOException("There are no replicas available.");
+        sessions[0] = open(answer.getAddress());
+    }
+
+    private Address discover(int shard) throws IOException {
+        Message request = sessions.length == 1 ? new Message(MessageType.ADD_CLIENT) : Message.ofShard(MessageType.ADD_SHARD_CLIENT, shard);
+        Address replica = askTracker(request).getAddress();
+        if (replica == null)
+            throw new IOException("There are no replicas available.");
+        return replica;
+    }
+
+    private Message askTracker(Message request) throws IOException {
+        TCPClient tracker = TCPClient.connect(trackerAddress, wireFormat);
+        try {
+            tracker.send(request);
+            return tracker.receive();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read the answer of the tracker.", e);
+        } finally {
+            tracker.close();
+        }
+    }
+
+    private Session open(Address replica) throws IOException {
+        logger.log(Level.INFO, () -> "Connected to replica " + replica + ".");
+        return new Session(replica, new MessageChannel(replica, new Message(MessageType.OPEN_SESSION), wireFormat));
+    }
+
+    /**
+     * Represents the session with one Replica.
+     */
+    private static class Session {
+        private final Address replica;
+        private final MessageChannel channel;
+
+        private Session(Address replica, MessageChannel channel) {
+            this.replica = replica;
+            this.channel = channel;
+        }
+    }
+}
@@ -5,17 +5,21 @@ import it.polimi.ds.network.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Represents the Client application, it will allow the user to interact with the Tracker and a Replica.
+ * It is a console on top of CausalKVClient.
  */
 public class Client {
 
     private static final Logger logger = Logger.getLogger("Client");
     private static boolean done = false;
     private final Address serverAddress;
+    private WireFormat wireFormat = WireFormat.SERIALIZED;
     private int minDelay = 0;
     private int maxDelay = 0;
 
@@ -32,6 +36,8 @@ public class Client {
     }
 
     public static void main(String[] args) {
+        Options options = Options.parse(args);
+        args = options.positional();
         Client client;
         if (args.length >= 4)
             client = new Client(args[0], args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
@@ -40,9 +46,10 @@ public class Client {
         else {
             logger.log(Level.SEVERE, "Too few arguments, client was not launched.");
             logger.log(Level.SEVERE, () -> "Please launch the client with " +
-                    "<serverIP> <serverPort> [<minDelay> <maxDelay>] as parameters.");
+                    "<serverIP> <serverPort> [<minDelay> <maxDelay>] [--wire=serialized|binary] as parameters.");
             return;
         }
+        client.wireFormat = options.getWireFormat();
         welcomeMessage();
         while (!done)
             client.start();
@@ -61,17 +68,13 @@ public class Client {
     }
 
     private void start() {
-        TCPClient serverSocket;
-        Message inputMessage;
+        CausalKVClient client;
         try {
             SimulateDelay.uniform(minDelay, maxDelay);
-            serverSocket = TCPClient.connect(serverAddress);
-            serverSocket.out().writeObject(new Message(MessageType.ADD_CLIENT));
-            inputMessage = (Message) serverSocket.in().readObject();
-            serverSocket.close();
+            client = CausalKVClient.connect(serverAddress, wireFormat);
             logger.log(Level.INFO, () -> "Connected to tracker server: " + serverAddress.toString());
-        } catch (IOException | ClassNotFoundException e) {
-            logger.log(Level.SEVERE, "Impossible to reach the tracker server: Enter exit to quit, Enter anything else to retry");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, () -> "Impossible to reach a replica (" + e.getMessage() + "): Enter exit to quit, Enter anything else to retry");
             BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
             try {
                 if (r.readLine().equals("exit")) setDone();
@@ -82,14 +85,6 @@ public class Client {
         }
 
         try {
-            Address replicaAddress = inputMessage.getAddress();
-            if (replicaAddress == null) { // Avoid null pointer when no replicas are available
-                logger.log(Level.INFO, "There are no replicas available: Enter exit to quit, Enter anything else to retry");
-                BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
-                if (r.readLine().equals("exit")) setDone();
-                return;
-            }
-            TCPClient replicaSocket;
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
                 String inputString = reader.readLine();
@@ -102,14 +97,11 @@ public class Client {
                             break;
                         }
                         SimulateDelay.uniform(minDelay, maxDelay);
-                        replicaSocket = TCPClient.connect(replicaAddress);
-                        replicaSocket.out().writeObject(new Message(MessageType.READ_FROM_CLIENT, splittedString[1]));
-                        inputMessage = (Message) replicaSocket.in().readObject();
-                        if (inputMessage.getValue() == null)
-                            System.out.println("Resource " + inputMessage.getResource() + " has no value in the database.");
+                        String value = await(client.get(splittedString[1]));
+                        if (value == null)
+                            System.out.println("Resource " + splittedString[1] + " has no value in the database.");
                         else
-                            System.out.println("Resource " + inputMessage.getResource() + " has value " + inputMessage.getValue() + ".");
-                        replicaSocket.close();
+                            System.out.println("Resource " + splittedString[1] + " has value " + value + ".");
                         break;
                     // Writing a value, inputString = write <resource> <value>
                     case "write":
@@ -118,20 +110,13 @@ public class Client {
                             break;
                         }
                         SimulateDelay.uniform(minDelay, maxDelay);
-                        replicaSocket = TCPClient.connect(replicaAddress);
-                        replicaSocket.out().writeObject(new Message(MessageType.WRITE_FROM_CLIENT, splittedString[1], splittedString[2]));
-                        inputMessage = (Message) replicaSocket.in().readObject();
-                        replicaSocket.close();
-                        if (inputMessage.getType() != MessageType.ACK)
-                            throw new IOException();
+                        await(client.put(splittedString[1], splittedString[2]));
                         logger.log(Level.INFO, "Value correctly registered.");
                         break;
                     // Exiting the client, inputString = exit
                     case "exit":
                         SimulateDelay.uniform(minDelay, maxDelay);
-                        serverSocket = TCPClient.connect(serverAddress);
-                        serverSocket.out().writeObject(new Message(MessageType.REMOVE_CLIENT, replicaAddress));
-                        serverSocket.close();
+                        client.close();
                         setDone();
                         return;
                     // Every other expression is ignored
@@ -140,9 +125,23 @@ public class Client {
                 }
             }
         } catch (IOException e) {
-            logger.log(Level.WARNING, "The current replica is no longer available, try again in order to connect to another replica.");
-        } catch (ClassNotFoundException e) {
-            logger.log(Level.WARNING, "Could not parse correctly the message, please try again.");
+            logger.log(Level.WARNING, "No replica is available, try again in order to connect to another replica.");
+            client.close();
+        }
+    }
+
+    /**
+     * Waits for the result of a request.
+     *
+     * @throws IOException if no replica could serve the request
+     */
+    private static <T> T await(CompletableFuture<T> request) throws IOException {
+        try {
+            return request.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
         }
     }
 }
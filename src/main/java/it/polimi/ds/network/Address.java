@@ -9,6 +9,7 @@ import java.util.Objects;
 public class Address implements Serializable {
     private final String ip;
     private final Integer port;
+    private transient int replicaId;
 
     public Address(String ip, Integer port) {
         this.ip = ip;
@@ -28,6 +29,15 @@ public class Address implements Serializable {
         return port;
     }
 
+    /**
+     * @return the id assigned to this address by ReplicaIds, cached after the first call
+     */
+    int replicaId() {
+        if (replicaId == 0)
+            replicaId = ReplicaIds.idOf(toString());
+        return replicaId;
+    }
+
     public String toString() {
         return ip + ":" + port;
     }
@@ -0,0 +1,579 @@
+package it.polimi.ds.network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand-written encoding of the Messages, used by the connections in WireFormat.BINARY.
+ * Every Message is sent as a frame made of its length followed by the type, the request id and the payload.
+ * Integers are written as varints and the replica addresses, which are also the keys of the vector clocks,
+ * are written once per frame and then referred by their position in the frame.
+ */
+public class BinaryCodec {
+    public static final byte[] MAGIC = {'D', 'S', 2};
+    public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+    private static final MessageType[] TYPES = MessageType.values();
+    // The bytes of the entries of a state encoded before being written out, a larger entry makes a chunk of its own
+    private static final int STATE_CHUNK = 64 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Writes the Message as a length-prefixed frame.
+     */
+    public static void write(DataOutputStream out, Message message) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.writeMessage(message);
+        out.writeInt(encoder.length);
+        out.write(encoder.buffer, 0, encoder.length);
+    }
+
+    /**
+     * Reads a length-prefixed frame and decodes the Message it contains.
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new StreamCorruptedException("Invalid frame length " + length + ".");
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame);
+    }
+
+    /**
+     * @return the Message as a length-prefixed frame, ready to be written on a channel
+     */
+    public static ByteBuffer frame(Message message) {
+        Encoder encoder = new Encoder();
+        encoder.writeMessage(message);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + encoder.length);
+        frame.putInt(encoder.length).put(encoder.buffer, 0, encoder.length).flip();
+        return frame;
+    }
+
+    /**
+     * @return the Message encoded without the length prefix
+     */
+    public static byte[] encode(Message message) {
+        Encoder encoder = new Encoder();
+        encoder.writeMessage(message);
+        return Arrays.copyOf(encoder.buffer, encoder.length);
+    }
+
+    public static Message decode(byte[] frame) throws IOException {
+        try {
+            return new Decoder(frame).readMessage();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Malformed frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the state as a sequence of length-prefixed chunks: the vector clock and the queue, then the entries of the store
+     * a few at a time as the iterator of the store reads them, then an empty chunk. The replica ids are written once for the whole
+     * sequence, so a large store is never encoded in a single array.
+     */
+    public static void writeState(DataOutputStream out, ReplicaState state) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.writeVectorClock(state.getVectorClock());
+        encoder.writeQueue(state.getQueue());
+        encoder.flush(out);
+        for (Map.Entry<String, Versioned> entry : state.getStore().entrySet()) {
+            encoder.writeEntry(entry.getKey(), entry.getValue());
+            if (encoder.length >= STATE_CHUNK)
+                encoder.flush(out);
+        }
+        encoder.flush(out);
+        out.writeInt(0);
+    }
+
+    /**
+     * Reads a state written by writeState a chunk at a time.
+     *
+     * @param store the empty store where the entries are put as they are read
+     */
+    public static ReplicaState readState(DataInputStream in, Map<String, Versioned> store) throws IOException {
+        try {
+            Decoder decoder = new Decoder(readChunk(in));
+            VectorClock vectorClock = decoder.readVectorClock();
+            CausalQueue queue = decoder.readQueue();
+            for (byte[] chunk = readChunk(in); chunk.length > 0; chunk = readChunk(in)) {
+                decoder.reset(chunk);
+                while (decoder.hasRemaining())
+                    decoder.readEntry(store);
+            }
+            return new ReplicaState(vectorClock, store, queue);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Malformed state: " + e.getMessage());
+        }
+    }
+
+    private static byte[] readChunk(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new StreamCorruptedException("Invalid chunk length " + length + ".");
+        byte[] chunk = new byte[length];
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    /**
+     * Writes the values in a growing buffer and keeps the table of the replica ids already written in the frame.
+     */
+    private static class Encoder {
+        private int[] positions = new int[16];
+        private int replicaIds = 0;
+        private byte[] buffer = new byte[256];
+        private int length = 0;
+
+        private void ensure(int bytes) {
+            if (length + bytes > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeLong(long value) {
+            ensure(Long.BYTES);
+            for (int shift = Long.SIZE - 8; shift >= 0; shift -= 8)
+                buffer[length++] = (byte) (value >>> shift);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        /**
+         * Writes the position + 1 of an id already written, or the next position + 1 followed by the address of the replica.
+         *
+         * @param replicaId the id assigned by ReplicaIds
+         */
+        private void writeReplicaId(int replicaId) {
+            if (replicaId >= positions.length)
+                positions = Arrays.copyOf(positions, Math.max(positions.length * 2, replicaId + 1));
+            if (positions[replicaId] != 0) {
+                writeVarInt(positions[replicaId]);
+                return;
+            }
+            positions[replicaId] = ++replicaIds;
+            writeVarInt(replicaIds);
+            writeString(ReplicaIds.nameOf(replicaId));
+        }
+
+        /**
+         * Writes 0 for null, otherwise the replica id of the address.
+         */
+        private void writeAddress(Address address) {
+            if (address == null)
+                writeVarInt(0);
+            else
+                writeReplicaId(ReplicaIds.idOf(address));
+        }
+
+        private void writeVectorClock(VectorClock vectorClock) {
+            writeVarInt(vectorClock.size());
+            for (int i = 0; i < vectorClock.size(); i++) {
+                writeReplicaId(vectorClock.idAt(i));
+                writeVarInt(vectorClock.valueAt(i));
+            }
+        }
+
+        private void writeUpdate(Update update) {
+            writeVectorClock(update.getVectorClock());
+            writeAddress(update.getFrom());
+            writeValues(update.getWrites());
+        }
+
+        private void writeValues(Map<String, String> values) {
+            writeVarInt(values.size());
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeEntry(String key, Versioned value) {
+            writeString(key);
+            writeString(value.getValue());
+            writeReplicaId(value.getOrigin());
+            writeVarInt(value.getSequence());
+        }
+
+        private void writeQueue(CausalQueue causalQueue) {
+            List<UpdateWithTracker> queue = causalQueue.toList();
+            writeVarInt(queue.size());
+            for (UpdateWithTracker updateWithTracker : queue) {
+                writeUpdate(updateWithTracker.getUpdate());
+                writeVarInt(updateWithTracker.getIncomingTrackerIndex());
+            }
+        }
+
+        private void writeState(ReplicaState state) {
+            writeVectorClock(state.getVectorClock());
+            // The store can be written while it is encoded, so the entries are counted while they are written
+            List<Map.Entry<String, Versioned>> entries = new ArrayList<>(state.getStore().entrySet());
+            writeVarInt(entries.size());
+            for (Map.Entry<String, Versioned> entry : entries)
+                writeEntry(entry.getKey(), entry.getValue());
+            writeQueue(state.getQueue());
+        }
+
+        /**
+         * Writes the bytes encoded until now as a length-prefixed chunk, keeping the replica ids already written.
+         */
+        private void flush(DataOutputStream out) throws IOException {
+            if (length == 0)
+                return;
+            out.writeInt(length);
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+
+        private void writeMessage(Message message) {
+            MessageType type = message.getType();
+            writeByte(type.ordinal());
+            // The lowest bit tells if a causal token follows, the requests without a token cost nothing more
+            writeVarLong(message.getRequestId() << 1 | (message.getToken() != null ? 1 : 0));
+            if (message.getToken() != null)
+                writeVectorClock(message.getToken());
+            String payload = type.hasPayload();
+            if (payload == null)
+                return;
+            switch (payload) {
+                case MessageType.ADDRESS:
+                    writeAddress(message.getAddress());
+                    break;
+                case MessageType.ADDRESS_TRACKER_INDEX:
+                    writeAddress(message.getAddress());
+                    writeVarInt(message.getTrackerIndex());
+                    break;
+                case MessageType.ADDRESS_SET_TRACKER_INDEX:
+                    writeVarInt(message.getAddressSet().size());
+                    message.getAddressSet().forEach(this::writeAddress);
+                    writeVarInt(message.getTrackerIndex());
+                    break;
+                case MessageType.READ:
+                    writeString(message.getResource());
+                    break;
+                case MessageType.KEY_VALUE:
+                    writeString(message.getResource());
+                    writeString(message.getValue());
+                    break;
+                case MessageType.KEYS:
+                    writeVarInt(message.getResources().size());
+                    message.getResources().forEach(this::writeString);
+                    break;
+                case MessageType.KEY_VALUES:
+                    writeValues(message.getValues());
+                    break;
+                case MessageType.STATE:
+                    writeState(message.getState());
+                    break;
+                case MessageType.UPDATE:
+                    writeUpdate(message.getUpdate());
+                    writeVarInt(message.getTrackerIndex());
+                    break;
+                case MessageType.TRACKER_INDEX:
+                    writeVarInt(message.getTrackerIndex());
+                    break;
+                case MessageType.TRACKER_INDEX_CLOCK:
+                    writeVarInt(message.getTrackerIndex());
+                    writeVectorClock(message.getVectorClock());
+                    break;
+                case MessageType.UPDATES:
+                    writeVarInt(message.getTrackerIndex());
+                    writeVarInt(message.getUpdates().size());
+                    message.getUpdates().forEach(this::writeUpdate);
+                    break;
+                case MessageType.TRACKER_INDEX_CLOCK_DIGESTS:
+                    writeVarInt(message.getTrackerIndex());
+                    writeVectorClock(message.getVectorClock());
+                    writeVarInt(message.getDigests().size());
+                    // The digests are hashes, a varint would only make them longer
+                    for (Map.Entry<Integer, Long> digest : message.getDigests().entrySet()) {
+                        writeVarInt(digest.getKey());
+                        writeLong(digest.getValue());
+                    }
+                    break;
+                case MessageType.MEMBERSHIP:
+                    writeVarInt(message.getChanges().size());
+                    for (MembershipChange change : message.getChanges()) {
+                        writeByte(change.isJoin() ? 1 : 0);
+                        writeAddress(change.getAddress());
+                        writeVarInt(change.getTrackerIndex());
+                    }
+                    break;
+                case MessageType.LOAD:
+                    writeAddress(message.getLoad().getAddress());
+                    writeVarInt(message.getLoad().getRequestRate());
+                    writeVarInt(message.getLoad().getQueueDepth());
+                    writeVarInt(message.getLoad().getLatency());
+                    break;
+                case MessageType.SHARD:
+                    writeVarInt(message.getShard());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Payload " + payload + " cannot be encoded.");
+            }
+        }
+    }
+
+    /**
+     * Reads the values of a frame in the same order they have been written by the Encoder.
+     */
+    private static class Decoder {
+        private final List<String> replicaIds = new ArrayList<>();
+        private int[] localIds = new int[16];
+        private byte[] frame;
+        private int position = 0;
+
+        private Decoder(byte[] frame) {
+            this.frame = frame;
+        }
+
+        /**
+         * Goes on reading from the next chunk of the same sequence, whose replica ids refer to the ones already read.
+         */
+        private void reset(byte[] chunk) {
+            frame = chunk;
+            position = 0;
+        }
+
+        private boolean hasRemaining() {
+            return position < frame.length;
+        }
+
+        private int readByte() {
+            return frame[position++] & 0xFF;
+        }
+
+        private int readVarInt() throws StreamCorruptedException {
+            long value = readVarLong();
+            if (value > 0xFFFFFFFFL)
+                throw new StreamCorruptedException("Varint too long.");
+            return (int) value;
+        }
+
+        private long readVarLong() throws StreamCorruptedException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("Varint too long.");
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++)
+                value = value << 8 | readByte();
+            return value;
+        }
+
+        private String readString() throws StreamCorruptedException {
+            int length = readVarInt();
+            if (length == 0)
+                return null;
+            length--;
+            if (length > frame.length - position)
+                throw new StreamCorruptedException("String longer than the frame.");
+            String value = new String(frame, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * @return the position + 1 of the replica id in the frame, 0 for null
+         */
+        private int readReplicaReference() throws StreamCorruptedException {
+            int reference = readVarInt();
+            if (reference == 0 || reference <= replicaIds.size())
+                return reference;
+            if (reference != replicaIds.size() + 1)
+                throw new StreamCorruptedException("Unknown replica id reference " + reference + ".");
+            replicaIds.add(readString());
+            return reference;
+        }
+
+        private Address readAddress() throws StreamCorruptedException {
+            int reference = readReplicaReference();
+            return reference == 0 ? null : Address.fromString(replicaIds.get(reference - 1));
+        }
+
+        /**
+         * @return the id assigned by ReplicaIds in this process to the replica, looked up once per frame
+         */
+        private int readLocalReplicaId() throws StreamCorruptedException {
+            int reference = readReplicaReference();
+            if (reference == 0)
+                throw new StreamCorruptedException("Missing replica id in a vector clock.");
+            if (reference >= localIds.length)
+                localIds = Arrays.copyOf(localIds, Math.max(localIds.length * 2, reference + 1));
+            if (localIds[reference] == 0)
+                localIds[reference] = ReplicaIds.idOf(replicaIds.get(reference - 1));
+            return localIds[reference];
+        }
+
+        private VectorClock readVectorClock() throws StreamCorruptedException {
+            int size = readVarInt();
+            VectorClock vectorClock = new VectorClock(Math.min(size, frame.length));
+            for (int i = 0; i < size; i++)
+                vectorClock.set(readLocalReplicaId(), readVarInt());
+            return vectorClock;
+        }
+
+        private Update readUpdate() throws StreamCorruptedException {
+            VectorClock vectorClock = readVectorClock();
+            Address from = readAddress();
+            return new Update(vectorClock, from, readValues());
+        }
+
+        private Map<String, String> readValues() throws StreamCorruptedException {
+            int size = readVarInt();
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++)
+                values.put(readString(), readString());
+            return values;
+        }
+
+        private void readEntry(Map<String, Versioned> store) throws StreamCorruptedException {
+            store.put(readString(), new Versioned(readString(), readLocalReplicaId(), readVarInt()));
+        }
+
+        private CausalQueue readQueue() throws StreamCorruptedException {
+            int queueSize = readVarInt();
+            CausalQueue queue = new CausalQueue();
+            for (int i = 0; i < queueSize; i++)
+                queue.add(new UpdateWithTracker(readUpdate(), readVarInt()));
+            return queue;
+        }
+
+        private ReplicaState readState() throws StreamCorruptedException {
+            VectorClock vectorClock = readVectorClock();
+            int storeSize = readVarInt();
+            Map<String, Versioned> store = new ConcurrentHashMap<>();
+            for (int i = 0; i < storeSize; i++)
+                readEntry(store);
+            return new ReplicaState(vectorClock, store, readQueue());
+        }
+
+        private Message readMessage() throws StreamCorruptedException {
+            int ordinal = readByte();
+            if (ordinal >= TYPES.length)
+                throw new StreamCorruptedException("Unknown message type " + ordinal + ".");
+            MessageType type = TYPES[ordinal];
+            long header = readVarLong();
+            VectorClock token = (header & 1) != 0 ? readVectorClock() : null;
+            Message message = readPayload(type);
+            message.setRequestId(header >>> 1);
+            message.setToken(token);
+            return message;
+        }
+
+        private Message readPayload(MessageType type) throws StreamCorruptedException {
+            String payload = type.hasPayload();
+            if (payload == null)
+                return new Message(type);
+            switch (payload) {
+                case MessageType.ADDRESS:
+                    return new Message(type, readAddress());
+                case MessageType.ADDRESS_TRACKER_INDEX:
+                    return new Message(type, readAddress(), readVarInt());
+                case MessageType.ADDRESS_SET_TRACKER_INDEX:
+                    int size = readVarInt();
+                    List<Address> addressSet = new ArrayList<>(Math.min(size, frame.length));
+                    for (int i = 0; i < size; i++)
+                        addressSet.add(readAddress());
+                    return new Message(type, addressSet, readVarInt());
+                case MessageType.READ:
+                    return new Message(type, readString());
+                case MessageType.KEY_VALUE:
+                    return new Message(type, readString(), readString());
+                case MessageType.KEYS:
+                    int keys = readVarInt();
+                    List<String> resources = new ArrayList<>(Math.min(keys, frame.length));
+                    for (int i = 0; i < keys; i++)
+                        resources.add(readString());
+                    return new Message(type, resources);
+                case MessageType.KEY_VALUES:
+                    return new Message(type, readValues());
+                case MessageType.STATE:
+                    return new Message(type, readState());
+                case MessageType.UPDATE:
+                    return new Message(type, readUpdate(), readVarInt());
+                case MessageType.TRACKER_INDEX:
+                    return new Message(type, readVarInt());
+                case MessageType.TRACKER_INDEX_CLOCK:
+                    return new Message(type, readVarInt(), readVectorClock());
+                case MessageType.UPDATES:
+                    int trackerIndex = readVarInt();
+                    int count = readVarInt();
+                    List<Update> updates = new ArrayList<>(Math.min(count, frame.length));
+                    for (int i = 0; i < count; i++)
+                        updates.add(readUpdate());
+                    return new Message(type, trackerIndex, updates);
+                case MessageType.TRACKER_INDEX_CLOCK_DIGESTS:
+                    trackerIndex = readVarInt();
+                    VectorClock vectorClock = readVectorClock();
+                    int digests = readVarInt();
+                    Map<Integer, Long> nodes = new HashMap<>();
+                    for (int i = 0; i < digests; i++)
+                        nodes.put(readVarInt(), readLong());
+                    return new Message(type, trackerIndex, vectorClock, nodes);
+                case MessageType.MEMBERSHIP:
+                    int changeCount = readVarInt();
+                    // Every change takes more than a byte, so a longer list can only come from a corrupted frame
+                    if (changeCount > frame.length)
+                        throw new StreamCorruptedException("Too many membership changes " + changeCount + ".");
+                    MembershipChange[] changes = new MembershipChange[changeCount];
+                    for (int i = 0; i < changes.length; i++)
+                        changes[i] = new MembershipChange(readByte() != 0, readAddress(), readVarInt());
+                    return new Message(type, changes);
+                case MessageType.LOAD:
+                    return new Message(type, new ReplicaLoad(readAddress(), readVarInt(), readVarInt(), readVarInt()));
+                case MessageType.SHARD:
+                    return Message.ofShard(type, readVarInt());
+                default:
+                    throw new StreamCorruptedException("Payload " + payload + " cannot be decoded.");
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package it.polimi.ds.network;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the queue of the updates received before the updates they depend on.
+ * Every update is indexed by the first counter of the vector clock it is waiting for and by the value that counter must reach,
+ * so that when a counter is incremented only the updates waiting for that value are checked again.
+ * The updates added without a dependency, for example after the queue has been received with the state, are kept apart
+ * until they are checked for the first time.
+ * A bounded queue keeps at most a given number of updates in memory and writes the others in a SpillFile, choosing for each counter
+ * the updates waiting for its highest values.
+ * For the spilled updates only the lowest value each counter must reach is kept, and they are read back when one of these values is reached.
+ */
+public class CausalQueue implements Serializable {
+    public static final int DEFAULT_LIMIT = 100000;
+    private static final Logger logger = Logger.getLogger("CausalQueue");
+    private transient Map<Integer, TreeMap<Integer, List<UpdateWithTracker>>> waiting;
+    private transient List<UpdateWithTracker> unchecked;
+    private transient int size;
+    private transient int limit;
+    private transient Path spillDirectory;
+    private transient SpillFile spill;
+    // The lowest value each counter must reach for one of the spilled updates to be checked again
+    private transient Map<Integer, Integer> spillDependencies;
+    private transient boolean spillReady;
+    private transient int highWater;
+
+    public CausalQueue() {
+        waiting = new HashMap<>();
+        unchecked = new ArrayList<>();
+        spillDependencies = new HashMap<>();
+    }
+
+    /**
+     * Copies every update of a queue, also the spilled ones, in an unbounded queue.
+     */
+    public CausalQueue(CausalQueue copy) {
+        this();
+        unchecked.addAll(copy.toList());
+        size = unchecked.size();
+    }
+
+    /**
+     * Adds an update that has not been checked yet, it will be returned by drainUnchecked.
+     */
+    public void add(UpdateWithTracker update) {
+        unchecked.add(update);
+        grow();
+    }
+
+    /**
+     * Bounds the number of updates kept in memory, the updates held when the limit is reached are spilled to a file.
+     * The files of the directory left by a previous process are deleted, so it must not be shared by other queues.
+     *
+     * @param limit     the maximum number of updates in memory, the queue is unbounded if it is not positive
+     * @param directory the directory of the spill files
+     */
+    public void bound(int limit, Path directory) {
+        this.limit = limit;
+        this.spillDirectory = directory;
+        try {
+            SpillFile.deleteLeftovers(directory);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, () -> "Could not clean the spill directory " + directory + ".");
+        }
+    }
+
+    private void grow() {
+        size++;
+        if (size > highWater)
+            highWater = size;
+    }
+
+    /**
+     * Holds an update until the counter of a replica reaches a value.
+     *
+     * @param replica     the id of the replica whose counter the update is waiting for
+     * @param neededValue the value the counter must reach
+     */
+    public void hold(UpdateWithTracker update, int replica, int neededValue) {
+        grow();
+        if (limit > 0 && size - spilled() > limit) {
+            // The update waiting for the highest value of the same counter is spilled instead, since it will be ready last
+            TreeMap<Integer, List<UpdateWithTracker>> replicaWaiting = waiting.get(replica);
+            if (replicaWaiting == null || replicaWaiting.lastKey() <= neededValue) {
+                if (spill(update, replica, neededValue))
+                    return;
+            } else {
+                Map.Entry<Integer, List<UpdateWithTracker>> last = replicaWaiting.lastEntry();
+                List<UpdateWithTracker> updates = last.getValue();
+                if (spill(updates.get(updates.size() - 1), replica, last.getKey())) {
+                    updates.remove(updates.size() - 1);
+                    if (updates.isEmpty())
+                        replicaWaiting.remove(last.getKey());
+                }
+            }
+        }
+        waiting.computeIfAbsent(replica, id -> new TreeMap<>()).computeIfAbsent(neededValue, value -> new ArrayList<>(1)).add(update);
+    }
+
+    /**
+     * @return false if the update could not be written, it is then kept in memory
+     */
+    private boolean spill(UpdateWithTracker update, int replica, int neededValue) {
+        try {
+            if (spill == null) {
+                spill = new SpillFile(spillDirectory);
+                logger.log(Level.INFO, () -> "More than " + limit + " updates are waiting, spilling them to " + spill.getPath() + ".");
+            }
+            spill.append(update);
+            spillDependencies.merge(replica, neededValue, Math::min);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not spill an update, keeping it in memory.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the updates waiting for the counter of a replica to reach at most a value.
+     *
+     * @param replica the id of the replica whose counter has changed
+     * @param value   the new value of the counter
+     * @return the updates that have to be checked again
+     */
+    public List<UpdateWithTracker> wake(int replica, int value) {
+        Integer spilledNeed = spillDependencies.get(replica);
+        if (spilledNeed != null && spilledNeed <= value)
+            spillReady = true;
+        TreeMap<Integer, List<UpdateWithTracker>> replicaWaiting = waiting.get(replica);
+        if (replicaWaiting == null)
+            return Collections.emptyList();
+        NavigableMap<Integer, List<UpdateWithTracker>> ready = replicaWaiting.headMap(value, true);
+        if (ready.isEmpty())
+            return Collections.emptyList();
+        List<UpdateWithTracker> woken = new ArrayList<>();
+        ready.values().forEach(woken::addAll);
+        ready.clear();
+        if (replicaWaiting.isEmpty())
+            waiting.remove(replica);
+        size -= woken.size();
+        return woken;
+    }
+
+    /**
+     * Removes the updates that have not been checked since they were added.
+     */
+    public List<UpdateWithTracker> drainUnchecked() {
+        if (unchecked.isEmpty())
+            return Collections.emptyList();
+        List<UpdateWithTracker> drained = unchecked;
+        unchecked = new ArrayList<>();
+        size -= drained.size();
+        return drained;
+    }
+
+    /**
+     * Removes every update kept in memory, used when the dependencies can change without a counter being incremented,
+     * as when a replica joins or leaves the network. The spilled updates are then returned by drainSpilled.
+     */
+    public List<UpdateWithTracker> drainAll() {
+        List<UpdateWithTracker> drained = new ArrayList<>(size - spilled());
+        drained.addAll(unchecked);
+        for (TreeMap<Integer, List<UpdateWithTracker>> replicaWaiting : waiting.values())
+            replicaWaiting.values().forEach(drained::addAll);
+        waiting.clear();
+        unchecked.clear();
+        size = spilled();
+        spillReady = spill != null;
+        return drained;
+    }
+
+    /**
+     * Removes the spilled updates if one of them may have its dependencies satisfied, they are read one at a time from the file.
+     * The updates held while they are read are spilled to a new file if the memory is still full.
+     *
+     * @return the spilled updates, an update that cannot be read ends them
+     */
+    public Iterator<UpdateWithTracker> drainSpilled() {
+        if (!spillReady || spill == null)
+            return Collections.emptyIterator();
+        SpillFile drained = spill;
+        spill = null;
+        spillDependencies.clear();
+        spillReady = false;
+        size -= drained.size();
+        try {
+            Iterator<UpdateWithTracker> updates = drained.drain();
+            return new Iterator<>() {
+                private UpdateWithTracker next;
+                private boolean failed = false;
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null && !failed && updates.hasNext()) {
+                        try {
+                            next = updates.next();
+                        } catch (UncheckedIOException e) {
+                            failed = true;
+                            logger.log(Level.SEVERE, "Could not read the spilled updates, they are lost until they are repaired.", e);
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public UpdateWithTracker next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    UpdateWithTracker update = next;
+                    next = null;
+                    return update;
+                }
+            };
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not read the spilled updates, they are lost until they are repaired.", e);
+            return Collections.emptyIterator();
+        }
+    }
+
+    /**
+     * Deletes the spill file.
+     */
+    public void close() {
+        if (spill == null)
+            return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, () -> "Could not delete " + spill.getPath() + ".");
+        }
+    }
+
+    /**
+     * @return the number of updates in the queue, in memory or spilled
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of updates in the spill file
+     */
+    public int spilled() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    /**
+     * @return the highest size the queue has reached
+     */
+    public int highWater() {
+        return highWater;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of the updates in the queue, in no particular order
+     */
+    public List<UpdateWithTracker> toList() {
+        List<UpdateWithTracker> updates = new ArrayList<>(size);
+        updates.addAll(unchecked);
+        for (TreeMap<Integer, List<UpdateWithTracker>> replicaWaiting : waiting.values())
+            replicaWaiting.values().forEach(updates::addAll);
+        if (spill != null) {
+            try {
+                updates.addAll(spill.readAll());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not read the spilled updates, they are not copied.", e);
+            }
+        }
+        return updates;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<UpdateWithTracker> updates = toList();
+        out.writeInt(updates.size());
+        for (UpdateWithTracker update : updates)
+            out.writeObject(update);
+    }
+
+    /**
+     * The ids of the replicas are local to each process, so the received updates are kept unchecked until they are checked again.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        waiting = new HashMap<>();
+        unchecked = new ArrayList<>();
+        spillDependencies = new HashMap<>();
+        int updates = in.readInt();
+        for (int i = 0; i < updates; i++)
+            add((UpdateWithTracker) in.readObject());
+    }
+}
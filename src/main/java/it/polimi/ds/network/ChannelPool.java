@@ -0,0 +1,68 @@
+package it.polimi.ds.network;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the channels opened towards the other entities of the network, so that they can be reused by every request.
+ * Every address is served by a fixed number of channels chosen in round robin.
+ */
+public class ChannelPool {
+    public static final int DEFAULT_CHANNELS_PER_ADDRESS = 1;
+    private final Map<Address, MessageChannel[]> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextChannel = new AtomicInteger(0);
+    private final Address myAddress;
+    private final int channelsPerAddress;
+    private final WireFormat wireFormat;
+
+    /**
+     * @param myAddress          the address announced to the other side when a channel is opened
+     * @param channelsPerAddress the number of channels opened towards every address, with more than one channel the order of the requests is not preserved
+     * @param wireFormat         the encoding of the messages sent on the channels
+     */
+    public ChannelPool(Address myAddress, int channelsPerAddress, WireFormat wireFormat) {
+        this.myAddress = myAddress;
+        this.channelsPerAddress = Math.max(1, channelsPerAddress);
+        this.wireFormat = wireFormat;
+    }
+
+    public ChannelPool(Address myAddress, WireFormat wireFormat) {
+        this(myAddress, DEFAULT_CHANNELS_PER_ADDRESS, wireFormat);
+    }
+
+    public ChannelPool(Address myAddress) {
+        this(myAddress, WireFormat.SERIALIZED);
+    }
+
+    public CompletableFuture<Message> request(Address to, Message message) {
+        return channel(to).request(message);
+    }
+
+    public MessageChannel channel(Address to) {
+        MessageChannel[] addressChannels = channels.computeIfAbsent(to, address -> {
+            MessageChannel[] newChannels = new MessageChannel[channelsPerAddress];
+            for (int i = 0; i < channelsPerAddress; i++)
+                newChannels[i] = new MessageChannel(address, new Message(MessageType.OPEN_CHANNEL, myAddress), wireFormat);
+            return newChannels;
+        });
+        if (addressChannels.length == 1)
+            return addressChannels[0];
+        return addressChannels[Math.floorMod(nextChannel.getAndIncrement(), addressChannels.length)];
+    }
+
+    /**
+     * Closes the channels towards an address that left the network.
+     */
+    public void close(Address to) {
+        MessageChannel[] addressChannels = channels.remove(to);
+        if (addressChannels != null)
+            for (MessageChannel channel : addressChannels)
+                channel.close();
+    }
+
+    public void closeAll() {
+        channels.keySet().forEach(this::close);
+    }
+}
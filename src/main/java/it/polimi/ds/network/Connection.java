@@ -0,0 +1,25 @@
+package it.polimi.ds.network;
+
+import java.io.IOException;
+
+/**
+ * Represents the side of a connection a server replies on, either a blocking TCPClient or a connection of the NioServer.
+ */
+public interface Connection {
+    void send(Message message) throws IOException;
+
+    /**
+     * Closes the connection once the Messages already sent have been written.
+     */
+    void close();
+
+    /**
+     * Stops handing the Messages of the connection to the handler until the returned Runnable is run, which hands the Message being
+     * handled again before the ones sent after it. A request waiting for something can then release its worker and be answered later.
+     *
+     * @return the Runnable to be run once, null if the Messages of the connection cannot be deferred
+     */
+    default Runnable defer() {
+        return null;
+    }
+}
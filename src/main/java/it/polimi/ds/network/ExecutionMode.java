@@ -0,0 +1,23 @@
+package it.polimi.ds.network;
+
+/**
+ * Contains the ways a WorkerPool can run the tasks submitted to it.
+ */
+public enum ExecutionMode {
+    /**
+     * A fixed number of threads with a bounded queue, the submitter waits when the queue is full.
+     */
+    POOL,
+    /**
+     * A new platform thread for every task.
+     */
+    THREAD,
+    /**
+     * A new virtual thread for every task, available only on a JVM supporting them, otherwise THREAD is used.
+     */
+    VIRTUAL;
+
+    public static ExecutionMode fromString(String name) {
+        return ExecutionMode.valueOf(name.toUpperCase());
+    }
+}
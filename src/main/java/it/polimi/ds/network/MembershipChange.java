@@ -0,0 +1,39 @@
+package it.polimi.ds.network;
+
+import java.io.Serializable;
+
+/**
+ * Represents a Replica joining or leaving the network, numbered by the tracker index it produced.
+ * The Tracker sends the changes to every Replica in epochs, each Replica applies them in the order of their tracker indexes.
+ */
+public class MembershipChange implements Serializable {
+    private final boolean join;
+    private final Address address;
+    private final int trackerIndex;
+
+    /**
+     * @param join true if the Replica joined the network, false if it left
+     */
+    public MembershipChange(boolean join, Address address, int trackerIndex) {
+        this.join = join;
+        this.address = address;
+        this.trackerIndex = trackerIndex;
+    }
+
+    public boolean isJoin() {
+        return join;
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public int getTrackerIndex() {
+        return trackerIndex;
+    }
+
+    @Override
+    public String toString() {
+        return (join ? "JOIN " : "EXIT ") + address + " at " + trackerIndex;
+    }
+}
@@ -1,7 +1,9 @@
 package it.polimi.ds.network;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a generic message that can be sent among different entities.
@@ -13,9 +15,19 @@ public class Message implements Serializable {
     private List<Address> addressSet;
     private String resource;
     private String value;
+    private List<String> resources;
+    private Map<String, String> values;
     private ReplicaState state;
     private Update update;
+    private List<Update> updates;
+    private VectorClock vectorClock;
+    private Map<Integer, Long> digests;
+    private List<MembershipChange> changes;
+    private ReplicaLoad load;
     private int trackerIndex;
+    private int shard;
+    private long requestId;
+    private VectorClock token;
 
     public Message(MessageType type, Address address) {
         if (!type.hasPayload().equals(MessageType.ADDRESS))
@@ -59,6 +71,23 @@ public class Message implements Serializable {
         this.value = value;
     }
 
+    public Message(MessageType type, List<String> resources) {
+        if (!type.hasPayload().equals(MessageType.KEYS))
+            throw new WrongMessageException("This type of message shouldn't have a list of resources.");
+        this.type = type;
+        this.resources = resources;
+    }
+
+    /**
+     * @param values the values of many resources, in the order they have been requested
+     */
+    public Message(MessageType type, Map<String, String> values) {
+        if (!type.hasPayload().equals(MessageType.KEY_VALUES))
+            throw new WrongMessageException("This type of message shouldn't have the values of many resources.");
+        this.type = type;
+        this.values = values;
+    }
+
     public Message(MessageType type, ReplicaState state) {
         if (!type.hasPayload().equals(MessageType.STATE))
             throw new WrongMessageException("This type of message shouldn't have a state.");
@@ -73,6 +102,17 @@ public class Message implements Serializable {
         this.trackerIndex = trackerIndex;
     }
 
+    /**
+     * @param shard the group of Replicas the message is about
+     */
+    public static Message ofShard(MessageType type, int shard) {
+        if (!MessageType.SHARD.equals(type.hasPayload()))
+            throw new WrongMessageException("This type of message shouldn't have a shard.");
+        Message message = new Message(type);
+        message.shard = shard;
+        return message;
+    }
+
     public Message(MessageType type, Update update, int trackerIndex) {
         if (!type.hasPayload().equals(MessageType.UPDATE))
             throw new WrongMessageException("This type of message shouldn't have an update.");
@@ -81,6 +121,61 @@ public class Message implements Serializable {
         this.trackerIndex = trackerIndex;
     }
 
+    /**
+     * @param trackerIndex the tracker index of the sender, the same for all the updates
+     * @param updates      the updates in the order they have to be applied
+     */
+    public Message(MessageType type, int trackerIndex, List<Update> updates) {
+        if (!type.hasPayload().equals(MessageType.UPDATES))
+            throw new WrongMessageException("This type of message shouldn't have a list of updates.");
+        this.type = type;
+        this.updates = updates;
+        this.trackerIndex = trackerIndex;
+    }
+
+    /**
+     * @param trackerIndex the tracker index of the sender
+     * @param vectorClock  the vector clock of the state the sender already has
+     */
+    public Message(MessageType type, int trackerIndex, VectorClock vectorClock) {
+        if (!type.hasPayload().equals(MessageType.TRACKER_INDEX_CLOCK))
+            throw new WrongMessageException("This type of message shouldn't have a vector clock.");
+        this.type = type;
+        this.trackerIndex = trackerIndex;
+        this.vectorClock = vectorClock;
+    }
+
+    /**
+     * @param trackerIndex the tracker index of the sender
+     * @param vectorClock  the vector clock of the sender
+     * @param digests      the digests of some nodes of the Merkle tree over the store of the sender, by node number
+     */
+    public Message(MessageType type, int trackerIndex, VectorClock vectorClock, Map<Integer, Long> digests) {
+        if (!type.hasPayload().equals(MessageType.TRACKER_INDEX_CLOCK_DIGESTS))
+            throw new WrongMessageException("This type of message shouldn't have digests.");
+        this.type = type;
+        this.trackerIndex = trackerIndex;
+        this.vectorClock = vectorClock;
+        this.digests = digests;
+    }
+
+    /**
+     * @param changes the joins and the exits of an epoch, in the order of their tracker indexes
+     */
+    public Message(MessageType type, MembershipChange[] changes) {
+        if (!type.hasPayload().equals(MessageType.MEMBERSHIP))
+            throw new WrongMessageException("This type of message shouldn't have membership changes.");
+        this.type = type;
+        this.changes = Arrays.asList(changes);
+    }
+
+    public Message(MessageType type, ReplicaLoad load) {
+        if (!type.hasPayload().equals(MessageType.LOAD))
+            throw new WrongMessageException("This type of message shouldn't have a load.");
+        this.type = type;
+        this.load = load;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -101,6 +196,14 @@ public class Message implements Serializable {
         return value;
     }
 
+    public List<String> getResources() {
+        return resources;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
     public ReplicaState getState() {
         return state;
     }
@@ -109,10 +212,56 @@ public class Message implements Serializable {
         return trackerIndex;
     }
 
+    public int getShard() {
+        return shard;
+    }
+
     public Update getUpdate() {
         return update;
     }
 
+    public List<Update> getUpdates() {
+        return updates;
+    }
+
+    public VectorClock getVectorClock() {
+        return vectorClock;
+    }
+
+    public Map<Integer, Long> getDigests() {
+        return digests;
+    }
+
+    public List<MembershipChange> getChanges() {
+        return changes;
+    }
+
+    public ReplicaLoad getLoad() {
+        return load;
+    }
+
+    /**
+     * @return the identifier used to match a reply with its request on a multiplexed channel, 0 if not set.
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * @return the causal token of a Client: the vector clock of the Replica after the last request of the Client, null if not set.
+     */
+    public VectorClock getToken() {
+        return token;
+    }
+
+    public void setToken(VectorClock token) {
+        this.token = token;
+    }
+
     private static class WrongMessageException extends RuntimeException {
         public WrongMessageException(String message) {
             super(message);
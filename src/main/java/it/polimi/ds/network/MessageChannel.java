@@ -0,0 +1,137 @@
+package it.polimi.ds.network;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a long-lived connection towards another entity able to carry many requests at the same time.
+ * Every request is tagged with a request id and the reply carrying the same id completes the corresponding future.
+ * If the connection breaks, the pending requests fail and the next request opens a new connection.
+ */
+public class MessageChannel {
+    private static final Logger logger = Logger.getLogger("MessageChannel");
+    private final Address to;
+    private final Message greeting;
+    private final WireFormat wireFormat;
+    private final AtomicLong nextRequestId = new AtomicLong(0);
+    private Connection connection;
+    private boolean closed = false;
+
+    /**
+     * @param to         the address of the other entity
+     * @param greeting   the message sent as first message on every new connection, it switches the other side in channel mode
+     * @param wireFormat the encoding of the messages sent on the channel
+     */
+    public MessageChannel(Address to, Message greeting, WireFormat wireFormat) {
+        this.to = to;
+        this.greeting = greeting;
+        this.wireFormat = wireFormat;
+    }
+
+    public Address getAddress() {
+        return to;
+    }
+
+    /**
+     * Sends a request on the channel, connecting again if the previous connection was lost.
+     *
+     * @param message the request, its request id is overwritten by the channel
+     * @return the future completed with the reply, or exceptionally if the connection is lost before the reply arrives
+     */
+    public CompletableFuture<Message> request(Message message) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        long requestId = nextRequestId.incrementAndGet();
+        message.setRequestId(requestId);
+        Connection current = null;
+        try {
+            synchronized (this) {
+                current = connected();
+                current.pending.put(requestId, reply);
+                current.tcp.send(message);
+            }
+        } catch (IOException e) {
+            if (current != null)
+                disconnect(current, e);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * Closes the channel failing every pending request, no other request can be sent afterwards.
+     */
+    public void close() {
+        Connection current;
+        synchronized (this) {
+            closed = true;
+            current = connection;
+        }
+        if (current != null)
+            disconnect(current, new IOException("Channel towards " + to + " closed."));
+    }
+
+    private Connection connected() throws IOException {
+        if (closed)
+            throw new IOException("Channel towards " + to + " closed.");
+        if (connection == null) {
+            TCPClient tcp = TCPClient.connect(to, wireFormat);
+            tcp.send(greeting);
+            connection = new Connection(tcp);
+            connection.reader.start();
+        }
+        return connection;
+    }
+
+    private void disconnect(Connection broken, IOException cause) {
+        synchronized (this) {
+            if (connection == broken)
+                connection = null;
+        }
+        broken.tcp.close();
+        // The requests fail in the order they were sent, so that who sends them again keeps their order
+        for (Long requestId : new TreeSet<>(broken.pending.keySet())) {
+            CompletableFuture<Message> pendingReply = broken.pending.remove(requestId);
+            if (pendingReply != null)
+                pendingReply.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Represents one of the successive connections of the channel with the requests still waiting for a reply on it.
+     */
+    private class Connection {
+        private final TCPClient tcp;
+        private final Map<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+        private final Thread reader;
+
+        private Connection(TCPClient tcp) {
+            this.tcp = tcp;
+            this.reader = new Thread(this::readReplies, "channel-" + to);
+            this.reader.setDaemon(true);
+        }
+
+        private void readReplies() {
+            try {
+                while (true) {
+                    Message reply = tcp.receive();
+                    CompletableFuture<Message> pendingReply = pending.remove(reply.getRequestId());
+                    if (pendingReply != null)
+                        pendingReply.complete(reply);
+                    else
+                        logger.log(Level.WARNING, () -> "Unexpected reply from " + to + ".");
+                }
+            } catch (IOException e) {
+                disconnect(this, e);
+            } catch (ClassNotFoundException e) {
+                logger.log(Level.SEVERE, "Could not read the message properly.");
+                disconnect(this, new IOException(e));
+            }
+        }
+    }
+}
@@ -112,6 +112,102 @@ public enum MessageType {
         public String hasPayload() {
             return null;
         }
+    },
+    OPEN_CHANNEL {
+        @Override
+        public String hasPayload() {
+            return ADDRESS;
+        }
+    },
+    UPDATE_BATCH {
+        @Override
+        public String hasPayload() {
+            return UPDATES;
+        }
+    },
+    GET_STATE_SINCE {
+        @Override
+        public String hasPayload() {
+            return TRACKER_INDEX_CLOCK;
+        }
+    },
+    STATE_CHUNK {
+        @Override
+        public String hasPayload() {
+            return STATE;
+        }
+    },
+    OPEN_SESSION {
+        @Override
+        public String hasPayload() {
+            return null;
+        }
+    },
+    MGET_FROM_CLIENT {
+        @Override
+        public String hasPayload() {
+            return KEYS;
+        }
+    },
+    MGET_ANSWER {
+        @Override
+        public String hasPayload() {
+            return KEY_VALUES;
+        }
+    },
+    MPUT_FROM_CLIENT {
+        @Override
+        public String hasPayload() {
+            return KEY_VALUES;
+        }
+    },
+    SYNC_DIGEST {
+        @Override
+        public String hasPayload() {
+            return TRACKER_INDEX_CLOCK_DIGESTS;
+        }
+    },
+    SYNC_FETCH {
+        @Override
+        public String hasPayload() {
+            return TRACKER_INDEX_CLOCK_DIGESTS;
+        }
+    },
+    SYNC_VALUES {
+        @Override
+        public String hasPayload() {
+            return STATE;
+        }
+    },
+    MEMBERSHIP_EPOCH {
+        @Override
+        public String hasPayload() {
+            return MEMBERSHIP;
+        }
+    },
+    LOAD_REPORT {
+        @Override
+        public String hasPayload() {
+            return LOAD;
+        }
+    },
+    ADD_SHARD_CLIENT {
+        @Override
+        public String hasPayload() {
+            return SHARD;
+        }
+    },
+    SEND_SHARD_REPLICAS {
+        @Override
+        public String hasPayload() {
+            return ADDRESS_SET_TRACKER_INDEX;
+        }
+    },
+    STATE_RESET {
+        @Override
+        public String hasPayload() {
+            return null;
+        }
     };
 
     public static final String ADDRESS_TRACKER_INDEX = "ADDRESS_TRACKER_INDEX";
@@ -122,6 +218,14 @@ public enum MessageType {
     public static final String STATE = "STATE";
     public static final String UPDATE = "UPDATE";
     public static final String TRACKER_INDEX = "TRACKER_INDEX";
+    public static final String UPDATES = "UPDATES";
+    public static final String TRACKER_INDEX_CLOCK = "TRACKER_INDEX_CLOCK";
+    public static final String KEYS = "KEYS";
+    public static final String KEY_VALUES = "KEY_VALUES";
+    public static final String TRACKER_INDEX_CLOCK_DIGESTS = "TRACKER_INDEX_CLOCK_DIGESTS";
+    public static final String MEMBERSHIP = "MEMBERSHIP";
+    public static final String LOAD = "LOAD";
+    public static final String SHARD = "SHARD";
 
     public abstract String hasPayload();
 }
@@ -0,0 +1,170 @@
+package it.polimi.ds.network;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the registry of the measures of a Replica or of the Tracker: counters, gauges read when they are asked for and Histograms.
+ * The counters and the Histograms are looked up once by who updates them, so updating them costs no lookup and no lock.
+ * The measures are read as a flat map of names and values, offered as the attributes of an MBean and as the text of the MetricsServer.
+ */
+public class Metrics {
+    private static final Logger logger = Logger.getLogger("Metrics");
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {".p50", ".p90", ".p99", ".p999"};
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * @param gauge read every time the measures are read, it replaces the gauge with the same name
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes the measures whose names start with a prefix, as the ones of a Replica that has left the network.
+     */
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Adds the gauges of the threads of the process.
+     */
+    public void gaugeThreads() {
+        gauge("threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("threads.peak", () -> ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    /**
+     * @return the value of every measure by name, sorted, a Histogram gives its count, mean, maximum and percentiles
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".max", histogram.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++)
+                values.put(name + PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]));
+        });
+        return values;
+    }
+
+    /**
+     * @return the measures a line each, with the name and the value separated by a space
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        snapshot().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        return text.toString();
+    }
+
+    /**
+     * Registers the measures in the platform MBeanServer as the attributes of an MBean, replacing the one with the same name.
+     *
+     * @param type the kind of process, as Replica or Tracker
+     * @param name the name of the process in its kind, as its address
+     */
+    public synchronized void register(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("it.polimi.ds:type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new MetricsMBean(), objectName);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register the metrics in JMX.", e);
+            objectName = null;
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not unregister the metrics from JMX.", e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * Offers every measure as a read-only attribute of type long, the attributes change as the measures are added.
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("The metrics have no operations.");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet())
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            return new MBeanInfo(Metrics.class.getName(), "The metrics of the process.", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package it.polimi.ds.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Represents the HTTP endpoint serving the Metrics of a process as text at /metrics, bound to the loopback address only.
+ * The requests are served by a single thread of the server, reading the measures does not hold any lock of the process.
+ */
+public class MetricsServer implements Closeable {
+    private final HttpServer server;
+
+    /**
+     * @param port the port of the endpoint, with 0 a free port is chosen
+     */
+    public MetricsServer(Metrics metrics, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> reply(exchange, metrics));
+        server.start();
+    }
+
+    private static void reply(HttpExchange exchange, Metrics metrics) throws IOException {
+        byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
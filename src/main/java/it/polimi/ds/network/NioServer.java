@@ -0,0 +1,586 @@
+package it.polimi.ds.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a server reading its connections from a few selector threads, so that an idle connection holds no thread.
+ * One thread accepts the connections and gives them in turn to the I/O threads, which read the frames of WireFormat.BINARY
+ * through a direct buffer of their own and give the decoded Messages to the workers:
+ * the Messages of a connection are handled one at a time and in order, the replies are queued and written by the I/O thread.
+ * The Messages waiting to be handled are bounded per connection: when the inbox is full the connection is no longer read until
+ * the workers have drained half of it, so a fast sender is slowed down by TCP instead of filling the heap.
+ * The I/O threads never wait for the workers: a task that does not fit in the queue of the pool is kept and offered again shortly after.
+ * A handler can defer the Message it is handling instead of waiting on the worker: the Messages of the connection stay in the inbox until
+ * the deferred one is handed again.
+ * The replies waiting to be written are bounded in bytes per connection as well: a worker sending to a peer that does not read waits
+ * until the queued frames are written, so a large state transfer is kept in the socket buffers and not in the heap.
+ * The object streams of WireFormat.SERIALIZED cannot be read without blocking, so those connections are served by a blocking handler on a worker.
+ */
+public class NioServer implements Closeable {
+    public static final int DEFAULT_IO_THREADS = 2;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHERED_FRAMES = 64;
+    // The Messages of a connection waiting for a worker, the frames of the read filling the inbox are added all the same
+    private static final int MAX_INBOX = 256;
+    // The milliseconds after which the tasks rejected by the full queue of the workers are offered again
+    private static final long RETRY_MILLIS = 5;
+    // The bytes of the frames of a connection waiting to be written, a single larger frame is queued all the same
+    private static final long MAX_OUTGOING_BYTES = 4 * 1024 * 1024;
+    private static final Logger logger = Logger.getLogger("NioServer");
+    private final ServerSocketChannel serverChannel;
+    private final WorkerPool workers;
+    private final Handler handler;
+    private final IoLoop[] loops;
+    private volatile boolean closed = false;
+
+    /**
+     * Binds the port and starts the threads, the connections are accepted as soon as the constructor returns.
+     *
+     * @param name      the prefix of the names of the threads
+     * @param port      the port to listen on, 0 to pick a free one
+     * @param ioThreads the number of selector threads
+     * @param workers   the pool handling the Messages and serving the connections in WireFormat.SERIALIZED
+     */
+    public NioServer(String name, int port, int ioThreads, WorkerPool workers, Handler handler) throws IOException {
+        this.workers = workers;
+        this.handler = handler;
+        this.serverChannel = ServerSocketChannel.open();
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new IoLoop();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < loops.length; i++)
+            new Thread(loops[i], name + "-io-" + i).start();
+        new Thread(this::acceptConnections, name + "-acceptor").start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, the Messages not yet written are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close the server socket.");
+        }
+        for (IoLoop loop : loops)
+            if (loop != null)
+                loop.selector.wakeup();
+    }
+
+    private void acceptConnections() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not accept a connection.");
+            }
+        }
+    }
+
+    private boolean onIoThread() {
+        for (IoLoop loop : loops)
+            if (loop.thread == Thread.currentThread())
+                return true;
+        return false;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * Represents what the server does with its connections.
+     */
+    public interface Handler {
+        /**
+         * Handles a Message received in WireFormat.BINARY, called on a worker.
+         * The Messages of a connection are handled one at a time in the order they were sent.
+         *
+         * @param connection the connection the replies are sent on
+         */
+        void handle(Connection connection, Message message);
+
+        /**
+         * Serves a connection in WireFormat.SERIALIZED with blocking streams, called on a worker.
+         */
+        void serve(TCPClient client);
+    }
+
+    /**
+     * Represents a selector thread, which owns the keys of its connections: the other threads give it tasks instead of touching them.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final List<NioConnection> toBlocking = new ArrayList<>();
+        // The connections whose task has been rejected by the full queue of the workers, in the order they were rejected
+        private final Queue<NioConnection> waiting = new ArrayDeque<>();
+        private volatile Thread thread;
+
+        private IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection connection = new NioConnection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Gives the task of a connection to the workers without waiting, keeping it if their queue is full.
+         */
+        private void dispatch(NioConnection connection, Runnable task) {
+            connection.pending = task;
+            waiting.add(connection);
+            offerWaiting();
+        }
+
+        private void offerWaiting() {
+            while (!waiting.isEmpty()) {
+                NioConnection connection = waiting.peek();
+                try {
+                    if (!workers.offer(connection.pending))
+                        return;
+                } catch (RejectedExecutionException e) {
+                    connection.closeNow();
+                }
+                connection.pending = null;
+                waiting.poll();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (!closed) {
+                try {
+                    if (waiting.isEmpty())
+                        selector.select();
+                    else
+                        selector.select(RETRY_MILLIS);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "The selector failed, its connections are closed.");
+                    break;
+                }
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+                    task.run();
+                offerWaiting();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isWritable())
+                        connection.flush();
+                    if (key.isValid() && key.isReadable())
+                        connection.read(readBuffer);
+                }
+                if (!toBlocking.isEmpty())
+                    handOver();
+            }
+            // The senders waiting for the bound of a connection see it closed
+            for (SelectionKey key : selector.keys())
+                ((NioConnection) key.attachment()).closeNow();
+            closeQuietly(selector);
+        }
+
+        /**
+         * Gives the connections in WireFormat.SERIALIZED to the workers, their keys must be deregistered before the channels can block.
+         */
+        private void handOver() {
+            try {
+                selector.selectNow();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not deregister the connections.");
+            }
+            for (NioConnection connection : toBlocking)
+                connection.serveBlocking();
+            toBlocking.clear();
+        }
+    }
+
+    /**
+     * Represents a connection read by an IoLoop.
+     * The frames are read only by the I/O thread, while the Messages can be sent from any thread.
+     */
+    private class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final byte[] prefix = new byte[BinaryCodec.MAGIC.length];
+        private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final ArrayDeque<Message> inbox = new ArrayDeque<>();
+        private SelectionKey key;
+        // Guarded by outgoing
+        private long outgoingBytes = 0;
+        // The task waiting for space in the queue of the workers, only used by the I/O thread
+        private Runnable pending;
+        private int prefixLength = 0;
+        private byte[] read;
+        private int length = 0;
+        private int lengthBytes = 0;
+        private byte[] frame;
+        private int framePosition = 0;
+        // Guarded by inbox
+        private boolean draining = false;
+        private Message handling;
+        private boolean deferred = false;
+        private boolean inputClosed = false;
+        private boolean paused = false;
+        private volatile boolean closing = false;
+
+        private NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Queues the Message to be written by the I/O thread, waiting while the frames already queued exceed the bound.
+         *
+         * @throws IOException if the connection has been closed, or if the bound is reached on an I/O thread, which must never wait
+         */
+        @Override
+        public void send(Message message) throws IOException {
+            ByteBuffer frame = BinaryCodec.frame(message);
+            synchronized (outgoing) {
+                while (!closing && outgoingBytes > 0 && outgoingBytes + frame.limit() > MAX_OUTGOING_BYTES) {
+                    if (onIoThread())
+                        throw new IOException("The replies of the connection are not being read.");
+                    try {
+                        outgoing.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting to send.", e);
+                    }
+                }
+                if (closing)
+                    throw new IOException("The connection has been closed.");
+                outgoing.add(frame);
+                outgoingBytes += frame.limit();
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            scheduleFlush();
+        }
+
+        /**
+         * Called by the handler on the worker draining the connection, which stops once the handler returns.
+         */
+        @Override
+        public Runnable defer() {
+            Message message;
+            synchronized (inbox) {
+                message = handling;
+                deferred = true;
+            }
+            return () -> undefer(message);
+        }
+
+        /**
+         * Puts the deferred Message back at the head of the inbox and drains it again, unless the worker that deferred it is still draining.
+         */
+        private void undefer(Message message) {
+            synchronized (inbox) {
+                inbox.addFirst(message);
+                deferred = false;
+                if (draining)
+                    return;
+                draining = true;
+            }
+            loop.execute(() -> loop.dispatch(this, this::drain));
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true))
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+        }
+
+        /**
+         * Writes the queued frames with as few system calls as possible, waiting for the channel to be writable if they do not fit.
+         */
+        private void flush() {
+            if (!key.isValid())
+                return;
+            long written = 0;
+            try {
+                while (!outgoing.isEmpty()) {
+                    ByteBuffer[] frames = outgoing.stream().limit(MAX_GATHERED_FRAMES).toArray(ByteBuffer[]::new);
+                    channel.write(frames);
+                    for (ByteBuffer frame : frames) {
+                        if (frame.hasRemaining()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        outgoing.poll();
+                        written += frame.limit();
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing)
+                    closeNow();
+            } catch (IOException e) {
+                closeNow();
+            } finally {
+                release(written);
+            }
+        }
+
+        /**
+         * Wakes the senders waiting for the frames written to leave space in the bound.
+         */
+        private void release(long written) {
+            if (written == 0)
+                return;
+            synchronized (outgoing) {
+                outgoingBytes -= written;
+                outgoing.notifyAll();
+            }
+        }
+
+        private void closeNow() {
+            closing = true;
+            key.cancel();
+            closeQuietly(channel);
+            synchronized (outgoing) {
+                outgoing.clear();
+                outgoingBytes = 0;
+                outgoing.notifyAll();
+            }
+        }
+
+        private void read(ByteBuffer buffer) {
+            buffer.clear();
+            int bytes;
+            try {
+                bytes = channel.read(buffer);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if (bytes < 0) {
+                endOfInput();
+                return;
+            }
+            buffer.flip();
+            try {
+                if (prefixLength < prefix.length && !recognize(buffer))
+                    return;
+                readFrames(buffer);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, () -> "Closing a connection: " + e.getMessage());
+                closeNow();
+            }
+        }
+
+        /**
+         * Stops reading, the connection is closed once the Messages already received are handled and the replies written.
+         */
+        private void endOfInput() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            synchronized (inbox) {
+                inputClosed = true;
+                if (draining || deferred)
+                    return;
+            }
+            close();
+        }
+
+        /**
+         * Reads the first bytes to recognize the WireFormat chosen by the other side.
+         *
+         * @return true if the connection is in WireFormat.BINARY and the frames can be read
+         */
+        private boolean recognize(ByteBuffer buffer) throws IOException {
+            while (prefixLength < prefix.length && buffer.hasRemaining()) {
+                prefix[prefixLength++] = buffer.get();
+                if (prefixLength == 2 && ((prefix[0] & 0xFF) << 8 | (prefix[1] & 0xFF)) == TCPClient.SERIALIZATION_MAGIC) {
+                    read = Arrays.copyOf(prefix, 2 + buffer.remaining());
+                    buffer.get(read, 2, buffer.remaining());
+                    key.cancel();
+                    loop.toBlocking.add(this);
+                    return false;
+                }
+            }
+            if (prefixLength < prefix.length)
+                return false;
+            if (!Arrays.equals(prefix, BinaryCodec.MAGIC))
+                throw new StreamCorruptedException("Unknown wire format.");
+            return true;
+        }
+
+        private void serveBlocking() {
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                return;
+            }
+            loop.dispatch(this, () -> {
+                try {
+                    handler.serve(TCPClient.accept(channel.socket(), read));
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not open the object streams of a connection.");
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Cuts the frames out of the bytes read, keeping the incomplete one for the next read.
+         */
+        private void readFrames(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (frame == null) {
+                    while (lengthBytes < Integer.BYTES && buffer.hasRemaining()) {
+                        length = length << 8 | (buffer.get() & 0xFF);
+                        lengthBytes++;
+                    }
+                    if (lengthBytes < Integer.BYTES)
+                        return;
+                    if (length < 0 || length > BinaryCodec.MAX_FRAME_LENGTH)
+                        throw new StreamCorruptedException("Invalid frame length " + length + ".");
+                    frame = new byte[length];
+                    framePosition = 0;
+                }
+                int bytes = Math.min(buffer.remaining(), frame.length - framePosition);
+                buffer.get(frame, framePosition, bytes);
+                framePosition += bytes;
+                if (framePosition == frame.length) {
+                    Message message = BinaryCodec.decode(frame);
+                    frame = null;
+                    length = 0;
+                    lengthBytes = 0;
+                    deliver(message);
+                }
+            }
+        }
+
+        /**
+         * Queues the Message for the workers, a single task at a time drains the queue so that the Messages are handled in order.
+         * A full inbox stops the reads of the connection, called by the I/O thread.
+         */
+        private void deliver(Message message) {
+            synchronized (inbox) {
+                inbox.add(message);
+                if (inbox.size() >= MAX_INBOX && !paused) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                if (draining || deferred)
+                    return;
+                draining = true;
+            }
+            loop.dispatch(this, this::drain);
+        }
+
+        /**
+         * Reads the connection again once the workers have drained half of the inbox, called by the I/O thread.
+         */
+        private void resume() {
+            synchronized (inbox) {
+                if (inputClosed || !key.isValid())
+                    return;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Message message;
+                boolean resume = false;
+                boolean end = false;
+                synchronized (inbox) {
+                    // Drained again by undefer once the deferred Message is handed back
+                    if (deferred) {
+                        draining = false;
+                        return;
+                    }
+                    message = inbox.poll();
+                    handling = message;
+                    if (paused && inbox.size() <= MAX_INBOX / 2) {
+                        paused = false;
+                        resume = true;
+                    }
+                    if (message == null) {
+                        draining = false;
+                        end = inputClosed;
+                    }
+                }
+                if (resume)
+                    loop.execute(this::resume);
+                if (message == null) {
+                    if (end)
+                        close();
+                    return;
+                }
+                try {
+                    handler.handle(this, message);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Could not handle a message.", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package it.polimi.ds.network;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * Represents a store of the values kept out of the heap, so that a large store costs the garbage collector a few buffers instead of
+ * millions of objects. The keys are split in segments, each one with its own lock, its own open addressing index and its own arenas:
+ * direct buffers where the records of the values are appended and never changed, so a record stays valid as long as its arena is reachable.
+ * A snapshot copies only the indexes and shares the arenas, the writes made afterwards on either store go to new records (copy-on-write).
+ * A segment is compacted, copying its live records to new arenas, when most of its arenas hold replaced values.
+ * The values with a chain of older values, kept while a Snapshot of the StateHandler is open, stay on the heap until the chain is dropped,
+ * by the next write of their key or by truncateChains once the snapshots are closed.
+ * The values are decoded at every read, so two reads of the same value return equal but distinct objects.
+ */
+public class OffHeapStore extends AbstractMap<String, Versioned> implements ConcurrentMap<String, Versioned>, Serializable {
+    public static final int SEGMENTS = 64;
+    public static final int DEFAULT_ARENA = 1 << 20;
+    // The first arena of a segment, the next ones double up to the arena size so that a small store takes little memory
+    private static final int FIRST_ARENA = 4096;
+    // The bytes of replaced records a segment keeps before being compacted
+    private static final int COMPACT_AFTER = 1 << 16;
+    private static final long serialVersionUID = 1L;
+    private static final long TOMBSTONE = -1;
+    // The key and value lengths, the origin, the sequence, the commit and the truncated flag
+    private static final int RECORD_OVERHEAD = 4 + 4 + 4 + 4 + 8 + 1;
+    private final transient Segment[] segments;
+
+    public OffHeapStore() {
+        this(DEFAULT_ARENA);
+    }
+
+    /**
+     * @param arenaSize the bytes of every buffer where the records are appended, a larger record gets a buffer of its own
+     */
+    public OffHeapStore(int arenaSize) {
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(arenaSize);
+    }
+
+    private OffHeapStore(Segment[] segments) {
+        this.segments = segments;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45D9F3B;
+        return hash ^ hash >>> 16;
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    /**
+     * @return a copy of the store sharing the arenas, the writes on either store are not seen by the other one
+     */
+    public OffHeapStore snapshot() {
+        Segment[] copies = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            copies[i] = segments[i].copy();
+        return new OffHeapStore(copies);
+    }
+
+    /**
+     * @return the bytes of the arenas, including the records of the replaced values not compacted yet
+     */
+    public long getArenaBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.getArenaBytes();
+        return bytes;
+    }
+
+    /**
+     * Drops the older values no snapshot can read anymore, as the next write of their keys would, and moves the values left
+     * without a chain back into the arenas.
+     *
+     * @param oldest      the commit of the oldest snapshot open, Long.MAX_VALUE if there is none
+     * @param maxVersions the maximum number of values in a chain
+     */
+    public void truncateChains(long oldest, int maxVersions) {
+        for (Segment segment : segments)
+            segment.truncateChains(oldest, maxVersions);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Versioned get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        int hash = spread(key.hashCode());
+        return segmentOf(hash).get((String) key, hash);
+    }
+
+    @Override
+    public Versioned put(String key, Versioned value) {
+        Versioned[] previous = new Versioned[1];
+        compute(key, (k, current) -> {
+            previous[0] = current;
+            return value;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public Versioned remove(Object key) {
+        if (!(key instanceof String))
+            return null;
+        Versioned[] previous = new Versioned[1];
+        compute((String) key, (k, current) -> {
+            previous[0] = current;
+            return null;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public Versioned putIfAbsent(String key, Versioned value) {
+        Versioned[] previous = new Versioned[1];
+        compute(key, (k, current) -> {
+            previous[0] = current;
+            return current == null ? value : current;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof String) || value == null)
+            return false;
+        boolean[] removed = new boolean[1];
+        compute((String) key, (k, current) -> {
+            removed[0] = value.equals(current);
+            return removed[0] ? null : current;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public boolean replace(String key, Versioned oldValue, Versioned newValue) {
+        boolean[] replaced = new boolean[1];
+        compute(key, (k, current) -> {
+            replaced[0] = oldValue.equals(current);
+            return replaced[0] ? newValue : current;
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public Versioned replace(String key, Versioned value) {
+        Versioned[] previous = new Versioned[1];
+        compute(key, (k, current) -> {
+            previous[0] = current;
+            return current == null ? null : value;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Computes the new value of the key while holding the lock of its segment, as ConcurrentHashMap.compute does for the key.
+     */
+    @Override
+    public Versioned compute(String key, BiFunction<? super String, ? super Versioned, ? extends Versioned> remapping) {
+        int hash = spread(key.hashCode());
+        return segmentOf(hash).compute(key, hash, remapping);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * @return the entries read segment by segment, every segment as it was when the iterator reached it
+     */
+    @Override
+    public Set<Entry<String, Versioned>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Versioned>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapStore.this.size();
+            }
+        };
+    }
+
+    /**
+     * The store is sent and written on disk as a map on the heap.
+     */
+    private Object writeReplace() {
+        return new ConcurrentHashMap<>(this);
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, Versioned>> {
+        private int segment = 0;
+        private Iterator<Entry<String, Versioned>> entries = Collections.emptyIterator();
+
+        @Override
+        public boolean hasNext() {
+            while (!entries.hasNext()) {
+                if (segment == SEGMENTS)
+                    return false;
+                entries = segments[segment++].copy().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Entry<String, Versioned> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return entries.next();
+        }
+    }
+
+    /**
+     * Represents a part of the store: the arenas, the index from the keys to their records and the values with a chain of older values.
+     * The index keeps the address of every record, the arena + 1 in the high half and the offset in the low half, and the hash of its key.
+     */
+    private static class Segment {
+        private final int arenaSize;
+        private List<ByteBuffer> arenas = new ArrayList<>();
+        // The arena where the records are appended, null until the first write of a copy so that the copies never share it
+        private ByteBuffer current;
+        private int currentArena;
+        private long[] addresses = new long[16];
+        private int[] hashes = new int[16];
+        private final Map<String, Versioned> chained;
+        private int size = 0;
+        private int used = 0;
+        private long liveBytes = 0;
+        private long appendedBytes = 0;
+        private long arenaBytes = 0;
+
+        private Segment(int arenaSize) {
+            this.arenaSize = arenaSize;
+            this.chained = new HashMap<>();
+        }
+
+        private Segment(Segment copied) {
+            this.arenaSize = copied.arenaSize;
+            this.arenas = new ArrayList<>(copied.arenas);
+            this.addresses = copied.addresses.clone();
+            this.hashes = copied.hashes.clone();
+            this.chained = new HashMap<>(copied.chained);
+            this.size = copied.size;
+            this.used = copied.used;
+            this.liveBytes = copied.liveBytes;
+            this.appendedBytes = copied.appendedBytes;
+            this.arenaBytes = copied.arenaBytes;
+        }
+
+        private synchronized Segment copy() {
+            return new Segment(this);
+        }
+
+        private synchronized int size() {
+            return size + chained.size();
+        }
+
+        private synchronized long getArenaBytes() {
+            return arenaBytes;
+        }
+
+        private synchronized Versioned get(String key, int hash) {
+            if (!chained.isEmpty()) {
+                Versioned value = chained.get(key);
+                if (value != null)
+                    return value;
+            }
+            int slot = find(key.getBytes(StandardCharsets.UTF_8), hash);
+            return slot < 0 ? null : decode(addresses[slot]);
+        }
+
+        private synchronized Versioned compute(String key, int hash, BiFunction<? super String, ? super Versioned, ? extends Versioned> remapping) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            Versioned previous = chained.get(key);
+            int slot = -1;
+            if (previous == null) {
+                slot = find(keyBytes, hash);
+                if (slot >= 0)
+                    previous = decode(addresses[slot]);
+            }
+            Versioned value = remapping.apply(key, previous);
+            // A value read from its record and returned unchanged needs no new record
+            if (value != null && value == previous && slot >= 0 && !value.hasOlder())
+                return value;
+            if (slot >= 0)
+                release(slot);
+            else
+                chained.remove(key);
+            if (value == null)
+                return null;
+            if (value.hasOlder())
+                chained.put(key, value);
+            else
+                insert(keyBytes, hash, append(keyBytes, value));
+            compactIfSparse();
+            return value;
+        }
+
+        private synchronized void truncateChains(long oldest, int maxVersions) {
+            if (chained.isEmpty())
+                return;
+            Iterator<Entry<String, Versioned>> entries = chained.entrySet().iterator();
+            while (entries.hasNext()) {
+                Entry<String, Versioned> entry = entries.next();
+                Versioned.truncate(entry.getValue(), oldest, maxVersions);
+                if (entry.getValue().hasOlder())
+                    continue;
+                byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                insert(keyBytes, spread(entry.getKey().hashCode()), append(keyBytes, entry.getValue()));
+                entries.remove();
+            }
+            compactIfSparse();
+        }
+
+        private synchronized void clear() {
+            arenas = new ArrayList<>();
+            current = null;
+            addresses = new long[16];
+            hashes = new int[16];
+            chained.clear();
+            size = 0;
+            used = 0;
+            liveBytes = 0;
+            appendedBytes = 0;
+            arenaBytes = 0;
+        }
+
+        /**
+         * @return the slot of the key in the index, -1 if the key is not there
+         */
+        private int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask)
+                if (addresses[slot] != TOMBSTONE && hashes[slot] == hash && keyEquals(addresses[slot], key))
+                    return slot;
+            return -1;
+        }
+
+        private void insert(byte[] key, int hash, long address) {
+            if ((used + 1) * 2 > addresses.length)
+                rehash(size * 4 > addresses.length ? addresses.length * 2 : addresses.length);
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != 0 && addresses[slot] != TOMBSTONE)
+                slot = (slot + 1) & mask;
+            if (addresses[slot] == 0)
+                used++;
+            addresses[slot] = address;
+            hashes[slot] = hash;
+            size++;
+            liveBytes += recordLength(address);
+        }
+
+        private void release(int slot) {
+            liveBytes -= recordLength(addresses[slot]);
+            addresses[slot] = TOMBSTONE;
+            size--;
+        }
+
+        /**
+         * Rebuilds the index without the tombstones, the slots hold the same records.
+         */
+        private void rehash(int length) {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            addresses = new long[length];
+            hashes = new int[length];
+            int mask = length - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] == 0 || oldAddresses[i] == TOMBSTONE)
+                    continue;
+                int slot = oldHashes[i] & mask;
+                while (addresses[slot] != 0)
+                    slot = (slot + 1) & mask;
+                addresses[slot] = oldAddresses[i];
+                hashes[slot] = oldHashes[i];
+            }
+            used = size;
+        }
+
+        /**
+         * Copies the live records to new arenas once the replaced ones take more than half of the bytes appended.
+         * The copies of the segment keep the old arenas as long as they need them.
+         */
+        private void compactIfSparse() {
+            if (appendedBytes - liveBytes <= COMPACT_AFTER || appendedBytes <= 2 * liveBytes)
+                return;
+            List<ByteBuffer> oldArenas = arenas;
+            arenas = new ArrayList<>();
+            current = null;
+            appendedBytes = 0;
+            arenaBytes = 0;
+            for (int slot = 0; slot < addresses.length; slot++) {
+                long address = addresses[slot];
+                if (address == 0 || address == TOMBSTONE)
+                    continue;
+                ByteBuffer arena = oldArenas.get((int) (address >>> 32) - 1);
+                int offset = (int) address;
+                byte[] record = new byte[recordLength(arena, offset)];
+                arena.get(offset, record);
+                long moved = reserve(record.length);
+                current.put((int) moved, record);
+                addresses[slot] = moved;
+            }
+        }
+
+        /**
+         * @return the address of a free space of the given bytes at the end of the arenas
+         */
+        private long reserve(int length) {
+            if (current == null || current.capacity() - current.position() < length) {
+                int size = (int) Math.min(arenaSize, Math.max(FIRST_ARENA, arenaBytes));
+                current = ByteBuffer.allocateDirect(Math.max(size, length));
+                arenas.add(current);
+                currentArena = arenas.size();
+                arenaBytes += current.capacity();
+            }
+            int offset = current.position();
+            current.position(offset + length);
+            appendedBytes += length;
+            return (long) currentArena << 32 | offset;
+        }
+
+        private long append(byte[] key, Versioned value) {
+            byte[] text = value.getValue() == null ? null : value.getValue().getBytes(StandardCharsets.UTF_8);
+            int length = RECORD_OVERHEAD + key.length + (text == null ? 0 : text.length);
+            long address = reserve(length);
+            int offset = (int) address;
+            current.putInt(offset, key.length);
+            current.put(offset + 4, key);
+            offset += 4 + key.length;
+            current.putInt(offset, text == null ? -1 : text.length);
+            offset += 4;
+            if (text != null) {
+                current.put(offset, text);
+                offset += text.length;
+            }
+            current.putInt(offset, value.getOrigin());
+            current.putInt(offset + 4, value.getSequence());
+            current.putLong(offset + 8, value.getCommit());
+            current.put(offset + 16, (byte) (value.isTruncated() ? 1 : 0));
+            return address;
+        }
+
+        private ByteBuffer arenaOf(long address) {
+            return arenas.get((int) (address >>> 32) - 1);
+        }
+
+        private static int recordLength(ByteBuffer arena, int offset) {
+            int keyLength = arena.getInt(offset);
+            int textLength = arena.getInt(offset + 4 + keyLength);
+            return RECORD_OVERHEAD + keyLength + Math.max(0, textLength);
+        }
+
+        private int recordLength(long address) {
+            return recordLength(arenaOf(address), (int) address);
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer arena = arenaOf(address);
+            int offset = (int) address;
+            if (arena.getInt(offset) != key.length)
+                return false;
+            for (int i = 0; i < key.length; i++)
+                if (arena.get(offset + 4 + i) != key[i])
+                    return false;
+            return true;
+        }
+
+        private String decodeKey(long address) {
+            ByteBuffer arena = arenaOf(address);
+            int offset = (int) address;
+            byte[] key = new byte[arena.getInt(offset)];
+            arena.get(offset + 4, key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        private Versioned decode(long address) {
+            ByteBuffer arena = arenaOf(address);
+            int offset = (int) address;
+            offset += 4 + arena.getInt(offset);
+            int textLength = arena.getInt(offset);
+            offset += 4;
+            String text = null;
+            if (textLength >= 0) {
+                byte[] bytes = new byte[textLength];
+                arena.get(offset, bytes);
+                text = new String(bytes, StandardCharsets.UTF_8);
+                offset += textLength;
+            }
+            return new Versioned(text, arena.getInt(offset), arena.getInt(offset + 4), arena.getLong(offset + 8), arena.get(offset + 16) != 0);
+        }
+
+        /**
+         * @return the entries of the segment, called on a copy so that the records do not change while they are read
+         */
+        private Iterator<Entry<String, Versioned>> iterator() {
+            Iterator<Entry<String, Versioned>> onHeap = chained.entrySet().iterator();
+            return new Iterator<>() {
+                private int slot = -1;
+
+                @Override
+                public boolean hasNext() {
+                    if (onHeap.hasNext())
+                        return true;
+                    while (slot + 1 < addresses.length && (addresses[slot + 1] == 0 || addresses[slot + 1] == TOMBSTONE))
+                        slot++;
+                    return slot + 1 < addresses.length;
+                }
+
+                @Override
+                public Entry<String, Versioned> next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    if (onHeap.hasNext()) {
+                        Entry<String, Versioned> entry = onHeap.next();
+                        return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                    }
+                    long address = addresses[++slot];
+                    return new SimpleImmutableEntry<>(decodeKey(address), decode(address));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package it.polimi.ds.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the command line arguments between the positional ones and the optional ones written as --name=value.
+ */
+public class Options {
+    private final String[] positional;
+    private final Map<String, String> named;
+
+    private Options(String[] positional, Map<String, String> named) {
+        this.positional = positional;
+        this.named = named;
+    }
+
+    public static Options parse(String[] args) {
+        List<String> positional = new ArrayList<>();
+        Map<String, String> named = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0)
+                    named.put(arg.substring(2), "true");
+                else
+                    named.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else
+                positional.add(arg);
+        }
+        return new Options(positional.toArray(new String[0]), named);
+    }
+
+    public String[] positional() {
+        return positional;
+    }
+
+    public String get(String name, String defaultValue) {
+        return named.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = named.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Reads the options that can exceed an int, as the sizes in bytes.
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = named.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public WireFormat getWireFormat() {
+        return WireFormat.fromString(get("wire", WireFormat.SERIALIZED.name()));
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return ExecutionMode.fromString(get("executor", ExecutionMode.POOL.name()));
+    }
+
+    /**
+     * @param name the prefix of the threads of the pool
+     * @return a pool configured with --executor=pool|thread|virtual, --workers and --queue
+     */
+    public WorkerPool newWorkerPool(String name) {
+        return new WorkerPool(name, getExecutionMode(), getInt("workers", WorkerPool.DEFAULT_WORKERS), getInt("queue", WorkerPool.DEFAULT_QUEUE_LENGTH));
+    }
+}
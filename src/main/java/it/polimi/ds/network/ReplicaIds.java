@@ -0,0 +1,53 @@
+package it.polimi.ds.network;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns to every replica a small integer used as index by the VectorClocks of this process.
+ * The ids are local: the messages still carry the addresses of the replicas, and each process translates them when reading.
+ * Ids start from 1 and are never reused, so a replica that leaves and joins again keeps its id.
+ */
+public class ReplicaIds {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[16];
+    private static int nextId = 1;
+
+    private ReplicaIds() {
+    }
+
+    /**
+     * @param replica the address of the replica as returned by Address.toString
+     * @return the id of the replica, assigned on the first call
+     */
+    public static int idOf(String replica) {
+        Integer id = ids.get(replica);
+        if (id != null)
+            return id;
+        synchronized (ReplicaIds.class) {
+            id = ids.get(replica);
+            if (id != null)
+                return id;
+            if (nextId == names.length)
+                names = Arrays.copyOf(names, names.length * 2);
+            names[nextId] = replica;
+            ids.put(replica, nextId);
+            return nextId++;
+        }
+    }
+
+    public static int idOf(Address replica) {
+        return replica.replicaId();
+    }
+
+    /**
+     * @return the address of the replica, as returned by Address.toString, with the given id
+     */
+    public static String nameOf(int id) {
+        String[] current = names;
+        if (id <= 0 || id >= current.length || current[id] == null)
+            throw new IllegalArgumentException("Unknown replica id " + id + ".");
+        return current[id];
+    }
+}
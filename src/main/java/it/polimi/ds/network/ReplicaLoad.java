@@ -0,0 +1,41 @@
+package it.polimi.ds.network;
+
+import java.io.Serializable;
+
+/**
+ * Represents the load of a Replica measured over the last period, reported to the Tracker to place the new Clients.
+ */
+public class ReplicaLoad implements Serializable {
+    private final Address address;
+    private final int requestRate;
+    private final int queueDepth;
+    private final int latency;
+
+    /**
+     * @param requestRate the requests of the Clients served per second
+     * @param queueDepth  the requests waiting for a worker when the load was measured
+     * @param latency     the mean latency of the requests of the Clients, in microseconds
+     */
+    public ReplicaLoad(Address address, int requestRate, int queueDepth, int latency) {
+        this.address = address;
+        this.requestRate = requestRate;
+        this.queueDepth = queueDepth;
+        this.latency = latency;
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public int getRequestRate() {
+        return requestRate;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+}
@@ -1,58 +1,131 @@
 package it.polimi.ds.network;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 
 /**
  * Represents the sate of the Replica with the data store, the actual vector clock and the queue of the update waiting for an update of the vector clock
+ * Every value of the store keeps the write that produced it, so that the values newer than a vector clock can be found.
  */
 public class ReplicaState implements Serializable {
-    private final Map<String, String> store;
-    private final Queue<UpdateWithTracker> queue;
-    private Map<String, Integer> vectorClock;
+    private final Map<String, Versioned> store;
+    private final CausalQueue queue;
+    private VectorClock vectorClock;
 
     public ReplicaState(Address myAddress) {
-        vectorClock = new HashMap<>();
-        vectorClock.put(myAddress.toString(), 0);
-        store = new HashMap<>();
-        this.queue = new PriorityQueue<>();
+        this(myAddress, StoreBackend.HEAP);
     }
 
+    /**
+     * @param backend the store keeping the values
+     */
+    public ReplicaState(Address myAddress, StoreBackend backend) {
+        vectorClock = new VectorClock();
+        vectorClock.addKey(ReplicaIds.idOf(myAddress));
+        store = backend.newStore();
+        this.queue = new CausalQueue();
+    }
+
+    /**
+     * Copies the state, the values of an OffHeapStore are not copied but shared until they are written.
+     */
     public ReplicaState(ReplicaState copyState) {
-        this.vectorClock = new HashMap<>(copyState.getVectorClock());
-        this.store = new HashMap<>(copyState.getStore());
-        this.queue = new PriorityQueue<>(copyState.getQueue());
+        this.vectorClock = new VectorClock(copyState.getVectorClock());
+        this.store = StoreBackend.copy(copyState.getStore());
+        this.queue = new CausalQueue(copyState.getQueue());
+    }
+
+    ReplicaState(VectorClock vectorClock, Map<String, Versioned> store, CausalQueue queue) {
+        this.vectorClock = vectorClock;
+        this.store = store;
+        this.queue = queue;
+    }
+
+    /**
+     * @param entries some values of the store, sent as one of the pages of a state transfer
+     * @return a state with only the given values, an empty vector clock and an empty queue
+     */
+    public static ReplicaState page(Map<String, Versioned> entries) {
+        return page(entries, new VectorClock(), new CausalQueue());
+    }
+
+    /**
+     * @return the last page of a state transfer, with the vector clock and the queue of the sender
+     */
+    public static ReplicaState page(Map<String, Versioned> entries, VectorClock vectorClock, CausalQueue queue) {
+        return new ReplicaState(vectorClock, entries, queue);
+    }
+
+    /**
+     * @return a state with the same vector clock and queue whose values are moved to a store of the backend, this state if they are already there
+     */
+    public ReplicaState moveTo(StoreBackend backend) {
+        if ((store instanceof OffHeapStore) == (backend == StoreBackend.OFF_HEAP))
+            return this;
+        Map<String, Versioned> moved = backend.newStore();
+        moved.putAll(store);
+        return new ReplicaState(vectorClock, moved, queue);
     }
 
-    public Map<String, Integer> getVectorClock() {
-        return new HashMap<>(vectorClock);
+    /**
+     * @return the vector clock of the state, it is changed in place by the writes so it must be copied to be kept
+     */
+    public VectorClock getVectorClock() {
+        return vectorClock;
     }
 
-    public void write(Map<String, Integer> vectorClock, String key, String value) {
-        this.vectorClock = new HashMap<>(vectorClock);
+    /**
+     * Writes the value after the vector clock has been updated in place.
+     */
+    public void write(String key, Versioned value) {
         store.put(key, value);
     }
 
-    public Queue<UpdateWithTracker> getQueue() {
+    /**
+     * Completes a state transfer: the values of the last page are written and the vector clock and the queue are replaced.
+     *
+     * @param tail the last page of the transfer, with the vector clock and the queue of the sender
+     */
+    /**
+     * Completes the state with the values received in the pages of a state transfer and with its last page.
+     *
+     * @param full true if the sender sent its whole store, so the values known only by this state are dropped
+     */
+    public void complete(Map<String, Versioned> received, ReplicaState tail, boolean full) {
+        if (full)
+            store.clear();
+        store.putAll(received);
+        complete(tail);
+    }
+
+    public void complete(ReplicaState tail) {
+        store.putAll(tail.store);
+        vectorClock = new VectorClock(tail.vectorClock);
+        queue.drainAll();
+        tail.queue.toList().forEach(queue::add);
+    }
+
+    public CausalQueue getQueue() {
         return queue;
     }
 
     public String read(String key) {
-        return store.get(key);
+        Versioned versioned = store.get(key);
+        return versioned == null ? null : versioned.getValue();
     }
 
-    public void removeKey(String key) {
-        vectorClock.remove(key);
+    public void removeKey(Address replica) {
+        vectorClock.removeKey(ReplicaIds.idOf(replica));
     }
 
-    public void addKey(String key) {
-        vectorClock.putIfAbsent(key, 0);
+    public void addKey(Address replica) {
+        vectorClock.addKey(ReplicaIds.idOf(replica));
     }
 
-    private Map<String, String> getStore() {
+    /**
+     * @return the values of the store, it can be walked while it is written
+     */
+    public Map<String, Versioned> getStore() {
         return store;
     }
 }
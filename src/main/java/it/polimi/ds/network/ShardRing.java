@@ -0,0 +1,57 @@
+package it.polimi.ds.network;
+
+import java.util.Arrays;
+
+/**
+ * Represents the split of the keyspace in shards by consistent hashing: every shard owns VIRTUAL_NODES points of a ring of hashes
+ * and a key belongs to the shard of the first point following its hash. The points of a shard do not depend on the number of shards,
+ * so a shard added to the ring takes keys only from the others, about 1/shards of them, and the keys of the other shards stay where they are.
+ * The ring is computed from the number of shards alone, so the Clients and the Tracker agree on it without exchanging it.
+ */
+public class ShardRing {
+    public static final int VIRTUAL_NODES = 128;
+    private final int shards;
+    private final int[] points;
+    private final int[] owners;
+
+    public ShardRing(int shards) {
+        this.shards = Math.max(1, shards);
+        long[] ring = new long[this.shards * VIRTUAL_NODES];
+        for (int shard = 0; shard < this.shards; shard++)
+            for (int node = 0; node < VIRTUAL_NODES; node++)
+                ring[shard * VIRTUAL_NODES + node] = (long) mix(shard * 0x9E3779B9 + node) << 32 | shard;
+        // Sorted by hash, then by shard for the equal hashes
+        Arrays.sort(ring);
+        this.points = new int[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >> 32);
+            owners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads the nearby hash codes of similar keys over the whole ring.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int shardOf(String key) {
+        if (shards == 1)
+            return 0;
+        int position = Arrays.binarySearch(points, mix(key.hashCode()));
+        if (position < 0)
+            position = -position - 1;
+        return owners[position == points.length ? 0 : position];
+    }
+}
@@ -0,0 +1,137 @@
+package it.polimi.ds.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Represents a file where the CausalQueue writes the updates it cannot keep in memory, each one encoded with the BinaryCodec
+ * after its length. The updates are appended until the file is drained, then it is read once and deleted.
+ */
+class SpillFile implements Closeable {
+    private static final String PREFIX = "queue-";
+    private static final String SUFFIX = ".spill";
+    private final Path path;
+    private final DataOutputStream out;
+    private int updates = 0;
+
+    /**
+     * @param directory the directory of the file, created if it does not exist
+     */
+    SpillFile(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        path = Files.createTempFile(directory, PREFIX, SUFFIX);
+        path.toFile().deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    }
+
+    /**
+     * Deletes the files left in a directory by a process that did not close its queue.
+     */
+    static void deleteLeftovers(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int size() {
+        return updates;
+    }
+
+    void append(UpdateWithTracker update) throws IOException {
+        byte[] record = BinaryCodec.encode(new Message(MessageType.UPDATE_FROM_REPLICA, update.getUpdate(), update.getIncomingTrackerIndex()));
+        out.writeInt(record.length);
+        out.write(record);
+        updates++;
+    }
+
+    /**
+     * @return the updates in the file, which is left as it is
+     */
+    List<UpdateWithTracker> readAll() throws IOException {
+        out.flush();
+        List<UpdateWithTracker> read = new ArrayList<>(updates);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            for (int i = 0; i < updates; i++)
+                read.add(read(in));
+        }
+        return read;
+    }
+
+    /**
+     * Stops appending and reads the updates one at a time, the file is deleted after the last one.
+     * An update that cannot be read ends the iteration with an UncheckedIOException.
+     */
+    Iterator<UpdateWithTracker> drain() throws IOException {
+        out.close();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        return new Iterator<>() {
+            private int left = updates;
+
+            @Override
+            public boolean hasNext() {
+                if (left > 0)
+                    return true;
+                close(in);
+                return false;
+            }
+
+            @Override
+            public UpdateWithTracker next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    left--;
+                    return read(in);
+                } catch (IOException e) {
+                    left = 0;
+                    close(in);
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private static UpdateWithTracker read(DataInputStream in) throws IOException {
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        Message message = BinaryCodec.decode(record);
+        return new UpdateWithTracker(message.getUpdate(), message.getTrackerIndex());
+    }
+
+    private void close(DataInputStream in) {
+        try {
+            in.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // The file is deleted on exit
+        }
+    }
+
+    /**
+     * Deletes the file without reading it.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+        Files.deleteIfExists(path);
+    }
+}
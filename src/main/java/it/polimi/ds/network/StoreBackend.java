@@ -0,0 +1,43 @@
+package it.polimi.ds.network;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Contains the stores that can keep the values of a ReplicaState, both behind the ConcurrentMap interface.
+ */
+public enum StoreBackend {
+    /**
+     * A ConcurrentHashMap of the values, copied whole when the state is copied.
+     */
+    HEAP {
+        @Override
+        public Map<String, Versioned> newStore() {
+            return new ConcurrentHashMap<>();
+        }
+    },
+    /**
+     * An OffHeapStore, copied on write when the state is copied.
+     */
+    OFF_HEAP {
+        @Override
+        public Map<String, Versioned> newStore() {
+            return new OffHeapStore();
+        }
+    };
+
+    public static StoreBackend fromString(String name) {
+        return StoreBackend.valueOf(name.toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * @return a copy of a store of any backend, which can be written without changing the original
+     */
+    static Map<String, Versioned> copy(Map<String, Versioned> store) {
+        if (store instanceof OffHeapStore)
+            return ((OffHeapStore) store).snapshot();
+        return new ConcurrentHashMap<>(store);
+    }
+
+    public abstract Map<String, Versioned> newStore();
+}
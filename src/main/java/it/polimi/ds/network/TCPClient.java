@@ -1,8 +1,17 @@
 package it.polimi.ds.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.nio.channels.NotYetConnectedException;
 import java.util.logging.Level;
@@ -11,21 +20,50 @@ import java.util.logging.Logger;
 /**
  * Represents a generic socket connection between two entities.
  * Gives several methods to easily communicates through Objects.
+ * The Messages are encoded with the WireFormat chosen by the side opening the connection.
  */
-public class TCPClient {
+public class TCPClient implements Connection {
 
     private static final Logger logger = Logger.getLogger("TCPClient");
+    static final int SERIALIZATION_MAGIC = 0xACED;
     private final Socket connectedSocket;
+    private final WireFormat wireFormat;
     private final ObjectInputStream in;
     private final ObjectOutputStream out;
+    private final DataInputStream binaryIn;
+    private final DataOutputStream binaryOut;
 
     public TCPClient(Socket connectedSocket) throws IOException {
+        this(connectedSocket, WireFormat.SERIALIZED);
+    }
+
+    public TCPClient(Socket connectedSocket, WireFormat wireFormat) throws IOException {
+        this(connectedSocket, connectedSocket.getInputStream(), wireFormat, true);
+    }
+
+    private TCPClient(Socket connectedSocket, InputStream input, WireFormat wireFormat, boolean opening) throws IOException {
         if (!connectedSocket.isConnected())
             throw new NotYetConnectedException();
 
         this.connectedSocket = connectedSocket;
-        out = new ObjectOutputStream(connectedSocket.getOutputStream());
-        in = new ObjectInputStream(connectedSocket.getInputStream());
+        this.wireFormat = wireFormat;
+        // Every Message is flushed as a whole, waiting for more data would only delay the replies on the channels
+        connectedSocket.setTcpNoDelay(true);
+        if (wireFormat == WireFormat.SERIALIZED) {
+            out = new ObjectOutputStream(connectedSocket.getOutputStream());
+            in = new ObjectInputStream(input);
+            binaryOut = null;
+            binaryIn = null;
+        } else {
+            binaryOut = new DataOutputStream(new BufferedOutputStream(connectedSocket.getOutputStream()));
+            binaryIn = new DataInputStream(input instanceof BufferedInputStream ? input : new BufferedInputStream(input));
+            if (opening) {
+                binaryOut.write(BinaryCodec.MAGIC);
+                binaryOut.flush();
+            }
+            out = null;
+            in = null;
+        }
     }
 
     public static TCPClient connect(String hostname, int port) throws IOException {
@@ -36,18 +74,104 @@ public class TCPClient {
         return new TCPClient(new Socket(address.getIp(), address.getPort()));
     }
 
+    public static TCPClient connect(Address address, WireFormat wireFormat) throws IOException {
+        return new TCPClient(new Socket(address.getIp(), address.getPort()), wireFormat);
+    }
+
+    /**
+     * Wraps a socket returned by accept, recognizing the WireFormat chosen by the other side from its first bytes.
+     */
+    public static TCPClient accept(Socket acceptedSocket) throws IOException {
+        return accept(acceptedSocket, acceptedSocket.getInputStream());
+    }
+
+    /**
+     * Wraps a socket whose first bytes have already been read, as the NioServer does to recognize the WireFormat.
+     *
+     * @param read the bytes already read from the socket, read again before the rest of the stream
+     */
+    public static TCPClient accept(Socket acceptedSocket, byte[] read) throws IOException {
+        return accept(acceptedSocket, new SequenceInputStream(new ByteArrayInputStream(read), acceptedSocket.getInputStream()));
+    }
+
+    private static TCPClient accept(Socket acceptedSocket, InputStream stream) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(stream);
+        input.mark(BinaryCodec.MAGIC.length);
+        int first = input.read();
+        int second = input.read();
+        if (second < 0) {
+            acceptedSocket.close();
+            throw new EOFException();
+        }
+        if (((first << 8) | second) == SERIALIZATION_MAGIC) {
+            input.reset();
+            return new TCPClient(acceptedSocket, input, WireFormat.SERIALIZED, false);
+        }
+        if (first == BinaryCodec.MAGIC[0] && second == BinaryCodec.MAGIC[1] && input.read() == BinaryCodec.MAGIC[2])
+            return new TCPClient(acceptedSocket, input, WireFormat.BINARY, false);
+        acceptedSocket.close();
+        throw new StreamCorruptedException("Unknown wire format.");
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @return the stream used to read objects, available only in WireFormat.SERIALIZED
+     */
     public ObjectInputStream in() {
+        if (in == null)
+            throw new IllegalStateException("Object streams are not available in " + wireFormat + " format.");
         return in;
     }
 
+    /**
+     * @return the stream used to write objects, available only in WireFormat.SERIALIZED
+     */
     public ObjectOutputStream out() {
+        if (out == null)
+            throw new IllegalStateException("Object streams are not available in " + wireFormat + " format.");
         return out;
     }
 
+    /**
+     * Writes a Message on the connection.
+     * The stream is reset before each Message so that long-lived connections do not keep references to every object sent;
+     * resetting after the Message would leave a byte the other side never reads, and closing a socket with unread bytes resets the connection.
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        if (wireFormat == WireFormat.SERIALIZED) {
+            synchronized (out) {
+                out.reset();
+                out.writeObject(message);
+                out.flush();
+            }
+        } else {
+            synchronized (binaryOut) {
+                BinaryCodec.write(binaryOut, message);
+                binaryOut.flush();
+            }
+        }
+    }
+
+    public Message receive() throws IOException, ClassNotFoundException {
+        if (wireFormat == WireFormat.SERIALIZED)
+            return (Message) in.readObject();
+        return BinaryCodec.read(binaryIn);
+    }
+
+    @Override
     public void close() {
         try {
-            in.close();
-            out.close();
+            if (wireFormat == WireFormat.SERIALIZED) {
+                in.close();
+                out.close();
+            } else {
+                binaryIn.close();
+                binaryOut.close();
+            }
             connectedSocket.close();
         } catch (IOException e) {
             logger.log(Level.WARNING, "IOException, Class TCPClient", e);
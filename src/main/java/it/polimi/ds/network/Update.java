@@ -1,26 +1,44 @@
 package it.polimi.ds.network;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * Represents the update exchanged between replicas
+ * An update carries one or more writes made together by a Client: they are applied together with a single increment of the vector clock.
  */
 public class Update implements Serializable, Comparable<Object> {
-    private final Map<String, Integer> vectorClock;
+    private final VectorClock vectorClock;
     private final Address from;
-    private final String key;
-    private final String value;
+    private final Map<String, String> writes;
 
-    public Update(Map<String, Integer> vectorClock, Address from, String key, String value) {
+    public Update(VectorClock vectorClock, Address from, String key, String value) {
         this.vectorClock = vectorClock;
         this.from = from;
-        this.key = key;
-        this.value = value;
+        this.writes = Collections.singletonMap(key, value);
     }
 
-    public Map<String, Integer> getVectorClock() {
+    /**
+     * @param writes the values written by the update, in the order they have been requested
+     */
+    public Update(VectorClock vectorClock, Address from, Map<String, String> writes) {
+        this.vectorClock = vectorClock;
+        this.from = from;
+        this.writes = copy(writes);
+    }
+
+    private static Map<String, String> copy(Map<String, String> writes) {
+        if (writes.size() == 1) {
+            Map.Entry<String, String> write = writes.entrySet().iterator().next();
+            return Collections.singletonMap(write.getKey(), write.getValue());
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<>(writes));
+    }
+
+    public VectorClock getVectorClock() {
         return vectorClock;
     }
 
@@ -28,12 +46,8 @@ public class Update implements Serializable, Comparable<Object> {
         return from;
     }
 
-    public String getKey() {
-        return key;
-    }
-
-    public String getValue() {
-        return value;
+    public Map<String, String> getWrites() {
+        return writes;
     }
 
     @Override
@@ -41,7 +55,7 @@ public class Update implements Serializable, Comparable<Object> {
         if (o instanceof Update) {
             Update c = (Update) o;
             if (from.equals(c.from)) {
-                if (vectorClock.get(from.toString()) > c.vectorClock.get(c.from.toString()))
+                if (vectorClock.get(from) > c.vectorClock.get(c.from))
                     return 1;
                 else
                     return -1;
@@ -54,12 +68,12 @@ public class Update implements Serializable, Comparable<Object> {
     public boolean equals(Object obj) {
         if (obj instanceof Update)
             return ((Update) obj).getVectorClock().equals(vectorClock) && ((Update) obj).getFrom().equals(from)
-                    && ((Update) obj).getKey().equals(key) && ((Update) obj).getValue().equals(value);
+                    && ((Update) obj).getWrites().equals(writes);
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(vectorClock, from, key, value);
+        return Objects.hash(vectorClock, from, writes);
     }
 }
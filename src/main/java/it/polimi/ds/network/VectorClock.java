@@ -0,0 +1,226 @@
+package it.polimi.ds.network;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Represents a vector clock as two parallel arrays of replica ids, assigned by ReplicaIds, and counters, sorted by id.
+ * Reads, increments and comparisons do not allocate; adding a replica shifts the arrays and grows them only when they are full.
+ * When serialized the ids are written as the addresses of the replicas, so that the receiver can translate them in its own ids.
+ */
+public class VectorClock implements Serializable {
+    private static final int INITIAL_CAPACITY = 8;
+    private transient int[] ids;
+    private transient int[] values;
+    private transient int size;
+
+    public VectorClock() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of replicas the vector clock can hold before growing
+     */
+    public VectorClock(int capacity) {
+        ids = new int[Math.max(1, capacity)];
+        values = new int[ids.length];
+    }
+
+    public VectorClock(VectorClock copy) {
+        ids = Arrays.copyOf(copy.ids, Math.max(1, copy.size));
+        values = Arrays.copyOf(copy.values, ids.length);
+        size = copy.size;
+    }
+
+    /**
+     * @param map the counters keyed by Address.toString
+     */
+    public static VectorClock fromMap(Map<String, Integer> map) {
+        VectorClock vectorClock = new VectorClock(map.size());
+        map.forEach((replica, value) -> vectorClock.set(ReplicaIds.idOf(replica), value));
+        return vectorClock;
+    }
+
+    /**
+     * @return the counters keyed by Address.toString
+     */
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < size; i++)
+            map.put(ReplicaIds.nameOf(ids[i]), values[i]);
+        return map;
+    }
+
+    private int indexOf(int id) {
+        return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the id of the i-th replica, in increasing order of id
+     */
+    public int idAt(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @return the counter of the i-th replica, in increasing order of id
+     */
+    public int valueAt(int i) {
+        return values[i];
+    }
+
+    public boolean contains(int id) {
+        return indexOf(id) >= 0;
+    }
+
+    public boolean contains(Address replica) {
+        return contains(ReplicaIds.idOf(replica));
+    }
+
+    /**
+     * @return the counter of the replica, 0 if the replica is not in the vector clock
+     */
+    public int get(int id) {
+        int index = indexOf(id);
+        return index >= 0 ? values[index] : 0;
+    }
+
+    public int get(Address replica) {
+        return get(ReplicaIds.idOf(replica));
+    }
+
+    /**
+     * Sets the counter of the replica, adding it if it is not in the vector clock.
+     */
+    public void set(int id, int value) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+        index = -index - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        ids[index] = id;
+        values[index] = value;
+        size++;
+    }
+
+    /**
+     * @return the new counter of the replica, which is added with 1 if it is not in the vector clock
+     */
+    public int increment(int id) {
+        int index = indexOf(id);
+        if (index >= 0)
+            return ++values[index];
+        set(id, 1);
+        return 1;
+    }
+
+    public int increment(Address replica) {
+        return increment(ReplicaIds.idOf(replica));
+    }
+
+    /**
+     * Adds the replica with counter 0, used when a replica joins the network.
+     */
+    public void addKey(int id) {
+        if (indexOf(id) < 0)
+            set(id, 0);
+    }
+
+    /**
+     * Removes the replica, used when a replica leaves the network.
+     */
+    public void removeKey(int id) {
+        int index = indexOf(id);
+        if (index < 0)
+            return;
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+    }
+
+    /**
+     * Sets every counter to the maximum between this vector clock and the other one, adding the replicas this one does not have.
+     */
+    public void merge(VectorClock other) {
+        for (int i = 0; i < other.size; i++) {
+            int index = indexOf(other.ids[i]);
+            if (index < 0)
+                set(other.ids[i], other.values[i]);
+            else if (values[index] < other.values[i])
+                values[index] = other.values[i];
+        }
+    }
+
+    /**
+     * @return true if every counter of this vector clock is less or equal to the one of the other, missing counters are 0
+     */
+    public boolean lessOrEqual(VectorClock other) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.ids[j] < ids[i])
+                j++;
+            int otherValue = j < other.size && other.ids[j] == ids[i] ? other.values[j] : 0;
+            if (values[i] > otherValue)
+                return false;
+        }
+        return true;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(ReplicaIds.nameOf(ids[i]));
+            out.writeInt(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int entries = in.readInt();
+        ids = new int[Math.max(1, entries)];
+        values = new int[ids.length];
+        for (int i = 0; i < entries; i++)
+            set(ReplicaIds.idOf(in.readUTF()), in.readInt());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VectorClock))
+            return false;
+        VectorClock other = (VectorClock) obj;
+        return size == other.size && Arrays.equals(ids, 0, size, other.ids, 0, size) && Arrays.equals(values, 0, size, other.values, 0, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++)
+            hash = 31 * (31 * hash + ids[i]) + values[i];
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder vClockString = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            vClockString.append("\t").append(ReplicaIds.nameOf(ids[i])).append("=").append(values[i]).append("\n");
+        return vClockString.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package it.polimi.ds.network;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Represents a value of the data store with the write that produced it: the replica that made the write
+ * and the counter of that replica in the vector clock after the write.
+ * A value is newer than a vector clock if its counter is greater than the one of its replica in the vector clock.
+ * The commit is the order in which the value has been applied by this process, it is not sent to the other entities.
+ * The value in the store is the head of a chain of the older values of its key, newest first, kept while a snapshot may read them.
+ */
+public class Versioned implements Serializable {
+    private final String value;
+    private final int sequence;
+    private transient int origin;
+    private transient long commit;
+    // The chain is changed only while the key is locked by the store, the readers walk it without any lock
+    private transient volatile Versioned older;
+    private transient volatile boolean truncated;
+
+    /**
+     * @param origin   the id of the replica that made the write, assigned by ReplicaIds
+     * @param sequence the counter of the replica after the write
+     */
+    public Versioned(String value, int origin, int sequence) {
+        this(value, origin, sequence, 0);
+    }
+
+    /**
+     * @param commit the position of the write in the order the writes have been applied by this process
+     */
+    public Versioned(String value, int origin, int sequence, long commit) {
+        this.value = value;
+        this.origin = origin;
+        this.sequence = sequence;
+        this.commit = commit;
+    }
+
+    /**
+     * @param truncated true if the older values of the chain have been dropped, used by the stores keeping the values in bytes
+     */
+    Versioned(String value, int origin, int sequence, long commit, boolean truncated) {
+        this(value, origin, sequence, commit);
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return the latest of the two values in the order they have been applied, used to write a key concurrently
+     */
+    public static Versioned latest(Versioned first, Versioned second) {
+        return first.commit > second.commit ? first : second;
+    }
+
+    /**
+     * Adds a value to the chain of its key, in the order of the commits, and drops the values no snapshot can read anymore:
+     * the values older than the first one visible at the oldest snapshot, and the ones beyond the maximum length of the chain.
+     *
+     * @param head        the value in the store, null if the key has no value
+     * @param oldest      the commit of the oldest snapshot open, Long.MAX_VALUE if there is none
+     * @param maxVersions the maximum number of values in the chain
+     * @return the new head of the chain, the latest of the two values in the order they have been applied
+     */
+    public static Versioned chain(Versioned head, Versioned value, long oldest, int maxVersions) {
+        if (head == null)
+            return value;
+        if (latest(head, value) == value) {
+            value.older = head;
+            head = value;
+        } else {
+            Versioned newer = head;
+            while (newer.older != null && newer.older.commit > value.commit)
+                newer = newer.older;
+            // Linked before being published, so a reader walking the chain finds it complete
+            value.older = newer.older;
+            newer.older = value;
+        }
+        truncate(head, oldest, maxVersions);
+        return head;
+    }
+
+    /**
+     * Drops the values of the chain no snapshot can read anymore, as chain does when a value is added.
+     *
+     * @param oldest      the commit of the oldest snapshot open, Long.MAX_VALUE if there is none
+     * @param maxVersions the maximum number of values in the chain
+     */
+    static void truncate(Versioned head, long oldest, int maxVersions) {
+        Versioned last = head;
+        for (int length = 1; last.commit > oldest && last.older != null && length < maxVersions; length++)
+            last = last.older;
+        if (last.older != null) {
+            last.truncated = true;
+            last.older = null;
+        }
+    }
+
+    /**
+     * @return the latest value of the chain applied before a commit, null if the key had no value
+     * @throws IllegalStateException if that value has been dropped from the chain
+     */
+    public Versioned visibleAt(long commit) {
+        Versioned version = this;
+        while (version.commit > commit) {
+            Versioned next = version.older;
+            if (next == null) {
+                if (version.truncated)
+                    throw new IllegalStateException("The value of the snapshot " + commit + " is no longer kept.");
+                return null;
+            }
+            version = next;
+        }
+        return version;
+    }
+
+    boolean hasOlder() {
+        return older != null;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public int getOrigin() {
+        return origin;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return true if the write that produced the value is not included in the vector clock
+     */
+    public boolean newerThan(VectorClock vectorClock) {
+        return sequence > vectorClock.get(origin);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeUTF(ReplicaIds.nameOf(origin));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        origin = ReplicaIds.idOf(in.readUTF());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Versioned))
+            return false;
+        Versioned other = (Versioned) obj;
+        return origin == other.origin && sequence == other.sequence && Objects.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, origin, sequence);
+    }
+}
@@ -0,0 +1,20 @@
+package it.polimi.ds.network;
+
+/**
+ * Contains the encodings that can be used to send Messages on a connection.
+ * The side accepting a connection recognizes the encoding from the first bytes sent by the other side.
+ */
+public enum WireFormat {
+    /**
+     * Java object serialization of the whole Message.
+     */
+    SERIALIZED,
+    /**
+     * Length-prefixed frames written by the BinaryCodec.
+     */
+    BINARY;
+
+    public static WireFormat fromString(String name) {
+        return WireFormat.valueOf(name.toUpperCase());
+    }
+}
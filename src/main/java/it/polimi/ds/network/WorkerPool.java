@@ -0,0 +1,155 @@
+package it.polimi.ds.network;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the tasks of a Replica or of the Tracker with the ExecutionMode chosen from the command line.
+ * In ExecutionMode.POOL the number of threads is fixed and, when the queue is full, execute blocks the submitter
+ * until a task completes, so that a burst of requests slows down the accepting thread instead of creating new threads.
+ * The threads that must never block, as the I/O threads of the NioServer, offer the tasks instead and keep the rejected ones.
+ */
+public class WorkerPool implements Executor {
+    public static final int DEFAULT_WORKERS = 32;
+    public static final int DEFAULT_QUEUE_LENGTH = 256;
+    private static final Logger logger = Logger.getLogger("WorkerPool");
+    // True while a task is offered, so that a full queue rejects it instead of blocking the submitter
+    private static final ThreadLocal<Boolean> offering = ThreadLocal.withInitial(() -> false);
+    private final String name;
+    private final ExecutionMode mode;
+    private final ExecutorService executor;
+    private final AtomicInteger nextThread = new AtomicInteger(0);
+
+    /**
+     * @param name        the prefix of the names of the threads
+     * @param mode        the way the tasks are run
+     * @param workers     the number of threads in ExecutionMode.POOL
+     * @param queueLength the number of tasks waiting for a thread in ExecutionMode.POOL, unbounded if not positive
+     */
+    public WorkerPool(String name, ExecutionMode mode, int workers, int queueLength) {
+        this.name = name;
+        if (mode == ExecutionMode.VIRTUAL) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor == null) {
+                logger.log(Level.WARNING, () -> "Virtual threads are not available, " + name + " uses a thread per task.");
+                mode = ExecutionMode.THREAD;
+            }
+            this.executor = virtualExecutor;
+        } else if (mode == ExecutionMode.POOL) {
+            BlockingQueue<Runnable> queue = queueLength > 0 ? new ArrayBlockingQueue<>(queueLength) : new LinkedBlockingQueue<>();
+            int threads = Math.max(1, workers);
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, this::newThread, WorkerPool::waitForSpace);
+        } else
+            this.executor = null;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates a pool without limits, used for tasks that live as long as a connection and must not hold the threads of a bounded pool.
+     * In ExecutionMode.POOL every task gets its own thread.
+     */
+    public static WorkerPool unbounded(String name, ExecutionMode mode) {
+        return new WorkerPool(name, mode == ExecutionMode.POOL ? ExecutionMode.THREAD : mode, 0, 0);
+    }
+
+    /**
+     * @return the Executor returned by Executors.newVirtualThreadPerTaskExecutor, looked up at runtime, or null if the JVM does not offer it
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Puts in the queue a task rejected because the queue was full, waiting until there is space.
+     */
+    private static void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("The pool has been shut down.");
+        if (offering.get())
+            throw new RejectedExecutionException("The queue is full.");
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for space in the queue.", e);
+        }
+    }
+
+    private Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, name + "-" + nextThread.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Runs the task, in ExecutionMode.POOL it blocks while the queue is full.
+     *
+     * @throws RejectedExecutionException if the pool has been shut down or the submitter is interrupted while waiting
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (executor == null)
+            newThread(task).start();
+        else
+            executor.execute(task);
+    }
+
+    /**
+     * Runs the task only if it does not have to wait for space in the queue.
+     *
+     * @return false if the queue is full, the task is not run
+     * @throws RejectedExecutionException if the pool has been shut down
+     */
+    public boolean offer(Runnable task) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            execute(task);
+            return true;
+        }
+        if (executor.isShutdown())
+            throw new RejectedExecutionException("The pool has been shut down.");
+        offering.set(true);
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        } finally {
+            offering.set(false);
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread, always 0 if the tasks do not wait
+     */
+    public int queued() {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * Stops accepting new tasks, the running ones are interrupted.
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+}
@@ -0,0 +1,165 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the background synchronization of this Replica with the others, which repairs the updates the push of the WriteSenders missed.
+ * Every period one of the other Replicas is asked in turn, with two requests on the channel towards it:
+ * SYNC_DIGEST sends the vector clock and the digests of the top nodes of the MerkleDigest, and the other Replica replies with its vector clock
+ * and the digests of the leaves below the top nodes that differ; if some leaves differ or the other Replica has seen more updates,
+ * SYNC_FETCH asks for the values of the different leaves not included in the vector clock of this Replica.
+ * When the Replicas agree a round costs the two digest messages, otherwise the values sent are the ones that differ.
+ */
+public class AntiEntropy {
+    public static final int DEFAULT_PERIOD = 10000;
+    private static final int REQUEST_TIMEOUT = 30;
+    private static final Logger logger = Logger.getLogger("AntiEntropy");
+    private final StateHandler state;
+    private final TrackerIndexHandler trackerIndexHandler;
+    private final ChannelPool connections;
+    private final List<Address> activeReplicas;
+    private ScheduledExecutorService timer;
+    private int nextReplica = 0;
+
+    /**
+     * @param connections    the channels towards the other replicas
+     * @param activeReplicas the list of the other replicas, changed by the TrackerIndexHandler
+     */
+    public AntiEntropy(StateHandler state, TrackerIndexHandler trackerIndexHandler, ChannelPool connections, List<Address> activeReplicas) {
+        this.state = state;
+        this.trackerIndexHandler = trackerIndexHandler;
+        this.connections = connections;
+        this.activeReplicas = activeReplicas;
+    }
+
+    /**
+     * @param period the milliseconds between two rounds, the synchronization is disabled if it is not positive
+     */
+    public synchronized void start(int period) {
+        if (period <= 0 || timer != null)
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "anti-entropy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::synchronizeNext, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null)
+            timer.shutdownNow();
+    }
+
+    private void synchronizeNext() {
+        List<Address> replicas = trackerIndexHandler.copyOf(activeReplicas);
+        if (replicas.isEmpty())
+            return;
+        Address replica = replicas.get(Math.floorMod(nextReplica++, replicas.size()));
+        try {
+            int repaired = synchronize(replica);
+            if (repaired > 0)
+                logger.log(Level.INFO, () -> "Repaired " + repaired + " values from replica " + replica + ".");
+        } catch (ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, () -> "Could not synchronize with replica " + replica + ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a round with the given Replica.
+     *
+     * @return the number of values repaired, -1 if the tracker index changed during the round
+     */
+    public int synchronize(Address replica) throws ExecutionException, InterruptedException, TimeoutException {
+        Message digests = digestRequest();
+        Message reply = connections.request(replica, digests).get(REQUEST_TIMEOUT, TimeUnit.SECONDS);
+        Message fetch = fetchRequest(digests, reply);
+        if (fetch == null)
+            return reply.getType() == MessageType.SYNC_DIGEST ? 0 : -1;
+        return repair(fetch, connections.request(replica, fetch).get(REQUEST_TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return the first request of a round
+     */
+    Message digestRequest() {
+        return new Message(MessageType.SYNC_DIGEST, trackerIndexHandler.getTrackerIndex(), state.getVectorClock(), state.getDigest().topDigests());
+    }
+
+    /**
+     * @param request the SYNC_DIGEST sent
+     * @param reply   the reply of the other Replica
+     * @return the second request of a round, null if there is nothing to repair
+     */
+    Message fetchRequest(Message request, Message reply) {
+        if (reply.getType() != MessageType.SYNC_DIGEST || reply.getTrackerIndex() != request.getTrackerIndex())
+            return null;
+        MerkleDigest digest = state.getDigest();
+        Map<Integer, Long> theirLeaves = reply.getDigests();
+        Map<Integer, Long> myLeaves = digest.leafDigests(MerkleDigest.topNodesOf(theirLeaves.keySet()));
+        VectorClock myVector = state.getVectorClock();
+        if (myLeaves.equals(theirLeaves) && !ahead(reply.getVectorClock(), myVector))
+            return null;
+        Map<Integer, Long> digests = digest.topDigests();
+        digests.putAll(myLeaves);
+        return new Message(MessageType.SYNC_FETCH, request.getTrackerIndex(), myVector, digests);
+    }
+
+    /**
+     * Applies the values of the reply to a SYNC_FETCH.
+     *
+     * @return the number of values repaired, -1 if the tracker index changed during the round
+     */
+    int repair(Message fetch, Message reply) {
+        if (reply.getType() != MessageType.SYNC_VALUES)
+            return -1;
+        return trackerIndexHandler.checkTrackerIndexAndRepair(fetch.getTrackerIndex(), reply.getState(), state);
+    }
+
+    /**
+     * Replies to a request of another Replica.
+     *
+     * @return the reply, NOT_STATE if the other Replica has a different tracker index
+     */
+    public Message answer(Message request) {
+        int trackerIndex = trackerIndexHandler.getTrackerIndex();
+        if (request.getTrackerIndex() != trackerIndex)
+            return new Message(MessageType.NOT_STATE);
+        if (request.getType() == MessageType.SYNC_DIGEST) {
+            MerkleDigest digest = state.getDigest();
+            return new Message(MessageType.SYNC_DIGEST, trackerIndex, state.getVectorClock(), digest.leafDigests(digest.differentTopNodes(request.getDigests())));
+        }
+        StateTransfer transfer = state.startRepair(request.getVectorClock(), request.getDigests());
+        Map<String, Versioned> values = new HashMap<>();
+        for (ReplicaState page = transfer.nextPage(); page != null; page = transfer.nextPage())
+            values.putAll(page.getStore());
+        ReplicaState tail = trackerIndexHandler.checkTrackerIndexAndFinishRepair(request.getTrackerIndex(), state, transfer);
+        if (tail == null)
+            return new Message(MessageType.NOT_STATE);
+        values.putAll(tail.getStore());
+        return new Message(MessageType.SYNC_VALUES, ReplicaState.page(values, tail.getVectorClock(), new CausalQueue()));
+    }
+
+    /**
+     * @return true if the other vector clock has a greater counter for one of the replicas in mine
+     */
+    private static boolean ahead(VectorClock theirs, VectorClock mine) {
+        for (int i = 0; i < theirs.size(); i++)
+            if (mine.contains(theirs.idAt(i)) && theirs.valueAt(i) > mine.get(theirs.idAt(i)))
+                return true;
+        return false;
+    }
+}
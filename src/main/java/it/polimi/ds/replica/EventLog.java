@@ -0,0 +1,422 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.ReplicaIds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the log of the decisions of a Replica: the updates accepted, queued and discarded, the WAIT replies and the updates from the tracker.
+ * An event is recorded only if the Verbosity includes its Type, which is checked before anything is written, so a disabled event costs a comparison.
+ * The events are written in a ring buffer of primitive arrays: a producer claims a slot with a compare and set and publishes it by writing its sequence,
+ * without any lock and without allocating; when the buffer is full the event is dropped and counted, so the Replica never waits for the log.
+ * A single thread reads the events in order and writes them as structured lines in the logger EventLog and, if a trace file is given,
+ * in a binary trace that read turns back into Events, so that the decisions of a Replica can be replayed offline.
+ */
+public class EventLog implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    // A log that records nothing, used until a Replica sets its own
+    public static final EventLog OFF = new EventLog(Verbosity.OFF, 1);
+    private static final Logger logger = Logger.getLogger("EventLog");
+    private static final Type[] TYPES = Type.values();
+    private static final int MAGIC = 0x44534556;
+    private static final byte NAME = -1;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final int verbosity;
+    private final int capacity;
+    private final long[] times;
+    private final byte[] types;
+    private final int[] replicas;
+    private final int[] values;
+    private final int[] otherReplicas;
+    private final int[] otherValues;
+    private final int[] trackerIndexes;
+    // The sequence of the event in each slot plus one, written last by the producer
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long consumed = 0;
+    private volatile boolean running = true;
+    private DataOutputStream trace;
+    private Thread consumer;
+
+    /**
+     * The levels of detail of the log, each one includes the previous ones.
+     */
+    public enum Verbosity {
+        OFF, MEMBERSHIP, REPLICATION, DELIVERY;
+
+        public static Verbosity fromString(String name) {
+            return Verbosity.valueOf(name.toUpperCase());
+        }
+    }
+
+    /**
+     * The decisions recorded, with the meaning of the fields of their events.
+     */
+    public enum Type {
+        /**
+         * A replica added by the tracker: replica, trackerIndex
+         */
+        JOIN(Verbosity.MEMBERSHIP),
+        /**
+         * A replica removed by the tracker: replica, trackerIndex
+         */
+        EXIT(Verbosity.MEMBERSHIP),
+        /**
+         * An update of the tracker received before the previous ones: replica, trackerIndex, other value is the tracker index of this Replica
+         */
+        TRACKER_QUEUED(Verbosity.MEMBERSHIP),
+        /**
+         * A WAIT sent to the sender of updates: replica, value is the number of updates, trackerIndex of the sender, other value is the tracker index of this Replica
+         */
+        WAIT_SENT(Verbosity.REPLICATION),
+        /**
+         * A WAIT received from another replica: replica, value is the number of updates, trackerIndex of this Replica, other value is the one of the other replica
+         */
+        WAIT_RECEIVED(Verbosity.REPLICATION),
+        /**
+         * An update dropped from the full resend queue: replica is its sender, value its sequence
+         */
+        RESEND_DROPPED(Verbosity.REPLICATION),
+        /**
+         * An update applied: replica is its sender, value its sequence, trackerIndex of the sender
+         */
+        ACCEPT(Verbosity.DELIVERY),
+        /**
+         * An update held in the queue: replica is its sender, value its sequence, other replica and value the first missing dependency, trackerIndex of the sender
+         */
+        QUEUE(Verbosity.DELIVERY),
+        /**
+         * An update already applied: replica is its sender, value its sequence, trackerIndex of the sender
+         */
+        DISCARD(Verbosity.DELIVERY),
+        /**
+         * An update whose sender has left before its previous updates arrived: replica is its sender, value its sequence, trackerIndex of the sender
+         */
+        DISCARD_DEPARTED(Verbosity.DELIVERY);
+
+        private final int level;
+
+        Type(Verbosity verbosity) {
+            this.level = verbosity.ordinal();
+        }
+    }
+
+    private EventLog(Verbosity verbosity, int capacity, DataOutputStream trace) {
+        this.verbosity = verbosity.ordinal();
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        this.times = new long[this.capacity];
+        this.types = new byte[this.capacity];
+        this.replicas = new int[this.capacity];
+        this.values = new int[this.capacity];
+        this.otherReplicas = new int[this.capacity];
+        this.otherValues = new int[this.capacity];
+        this.trackerIndexes = new int[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        this.trace = trace;
+        if (verbosity == Verbosity.OFF)
+            return;
+        consumer = new Thread(this::consume, "event-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Starts the thread writing the events in the logger, unless the verbosity is OFF.
+     *
+     * @param capacity the number of events in the buffer, rounded up to a power of two
+     */
+    public EventLog(Verbosity verbosity, int capacity) {
+        this(verbosity, capacity, (DataOutputStream) null);
+    }
+
+    /**
+     * Starts the thread writing the events in the logger and in a trace, unless the verbosity is OFF.
+     *
+     * @param trace the binary trace file, replaced if it exists, null to write only the lines in the logger
+     */
+    public EventLog(Verbosity verbosity, int capacity, Path trace) throws IOException {
+        this(verbosity, capacity, trace == null || verbosity == Verbosity.OFF ? null : openTrace(trace));
+    }
+
+    private static DataOutputStream openTrace(Path trace) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(trace)));
+        out.writeInt(MAGIC);
+        return out;
+    }
+
+    public boolean isEnabled(Type type) {
+        return type.level <= verbosity;
+    }
+
+    /**
+     * Records an event, the meaning of the fields depends on the Type.
+     *
+     * @param replica      the id of a replica, 0 if none
+     * @param otherReplica the id of another replica, 0 if none
+     */
+    public void record(Type type, int replica, int value, int otherReplica, int otherValue, int trackerIndex) {
+        if (type.level > verbosity)
+            return;
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & (capacity - 1);
+        times[slot] = System.currentTimeMillis();
+        types[slot] = (byte) type.ordinal();
+        replicas[slot] = replica;
+        values[slot] = value;
+        otherReplicas[slot] = otherReplica;
+        otherValues[slot] = otherValue;
+        trackerIndexes[slot] = trackerIndex;
+        published.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Reads the events as they are published, waiting a millisecond when there is none.
+     */
+    private void consume() {
+        Set<Integer> named = new HashSet<>();
+        while (true) {
+            long sequence = consumed;
+            int slot = (int) sequence & (capacity - 1);
+            if (published.get(slot) != sequence + 1) {
+                if (!running)
+                    break;
+                flush();
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            Event event = new Event(times[slot], TYPES[types[slot]], replicas[slot], nameOf(replicas[slot]), values[slot],
+                    otherReplicas[slot], nameOf(otherReplicas[slot]), otherValues[slot], trackerIndexes[slot]);
+            consumed = sequence + 1;
+            logger.log(Level.INFO, event::toString);
+            if (trace != null)
+                write(event, named);
+        }
+        flush();
+    }
+
+    private static String nameOf(int id) {
+        return id > 0 ? ReplicaIds.nameOf(id) : null;
+    }
+
+    private void write(Event event, Set<Integer> named) {
+        try {
+            writeName(event.replicaId, event.replica, named);
+            writeName(event.otherReplicaId, event.otherReplica, named);
+            trace.writeByte(event.type.ordinal());
+            trace.writeLong(event.time);
+            trace.writeInt(event.replicaId);
+            trace.writeInt(event.value);
+            trace.writeInt(event.otherReplicaId);
+            trace.writeInt(event.otherValue);
+            trace.writeInt(event.trackerIndex);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the trace, it is closed.", e);
+            closeTrace();
+        }
+    }
+
+    /**
+     * Writes the address of a replica the first time its id is written.
+     */
+    private void writeName(int id, String name, Set<Integer> named) throws IOException {
+        if (id > 0 && named.add(id)) {
+            trace.writeByte(NAME);
+            trace.writeInt(id);
+            trace.writeUTF(name);
+        }
+    }
+
+    private void flush() {
+        if (trace == null)
+            return;
+        try {
+            trace.flush();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the trace, it is closed.", e);
+            closeTrace();
+        }
+    }
+
+    private void closeTrace() {
+        try {
+            trace.close();
+        } catch (IOException e) {
+            // Already reported by the write that failed
+        }
+        trace = null;
+    }
+
+    /**
+     * Writes the events already recorded and closes the trace.
+     */
+    @Override
+    public void close() {
+        if (consumer == null)
+            return;
+        running = false;
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (trace != null)
+            closeTrace();
+    }
+
+    /**
+     * Reads a binary trace, the replicas are named by their addresses since the ids are assigned by each process.
+     *
+     * @return the events in the order they were recorded
+     */
+    public static List<Event> read(Path trace) throws IOException {
+        List<Event> events = new ArrayList<>();
+        Map<Integer, String> names = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(trace)))) {
+            if (in.readInt() != MAGIC)
+                throw new StreamCorruptedException("Not an event trace.");
+            while (true) {
+                int tag;
+                try {
+                    tag = in.readByte();
+                } catch (EOFException e) {
+                    return events;
+                }
+                if (tag == NAME) {
+                    int id = in.readInt();
+                    names.put(id, in.readUTF());
+                    continue;
+                }
+                if (tag < 0 || tag >= TYPES.length)
+                    throw new StreamCorruptedException("Unknown event type " + tag + ".");
+                long time = in.readLong();
+                int replica = in.readInt();
+                int value = in.readInt();
+                int otherReplica = in.readInt();
+                events.add(new Event(time, TYPES[tag], replica, names.get(replica), value, otherReplica, names.get(otherReplica), in.readInt(), in.readInt()));
+            }
+        }
+    }
+
+    /**
+     * Prints the events of a trace a line each.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            logger.log(Level.SEVERE, "Please give the path of the trace as parameter.");
+            return;
+        }
+        for (Event event : read(Paths.get(args[0])))
+            System.out.println(event);
+    }
+
+    /**
+     * Represents an event read from the buffer or from a trace.
+     */
+    public static class Event {
+        private final long time;
+        private final Type type;
+        private final int replicaId;
+        private final int value;
+        private final int otherReplicaId;
+        private final int otherValue;
+        private final int trackerIndex;
+        private final String replica;
+        private final String otherReplica;
+
+        private Event(long time, Type type, int replicaId, String replica, int value, int otherReplicaId, String otherReplica, int otherValue, int trackerIndex) {
+            this.time = time;
+            this.type = type;
+            this.replicaId = replicaId;
+            this.replica = replica;
+            this.value = value;
+            this.otherReplicaId = otherReplicaId;
+            this.otherReplica = otherReplica;
+            this.otherValue = otherValue;
+            this.trackerIndex = trackerIndex;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the address of the replica, null if none
+         */
+        public String getReplica() {
+            return replica;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * @return the address of the other replica, null if none
+         */
+        public String getOtherReplica() {
+            return otherReplica;
+        }
+
+        public int getOtherValue() {
+            return otherValue;
+        }
+
+        public int getTrackerIndex() {
+            return trackerIndex;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder().append("time=").append(time).append(" event=").append(type);
+            if (replica != null)
+                line.append(" replica=").append(replica);
+            line.append(" value=").append(value);
+            if (otherReplica != null)
+                line.append(" other=").append(otherReplica);
+            line.append(" otherValue=").append(otherValue).append(" trackerIndex=").append(trackerIndex);
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.*;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the periodic report of the load of this Replica to the Tracker, which places the new Clients by the load of the Replicas.
+ * The requests of the Clients measured since the previous report give the request rate and their mean latency,
+ * read from the Histograms of the Metrics, and the requests waiting for a worker give the queue depth.
+ */
+public class LoadReporter {
+    public static final int DEFAULT_PERIOD = 1000;
+    private static final Logger logger = Logger.getLogger("LoadReporter");
+    private final Address replica;
+    private final Address tracker;
+    private final WireFormat wireFormat;
+    private final WorkerPool workers;
+    private final Histogram reads;
+    private final Histogram writes;
+    private ScheduledExecutorService timer;
+    private long lastTime = System.nanoTime();
+    private long lastCount = 0;
+    private long lastSum = 0;
+    private boolean unreachable = false;
+
+    /**
+     * @param workers the pool running the requests, whose queue is the queue depth
+     * @param metrics the registry where the latency of the requests of the Clients is measured
+     */
+    public LoadReporter(Address replica, Address tracker, WireFormat wireFormat, WorkerPool workers, Metrics metrics) {
+        this.replica = replica;
+        this.tracker = tracker;
+        this.wireFormat = wireFormat;
+        this.workers = workers;
+        this.reads = metrics.histogram("client.read.micros");
+        this.writes = metrics.histogram("client.write.micros");
+    }
+
+    /**
+     * @param period the milliseconds between two reports, the reports are disabled if it is not positive
+     */
+    public synchronized void start(int period) {
+        if (period <= 0 || timer != null)
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "load-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::report, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null)
+            timer.shutdownNow();
+    }
+
+    /**
+     * @return the load since the previous call
+     */
+    synchronized ReplicaLoad measure() {
+        long now = System.nanoTime();
+        long count = reads.getCount() + writes.getCount();
+        long sum = reads.getSum() + writes.getSum();
+        long requests = count - lastCount;
+        long elapsed = Math.max(1, now - lastTime);
+        int rate = (int) Math.min(Integer.MAX_VALUE, requests * TimeUnit.SECONDS.toNanos(1) / elapsed);
+        int latency = requests <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (sum - lastSum) / requests);
+        lastTime = now;
+        lastCount = count;
+        lastSum = sum;
+        return new ReplicaLoad(replica, rate, workers.queued(), latency);
+    }
+
+    private void report() {
+        ReplicaLoad load = measure();
+        try {
+            SimulateDelay.uniform(Replica.minDelay, Replica.maxDelay);
+            TCPClient client = TCPClient.connect(tracker, wireFormat);
+            client.send(new Message(MessageType.LOAD_REPORT, load));
+            client.close();
+            unreachable = false;
+        } catch (IOException e) {
+            // The Tracker is retried at the next period, the failure is logged once until it is reached again
+            if (!unreachable)
+                logger.log(Level.WARNING, () -> "Could not report the load to the tracker " + tracker + ".");
+            unreachable = true;
+        }
+    }
+}
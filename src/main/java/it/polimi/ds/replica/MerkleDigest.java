@@ -0,0 +1,144 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.ReplicaIds;
+import it.polimi.ds.network.Versioned;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents a Merkle tree over the store of a Replica, used by the AntiEntropy to find the keys two Replicas disagree on.
+ * The keys are spread by their hash over the leaves, grouped under the top nodes below the root.
+ * The digest of a leaf is the xor of the hashes of its entries, so every write changes it in place instead of recomputing it,
+ * and the digest of a top node is computed from its leaves when it is asked for.
+ * The nodes are numbered from 0 for the top nodes and from TOP_NODES for the leaves, so that both can be sent in a single map.
+ */
+public class MerkleDigest {
+    public static final int TOP_NODES = 64;
+    public static final int LEAVES = 4096;
+    private static final int LEAVES_PER_NODE = LEAVES / TOP_NODES;
+    private final AtomicLongArray leaves = new AtomicLongArray(LEAVES);
+
+    /**
+     * @return the leaf holding the key, between 0 and LEAVES
+     */
+    public static int leafOf(String key) {
+        return (int) (mix(hash(key)) >>> (Long.SIZE - Integer.numberOfTrailingZeros(LEAVES)));
+    }
+
+    /**
+     * @param nodes the numbers of some leaves
+     * @return the numbers of the top nodes above them
+     */
+    public static Set<Integer> topNodesOf(Collection<Integer> nodes) {
+        Set<Integer> topNodes = new HashSet<>();
+        for (int node : nodes)
+            topNodes.add((node - TOP_NODES) / LEAVES_PER_NODE);
+        return topNodes;
+    }
+
+    /**
+     * @return the hash of an entry of the store, the origin is hashed by its address since the ids are assigned by each process
+     */
+    static long hash(String key, Versioned value) {
+        return mix(hash(key) ^ mix(hash(ReplicaIds.nameOf(value.getOrigin())) + value.getSequence()));
+    }
+
+    /**
+     * FNV-1a on the characters of the string.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads every bit of the input over the whole output.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Replaces an entry of the store in the digest, called while the key cannot be written by anyone else.
+     *
+     * @param previous the value replaced, null if the key had no value
+     * @param current  the new value, null if the key has been removed
+     */
+    void replace(String key, Versioned previous, Versioned current) {
+        long change = (previous == null ? 0 : hash(key, previous)) ^ (current == null ? 0 : hash(key, current));
+        if (change != 0)
+            leaves.getAndAccumulate(leafOf(key), change, (digest, entry) -> digest ^ entry);
+    }
+
+    /**
+     * Recomputes the digest from the whole store.
+     */
+    void reset(Map<String, Versioned> store) {
+        for (int i = 0; i < LEAVES; i++)
+            leaves.set(i, 0);
+        store.forEach((key, value) -> replace(key, null, value));
+    }
+
+    private long topDigest(int node) {
+        long digest = node;
+        for (int leaf = node * LEAVES_PER_NODE; leaf < (node + 1) * LEAVES_PER_NODE; leaf++)
+            digest = mix(digest ^ leaves.get(leaf));
+        return digest;
+    }
+
+    /**
+     * @return the digests of all the top nodes, by node number
+     */
+    public Map<Integer, Long> topDigests() {
+        Map<Integer, Long> digests = new HashMap<>();
+        for (int node = 0; node < TOP_NODES; node++)
+            digests.put(node, topDigest(node));
+        return digests;
+    }
+
+    /**
+     * @return the top nodes whose digests are different from the given ones
+     */
+    public Set<Integer> differentTopNodes(Map<Integer, Long> digests) {
+        Set<Integer> nodes = new HashSet<>();
+        for (int node = 0; node < TOP_NODES; node++)
+            if (!Long.valueOf(topDigest(node)).equals(digests.get(node)))
+                nodes.add(node);
+        return nodes;
+    }
+
+    /**
+     * @return the digests of the leaves below the given top nodes, by node number
+     */
+    public Map<Integer, Long> leafDigests(Collection<Integer> topNodes) {
+        Map<Integer, Long> digests = new HashMap<>();
+        for (int node : topNodes)
+            for (int leaf = node * LEAVES_PER_NODE; leaf < (node + 1) * LEAVES_PER_NODE; leaf++)
+                digests.put(TOP_NODES + leaf, leaves.get(leaf));
+        return digests;
+    }
+
+    /**
+     * @param digests the digests of the top nodes of another tree and of the leaves below some of them
+     * @return the leaves whose digests are different, the leaves below a different top node are all different if their digests are not given
+     */
+    public Set<Integer> differentLeaves(Map<Integer, Long> digests) {
+        Set<Integer> different = new HashSet<>();
+        for (int node : differentTopNodes(digests))
+            for (int leaf = node * LEAVES_PER_NODE; leaf < (node + 1) * LEAVES_PER_NODE; leaf++)
+                if (!Long.valueOf(leaves.get(leaf)).equals(digests.get(TOP_NODES + leaf)))
+                    different.add(leaf);
+        return different;
+    }
+}
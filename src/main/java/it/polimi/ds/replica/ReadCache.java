@@ -0,0 +1,213 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Metrics;
+import it.polimi.ds.network.Versioned;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents a bounded cache of the values read by the Clients, in front of the store of the StateHandler.
+ * The cache is split in segments by the hash of the key, each one with its own lock, its own part of the size in bytes and its own LRU order.
+ * A new key enters a full segment only if it has been read more often than the least recently used key it replaces,
+ * as counted by a TinyLFU sketch of the recent reads, so the hot keys of a skewed traffic are not evicted by the keys read once.
+ * The StateHandler invalidates a key when it writes it in the store, before the write is visible to the Clients.
+ */
+public class ReadCache {
+    public static final int SEGMENTS = 16;
+    // The estimated bytes of the objects of an entry besides the characters of the key and of the value
+    private static final int ENTRY_OVERHEAD = 96;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes the maximum size of the cache, the estimated size of the keys and of the values kept
+     */
+    public ReadCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+    }
+
+    /**
+     * Publishes the hits, the misses, the evictions and the size of the cache.
+     */
+    public void measure(Metrics metrics) {
+        metrics.gauge("cache.hits", hits::sum);
+        metrics.gauge("cache.misses", misses::sum);
+        metrics.gauge("cache.evictions", evictions::sum);
+        metrics.gauge("cache.bytes", this::getBytes);
+    }
+
+    static int weigh(String key, Versioned value) {
+        String text = value.getValue();
+        return ENTRY_OVERHEAD + 2 * key.length() + (text == null ? 0 : 2 * text.length());
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45D9F3B;
+        return hash ^ hash >>> 16;
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments[hash >>> 28];
+    }
+
+    /**
+     * @return the value of the key, null if it is not in the cache
+     */
+    public Versioned get(String key) {
+        int hash = spread(key.hashCode());
+        Versioned value = segmentOf(hash).get(key, hash);
+        if (value == null)
+            misses.increment();
+        else
+            hits.increment();
+        return value;
+    }
+
+    /**
+     * Adds a value read from the store, the caller checks afterwards that the store has not been written meanwhile.
+     */
+    public void put(String key, Versioned value) {
+        int hash = spread(key.hashCode());
+        segmentOf(hash).put(key, hash, value);
+    }
+
+    public void invalidate(String key) {
+        int hash = spread(key.hashCode());
+        segmentOf(hash).remove(key);
+    }
+
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.getBytes();
+        return bytes;
+    }
+
+    /**
+     * Represents a part of the cache in LRU order, with the sketch of the reads of its keys.
+     */
+    private class Segment {
+        private final LinkedHashMap<String, Versioned> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private final FrequencySketch sketch;
+        private long bytes = 0;
+
+        private Segment(long capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, capacity / ENTRY_OVERHEAD)));
+        }
+
+        private synchronized Versioned get(String key, int hash) {
+            sketch.increment(hash);
+            return entries.get(key);
+        }
+
+        private synchronized void put(String key, int hash, Versioned value) {
+            int weight = weigh(key, value);
+            if (weight > capacity)
+                return;
+            Versioned previous = entries.remove(key);
+            if (previous != null)
+                bytes -= weigh(key, previous);
+            boolean admitted = previous != null;
+            Iterator<Map.Entry<String, Versioned>> eldest = entries.entrySet().iterator();
+            while (bytes + weight > capacity) {
+                Map.Entry<String, Versioned> victim = eldest.next();
+                // A new key read less often than the least recently used one is not admitted
+                if (!admitted && sketch.frequency(hash) <= sketch.frequency(spread(victim.getKey().hashCode())))
+                    return;
+                admitted = true;
+                bytes -= weigh(victim.getKey(), victim.getValue());
+                eldest.remove();
+                evictions.increment();
+            }
+            entries.put(key, value);
+            bytes += weight;
+        }
+
+        private synchronized void remove(String key) {
+            Versioned previous = entries.remove(key);
+            if (previous != null)
+                bytes -= weigh(key, previous);
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        private synchronized long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Represents a count-min sketch of the reads with four rows of counters up to 15, halved after a sample of reads
+     * ten times the counters of a row, so that the keys that were hot long ago stop counting.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97CB3127, 0xC2B2AE35, 0x85EBCA6B, 0x27D4EB2F};
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            for (int i = 0; i < rows.length; i++)
+                rows[i] = new byte[size];
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        private int indexOf(int hash, int row) {
+            int index = hash * SEEDS[row];
+            return (index ^ index >>> 15) & mask;
+        }
+
+        private void increment(int hash) {
+            for (int row = 0; row < rows.length; row++) {
+                int index = indexOf(hash, row);
+                if (rows[row][index] < 15)
+                    rows[row][index]++;
+            }
+            if (++additions == sampleSize) {
+                for (byte[] counters : rows)
+                    for (int i = 0; i < counters.length; i++)
+                        counters[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < rows.length; row++)
+                frequency = Math.min(frequency, rows[row][indexOf(hash, row)]);
+            return frequency;
+        }
+    }
+}
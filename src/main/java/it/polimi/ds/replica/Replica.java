@@ -3,14 +3,21 @@ package it.polimi.ds.replica;
 import it.polimi.ds.network.*;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,14 +31,70 @@ public class Replica {
     private static final AtomicBoolean isReplicaClosing = new AtomicBoolean(false);
     protected static int minDelay = 0;
     protected static int maxDelay = 0;
+    private final WireFormat wireFormat;
+    private final WorkerPool workers;
+    private final WorkerPool channelSessions;
+    private final WorkerPool senders;
+    private final int batchSize;
+    private final int batchWindow;
+    private final String dataDirectory;
+    private final int snapshotEvery;
+    private final int ioThreads;
+    private final int antiEntropyPeriod;
+    private final int causalLimit;
+    private final int resendLimit;
+    private final int metricsPort;
+    private final EventLog.Verbosity eventVerbosity;
+    private final String eventTrace;
+    private final int loadReportPeriod;
+    private final int maxVersions;
+    private final int tokenWait;
+    private final long readCacheBytes;
+    private final StoreBackend storeBackend;
+    private final Metrics metrics = new Metrics();
+    // Counted down by the console or by a failure of the log, the Replica then leaves the network
+    private final CountDownLatch closeRequested = new CountDownLatch(1);
     private Address replicaAddress;
     private List<Address> otherReplicaAddresses;
     private StateHandler state;
-    private ServerSocket serverSocket;
+    private NioServer server;
     private TrackerIndexHandler trackerIndexHandler;     //need to be shared
+    private ChannelPool connections;
+
+    private Replica(Options options) {
+        this.wireFormat = options.getWireFormat();
+        this.workers = options.newWorkerPool("replica-worker");
+        this.channelSessions = WorkerPool.unbounded("replica-channel", options.getExecutionMode());
+        // The updates waiting to be sent are bounded by the requests accepted by the workers, so their queue is not limited
+        this.senders = new WorkerPool("replica-sender", options.getExecutionMode(), options.getInt("workers", WorkerPool.DEFAULT_WORKERS), 0);
+        this.batchSize = options.getInt("batch-size", WriteSender.DEFAULT_BATCH_SIZE);
+        this.batchWindow = options.getInt("batch-window", WriteSender.DEFAULT_BATCH_WINDOW);
+        this.dataDirectory = options.get("data-dir", null);
+        this.snapshotEvery = options.getInt("snapshot-every", StatePersistence.DEFAULT_SNAPSHOT_EVERY);
+        this.ioThreads = options.getInt("io-threads", NioServer.DEFAULT_IO_THREADS);
+        this.antiEntropyPeriod = options.getInt("anti-entropy", AntiEntropy.DEFAULT_PERIOD);
+        this.causalLimit = options.getInt("causal-limit", CausalQueue.DEFAULT_LIMIT);
+        // Without the anti-entropy the replicas would never receive the dropped updates, so the updates to be sent again are not bounded
+        int resendLimit = options.getInt("resend-limit", antiEntropyPeriod > 0 ? TrackerIndexHandler.DEFAULT_RESEND_LIMIT : 0);
+        if (antiEntropyPeriod <= 0 && resendLimit > 0) {
+            logger.log(Level.WARNING, "The --resend-limit is ignored because the anti-entropy is disabled.");
+            resendLimit = 0;
+        }
+        this.resendLimit = resendLimit;
+        this.metricsPort = options.getInt("metrics-port", -1);
+        this.eventVerbosity = EventLog.Verbosity.fromString(options.get("events", EventLog.Verbosity.MEMBERSHIP.name()));
+        this.eventTrace = options.get("event-trace", null);
+        this.loadReportPeriod = options.getInt("load-report", LoadReporter.DEFAULT_PERIOD);
+        this.maxVersions = options.getInt("versions", StateHandler.DEFAULT_VERSIONS);
+        this.tokenWait = options.getInt("token-wait", StateHandler.DEFAULT_TOKEN_WAIT);
+        this.readCacheBytes = options.getLong("read-cache", 0);
+        this.storeBackend = StoreBackend.fromString(options.get("store", StoreBackend.HEAP.name()));
+    }
 
     public static void main(String[] args) {
-        Replica replica = new Replica();
+        Options options = Options.parse(args);
+        args = options.positional();
+        Replica replica = new Replica(options);
         if (args.length >= 6)
             replica.start(args[0], args[1], args[2], args[3], Integer.parseInt(args[4]), Integer.parseInt(args[5]));
         else if (args.length >= 4)
@@ -39,7 +102,11 @@ public class Replica {
         else {
             logger.log(Level.SEVERE, "Too few arguments, replica was not launched.");
             logger.log(Level.SEVERE, () -> "Please relaunch the replica with " +
-                    "<trackerIP> <trackerPort> <replicaIP> <replicaPort> [<minDelay> <maxDelay>] as parameters.");
+                    "<trackerIP> <trackerPort> <replicaIP> <replicaPort> [<minDelay> <maxDelay>] [--wire=serialized|binary] " +
+                    "[--executor=pool|thread|virtual] [--workers=<threads>] [--queue=<length>] " +
+                    "[--batch-size=<updates>] [--batch-window=<milliseconds>] [--data-dir=<path>] [--snapshot-every=<records>] [--io-threads=<threads>] [--anti-entropy=<milliseconds>] " +
+                    "[--causal-limit=<updates>] [--resend-limit=<updates>] [--metrics-port=<port>] " +
+                    "[--events=off|membership|replication|delivery] [--event-trace=<path>] [--load-report=<milliseconds>] [--versions=<values>] [--token-wait=<milliseconds>] [--read-cache=<bytes>] [--store=heap|off-heap] as parameters.");
         }
     }
 
@@ -94,7 +161,7 @@ public class Replica {
         while (trackerIndexHandler == null) {
             try {
                 SimulateDelay.uniform(minDelay, maxDelay);
-                trackerIndexHandler = joinNetwork(TCPClient.connect(trackerAddress));
+                trackerIndexHandler = joinNetwork(TCPClient.connect(trackerAddress, wireFormat));
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Impossible to contact the tracker, retrying.");
                 try {
@@ -108,27 +175,89 @@ public class Replica {
             }
         }
         logger.log(Level.INFO, "Connected to the tracker successfully.");
-        // Try to get the state from one of the replicas
+        StatePersistence persistence = null;
+        if (dataDirectory != null) {
+            try {
+                persistence = new StatePersistence(Paths.get(dataDirectory), snapshotEvery, storeBackend);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, () -> "Could not open the data directory " + dataDirectory + ", replica was not launched.");
+                return;
+            }
+        }
+        // Try to get the state from one of the replicas, only the values newer than the recovered state are sent
+        ReplicaState recovered = persistence == null ? null : persistence.getRecovered();
+        ReplicaState initialState = null;
         if (otherReplicaAddresses.isEmpty())
-            state = new StateHandler(new ReplicaState(replicaAddress), replicaAddress);
+            initialState = recovered != null ? aloneState(recovered) : new ReplicaState(replicaAddress);
 
-        for (int i = 0; state == null; i++) {
+        for (int i = 0; initialState == null; i++) {
             Address otherReplica = otherReplicaAddresses.get(i % otherReplicaAddresses.size());
             try {
                 SimulateDelay.uniform(minDelay, maxDelay);
-                state = getState(TCPClient.connect(otherReplica), trackerIndexHandler.getTrackerIndex());
+                initialState = getState(TCPClient.connect(otherReplica, wireFormat), trackerIndexHandler.getTrackerIndex(),
+                        recovered != null ? recovered : new ReplicaState(replicaAddress));
             } catch (IOException | ClassNotFoundException e) {
                 logger.log(Level.WARNING, () -> "Impossible to get a valid state from " + otherReplicaAddresses + ", trying an other one.");
             }
         }
+        // The transferred states are read in maps on the heap, the recovered one is already in the store of the backend
+        initialState = initialState.moveTo(storeBackend);
+        if (persistence == null)
+            state = new StateHandler(initialState, replicaAddress);
+        else {
+            try {
+                state = new StateHandler(initialState, replicaAddress, persistence);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, () -> "Could not write the state in " + dataDirectory + ", replica was not launched.");
+                return;
+            }
+        }
+
+        // The spilled updates are part of the queue written in the snapshots, so the files left by a previous run are not needed
+        state.boundQueue(causalLimit, dataDirectory != null ? Paths.get(dataDirectory, "queue")
+                : Paths.get(System.getProperty("java.io.tmpdir"), "replica-" + replicaPort + "-queue"));
+        state.setMaxVersions(maxVersions);
+        if (readCacheBytes > 0) {
+            ReadCache readCache = new ReadCache(readCacheBytes);
+            readCache.measure(metrics);
+            state.setReadCache(readCache);
+        }
+
+        EventLog events = openEventLog();
+        trackerIndexHandler.setEventLog(events);
+        state.setEventLog(events);
 
         // Here I have the state
-        Thread replica = new Thread(() -> runReplica(replicaPort));
-        replica.start();
-        do {
-            logger.log(Level.INFO, "Press 1 to close the Replica.");
+        AntiEntropy antiEntropy = new AntiEntropy(state, trackerIndexHandler, connections, otherReplicaAddresses);
+        try {
+            // With a bounded pool the I/O threads wait while the queue of the workers is full, so the connections stop being read
+            server = new NioServer("replica", Integer.parseInt(replicaPort), ioThreads, workers,
+                    new IncomingMessageHandler(otherReplicaAddresses, state, trackerIndexHandler, antiEntropy, channelSessions, tokenWait, metrics,
+                            this::leaveAfterLogFailure));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, () -> "Could not open port " + replicaPort + ", replica was not launched.");
+            return;
+        }
+        antiEntropy.start(antiEntropyPeriod);
+        LoadReporter loadReporter = new LoadReporter(replicaAddress, trackerAddress, wireFormat, workers, metrics);
+        loadReporter.start(loadReportPeriod);
+        metrics.gauge("events.dropped", events::getDropped);
+        MetricsServer metricsServer = publishMetrics();
+        Thread console = new Thread(() -> {
+            do {
+                logger.log(Level.INFO, "Press 1 to close the Replica.");
+            }
+            while (getChoice() != 1);
+            closeRequested.countDown();
+        }, "replica-console");
+        console.setDaemon(true);
+        console.start();
+        try {
+            closeRequested.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
-        while (getChoice() != 1);
         logger.log(Level.INFO, "Waiting until all messages are sent...");
         Replica.setIsReplicaClosing(); // This ensures that the replica can no longer accept incoming requests from clients
 
@@ -136,13 +265,19 @@ public class Replica {
             synchronized (messagesLeftToSend) {
                 if (messagesLeftToSend.get() == 0 && trackerIndexHandler.isOutgoingQueueEmpty()) {
                     //Replica can exit:
+                    antiEntropy.stop();
+                    loadReporter.stop();
                     exitNetwork(trackerAddress);
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, "Could not close the replica properly.");
-                    }
-                    replica.interrupt();
+                    server.close();
+                    connections.closeAll();
+                    workers.shutdown();
+                    channelSessions.shutdown();
+                    senders.shutdown();
+                    state.close();
+                    events.close();
+                    metrics.unregister();
+                    if (metricsServer != null)
+                        metricsServer.close();
                     logger.log(Level.INFO, "This replica has correctly been closed.");
                     return;
                 }
@@ -156,124 +291,502 @@ public class Replica {
         }
     }
 
-    private void exitNetwork(Address trackerAddress) {
+    /**
+     * @return the log of the decisions of this Replica, without the trace if it could not be created
+     */
+    private EventLog openEventLog() {
+        if (eventTrace == null)
+            return new EventLog(eventVerbosity, EventLog.DEFAULT_CAPACITY);
         try {
-            SimulateDelay.uniform(minDelay, maxDelay);
-            TCPClient tracker = TCPClient.connect(trackerAddress);
-            tracker.out().writeObject(new Message(MessageType.REMOVE_REPLICA, replicaAddress));
-            tracker.close();
+            return new EventLog(eventVerbosity, EventLog.DEFAULT_CAPACITY, Paths.get(eventTrace));
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Could not inform the tracker of the replica closure.");
-            exitNetwork(trackerAddress);
+            logger.log(Level.WARNING, () -> "Could not create the event trace " + eventTrace + ", the events are only logged.");
+            return new EventLog(eventVerbosity, EventLog.DEFAULT_CAPACITY);
         }
     }
 
-    private void runReplica(String replicaPort) {
+    /**
+     * Adds the gauges of the queues and of the threads and publishes the Metrics in JMX and, if a port is given, on HTTP.
+     *
+     * @return the HTTP endpoint, null if it is disabled or could not be opened
+     */
+    private MetricsServer publishMetrics() {
+        metrics.gauge("queue.causal", state::getQueueSize);
+        metrics.gauge("queue.causal.spilled", state::getSpilledSize);
+        metrics.gauge("queue.causal.high-water", state::getQueueHighWater);
+        metrics.gauge("queue.resend", trackerIndexHandler::getOutgoingQueueSize);
+        metrics.gauge("queue.tracker", trackerIndexHandler::getTrackerQueueSize);
+        metrics.gauge("queue.workers", workers::queued);
+        metrics.gauge("snapshots", state::getSnapshots);
+        if (storeBackend == StoreBackend.OFF_HEAP)
+            metrics.gauge("store.arena-bytes", state::getArenaBytes);
+        metrics.gauge("tracker-index", trackerIndexHandler::getTrackerIndex);
+        metrics.gaugeThreads();
+        metrics.register("Replica", replicaAddress.toString());
+        if (metricsPort < 0)
+            return null;
         try {
-            serverSocket = new ServerSocket(Integer.parseInt(replicaPort));
-            while (true) {
-                new IncomingMessageHandler(otherReplicaAddresses, serverSocket.accept(), state, trackerIndexHandler).start();
-            }
+            MetricsServer metricsServer = new MetricsServer(metrics, metricsPort);
+            logger.log(Level.INFO, () -> "Metrics published on http://localhost:" + metricsServer.getPort() + "/metrics.");
+            return metricsServer;
         } catch (IOException e) {
-            // This exception must be ignored, it happens when the main thread interrupts this one
+            logger.log(Level.WARNING, () -> "Could not open the metrics port " + metricsPort + ".");
+            return null;
         }
-        stop();
     }
 
-    public void stop() {
+    /**
+     * Makes the Replica leave the network once its log can no longer be written, the writes already applied are still sent to the others.
+     */
+    private void leaveAfterLogFailure() {
+        if (closeRequested.getCount() > 0)
+            logger.log(Level.SEVERE, "The log could not be written, the replica leaves the network.");
+        Replica.setIsReplicaClosing();
+        closeRequested.countDown();
+    }
+
+    private void exitNetwork(Address trackerAddress) {
         try {
-            serverSocket.close();
+            SimulateDelay.uniform(minDelay, maxDelay);
+            TCPClient tracker = TCPClient.connect(trackerAddress, wireFormat);
+            tracker.send(new Message(MessageType.REMOVE_REPLICA, replicaAddress));
+            tracker.close();
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Could not close tracker properly.");
+            logger.log(Level.SEVERE, "Could not inform the tracker of the replica closure.");
+            exitNetwork(trackerAddress);
         }
     }
 
     private TrackerIndexHandler joinNetwork(TCPClient client) throws IOException, ClassNotFoundException {
-        client.out().writeObject(new Message(MessageType.ADD_REPLICA, replicaAddress));
-        Message reply = (Message) client.in().readObject();
+        client.send(new Message(MessageType.ADD_REPLICA, replicaAddress));
+        Message reply = client.receive();
         client.close();
         otherReplicaAddresses = reply.getAddressSet();
-        return new TrackerIndexHandler(reply.getTrackerIndex());
+        connections = new ChannelPool(replicaAddress, wireFormat);
+        return new TrackerIndexHandler(reply.getTrackerIndex(), connections, senders, batchSize, batchWindow, resendLimit, metrics);
     }
 
-    private StateHandler getState(TCPClient client, int trackerIndex) throws IOException, ClassNotFoundException {
-        client.out().writeObject(new Message(MessageType.GET_STATE, trackerIndex));
-        Message reply = ((Message) client.in().readObject());
+    /**
+     * Receives the state in pages, the values are kept apart until the last page so that a failed transfer leaves the base unchanged.
+     * A STATE_RESET before the pages tells that the whole store is sent, because the base belongs to an older incarnation of a Replica.
+     *
+     * @param base the state already known by this replica, its vector clock is sent to receive only the newer values
+     * @return the base completed with the received values, vector clock and queue
+     */
+    private ReplicaState getState(TCPClient client, int trackerIndex, ReplicaState base) throws IOException, ClassNotFoundException {
+        client.send(new Message(MessageType.GET_STATE_SINCE, trackerIndex, base.getVectorClock()));
+        Map<String, Versioned> received = new HashMap<>();
+        Message reply = client.receive();
+        boolean full = reply.getType().equals(MessageType.STATE_RESET);
+        if (full)
+            reply = client.receive();
+        while (reply.getType().equals(MessageType.STATE_CHUNK)) {
+            received.putAll(reply.getState().getStore());
+            reply = client.receive();
+        }
         client.close();
-        if (reply.getType().equals(MessageType.SEND_STATE))
-            return new StateHandler(reply.getState(), replicaAddress);
-        throw new IOException();
+        if (!reply.getType().equals(MessageType.SEND_STATE))
+            throw new IOException();
+        base.complete(received, reply.getState(), full);
+        int values = received.size() + reply.getState().getStore().size();
+        logger.log(Level.INFO, () -> "Received " + values + " values of the state.");
+        return base;
     }
 
     /**
-     * Represents the Thread that will handle the various requests from Client and other Replicas.
+     * Keeps the store recovered from the data directory when no other replica is in the network.
+     * The other replicas in the vector clock have left the network, so their counters and their queued updates are dropped.
      */
-    private static class IncomingMessageHandler extends Thread {
-        private final Socket clientSocket;
+    private ReplicaState aloneState(ReplicaState recovered) {
+        VectorClock vectorClock = recovered.getVectorClock();
+        int myId = ReplicaIds.idOf(replicaAddress);
+        for (int i = vectorClock.size() - 1; i >= 0; i--)
+            if (vectorClock.idAt(i) != myId)
+                vectorClock.removeKey(vectorClock.idAt(i));
+        vectorClock.addKey(myId);
+        recovered.getQueue().drainAll();
+        logger.log(Level.INFO, () -> "Recovered the state from " + dataDirectory + ".");
+        return recovered;
+    }
+
+    /**
+     * Represents the handler of the various requests from Client and other Replicas.
+     */
+    static class IncomingMessageHandler implements NioServer.Handler {
         private final StateHandler state;
         private final TrackerIndexHandler trackerIndexHandler;
+        private final AntiEntropy antiEntropy;
+        private final WorkerPool channelSessions;
+        private final Histogram readLatency;
+        private final Histogram writeLatency;
+        private final LongAdder waitsSent;
+        private final Histogram transferSizes;
+        private final LongAdder staleTokens;
+        private final long tokenWait;
+        private final Runnable leave;
+        // The deferred requests handed back to the handler, with whether their token has been reached before the timeout
+        private final Map<Message, Boolean> tokenOutcomes = new ConcurrentHashMap<>();
         private List<Address> otherReplicaAddresses;
 
-        public IncomingMessageHandler(List<Address> otherReplicaAddresses, Socket socket, StateHandler state, TrackerIndexHandler trackerIndexHandler) {
+        /**
+         * @param channelSessions the pool running the long-lived channels in WireFormat.SERIALIZED, so that they do not hold a worker
+         * @param tokenWait       the milliseconds a request of a Client waits for the updates included in its causal token
+         * @param metrics         the registry where the latency of the requests of the Clients and the sizes of the state transfers are measured
+         * @param leave           called when the log has failed, the Replica must leave the network since it can no longer accept writes
+         */
+        public IncomingMessageHandler(List<Address> otherReplicaAddresses, StateHandler state, TrackerIndexHandler trackerIndexHandler,
+                                      AntiEntropy antiEntropy, WorkerPool channelSessions, long tokenWait, Metrics metrics, Runnable leave) {
             this.otherReplicaAddresses = new ArrayList<>(otherReplicaAddresses);
-            this.clientSocket = socket;
             this.state = state;
             this.otherReplicaAddresses = otherReplicaAddresses;
             this.trackerIndexHandler = trackerIndexHandler;
+            this.antiEntropy = antiEntropy;
+            this.channelSessions = channelSessions;
+            this.readLatency = metrics.histogram("client.read.micros");
+            this.writeLatency = metrics.histogram("client.write.micros");
+            this.waitsSent = metrics.counter("replication.wait-sent");
+            this.transferSizes = metrics.histogram("state.transfer.values");
+            this.staleTokens = metrics.counter("client.token.stale");
+            this.tokenWait = tokenWait;
+            this.leave = leave;
         }
 
+        /**
+         * Handles a request read by the NioServer, the channels need no task of their own since their requests arrive one at a time.
+         */
         @Override
-        public void run() {
-            try {
-                TCPClient client = new TCPClient(clientSocket);
-                Message inputMessage = (Message) client.in().readObject();
-                switch (inputMessage.getType()) {
-                    case READ_FROM_CLIENT:
-                        if (Replica.replicaIsNotClosing())
-                            client.out().writeObject(readFromClient(inputMessage.getResource()));
-                        else
-                            client.out().writeObject(new Message(MessageType.READ_ANSWER, null, null));
-                        break;
-                    case WRITE_FROM_CLIENT:
-                        if (Replica.replicaIsNotClosing()) {
-                            writeFromClient(inputMessage.getResource(), inputMessage.getValue());
-                            client.out().writeObject(new Message(MessageType.ACK));
-                        } else {
-                            client.out().writeObject(new Message(MessageType.WAIT));
+        public void handle(Connection connection, Message inputMessage) {
+            switch (inputMessage.getType()) {
+                case OPEN_CHANNEL:
+                    logger.log(Level.INFO, () -> "Channel opened by " + inputMessage.getAddress() + ".");
+                    return;
+                case OPEN_SESSION:
+                    logger.log(Level.INFO, "Channel opened by a client.");
+                    return;
+                case GET_STATE_SINCE:
+                    sendState(connection, inputMessage.getTrackerIndex(), inputMessage.getVectorClock());
+                    return;
+                default:
+                    Boolean reached = tokenOutcomes.remove(inputMessage);
+                    if (reached == null && deferUntilToken(connection, inputMessage))
+                        return;
+                    try {
+                        Message reply;
+                        if (Boolean.FALSE.equals(reached)) {
+                            staleToken(inputMessage);
+                            reply = new Message(MessageType.WAIT);
+                        } else
+                            reply = handle(inputMessage);
+                        if (reply != null) {
+                            reply.setRequestId(inputMessage.getRequestId());
+                            connection.send(reply);
                         }
-                        break;
-                    case UPDATE_FROM_REPLICA:
-                        int trackerIndex = updateFromReplica(inputMessage.getUpdate(), inputMessage.getTrackerIndex());
-                        SimulateDelay.uniform(minDelay, maxDelay);
-                        if (trackerIndex == 0)
-                            client.out().writeObject(new Message(MessageType.ACK));
-                        else
-                            client.out().writeObject(new Message(MessageType.WAIT, trackerIndex));
-                        break;
-                    case GET_STATE:
-                        ReplicaState outgoingState = getReplicaState(inputMessage.getTrackerIndex(), state);
-                        SimulateDelay.uniform(minDelay, maxDelay);
-                        if (outgoingState == null)
-                            client.out().writeObject(new Message(MessageType.NOT_STATE));
-                        else
-                            client.out().writeObject(new Message(MessageType.SEND_STATE, outgoingState));
-                        break;
-                    case SEND_NEW_REPLICA:
-                        addNewReplica(inputMessage.getAddress(), inputMessage.getTrackerIndex(), state, otherReplicaAddresses);
-                        break;
-                    case REMOVE_OLD_REPLICA:
-                        removeOldReplica(inputMessage.getAddress(), inputMessage.getTrackerIndex(), state, otherReplicaAddresses);
-                        break;
-                    default:
-                        logger.log(Level.WARNING, "Message type not found.");
+                    } catch (IOException e) {
+                        // Also when the update could not be written on disk: the sender sees the channel closed and sends it again
+                        logger.log(Level.WARNING, "Communication with a replica interrupted.");
+                        connection.close();
+                    }
+            }
+        }
+
+        /**
+         * Defers a request of a Client whose causal token is ahead of this Replica, so that no worker is held while the missing updates
+         * arrive: the request is handed back once they are applied, or after the token wait to be answered WAIT,
+         * and the next requests of the connection wait behind it.
+         *
+         * @return true if the request has been deferred
+         */
+        private boolean deferUntilToken(Connection connection, Message request) {
+            switch (request.getType()) {
+                case READ_FROM_CLIENT:
+                case WRITE_FROM_CLIENT:
+                case MGET_FROM_CLIENT:
+                case MPUT_FROM_CLIENT:
+                    break;
+                default:
+                    return false;
+            }
+            CompletableFuture<Boolean> reached = state.whenToken(request.getToken(), tokenWait);
+            if (reached.isDone())
+                return false;
+            Runnable handBack = connection.defer();
+            if (handBack == null)
+                return false;
+            reached.thenAccept(included -> {
+                tokenOutcomes.put(request, included);
+                handBack.run();
+            });
+            return true;
+        }
+
+        /**
+         * Serves a connection in WireFormat.SERIALIZED, whose first request tells whether it is a channel or a single request.
+         */
+        @Override
+        public void serve(TCPClient client) {
+            try {
+                Message inputMessage = client.receive();
+                if (inputMessage.getType() == MessageType.OPEN_CHANNEL) {
+                    channelSessions.execute(() -> serveChannel(client, String.valueOf(inputMessage.getAddress())));
+                    return;
                 }
-                client.close();
-                clientSocket.close();
+                if (inputMessage.getType() == MessageType.OPEN_SESSION) {
+                    channelSessions.execute(() -> serveChannel(client, "a client"));
+                    return;
+                }
+                if (inputMessage.getType() == MessageType.GET_STATE_SINCE) {
+                    channelSessions.execute(() -> sendState(client, inputMessage.getTrackerIndex(), inputMessage.getVectorClock()));
+                    return;
+                }
+                // Waiting for the causal token would hold the worker, the request waits on a thread of its own as the channels
+                if (!state.includesToken(inputMessage.getToken())) {
+                    channelSessions.execute(() -> answer(client, inputMessage));
+                    return;
+                }
+                answer(client, inputMessage);
+                return;
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Communication with a replica interrupted.");
             } catch (ClassNotFoundException e) {
                 logger.log(Level.SEVERE, "Could not read the message properly.");
             }
+            client.close();
+        }
+
+        /**
+         * Answers the single request of a connection in WireFormat.SERIALIZED and closes it.
+         */
+        private void answer(TCPClient client, Message inputMessage) {
+            try {
+                Message reply = handle(inputMessage);
+                if (reply != null)
+                    client.send(reply);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Communication with a replica interrupted.");
+            }
+            client.close();
+        }
+
+        /**
+         * Serves the requests arriving on a long-lived channel, opened by a Replica or by the session of a Client, until the other side closes it.
+         * The requests are handled in order and each reply carries the request id of its request,
+         * so a Client can send many requests without waiting for the replies and still read its own writes.
+         *
+         * @param from the other side of the channel, used only in the logs
+         */
+        private void serveChannel(TCPClient client, String from) {
+            logger.log(Level.INFO, () -> "Channel opened by " + from + ".");
+            try {
+                while (true) {
+                    Message inputMessage = client.receive();
+                    Message reply = handle(inputMessage);
+                    if (reply != null) {
+                        reply.setRequestId(inputMessage.getRequestId());
+                        client.send(reply);
+                    }
+                }
+            } catch (EOFException e) {
+                logger.log(Level.INFO, () -> "Channel closed by " + from + ".");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, () -> "Channel with " + from + " interrupted.");
+            } catch (ClassNotFoundException e) {
+                logger.log(Level.SEVERE, "Could not read the message properly.");
+            }
+            client.close();
+        }
+
+        /**
+         * Sends the state in pages followed by the last page with the vector clock and the queue, or NOT_STATE.
+         * The pages are read without holding the locks, so the updates keep being applied during the transfer.
+         *
+         * @param since the vector clock of the state the joining replica already has
+         */
+        private void sendState(Connection client, int incomingTrackerIndex, VectorClock since) {
+            StateTransfer transfer = null;
+            try {
+                if (incomingTrackerIndex > trackerIndexHandler.getTrackerIndex()) {
+                    client.send(new Message(MessageType.NOT_STATE));
+                    return;
+                }
+                transfer = state.startTransfer(since, StateTransfer.DEFAULT_PAGE_SIZE);
+                if (transfer.isFull())
+                    client.send(new Message(MessageType.STATE_RESET));
+                long values = 0;
+                for (ReplicaState page = transfer.nextPage(); page != null; page = transfer.nextPage()) {
+                    client.send(new Message(MessageType.STATE_CHUNK, page));
+                    values += page.getStore().size();
+                }
+                ReplicaState tail = trackerIndexHandler.checkTrackerIndexAndFinishTransfer(incomingTrackerIndex, state, transfer);
+                transfer = null;
+                if (tail != null)
+                    transferSizes.record(values + tail.getStore().size());
+                SimulateDelay.uniform(minDelay, maxDelay);
+                client.send(tail == null ? new Message(MessageType.NOT_STATE) : new Message(MessageType.SEND_STATE, tail));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "State transfer interrupted.");
+            } finally {
+                if (transfer != null)
+                    state.abortTransfer(transfer);
+                client.close();
+            }
+        }
+
+        /**
+         * Executes a request from a Client, a Replica or the Tracker and measures it.
+         *
+         * @return the reply to be sent back, null if the request has no reply.
+         * @throws IOException if an update of another Replica could not be written on disk, so it must not be acknowledged
+         */
+        private Message handle(Message inputMessage) throws IOException {
+            long start = System.nanoTime();
+            Message reply = execute(inputMessage);
+            switch (inputMessage.getType()) {
+                case READ_FROM_CLIENT:
+                case MGET_FROM_CLIENT:
+                    readLatency.recordSince(start);
+                    break;
+                case WRITE_FROM_CLIENT:
+                case MPUT_FROM_CLIENT:
+                    writeLatency.recordSince(start);
+                    break;
+                case UPDATE_FROM_REPLICA:
+                case UPDATE_BATCH:
+                    if (reply.getType() == MessageType.WAIT)
+                        waitsSent.increment();
+                    break;
+                default:
+                    break;
+            }
+            return reply;
+        }
+
+        private Message execute(Message inputMessage) throws IOException {
+            switch (inputMessage.getType()) {
+                case READ_FROM_CLIENT:
+                    if (Replica.replicaIsNotClosing()) {
+                        if (!awaitToken(inputMessage))
+                            return new Message(MessageType.WAIT);
+                        return withToken(readFromClient(inputMessage.getResource()), state.getVectorClock());
+                    }
+                    return new Message(MessageType.READ_ANSWER, null, null);
+                case WRITE_FROM_CLIENT:
+                    if (Replica.replicaIsNotClosing() && isDurable() && awaitToken(inputMessage)) {
+                        VectorClock token = writeFromClient(inputMessage.getResource(), inputMessage.getValue());
+                        awaitDurable();
+                        return withToken(new Message(MessageType.ACK), token);
+                    }
+                    return new Message(MessageType.WAIT);
+                case MGET_FROM_CLIENT:
+                    if (Replica.replicaIsNotClosing()) {
+                        if (!awaitToken(inputMessage))
+                            return new Message(MessageType.WAIT);
+                        Map<String, String> values = state.readAll(inputMessage.getResources());
+                        return withToken(new Message(MessageType.MGET_ANSWER, values), state.getVectorClock());
+                    }
+                    return new Message(MessageType.MGET_ANSWER, Collections.<String, String>emptyMap());
+                case MPUT_FROM_CLIENT:
+                    if (Replica.replicaIsNotClosing() && isDurable() && awaitToken(inputMessage)) {
+                        VectorClock token = inputMessage.getValues().isEmpty() ? null : writeFromClient(inputMessage.getValues());
+                        awaitDurable();
+                        return withToken(new Message(MessageType.ACK), token);
+                    }
+                    return new Message(MessageType.WAIT);
+                case UPDATE_FROM_REPLICA:
+                    if (!isDurable())
+                        throw new IOException("The log has failed, the update is not applied.");
+                    int trackerIndex = updateFromReplica(inputMessage.getUpdate(), inputMessage.getTrackerIndex());
+                    awaitDurable();
+                    SimulateDelay.uniform(minDelay, maxDelay);
+                    if (trackerIndex == 0)
+                        return new Message(MessageType.ACK);
+                    return new Message(MessageType.WAIT, trackerIndex);
+                case UPDATE_BATCH:
+                    if (!isDurable())
+                        throw new IOException("The log has failed, the updates are not applied.");
+                    trackerIndex = trackerIndexHandler.checkTrackerIndexAndExecuteUpdates(inputMessage.getUpdates(), inputMessage.getTrackerIndex(), state);
+                    awaitDurable();
+                    SimulateDelay.uniform(minDelay, maxDelay);
+                    if (trackerIndex == 0)
+                        return new Message(MessageType.ACK);
+                    return new Message(MessageType.WAIT, trackerIndex);
+                case GET_STATE:
+                    ReplicaState outgoingState = getReplicaState(inputMessage.getTrackerIndex(), state);
+                    SimulateDelay.uniform(minDelay, maxDelay);
+                    if (outgoingState == null)
+                        return new Message(MessageType.NOT_STATE);
+                    return new Message(MessageType.SEND_STATE, outgoingState);
+                case SYNC_DIGEST:
+                case SYNC_FETCH:
+                    return antiEntropy.answer(inputMessage);
+                case SEND_NEW_REPLICA:
+                    addNewReplica(inputMessage.getAddress(), inputMessage.getTrackerIndex(), state, otherReplicaAddresses);
+                    return null;
+                case REMOVE_OLD_REPLICA:
+                    removeOldReplica(inputMessage.getAddress(), inputMessage.getTrackerIndex(), state, otherReplicaAddresses);
+                    return null;
+                case MEMBERSHIP_EPOCH:
+                    // The changes already applied are ignored, so an epoch sent again by the Tracker is acknowledged as well
+                    for (MembershipChange change : inputMessage.getChanges()) {
+                        if (change.isJoin())
+                            addNewReplica(change.getAddress(), change.getTrackerIndex(), state, otherReplicaAddresses);
+                        else
+                            removeOldReplica(change.getAddress(), change.getTrackerIndex(), state, otherReplicaAddresses);
+                    }
+                    return new Message(MessageType.ACK);
+                default:
+                    logger.log(Level.WARNING, "Message type not found.");
+                    return null;
+            }
+        }
+
+        /**
+         * Checks that the log can still be written before a write is applied, otherwise the Replica leaves the network.
+         *
+         * @return false if the log has failed, a Client is then answered WAIT and sends the write to another Replica
+         */
+        private boolean isDurable() {
+            if (state.isDurable())
+                return true;
+            leave.run();
+            return false;
+        }
+
+        /**
+         * Waits until the writes applied are on disk. A write that has been applied is already sent to the other Replicas, so it is
+         * acknowledged even if the log fails meanwhile: answering WAIT would make the Client apply it again on another Replica.
+         * The Replica then leaves the network after sending its updates.
+         */
+        private void awaitDurable() {
+            try {
+                state.awaitDurable();
+            } catch (IOException e) {
+                leave.run();
+            }
+        }
+
+        /**
+         * Waits for the updates the Client has already seen through its causal token, so that it never reads or writes on an older state.
+         *
+         * @return false if this Replica is still behind the token, the Client is then answered WAIT and asks the Tracker for another Replica
+         */
+        private boolean awaitToken(Message request) {
+            if (state.awaitToken(request.getToken(), tokenWait))
+                return true;
+            staleToken(request);
+            return false;
+        }
+
+        private void staleToken(Message request) {
+            staleTokens.increment();
+            logger.log(Level.FINE, () -> "The replica is behind the token " + request.getToken() + " of a client.");
+        }
+
+        /**
+         * @param token the vector clock after the request, the next token of the Client
+         */
+        private static Message withToken(Message reply, VectorClock token) {
+            reply.setToken(token);
+            return reply;
         }
 
         /**
@@ -291,24 +804,26 @@ public class Replica {
          *
          * @param resource the key of the resource the Client wants to write.
          * @param value    the final value the client wants to assign the the resource.
+         * @return the vector clock after the write, the next causal token of the Client.
          */
-        private void writeFromClient(String resource, String value) {
+        private VectorClock writeFromClient(String resource, String value) {
             Update update = state.clientWrite(resource, value);
-            logger.log(Level.INFO, () -> "Successfully wrote resource " + resource + " with value " + value);
-            // Get indexTracker (because not send to new replicas)
-            int trackerIndex = trackerIndexHandler.getTrackerIndex();
-            List<Address> otherReplicaBeforeSend = new ArrayList<>(otherReplicaAddresses);
-            /* Here after reading the trackerIndex a thread could increment it and update the otherReplicaAddress,
-            we don't care, because if it was updated by an Exit from another replica it's ok if we don't send the update to the exited replica (would be check later otherwise)
-            if it was updated by a Join we will simply send the update to the new replica who will reply with `wait` causing the resend of the message, no problem
-            */
-            Replica.addMessageToBeSent();
-            for (Address address : otherReplicaAddresses) {
-                Replica.addMessageToBeSent();
-                Thread writeSender = new WriteSender(address, update, otherReplicaAddresses, trackerIndex, trackerIndexHandler, otherReplicaBeforeSend);
-                writeSender.start();
-            }
-            Replica.removeMessageToBeSent();
+            logger.log(Level.FINE, () -> "Successfully wrote resource " + resource + " with value " + value);
+            trackerIndexHandler.broadcastUpdate(update, otherReplicaAddresses);
+            return update.getVectorClock();
+        }
+
+        /**
+         * Perform many writes requested by the client as a single update, sent to the other replicas once.
+         *
+         * @param values the final values the client wants to assign to the resources.
+         * @return the vector clock after the write, the next causal token of the Client.
+         */
+        private VectorClock writeFromClient(Map<String, String> values) {
+            Update update = state.clientWrite(values);
+            logger.log(Level.FINE, () -> "Successfully wrote resources " + values);
+            trackerIndexHandler.broadcastUpdate(update, otherReplicaAddresses);
+            return update.getVectorClock();
         }
 
 
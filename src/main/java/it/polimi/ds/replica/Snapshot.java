@@ -0,0 +1,65 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Versioned;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Represents a read-only transaction on the store: every key is read as it was after a commit, with all the updates applied before it
+ * and none of the following ones, so the values read together are causally consistent without taking the lock of the StateHandler.
+ * The older values of the keys written meanwhile are kept in their chains until the snapshot is closed.
+ */
+public class Snapshot implements AutoCloseable {
+    private final Map<String, Versioned> store;
+    private final Consumer<Snapshot> onClose;
+    // Until the commit is chosen it is 0, so the writers keep every value of the chains
+    private volatile long commit = 0;
+
+    /**
+     * @param onClose releases the values kept for the snapshot
+     */
+    Snapshot(Map<String, Versioned> store, Consumer<Snapshot> onClose) {
+        this.store = store;
+        this.onClose = onClose;
+    }
+
+    void setCommit(long commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * @return the last commit seen by the snapshot
+     */
+    public long getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return the value of the key after the commit of the snapshot, null if the key had no value
+     * @throws IllegalStateException if the value has been dropped because its key has been written too many times since the snapshot
+     */
+    public String read(String key) {
+        Versioned head = store.get(key);
+        Versioned version = head == null ? null : head.visibleAt(commit);
+        return version == null ? null : version.getValue();
+    }
+
+    /**
+     * @return the value of every key after the commit of the snapshot, null if the key had no value
+     * @throws IllegalStateException if one of the values has been dropped because its key has been written too many times since the snapshot
+     */
+    public Map<String, String> readAll(Collection<String> keys) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String key : keys)
+            values.put(key, read(key));
+        return values;
+    }
+
+    @Override
+    public void close() {
+        onClose.accept(this);
+    }
+}
@@ -1,127 +1,799 @@
 package it.polimi.ds.replica;
 
 import it.polimi.ds.network.Address;
+import it.polimi.ds.network.CausalQueue;
+import it.polimi.ds.network.OffHeapStore;
+import it.polimi.ds.network.ReplicaIds;
 import it.polimi.ds.network.ReplicaState;
 import it.polimi.ds.network.Update;
 import it.polimi.ds.network.UpdateWithTracker;
+import it.polimi.ds.network.VectorClock;
+import it.polimi.ds.network.Versioned;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class exist to synchronize the access to the State
+ * The lock of the handler protects only the causal metadata: the vector clock, the queue and the order of the writes.
+ * The values are written in the concurrent store after releasing it and the reads do not take any lock.
+ * The reads of many keys go through a Snapshot, which reads the chains of the older values kept in the store.
  */
 public class StateHandler {
-    public static final int DISCARD = -1;
-    public static final int ADD_TO_QUEUE = 0;
-    public static final int ACCEPT = 1;
+    public static final int DEFAULT_VERSIONS = 16;
+    public static final int DEFAULT_TOKEN_WAIT = 500;
+    private static final long ACCEPTED = -1;
+    private static final long DISCARDED = -2;
     private static final Logger logger = Logger.getLogger("StateHandler");
     private final Address replicaAddress;
+    private final StatePersistence persistence;
+    private final List<StateTransfer> transfers = new ArrayList<>();
+    private final MerkleDigest digest = new MerkleDigest();
+    // The writers hold the read lock until their values are in the store, who needs every committed value in the store holds the write lock
+    private final ReentrantReadWriteLock storeBarrier = new ReentrantReadWriteLock();
+    // The first commit of every batch on its way to the store, the batches are disjoint ranges of commits
+    private final ConcurrentSkipListSet<Long> storing = new ConcurrentSkipListSet<>();
+    private final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+    // The requests waiting for their causal token without holding a thread, with the token each one waits for
+    private final Map<CompletableFuture<Boolean>, VectorClock> tokenRequests = new HashMap<>();
+    private volatile boolean snapshotRequested = false;
+    private long commits = 0;
+    // The last commit made, read by the snapshots without taking the lock
+    private volatile long published = 0;
+    private volatile int maxVersions = DEFAULT_VERSIONS;
+    private int queueLimit = 0;
+    private int tokenWaiters = 0;
+    private EventLog events = EventLog.OFF;
+    private volatile ReadCache readCache;
+    private Path spillDirectory;
     private ReplicaState state;
 
     public StateHandler(ReplicaState state, Address replicaAddress) {
         this.state = state;
         this.replicaAddress = replicaAddress;
+        this.persistence = null;
+        digest.reset(state.getStore());
     }
 
     /**
-     * This method is the usual vector clock check taking into account if one of the vector clock know more than the other
+     * @param persistence the data directory where every change of the state is logged, the state is written in it as a new snapshot
+     */
+    public StateHandler(ReplicaState state, Address replicaAddress, StatePersistence persistence) throws IOException {
+        this.state = state;
+        this.replicaAddress = replicaAddress;
+        this.persistence = persistence;
+        digest.reset(state.getStore());
+        persistence.replaceState(new ReplicaState(state));
+    }
+
+    /**
+     * This method is the usual vector clock check taking into account if one of the vector clock know more than the other.
+     * Both vector clocks are sorted by replica id, so they are walked together without lookups.
+     * It is package-private to be measured by StateHandlerBenchmark.
      *
-     * @return DISCARD if we are more up to date, ADD_TO_QUEUE if we need some update before applying this one, ACCEPT if we can apply the update
-     */
-    private static int vectorCheck(Map<String, Integer> myVector, Map<String, Integer> newVector, Address from, boolean iKnowMore) {
-        for (Map.Entry<String, Integer> entry : newVector.entrySet()) {
-            String key = entry.getKey();
-            int value = entry.getValue();
-            if (key.equals(from.toString())) {
-                if (value < myVector.getOrDefault(key, 0) + 1)
-                    return DISCARD;
-                else if (value > myVector.getOrDefault(key, 0) + 1)
-                    return ADD_TO_QUEUE;
+     * @param from the replica id of the sender of the update
+     * @return DISCARDED if we are more up to date, ACCEPTED if we can apply the update, otherwise the first missing dependency
+     * with the id of the replica in the high 32 bits and the value its counter must reach in the low 32 bits
+     */
+    static long missingDependency(VectorClock myVector, VectorClock newVector, int from, boolean iKnowMore) {
+        int j = 0;
+        for (int i = 0; i < newVector.size(); i++) {
+            int key = newVector.idAt(i);
+            int value = newVector.valueAt(i);
+            while (j < myVector.size() && myVector.idAt(j) < key)
+                j++;
+            boolean iHaveKey = j < myVector.size() && myVector.idAt(j) == key;
+            int myValue = iHaveKey ? myVector.valueAt(j) : 0;
+            if (key == from) {
+                if (value < myValue + 1)
+                    return DISCARDED;
+                else if (value > myValue + 1)
+                    return dependency(key, value - 1);
             } else if (iKnowMore) {
                 //                here if I don't have key => key exited the network and therefore I have all his update
-                if (myVector.containsKey(key) && value > myVector.get(key))
-                    return ADD_TO_QUEUE;
+                if (iHaveKey && value > myValue)
+                    return dependency(key, value);
             } else {
                 //                here if I don't have key => key joined the network and therefore I consider it 0
-                if (value > myVector.getOrDefault(key, 0))
-                    return ADD_TO_QUEUE;
+                if (value > myValue)
+                    return dependency(key, value);
             }
         }
-        return ACCEPT;
+        return ACCEPTED;
+    }
+
+    private static long dependency(int replica, int neededValue) {
+        return ((long) replica << 32) | (neededValue & 0xFFFFFFFFL);
     }
 
     public ReplicaState getState() {
-        return new ReplicaState(state);
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                return new ReplicaState(state);
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts sending the state in pages, the pages are read without holding the lock.
+     * The counters of the vector clock of the joining Replica higher than ours, for the Replicas in our vector clock, show that the replica has left
+     * and joined the network again after that state, restarting its counter: its values cannot be compared, so the whole store is sent
+     * and the joining Replica drops the values it has. This is also the case of the joining Replica itself rejoining at the same address,
+     * added again at 0 when it joined: the writes of its previous incarnation may never have reached the network.
+     *
+     * @param since    the vector clock of the state the joining Replica already has
+     * @param pageSize the maximum number of values in a page
+     */
+    public StateTransfer startTransfer(VectorClock since, int pageSize) {
+        // No value must be on its way to the store, otherwise it could be neither walked nor recorded as changed
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                VectorClock myVector = state.getVectorClock();
+                boolean full = false;
+                for (int i = 0; i < since.size(); i++) {
+                    int id = since.idAt(i);
+                    if (myVector.contains(id) && since.valueAt(i) > myVector.get(id)) {
+                        logger.log(Level.INFO, "The joining replica has an older incarnation of a replica, sending the whole state.");
+                        since = new VectorClock();
+                        full = true;
+                        break;
+                    }
+                }
+                StateTransfer transfer = new StateTransfer(new VectorClock(since), state.getStore().entrySet().iterator(), pageSize, full);
+                transfers.add(transfer);
+                return transfer;
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the last page of the transfer, with the values written since the transfer started, the vector clock and the queue
+     */
+    public ReplicaState finishTransfer(StateTransfer transfer) {
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                transfers.remove(transfer);
+                Map<String, Versioned> changed = new HashMap<>();
+                for (String key : transfer.getChangedKeys()) {
+                    Versioned value = state.getStore().get(key);
+                    if (value != null && value.newerThan(transfer.getSince()))
+                        changed.put(key, value);
+                }
+                return ReplicaState.page(changed, new VectorClock(state.getVectorClock()), new CausalQueue(state.getQueue()));
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+    }
+
+    public synchronized void abortTransfer(StateTransfer transfer) {
+        transfers.remove(transfer);
     }
 
     public void setState(ReplicaState state) {
+        this.state.getQueue().close();
+        if (spillDirectory != null)
+            state.getQueue().bound(queueLimit, spillDirectory);
         this.state = state;
+        digest.reset(state.getStore());
+        if (readCache != null)
+            readCache.clear();
+    }
+
+    /**
+     * @param events the log of the updates accepted, queued and discarded, set before the updates arrive
+     */
+    public void setEventLog(EventLog events) {
+        this.events = events;
+    }
+
+    /**
+     * Bounds the number of updates of the queue kept in memory, also for the states set afterwards.
+     *
+     * @param limit     the maximum number of updates in memory, the queue is unbounded if it is not positive
+     * @param directory the directory where the other updates are spilled, used only by this Replica
+     */
+    public synchronized void boundQueue(int limit, Path directory) {
+        this.queueLimit = limit;
+        this.spillDirectory = directory;
+        state.getQueue().bound(limit, directory);
+    }
+
+    /**
+     * @return the number of updates waiting for their dependencies, in memory or spilled
+     */
+    public synchronized int getQueueSize() {
+        return state.getQueue().size();
+    }
+
+    /**
+     * @return the number of updates waiting for their dependencies in the spill file
+     */
+    public synchronized int getSpilledSize() {
+        return state.getQueue().spilled();
+    }
+
+    /**
+     * @return the highest number of updates that have waited together for their dependencies
+     */
+    public synchronized int getQueueHighWater() {
+        return state.getQueue().highWater();
+    }
+
+    /**
+     * @return a copy of the vector clock
+     */
+    public synchronized VectorClock getVectorClock() {
+        return new VectorClock(state.getVectorClock());
     }
 
+    /**
+     * @return the digest of the store, changed by every write
+     */
+    public MerkleDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Starts sending the values another Replica misses, walking only the leaves of the MerkleDigest that differ from the ones of the other Replica.
+     * The leaves are compared while no value is on its way to the store, so the values written afterwards are recorded as changed.
+     *
+     * @param since   the vector clock of the other Replica
+     * @param digests the digests of the top nodes of the other Replica and of the leaves below some of them
+     */
+    public StateTransfer startRepair(VectorClock since, Map<Integer, Long> digests) {
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                Set<Integer> leaves = digest.differentLeaves(digests);
+                Iterator<Map.Entry<String, Versioned>> entries = leaves.isEmpty() ? Collections.emptyIterator() : state.getStore().entrySet().iterator();
+                StateTransfer transfer = new StateTransfer(new VectorClock(since), entries, StateTransfer.DEFAULT_PAGE_SIZE, false, leaves);
+                transfers.add(transfer);
+                return transfer;
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the values sent by another Replica for a repair and then takes the counters of its vector clock that are ahead.
+     * The other Replica sent every value of its store not included in the vector clock given to it, so the state stays causally consistent:
+     * a value is applied only if its write is not included in the vector clock of this Replica, and only for the replicas known by both.
+     * The queued updates are then checked again, since the counters they were waiting for may have been reached.
+     *
+     * @param repair the values and the vector clock of the other Replica
+     * @return the number of values applied
+     */
+    public int repair(ReplicaState repair, int myTrackerIndex) {
+        int repaired = 0;
+        storeBarrier.readLock().lock();
+        try {
+            Map<String, Versioned> applied = new HashMap<>();
+            long batch;
+            synchronized (this) {
+                long first = commits + 1;
+                VectorClock myVector = state.getVectorClock();
+                for (Map.Entry<String, Versioned> entry : repair.getStore().entrySet()) {
+                    Versioned value = entry.getValue();
+                    if (myVector.contains(value.getOrigin()) && value.newerThan(myVector)) {
+                        applied.put(entry.getKey(), new Versioned(value.getValue(), value.getOrigin(), value.getSequence(), ++commits));
+                        for (StateTransfer transfer : transfers)
+                            transfer.changed(entry.getKey());
+                        repaired++;
+                    }
+                }
+                VectorClock theirs = repair.getVectorClock();
+                for (int i = 0; i < theirs.size(); i++)
+                    if (myVector.contains(theirs.idAt(i)) && theirs.valueAt(i) > myVector.get(theirs.idAt(i)))
+                        myVector.set(theirs.idAt(i), theirs.valueAt(i));
+                Deque<UpdateWithTracker> toCheck = new ArrayDeque<>(state.getQueue().drainAll());
+                if (!toCheck.isEmpty())
+                    deliver(toCheck, myTrackerIndex, applied);
+                // The repair is not a sequence of updates that can be logged, it is kept by writing a new snapshot
+                if (persistence != null)
+                    snapshotRequested = true;
+                batch = publish(first);
+            }
+            store(applied, batch);
+        } finally {
+            storeBarrier.readLock().unlock();
+        }
+        snapshotIfRequested();
+        return repaired;
+    }
+
+    /**
+     * Reads the store without any lock, through the read cache if there is one.
+     */
     public String read(String key) {
-        return state.read(key);
+        ReadCache cache = readCache;
+        if (cache == null)
+            return state.read(key);
+        Versioned cached = cache.get(key);
+        if (cached != null)
+            return cached.getValue();
+        Map<String, Versioned> store = state.getStore();
+        Versioned value = store.get(key);
+        if (value == null)
+            return null;
+        cache.put(key, value);
+        // A write stored meanwhile may have invalidated the key before the value was cached, the stores off the heap return copies
+        if (!value.equals(store.get(key)))
+            cache.invalidate(key);
+        return value.getValue();
+    }
+
+    /**
+     * @param readCache the cache of the values read by the Clients, set before the Clients connect
+     */
+    public void setReadCache(ReadCache readCache) {
+        this.readCache = readCache;
     }
 
-    public synchronized void removeAddressKey(Address address) {
-        state.removeKey(address.toString());
+    public void removeAddressKey(Address address) {
+        synchronized (this) {
+            state.removeKey(address);
+            if (persistence != null) {
+                persistence.logRemoveKey(address);
+                requestSnapshotIfDue();
+            }
+        }
+        snapshotIfRequested();
     }
 
-    public synchronized void addAddressKey(Address address) {
-        state.addKey(address.toString());
+    public void addAddressKey(Address address) {
+        synchronized (this) {
+            state.addKey(address);
+            if (persistence != null) {
+                persistence.logAddKey(address);
+                requestSnapshotIfDue();
+            }
+        }
+        snapshotIfRequested();
     }
 
-    public synchronized Update clientWrite(String key, String value) {
-        Map<String, Integer> newVector = state.getVectorClock();
-        newVector.put(replicaAddress.toString(), newVector.get(replicaAddress.toString()) + 1);
-        state.write(newVector, key, value);
-        return new Update(newVector, replicaAddress, key, value);
+    public Update clientWrite(String key, String value) {
+        return clientWrite(Collections.singletonMap(key, value));
     }
 
-    public synchronized void replicaWrite(Update update, int incomingTrackerIndex, int myTrackerIndex) {
-        logger.log(Level.INFO, () -> "Update: \t" + update.getKey() + " = " + update.getValue());
-        logger.log(Level.INFO, () -> "Update with vector clock: \n" + vectorClockToString(update.getVectorClock()));
-        logger.log(Level.INFO, () -> "My vector clock: \n" + vectorClockToString(state.getVectorClock()));
-        Map<String, Integer> myVector = state.getVectorClock();
-        int check = vectorCheck(myVector, update.getVectorClock(), update.getFrom(), incomingTrackerIndex <= myTrackerIndex);
-        if (check == ACCEPT) {
-            myVector.put(update.getFrom().toString(), myVector.get(update.getFrom().toString()) + 1); // myVector[from] ++
-            state.write(myVector, update.getKey(), update.getValue());
-            logger.log(Level.INFO, () -> "Update ACCEPTED, new vector clock: \n" + vectorClockToString(state.getVectorClock()));
-            logger.log(Level.INFO, "Checking queue");
-            checkUpdateQueue(myTrackerIndex);
-        } else if (check == ADD_TO_QUEUE) {
-            state.getQueue().add(new UpdateWithTracker(update, incomingTrackerIndex));
-            logger.log(Level.INFO, "Update ADD_TO_QUEUE");
-        } else
-            logger.log(Level.INFO, "Update DISCARD");
+    /**
+     * Applies the writes of a Client as a single update, with one increment of the vector clock.
+     *
+     * @param writes the values to be written, in the order they have been requested
+     */
+    public Update clientWrite(Map<String, String> writes) {
+        Update update;
+        storeBarrier.readLock().lock();
+        try {
+            Map<String, Versioned> applied = new HashMap<>();
+            long batch;
+            synchronized (this) {
+                long first = commits + 1;
+                int sequence = state.getVectorClock().increment(replicaAddress);
+                commit(replicaAddress, sequence, writes, applied);
+                update = new Update(new VectorClock(state.getVectorClock()), replicaAddress, writes);
+                batch = publish(first);
+            }
+            store(applied, batch);
+        } finally {
+            storeBarrier.readLock().unlock();
+        }
+        snapshotIfRequested();
+        return update;
     }
 
-    private void checkUpdateQueue(int myTrackerIndex) {
-        Map<String, Integer> myVector = state.getVectorClock();
-        for (UpdateWithTracker updateWithTracker : state.getQueue()) {
-            logger.log(Level.INFO, () -> "Update: \t" + updateWithTracker.getUpdate().getKey() + " = " + updateWithTracker.getUpdate().getValue());
-            logger.log(Level.INFO, () -> "Update with vector clock: \n" + vectorClockToString(updateWithTracker.getUpdate().getVectorClock()));
-            logger.log(Level.INFO, () -> "My vector clock: \n" + vectorClockToString(state.getVectorClock()));
-            Update update = updateWithTracker.getUpdate();
-            if (vectorCheck(myVector, update.getVectorClock(), update.getFrom(), updateWithTracker.getIncomingTrackerIndex() <= myTrackerIndex) == ACCEPT) {
-                state.getQueue().remove(updateWithTracker);
-                myVector.put(update.getFrom().toString(), myVector.get(update.getFrom().toString()) + 1); // myVector[from] ++
-                state.write(myVector, update.getKey(), update.getValue());
-                logger.log(Level.INFO, () -> "Update ACCEPTED, new vector clock: \n" + vectorClockToString(state.getVectorClock()));
-                checkUpdateQueue(myTrackerIndex);
-                break;
+    /**
+     * Reads many keys at once in a snapshot, so no update is seen only in part and the writers are not stopped meanwhile.
+     * If a key has been written too many times while it was read, the keys are read again in a newer snapshot.
+     *
+     * @return the value of every key, null if the key has no value
+     */
+    public Map<String, String> readAll(Collection<String> keys) {
+        while (true) {
+            try (Snapshot snapshot = openSnapshot()) {
+                return snapshot.readAll(keys);
+            } catch (IllegalStateException e) {
+                logger.log(Level.FINE, e::getMessage);
             }
-            logger.log(Level.INFO, "Update NOT ACCEPTED");
         }
     }
 
-    private String vectorClockToString(Map<String, Integer> vc) {
-        StringBuilder vClockString = new StringBuilder();
-        for (Map.Entry<String, Integer> entry : vc.entrySet()) {
-            vClockString.append("\t").append(entry).append("\n");
+    /**
+     * Records an update after the counter of the replica that made it has been incremented, called while holding the lock.
+     * The values are written in the store by the caller after releasing the lock.
+     *
+     * @param applied the values to be written in the store, the values of the update are added to them
+     */
+    private void commit(Address from, int sequence, Map<String, String> writes, Map<String, Versioned> applied) {
+        long commit = ++commits;
+        int origin = ReplicaIds.idOf(from);
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            applied.put(write.getKey(), new Versioned(write.getValue(), origin, sequence, commit));
+            for (StateTransfer transfer : transfers)
+                transfer.changed(write.getKey());
+        }
+        if (persistence != null) {
+            persistence.logWrite(from, writes);
+            requestSnapshotIfDue();
+        }
+    }
+
+    private void requestSnapshotIfDue() {
+        if (persistence.snapshotDue())
+            snapshotRequested = true;
+    }
+
+    /**
+     * Takes the snapshot requested by a write, after the writes on their way to the store have completed.
+     */
+    private void snapshotIfRequested() {
+        if (!snapshotRequested)
+            return;
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (snapshotRequested) {
+                    snapshotRequested = false;
+                    persistence.snapshot(new ReplicaState(state));
+                }
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false once the changes can no longer be written on disk, so no new write must be applied
+     */
+    public boolean isDurable() {
+        return persistence == null || persistence.isOpen();
+    }
+
+    /**
+     * Waits until the changes made to the state until now are on disk, the writers waiting together share the same disk flush.
+     * It returns immediately if the state is not persisted.
+     *
+     * @throws IOException if the changes could not be written, they must not be acknowledged
+     */
+    public void awaitDurable() throws IOException {
+        if (persistence == null)
+            return;
+        try {
+            persistence.sync();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write the state on disk.");
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a last snapshot and closes the data directory.
+     */
+    public void close() {
+        synchronized (this) {
+            state.getQueue().close();
+        }
+        if (persistence == null)
+            return;
+        storeBarrier.writeLock().lock();
+        try {
+            synchronized (this) {
+                persistence.snapshot(new ReplicaState(state));
+            }
+        } finally {
+            storeBarrier.writeLock().unlock();
+        }
+        try {
+            persistence.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not close the data directory properly.");
+        }
+    }
+
+    public void replicaWrite(Update update, int incomingTrackerIndex, int myTrackerIndex) {
+        replicaWrite(Collections.singletonList(update), incomingTrackerIndex, myTrackerIndex);
+    }
+
+    /**
+     * Applies the updates of a batch in order while holding the lock once.
+     */
+    public void replicaWrite(List<Update> updates, int incomingTrackerIndex, int myTrackerIndex) {
+        storeBarrier.readLock().lock();
+        try {
+            Map<String, Versioned> applied = new HashMap<>();
+            long batch;
+            synchronized (this) {
+                long first = commits + 1;
+                for (Update update : updates) {
+                    Deque<UpdateWithTracker> toCheck = new ArrayDeque<>();
+                    toCheck.add(new UpdateWithTracker(update, incomingTrackerIndex));
+                    deliver(toCheck, myTrackerIndex, applied);
+                }
+                batch = publish(first);
+            }
+            store(applied, batch);
+        } finally {
+            storeBarrier.readLock().unlock();
+        }
+        snapshotIfRequested();
+    }
+
+    /**
+     * Checks again every update in the queue, called when a replica joins or leaves the network
+     * because the dependencies of the queued updates can be satisfied without any counter being incremented.
+     */
+    public void checkQueue(int myTrackerIndex) {
+        storeBarrier.readLock().lock();
+        try {
+            Map<String, Versioned> applied = new HashMap<>();
+            long batch;
+            synchronized (this) {
+                long first = commits + 1;
+                Deque<UpdateWithTracker> toCheck = new ArrayDeque<>(state.getQueue().drainAll());
+                if (!toCheck.isEmpty())
+                    deliver(toCheck, myTrackerIndex, applied);
+                batch = publish(first);
+            }
+            store(applied, batch);
+        } finally {
+            storeBarrier.readLock().unlock();
+        }
+        snapshotIfRequested();
+    }
+
+    /**
+     * Publishes the commits made while holding the lock, called at its end: the batch they form is on its way to the store until it is stored.
+     *
+     * @param first the first commit made while holding the lock
+     * @return the batch, 0 if no commit has been made
+     */
+    private long publish(long first) {
+        // The vector clock may have changed even without any commit, after a repair
+        if (tokenWaiters > 0)
+            notifyAll();
+        if (!tokenRequests.isEmpty())
+            completeTokenRequests();
+        if (commits < first)
+            return 0;
+        storing.add(first);
+        published = commits;
+        return first;
+    }
+
+    /**
+     * Writes the values in the store, the digest is changed while the key is locked by the store so that it matches the value kept.
+     * The values replaced are kept in the chains of their keys while the snapshots open may read them.
+     *
+     * @param batch the batch of the values, 0 if there are none
+     */
+    private void store(Map<String, Versioned> applied, long batch) {
+        try {
+            // Read after the batch has been published, so a snapshot opened afterwards includes the batch and needs no older value
+            long oldest = oldestSnapshot();
+            int versions = maxVersions;
+            Map<String, Versioned> store = state.getStore();
+            ReadCache cache = readCache;
+            applied.forEach((key, value) -> {
+                store.compute(key, (k, previous) -> {
+                    Versioned latest = Versioned.chain(previous, value, oldest, versions);
+                    if (latest != previous)
+                        digest.replace(k, previous, latest);
+                    return latest;
+                });
+                // Before the batch is stored, so a Client waiting for its token never finds the older value in the cache
+                if (cache != null)
+                    cache.invalidate(key);
+            });
+        } finally {
+            if (batch != 0)
+                storing.remove(batch);
+        }
+    }
+
+    /**
+     * Opens a read-only transaction on the last commit published, once every batch up to it is in the store.
+     * The writers never wait for the snapshot: the snapshot only waits for the values already on their way to the store, without any lock.
+     *
+     * @return the snapshot, which must be closed to release the older values kept for it
+     */
+    public Snapshot openSnapshot() {
+        Snapshot snapshot = new Snapshot(state.getStore(), this::closeSnapshot);
+        snapshots.add(snapshot);
+        long commit = published;
+        while (storing.floor(commit) != null)
+            Thread.yield();
+        snapshot.setCommit(commit);
+        return snapshot;
+    }
+
+    /**
+     * Once the last snapshot is closed the chains left in an OffHeapStore are dropped, instead of waiting for their keys to be written again.
+     */
+    private void closeSnapshot(Snapshot snapshot) {
+        snapshots.remove(snapshot);
+        Map<String, Versioned> store = state.getStore();
+        // A snapshot opened meanwhile keeps the values it may read
+        if (snapshots.isEmpty() && store instanceof OffHeapStore)
+            ((OffHeapStore) store).truncateChains(oldestSnapshot(), maxVersions);
+    }
+
+    /**
+     * Waits until the state includes the causal token of a Client, given by this or another Replica, and the values it includes are in the store.
+     * The counters of the replicas that are not in the vector clock of this Replica, because they left the network, are not waited for.
+     *
+     * @param token   the vector clock after the last request of the Client, null if the Client has none
+     * @param timeout the maximum time to wait in milliseconds
+     * @return false if the state is still behind the token after the timeout
+     */
+    public boolean awaitToken(VectorClock token, long timeout) {
+        if (token == null)
+            return true;
+        long commit;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!includes(state.getVectorClock(), token)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                tokenWaiters++;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    tokenWaiters--;
+                }
+            }
+            commit = published;
+        }
+        while (storing.floor(commit) != null)
+            Thread.yield();
+        return true;
+    }
+
+    /**
+     * Tells when the state includes the causal token of a Client, as awaitToken, without holding the calling thread meanwhile.
+     * The future is completed by the thread applying the missing updates while it holds the lock of the StateHandler,
+     * so what depends on it must only hand the request to another thread.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return a future completed with true once the state includes the token, with false after the timeout
+     */
+    public synchronized CompletableFuture<Boolean> whenToken(VectorClock token, long timeout) {
+        if (includesToken(token))
+            return CompletableFuture.completedFuture(true);
+        tokenRequests.keySet().removeIf(CompletableFuture::isDone);
+        CompletableFuture<Boolean> reached = new CompletableFuture<>();
+        tokenRequests.put(reached, token);
+        return reached.completeOnTimeout(false, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the state includes the causal token of a Client, or if the Client has none
+     */
+    public synchronized boolean includesToken(VectorClock token) {
+        return token == null || includes(state.getVectorClock(), token);
+    }
+
+    /**
+     * Completes the requests whose token is included in the vector clock, and forgets the ones already timed out.
+     */
+    private void completeTokenRequests() {
+        Iterator<Map.Entry<CompletableFuture<Boolean>, VectorClock>> requests = tokenRequests.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<CompletableFuture<Boolean>, VectorClock> request = requests.next();
+            if (request.getKey().isDone())
+                requests.remove();
+            else if (includes(state.getVectorClock(), request.getValue())) {
+                requests.remove();
+                request.getKey().complete(true);
+            }
+        }
+    }
+
+    private static boolean includes(VectorClock myVector, VectorClock token) {
+        for (int i = 0; i < token.size(); i++)
+            if (myVector.contains(token.idAt(i)) && token.valueAt(i) > myVector.get(token.idAt(i)))
+                return false;
+        return true;
+    }
+
+    private long oldestSnapshot() {
+        long oldest = Long.MAX_VALUE;
+        for (Snapshot snapshot : snapshots)
+            oldest = Math.min(oldest, snapshot.getCommit());
+        return oldest;
+    }
+
+    /**
+     * @param maxVersions the maximum number of values kept for a key, the snapshots older than them cannot read the key
+     */
+    public void setMaxVersions(int maxVersions) {
+        this.maxVersions = Math.max(1, maxVersions);
+    }
+
+    /**
+     * @return the number of snapshots open
+     */
+    public int getSnapshots() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the bytes of the buffers of the store if it is kept off the heap, 0 otherwise
+     */
+    public long getArenaBytes() {
+        Map<String, Versioned> store = state.getStore();
+        return store instanceof OffHeapStore ? ((OffHeapStore) store).getArenaBytes() : 0;
+    }
+
+    /**
+     * Applies the updates whose dependencies are satisfied and holds the others in the queue under their first missing dependency.
+     * Every applied update wakes only the queued updates waiting for the new value of its counter, which are checked in turn,
+     * and the spilled updates are read back once the value one of them is waiting for is reached.
+     * An update missing some updates of its sender is discarded if the sender has left the network, since they will never be delivered.
+     *
+     * @param toCheck the updates to be checked, the updates of the queue not checked yet are added to them
+     * @param applied the last value of every key written by the applied updates, to be written in the store after releasing the lock
+     */
+    private void deliver(Deque<UpdateWithTracker> toCheck, int myTrackerIndex, Map<String, Versioned> applied) {
+        CausalQueue queue = state.getQueue();
+        VectorClock myVector = state.getVectorClock();
+        toCheck.addAll(queue.drainUnchecked());
+        Iterator<UpdateWithTracker> spilled = Collections.emptyIterator();
+        while (true) {
+            UpdateWithTracker updateWithTracker = toCheck.poll();
+            if (updateWithTracker == null) {
+                if (!spilled.hasNext())
+                    spilled = queue.drainSpilled();
+                if (!spilled.hasNext())
+                    return;
+                updateWithTracker = spilled.next();
+            }
+            Update update = updateWithTracker.getUpdate();
+            int from = ReplicaIds.idOf(update.getFrom());
+            int incomingTrackerIndex = updateWithTracker.getIncomingTrackerIndex();
+            boolean iKnowMore = incomingTrackerIndex <= myTrackerIndex;
+            long dependency = missingDependency(myVector, update.getVectorClock(), from, iKnowMore);
+            if (dependency == ACCEPTED) {
+                int value = myVector.increment(from); // myVector[from] ++
+                commit(update.getFrom(), value, update.getWrites(), applied);
+                events.record(EventLog.Type.ACCEPT, from, value, 0, 0, incomingTrackerIndex);
+                toCheck.addAll(queue.wake(from, value));
+            } else if (dependency == DISCARDED)
+                events.record(EventLog.Type.DISCARD, from, update.getVectorClock().get(from), 0, 0, incomingTrackerIndex);
+            else if ((int) (dependency >>> 32) == from && iKnowMore && !myVector.contains(from))
+                events.record(EventLog.Type.DISCARD_DEPARTED, from, update.getVectorClock().get(from), 0, 0, incomingTrackerIndex);
+            else {
+                queue.hold(updateWithTracker, (int) (dependency >>> 32), (int) dependency);
+                events.record(EventLog.Type.QUEUE, from, update.getVectorClock().get(from), (int) (dependency >>> 32), (int) dependency, incomingTrackerIndex);
+            }
         }
-        return vClockString.toString();
     }
 }
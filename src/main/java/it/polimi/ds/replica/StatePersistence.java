@@ -0,0 +1,316 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Represents the durable copy of the ReplicaState in a data directory: a snapshot of the whole state and the write-ahead log
+ * of the changes applied after it.
+ * A snapshot is named after the first segment of the log it does not contain, so recovery loads the latest snapshot and
+ * replays the segments starting from that one. The snapshots are written in background with the binary wire format,
+ * streaming the store a few entries at a time, afterwards the older snapshots and segments are deleted.
+ */
+public class StatePersistence implements Closeable {
+    public static final int DEFAULT_SNAPSHOT_EVERY = 100000;
+    private static final Logger logger = Logger.getLogger("StatePersistence");
+    private static final byte APPLY = 0;
+    private static final byte ADD_KEY = 1;
+    private static final byte REMOVE_KEY = 2;
+    private static final byte APPLY_ALL = 3;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private final Path directory;
+    private final int snapshotEvery;
+    private final ExecutorService snapshotWriter;
+    private final WriteAheadLog log;
+    private final StoreBackend backend;
+    private ReplicaState recovered;
+    private int recordsSinceSnapshot = 0;
+
+    /**
+     * Recovers the state found in the directory and opens a new segment of the log.
+     *
+     * @param directory     the data directory, created if it does not exist
+     * @param snapshotEvery the number of records after which a new snapshot is taken
+     */
+    public StatePersistence(Path directory, int snapshotEvery) throws IOException {
+        this(directory, snapshotEvery, StoreBackend.HEAP);
+    }
+
+    /**
+     * @param backend the store where the recovered values are read
+     */
+    public StatePersistence(Path directory, int snapshotEvery, StoreBackend backend) throws IOException {
+        this.directory = directory;
+        this.snapshotEvery = Math.max(1, snapshotEvery);
+        this.backend = backend;
+        Files.createDirectories(directory);
+        int nextSegment = recover();
+        this.log = new WriteAheadLog(directory, nextSegment);
+        this.snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Path snapshotPath(Path directory, int segment) {
+        return directory.resolve(SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+
+    private static List<Integer> snapshots(Path directory) throws IOException {
+        List<Integer> snapshots = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .forEach(name -> snapshots.add(Integer.parseInt(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()))));
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    /**
+     * Loads the latest snapshot and replays the log written after it.
+     * The segments without a snapshot before them are not replayed, since the state they were applied to is unknown.
+     *
+     * @return the number of the segment to be opened for the new records
+     */
+    private int recover() throws IOException {
+        List<Integer> snapshots = snapshots(directory);
+        List<Integer> segments = WriteAheadLog.segments(directory);
+        int nextSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        if (snapshots.isEmpty())
+            return nextSegment;
+        int firstSegment = snapshots.get(snapshots.size() - 1);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath(directory, firstSegment))))) {
+            recovered = BinaryCodec.readState(in, backend.newStore());
+        }
+        int records = 0;
+        for (int segment : segments) {
+            if (segment < firstSegment)
+                continue;
+            for (byte[] record : WriteAheadLog.read(WriteAheadLog.segmentPath(directory, segment))) {
+                replay(recovered, record);
+                records++;
+            }
+        }
+        int replayed = records;
+        logger.log(Level.INFO, () -> "Recovered the state from " + directory + " replaying " + replayed + " records.");
+        return Math.max(firstSegment, nextSegment);
+    }
+
+    private static void replay(ReplicaState state, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        Address replica = Address.fromString(in.readUTF());
+        if (type == APPLY) {
+            int sequence = state.getVectorClock().increment(replica);
+            state.write(readString(in), new Versioned(readString(in), ReplicaIds.idOf(replica), sequence));
+        } else if (type == APPLY_ALL) {
+            int sequence = state.getVectorClock().increment(replica);
+            int writes = in.readInt();
+            for (int i = 0; i < writes; i++)
+                state.write(readString(in), new Versioned(readString(in), ReplicaIds.idOf(replica), sequence));
+        } else if (type == ADD_KEY)
+            state.addKey(replica);
+        else if (type == REMOVE_KEY)
+            state.removeKey(replica);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the state found in the directory when it was opened, null if it was empty
+     */
+    public ReplicaState getRecovered() {
+        return recovered;
+    }
+
+    private long append(byte type, Address replica, Map<String, String> writes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeUTF(replica.toString());
+            if (type == APPLY_ALL)
+                out.writeInt(writes.size());
+            if (type == APPLY || type == APPLY_ALL) {
+                for (Map.Entry<String, String> write : writes.entrySet()) {
+                    writeString(out, write.getKey());
+                    writeString(out, write.getValue());
+                }
+            }
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        recordsSinceSnapshot++;
+        return log.append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs an update applied to the state, it increments once the counter of the replica that made it.
+     *
+     * @param writes the values written by the update
+     * @return the log sequence number of the record
+     */
+    public long logWrite(Address from, Map<String, String> writes) {
+        return append(writes.size() == 1 ? APPLY : APPLY_ALL, from, writes);
+    }
+
+    public long logWrite(Address from, String key, String value) {
+        return logWrite(from, Collections.singletonMap(key, value));
+    }
+
+    public long logAddKey(Address replica) {
+        return append(ADD_KEY, replica, null);
+    }
+
+    public long logRemoveKey(Address replica) {
+        return append(REMOVE_KEY, replica, null);
+    }
+
+    /**
+     * @return true if enough records have been logged since the last snapshot
+     */
+    public boolean snapshotDue() {
+        return recordsSinceSnapshot >= snapshotEvery;
+    }
+
+    /**
+     * Starts a new segment of the log and writes the snapshot in background, it must be called while the state cannot change.
+     *
+     * @param copy a copy of the state containing every record logged until now
+     */
+    public void snapshot(ReplicaState copy) {
+        startSnapshot(copy);
+    }
+
+    /**
+     * Writes a snapshot of a state that does not follow the records already logged, as the state received when joining the network.
+     * It waits for the snapshot to be on disk, so that the records logged afterwards are never replayed on the previous state.
+     */
+    public void replaceState(ReplicaState copy) throws IOException {
+        Future<?> written = startSnapshot(copy);
+        try {
+            if (written != null)
+                written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the snapshot.", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Future<?> startSnapshot(ReplicaState copy) {
+        recordsSinceSnapshot = 0;
+        int segment;
+        try {
+            segment = log.rotate();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not start a new segment of the log.");
+            return null;
+        }
+        return snapshotWriter.submit(() -> {
+            writeSnapshot(copy, segment);
+            return null;
+        });
+    }
+
+    private void writeSnapshot(ReplicaState copy, int segment) throws IOException {
+        try {
+            Path temporary = directory.resolve(SNAPSHOT_PREFIX + segment + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // Not closed, it would close the channel before it is forced
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                BinaryCodec.writeState(out, copy);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, snapshotPath(directory, segment), StandardCopyOption.ATOMIC_MOVE);
+            for (int snapshot : snapshots(directory))
+                if (snapshot < segment)
+                    Files.deleteIfExists(snapshotPath(directory, snapshot));
+            for (int oldSegment : WriteAheadLog.segments(directory))
+                if (oldSegment < segment)
+                    Files.deleteIfExists(WriteAheadLog.segmentPath(directory, oldSegment));
+            logger.log(Level.INFO, () -> "Snapshot " + segment + " written.");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, () -> "Could not write the snapshot " + segment + ".");
+            throw e;
+        }
+    }
+
+    /**
+     * @return false once the log has failed or has been closed
+     */
+    public boolean isOpen() {
+        return log.isOpen();
+    }
+
+    /**
+     * Waits until every record logged until now is on disk.
+     */
+    public void sync() throws IOException {
+        log.sync(log.appended());
+    }
+
+    /**
+     * Waits for the snapshots being written and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,85 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.VectorClock;
+import it.polimi.ds.network.Versioned;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Represents the state of this Replica being sent in pages to a joining Replica, created by StateHandler.startTransfer.
+ * The pages are read from the store while the updates keep being applied, so StateHandler records the keys written meanwhile
+ * and sends them again with the last page: the joining Replica ends with the state this Replica had when the last page was taken.
+ * Only the values newer than the vector clock of the joining Replica are sent, unless the transfer is full: then the whole store is sent
+ * and the joining Replica drops the values it already had.
+ * The AntiEntropy uses the same transfer to repair another Replica, walking only the leaves of the MerkleDigest that differ.
+ */
+public class StateTransfer {
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+    private final VectorClock since;
+    private final Iterator<Map.Entry<String, Versioned>> entries;
+    private final int pageSize;
+    private final boolean full;
+    private final Set<String> changedKeys = new HashSet<>();
+    private final Set<Integer> leaves;
+
+    /**
+     * @param since    the vector clock of the state the joining Replica already has
+     * @param entries  the entries of the store, walked while it is written
+     * @param pageSize the maximum number of values in a page
+     * @param full     true if the whole store is sent to replace the one of the joining Replica
+     */
+    StateTransfer(VectorClock since, Iterator<Map.Entry<String, Versioned>> entries, int pageSize, boolean full) {
+        this(since, entries, pageSize, full, null);
+    }
+
+    /**
+     * @param leaves the leaves of the MerkleDigest whose keys are sent, null to send every key
+     */
+    StateTransfer(VectorClock since, Iterator<Map.Entry<String, Versioned>> entries, int pageSize, boolean full, Set<Integer> leaves) {
+        this.since = since;
+        this.entries = entries;
+        this.pageSize = Math.max(1, pageSize);
+        this.full = full;
+        this.leaves = leaves;
+    }
+
+    public VectorClock getSince() {
+        return since;
+    }
+
+    /**
+     * @return true if the joining Replica must drop the values it has before applying the pages
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return the next page of values newer than the vector clock of the joining Replica, null if the store has been walked
+     */
+    public ReplicaState nextPage() {
+        Map<String, Versioned> page = new HashMap<>();
+        while (entries.hasNext() && page.size() < pageSize) {
+            Map.Entry<String, Versioned> entry = entries.next();
+            if (entry.getValue().newerThan(since) && (leaves == null || leaves.contains(MerkleDigest.leafOf(entry.getKey()))))
+                page.put(entry.getKey(), entry.getValue());
+        }
+        return page.isEmpty() ? null : ReplicaState.page(page);
+    }
+
+    /**
+     * Records a key written after the transfer started, called by StateHandler while holding its lock.
+     */
+    void changed(String key) {
+        changedKeys.add(key);
+    }
+
+    Set<String> getChangedKeys() {
+        return changedKeys;
+    }
+}
@@ -1,13 +1,24 @@
 package it.polimi.ds.replica;
 
 import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ChannelPool;
+import it.polimi.ds.network.Metrics;
+import it.polimi.ds.network.ReplicaIds;
 import it.polimi.ds.network.ReplicaState;
 import it.polimi.ds.network.Update;
+import it.polimi.ds.network.WorkerPool;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -16,23 +27,83 @@ import java.util.stream.Collectors;
  * This class handle the TrackerIndex with the needed synchronization
  * It also enqueue the update from the tracker if they come out of order
  * and enqueue the update to be send if a replica replied with wait
+ * The updates from the other replicas are executed together holding the read lock, the changes of the tracker index hold the write lock
+ * The updates from the tracker are kept by tracker index, so a duplicate replaces the queued one and the ones already executed are dropped.
+ * The updates to be sent can be bounded only if the AntiEntropy runs: when the limit is reached the oldest one is dropped, and the replicas that miss it
+ * are repaired by the AntiEntropy.
  */
 public class TrackerIndexHandler {
+    public static final int DEFAULT_RESEND_LIMIT = 100000;
     private static final Logger logger = Logger.getLogger("TrackerIndexHandler");
-    private final Set<TrackerUpdate> updateFromTrackerQueue;
-    private final Set<UpdateToBeSendQueueElements> updateToBeSendQueue;
-    private int trackerIndex;
+    private final TreeMap<Integer, TrackerUpdate> updateFromTrackerQueue;
+    private final Map<Update, UpdateToBeSendQueueElements> updateToBeSendQueue;
+    private final ChannelPool connections;
+    private final WorkerPool senders;
+    private final Map<Address, WriteSender> writeSenders = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService batchTimer;
+    private final int batchSize;
+    private final int batchWindow;
+    private final int resendLimit;
+    private final Metrics metrics;
+    private final LongAdder droppedUpdates;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile int trackerIndex;
+    private EventLog events = EventLog.OFF;
 
-    public TrackerIndexHandler(int trackerIndex) {
+    public TrackerIndexHandler(int trackerIndex, ChannelPool connections, WorkerPool senders) {
+        this(trackerIndex, connections, senders, WriteSender.DEFAULT_BATCH_SIZE, WriteSender.DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * @param connections the channels towards the other replicas
+     * @param senders     the pool running the WriteSenders
+     * @param batchSize   the maximum number of updates sent to a replica in a single message
+     * @param batchWindow the milliseconds an update can wait for other updates before being sent, with 0 the updates are sent
+     *                    as soon as the previous batch is acknowledged
+     */
+    public TrackerIndexHandler(int trackerIndex, ChannelPool connections, WorkerPool senders, int batchSize, int batchWindow) {
+        this(trackerIndex, connections, senders, batchSize, batchWindow, DEFAULT_RESEND_LIMIT, new Metrics());
+    }
+
+    /**
+     * @param resendLimit the maximum number of updates waiting to be sent after a change of the tracker index, unbounded if it is not positive,
+     *                    it must be bounded only if the AntiEntropy repairs the replicas that miss the dropped updates
+     * @param metrics     the registry where the WriteSenders measure the replication towards each replica, and where the dropped updates are counted
+     */
+    public TrackerIndexHandler(int trackerIndex, ChannelPool connections, WorkerPool senders, int batchSize, int batchWindow, int resendLimit,
+                               Metrics metrics) {
         this.trackerIndex = trackerIndex;
-        this.updateFromTrackerQueue = new HashSet<>();
-        this.updateToBeSendQueue = new HashSet<>();
+        this.connections = connections;
+        this.senders = senders;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        this.resendLimit = resendLimit;
+        this.metrics = metrics;
+        this.droppedUpdates = metrics.counter("queue.resend.dropped");
+        this.batchTimer = batchWindow > 0 ? Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.updateFromTrackerQueue = new TreeMap<>();
+        this.updateToBeSendQueue = new LinkedHashMap<>();
     }
 
-    public synchronized int getTrackerIndex() {
+    public int getTrackerIndex() {
         return trackerIndex;
     }
 
+    /**
+     * @param events the log of the updates from the tracker and of the WAIT replies, set before the updates arrive
+     */
+    public void setEventLog(EventLog events) {
+        this.events = events;
+    }
+
+    public EventLog getEventLog() {
+        return events;
+    }
+
     /**
      * This method execute the update from the tracker or put it in queue if out of order
      *
@@ -40,37 +111,51 @@ public class TrackerIndexHandler {
      * @param state          the state of the replica to be update in case some update from other replica become executable
      * @param activeReplicas the list of other replica to be update
      */
-    public synchronized void executeTrackerUpdate(TrackerUpdate trackerUpdate, StateHandler state, List<Address> activeReplicas) {
-        if (trackerUpdate.getTrackerIndex() > this.trackerIndex + 1) {
-            updateFromTrackerQueue.add(trackerUpdate);
-        } else if (trackerUpdate.getTrackerIndex() == this.trackerIndex + 1) {
-            if (trackerUpdate.getType().equals(TrackerUpdate.JOIN)) {
-                state.addAddressKey(trackerUpdate.getAddress());
-                activeReplicas.add(trackerUpdate.getAddress());
-            } else if (trackerUpdate.getType().equals(TrackerUpdate.EXIT)) {
-                state.removeAddressKey(trackerUpdate.getAddress());
-                activeReplicas.remove(trackerUpdate.getAddress());
-            }
-            trackerIndex++;
-            for (UpdateToBeSendQueueElements updateToBeSendQueueElement : updateToBeSendQueue) {
-                List<Address> newReplicas = activeReplicas.stream()
-                        .filter(address -> !updateToBeSendQueueElement.getOtherReplicasAlreadySent().contains(address))
-                        .collect(Collectors.toList());
-                updateToBeSendQueueElement.getOtherReplicasAlreadySent().addAll(newReplicas);
-                for (Address address : newReplicas) {
-                    Replica.addMessageToBeSent();
-                    Thread writeSender = new WriteSender(address, updateToBeSendQueueElement.getUpdate(), activeReplicas, this.trackerIndex, this, new ArrayList<>(activeReplicas));
-                    writeSender.start();
+    public void executeTrackerUpdate(TrackerUpdate trackerUpdate, StateHandler state, List<Address> activeReplicas) {
+        lock.writeLock().lock();
+        try {
+            if (trackerUpdate.getTrackerIndex() > this.trackerIndex + 1) {
+                updateFromTrackerQueue.put(trackerUpdate.getTrackerIndex(), trackerUpdate);
+                events.record(EventLog.Type.TRACKER_QUEUED, ReplicaIds.idOf(trackerUpdate.getAddress()), 0, 0, this.trackerIndex,
+                        trackerUpdate.getTrackerIndex());
+            } else if (trackerUpdate.getTrackerIndex() == this.trackerIndex + 1) {
+                if (trackerUpdate.getType().equals(TrackerUpdate.JOIN)) {
+                    state.addAddressKey(trackerUpdate.getAddress());
+                    activeReplicas.add(trackerUpdate.getAddress());
+                } else if (trackerUpdate.getType().equals(TrackerUpdate.EXIT)) {
+                    state.removeAddressKey(trackerUpdate.getAddress());
+                    activeReplicas.remove(trackerUpdate.getAddress());
+                    WriteSender writeSender = writeSenders.remove(trackerUpdate.getAddress());
+                    if (writeSender != null)
+                        writeSender.close();
+                    connections.close(trackerUpdate.getAddress());
                 }
+                trackerIndex++;
+                events.record(trackerUpdate.getType().equals(TrackerUpdate.JOIN) ? EventLog.Type.JOIN : EventLog.Type.EXIT,
+                        ReplicaIds.idOf(trackerUpdate.getAddress()), 0, 0, 0, trackerIndex);
+                state.checkQueue(trackerIndex);
+                for (Iterator<UpdateToBeSendQueueElements> elements = updateToBeSendQueue.values().iterator(); elements.hasNext(); ) {
+                    UpdateToBeSendQueueElements updateToBeSendQueueElement = elements.next();
+                    List<Address> newReplicas = activeReplicas.stream()
+                            .filter(address -> !updateToBeSendQueueElement.getOtherReplicasAlreadySent().contains(address))
+                            .collect(Collectors.toList());
+                    updateToBeSendQueueElement.getOtherReplicasAlreadySent().addAll(newReplicas);
+                    for (Address address : newReplicas) {
+                        sendUpdate(address, updateToBeSendQueueElement.getUpdate(), activeReplicas, this.trackerIndex, new ArrayList<>(activeReplicas));
+                    }
 
-                if (updateToBeSendQueueElement.getIncomingTrackerIndex() <= this.trackerIndex) {
-                    updateToBeSendQueue.remove(updateToBeSendQueueElement);
+                    if (updateToBeSendQueueElement.getIncomingTrackerIndex() <= this.trackerIndex) {
+                        elements.remove();
+                    }
                 }
+                // The updates already executed can only be duplicates
+                updateFromTrackerQueue.headMap(this.trackerIndex, true).clear();
+                TrackerUpdate queuedTrackerUpdate = updateFromTrackerQueue.remove(this.trackerIndex + 1);
+                if (queuedTrackerUpdate != null)
+                    executeTrackerUpdate(queuedTrackerUpdate, state, activeReplicas);
             }
-            for (TrackerUpdate queuedTrackerUpdate : updateFromTrackerQueue) {
-                updateFromTrackerQueue.remove(queuedTrackerUpdate);
-                executeTrackerUpdate(queuedTrackerUpdate, state, activeReplicas);
-            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -82,23 +167,121 @@ public class TrackerIndexHandler {
      * @param state                the state of the replica to be update
      * @return my trackerIndex if the incoming is less then mine, 0 otherwise
      */
-    public synchronized int checkTrackerIndexAndExecuteUpdate(Update update, int incomingTrackerIndex, StateHandler state) {
-        logger.log(Level.INFO, () -> "Update received from: \t" + update.getFrom() + "\t with tracker index = " + incomingTrackerIndex);
-        state.replicaWrite(update, incomingTrackerIndex, this.trackerIndex);
-        if (incomingTrackerIndex < this.trackerIndex) {
-            return this.trackerIndex;
+    public int checkTrackerIndexAndExecuteUpdate(Update update, int incomingTrackerIndex, StateHandler state) {
+        lock.readLock().lock();
+        try {
+            state.replicaWrite(update, incomingTrackerIndex, this.trackerIndex);
+            if (incomingTrackerIndex < this.trackerIndex) {
+                events.record(EventLog.Type.WAIT_SENT, ReplicaIds.idOf(update.getFrom()), 1, 0, this.trackerIndex, incomingTrackerIndex);
+                return this.trackerIndex;
+            }
+            return 0;
+
+        } finally {
+            lock.readLock().unlock();
         }
-        return 0;
+    }
 
+    /**
+     * This method execute a batch of updates sent with the same tracker index, holding the lock once for the whole batch
+     * The updates from different replicas are executed concurrently, the tracker index cannot change meanwhile
+     *
+     * @param updates              the updates in the order they have been sent
+     * @param incomingTrackerIndex the tracker index of the incoming batch
+     * @param state                the state of the replica to be update
+     * @return my trackerIndex if the incoming is less then mine, 0 otherwise
+     */
+    public int checkTrackerIndexAndExecuteUpdates(List<Update> updates, int incomingTrackerIndex, StateHandler state) {
+        lock.readLock().lock();
+        try {
+            state.replicaWrite(updates, incomingTrackerIndex, this.trackerIndex);
+            if (incomingTrackerIndex < this.trackerIndex) {
+                events.record(EventLog.Type.WAIT_SENT, ReplicaIds.idOf(updates.get(0).getFrom()), updates.size(), 0, this.trackerIndex,
+                        incomingTrackerIndex);
+                return this.trackerIndex;
+            }
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
      * This method return the state only if the incoming tracker index is less or equal to the tracker index this replica
      */
-    public synchronized ReplicaState checkTrackerIndexAndGetState(int incomingTrackerIndex, StateHandler stateHandler) {
-        if (incomingTrackerIndex > trackerIndex)
-            return null;
-        return stateHandler.getState();
+    public ReplicaState checkTrackerIndexAndGetState(int incomingTrackerIndex, StateHandler stateHandler) {
+        lock.readLock().lock();
+        try {
+            if (incomingTrackerIndex > trackerIndex)
+                return null;
+            return stateHandler.getState();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method return the last page of a state transfer only if the incoming tracker index is less or equal to the tracker index this replica,
+     * otherwise the transfer is aborted
+     */
+    public ReplicaState checkTrackerIndexAndFinishTransfer(int incomingTrackerIndex, StateHandler stateHandler, StateTransfer transfer) {
+        lock.readLock().lock();
+        try {
+            if (incomingTrackerIndex > trackerIndex) {
+                stateHandler.abortTransfer(transfer);
+                return null;
+            }
+            return stateHandler.finishTransfer(transfer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method return the last page of a repair only if the incoming tracker index is the tracker index of this replica,
+     * otherwise the two replicas could have different replicas in their vector clocks and the repair is aborted
+     */
+    public ReplicaState checkTrackerIndexAndFinishRepair(int incomingTrackerIndex, StateHandler stateHandler, StateTransfer transfer) {
+        lock.readLock().lock();
+        try {
+            if (incomingTrackerIndex != trackerIndex) {
+                stateHandler.abortTransfer(transfer);
+                return null;
+            }
+            return stateHandler.finishTransfer(transfer);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method applies the values of a repair only if the tracker index has not changed since the repair has been asked
+     *
+     * @param outgoingTrackerIndex the tracker index of this replica when the repair has been asked
+     * @return the number of values applied, -1 if the tracker index has changed
+     */
+    public int checkTrackerIndexAndRepair(int outgoingTrackerIndex, ReplicaState repair, StateHandler state) {
+        lock.readLock().lock();
+        try {
+            if (outgoingTrackerIndex != trackerIndex)
+                return -1;
+            return state.repair(repair, trackerIndex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param activeReplicas the list of the other replicas, changed only while holding the write lock
+     * @return a copy of the list that can be read by another thread
+     */
+    public List<Address> copyOf(List<Address> activeReplicas) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(activeReplicas);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -110,37 +293,111 @@ public class TrackerIndexHandler {
      * @param outgoingTrackerIndex    the tracker index of this replica when it tried to send the update
      * @param otherReplicasBeforeSend the list of replicas where it already sent the update
      */
-    public synchronized void addToQueueOrRetryWrite(Update update, int outgoingTrackerIndex, int incomingTrackerIndex, List<Address> otherReplicasBeforeSend, List<Address> activeReplicas) {
-        if (this.trackerIndex > outgoingTrackerIndex) {
-            // here only if the message can be sent immediately
-            // check to which client to send
-            List<Address> newReplicas = activeReplicas.stream().filter(address -> !otherReplicasBeforeSend.contains(address)).collect(Collectors.toList());
-            otherReplicasBeforeSend.addAll(newReplicas);
-            for (Address address : newReplicas) {
-                Replica.addMessageToBeSent();
-                Thread writeSender = new WriteSender(address, update, activeReplicas, outgoingTrackerIndex + 1, this, new ArrayList<>(activeReplicas));
-                writeSender.start();
-            }
+    public void addToQueueOrRetryWrite(Update update, int outgoingTrackerIndex, int incomingTrackerIndex, List<Address> otherReplicasBeforeSend, List<Address> activeReplicas) {
+        lock.writeLock().lock();
+        try {
+            if (this.trackerIndex > outgoingTrackerIndex) {
+                // here only if the message can be sent immediately
+                // check to which client to send
+                List<Address> newReplicas = activeReplicas.stream().filter(address -> !otherReplicasBeforeSend.contains(address)).collect(Collectors.toList());
+                otherReplicasBeforeSend.addAll(newReplicas);
+                for (Address address : newReplicas) {
+                    sendUpdate(address, update, activeReplicas, outgoingTrackerIndex + 1, new ArrayList<>(activeReplicas));
+                }
 
-            if (incomingTrackerIndex <= outgoingTrackerIndex + 1) {
-                return;
+                if (incomingTrackerIndex <= outgoingTrackerIndex + 1) {
+                    return;
+                }
             }
-        }
-        for (UpdateToBeSendQueueElements updateToBeSendQueueElement : updateToBeSendQueue) {
-            if(updateToBeSendQueueElement.getUpdate().equals(update)) {
+            UpdateToBeSendQueueElements updateToBeSendQueueElement = updateToBeSendQueue.remove(update);
+            if (updateToBeSendQueueElement != null) {
                 int biggestTrackerIndex = incomingTrackerIndex < updateToBeSendQueueElement.getIncomingTrackerIndex() ? updateToBeSendQueueElement.getIncomingTrackerIndex() : incomingTrackerIndex;
                 otherReplicasBeforeSend.addAll(updateToBeSendQueueElement.getOtherReplicasAlreadySent());
-                updateToBeSendQueue.remove(updateToBeSendQueueElement);
-                updateToBeSendQueue.add(new UpdateToBeSendQueueElements(update, otherReplicasBeforeSend, biggestTrackerIndex));
+                updateToBeSendQueue.put(update, new UpdateToBeSendQueueElements(update, otherReplicasBeforeSend, biggestTrackerIndex));
                 return;
             }
+            updateToBeSendQueue.put(update, new UpdateToBeSendQueueElements(update, otherReplicasBeforeSend, incomingTrackerIndex));
+            if (resendLimit > 0 && updateToBeSendQueue.size() > resendLimit) {
+                Iterator<Update> oldest = updateToBeSendQueue.keySet().iterator();
+                Update dropped = oldest.next();
+                oldest.remove();
+                int from = ReplicaIds.idOf(dropped.getFrom());
+                events.record(EventLog.Type.RESEND_DROPPED, from, dropped.getVectorClock().get(from), 0, 0, incomingTrackerIndex);
+                droppedUpdates.increment();
+                logger.log(Level.WARNING, () -> "More than " + resendLimit + " updates are waiting for the tracker, dropping the update " +
+                        dropped.getVectorClock().get(from) + " of " + dropped.getFrom() + ".");
+            }
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sends the update written by a Client to all the other replicas
+     *
+     * @param update         the update
+     * @param activeReplicas the list of other replicas, shared with the Replica
+     */
+    public void broadcastUpdate(Update update, List<Address> activeReplicas) {
+        // Get indexTracker (because not send to new replicas)
+        int outgoingTrackerIndex = getTrackerIndex();
+        List<Address> otherReplicaBeforeSend = new ArrayList<>(activeReplicas);
+        /* Here after reading the trackerIndex a thread could increment it and update the otherReplicaAddress,
+        we don't care, because if it was updated by an Exit from another replica it's ok if we don't send the update to the exited replica (would be check later otherwise)
+        if it was updated by a Join we will simply send the update to the new replica who will reply with `wait` causing the resend of the message, no problem
+        */
+        Replica.addMessageToBeSent();
+        for (Address address : activeReplicas) {
+            sendUpdate(address, update, activeReplicas, outgoingTrackerIndex, otherReplicaBeforeSend);
         }
-        updateToBeSendQueue.add(new UpdateToBeSendQueueElements(update, otherReplicasBeforeSend, incomingTrackerIndex));
+        Replica.removeMessageToBeSent();
+    }
 
+    private void sendUpdate(Address to, Update update, List<Address> activeReplicas, int outgoingTrackerIndex, List<Address> otherReplicasBeforeSend) {
+        Replica.addMessageToBeSent();
+        writeSenders.computeIfAbsent(to, address -> new WriteSender(address, this, connections, senders, batchTimer, batchSize, batchWindow, metrics))
+                .send(update, activeReplicas, outgoingTrackerIndex, otherReplicasBeforeSend);
     }
 
     public boolean isOutgoingQueueEmpty() {
-        return updateToBeSendQueue.isEmpty();
+        lock.readLock().lock();
+        try {
+            return updateToBeSendQueue.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of updates waiting for a change of the tracker index to be sent
+     */
+    public int getOutgoingQueueSize() {
+        lock.readLock().lock();
+        try {
+            return updateToBeSendQueue.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of updates from the tracker received before the previous ones
+     */
+    public int getTrackerQueueSize() {
+        lock.readLock().lock();
+        try {
+            return updateFromTrackerQueue.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of updates dropped from the outgoing queue because it was full
+     */
+    public long getDroppedUpdates() {
+        return droppedUpdates.sum();
     }
 
     /**
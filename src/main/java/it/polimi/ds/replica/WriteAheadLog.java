@@ -0,0 +1,251 @@
+package it.polimi.ds.replica;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Represents an append-only log split in numbered segments, each record is written as length, CRC32 and payload.
+ * The records are appended to memory and a committer thread writes and forces to disk everything appended meanwhile,
+ * so the writers waiting in sync share a single fsync (group commit).
+ * Records are identified by a log sequence number, increasing by one for each record.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final Logger logger = Logger.getLogger("WriteAheadLog");
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private final Path directory;
+    private final Thread committer;
+    private List<Chunk> chunks = new ArrayList<>();
+    private int segment;
+    private long appended = 0;
+    private long synced = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * @param directory the directory of the segments
+     * @param segment   the number of the segment receiving the records, it must not exist yet
+     */
+    public WriteAheadLog(Path directory, int segment) throws IOException {
+        this.directory = directory;
+        this.segment = segment;
+        chunks.add(new Chunk(open(segment)));
+        committer = new Thread(this::commit, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public static Path segmentPath(Path directory, int segment) {
+        return directory.resolve(PREFIX + segment + SUFFIX);
+    }
+
+    /**
+     * @return the numbers of the segments in the directory, in increasing order
+     */
+    public static List<Integer> segments(Path directory) throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> segments.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * Reads the records of a segment, stopping at the first record not completely written.
+     *
+     * @return the payloads of the records
+     */
+    public static List<byte[]> read(Path segment) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        try (InputStream file = Files.newInputStream(segment);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xFFFFFFFFL;
+                if (length < 0)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum)
+                    break;
+                records.add(payload);
+            }
+        } catch (EOFException e) {
+            // The tail of the last segment written before a crash
+        }
+        if (!records.isEmpty())
+            logger.log(Level.FINE, () -> "Read " + records.size() + " records from " + segment + ".");
+        return records;
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(segmentPath(directory, segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Appends a record to memory, it is written by the committer.
+     *
+     * @return the log sequence number of the record
+     */
+    public synchronized long append(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = chunks.get(chunks.size() - 1).out;
+        try {
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        appended++;
+        notifyAll();
+        return appended;
+    }
+
+    /**
+     * Starts a new segment, the records appended afterwards are written in it.
+     *
+     * @return the number of the new segment
+     */
+    public synchronized int rotate() throws IOException {
+        chunks.add(new Chunk(open(segment + 1)));
+        return ++segment;
+    }
+
+    /**
+     * @return the log sequence number of the last record appended
+     */
+    public synchronized long appended() {
+        return appended;
+    }
+
+    /**
+     * @return false once a record could not be written or the log has been closed, the records appended afterwards are never written
+     */
+    public synchronized boolean isOpen() {
+        return failure == null && !closed;
+    }
+
+    /**
+     * Waits until the record with the given log sequence number is on disk.
+     *
+     * @throws IOException if the record could not be written or the log has been closed before
+     */
+    public synchronized void sync(long lsn) throws IOException {
+        while (synced < lsn && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the log.", e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+        if (synced < lsn)
+            throw new IOException("The log has been closed before the record was written.");
+    }
+
+    /**
+     * Writes the records appended until now and stops the committer.
+     */
+    @Override
+    public void close() throws IOException {
+        sync(appended());
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Chunk chunk : chunks)
+            chunk.channel.close();
+    }
+
+    private void commit() {
+        while (true) {
+            List<Chunk> toWrite;
+            long target;
+            synchronized (this) {
+                while (appended == synced && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (appended == synced)
+                    return;
+                toWrite = chunks;
+                target = appended;
+                Chunk current = chunks.get(chunks.size() - 1);
+                chunks = new ArrayList<>();
+                chunks.add(new Chunk(current.channel));
+            }
+            try {
+                for (int i = 0; i < toWrite.size(); i++) {
+                    Chunk chunk = toWrite.get(i);
+                    ByteBuffer bytes = ByteBuffer.wrap(chunk.bytes.toByteArray());
+                    while (bytes.hasRemaining())
+                        chunk.channel.write(bytes);
+                    chunk.channel.force(false);
+                    // Only the last chunk belongs to the segment still receiving records
+                    if (i < toWrite.size() - 1)
+                        chunk.channel.close();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not write the log.");
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                synced = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Represents the records appended to memory for one segment.
+     */
+    private static class Chunk {
+        private final FileChannel channel;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Chunk(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
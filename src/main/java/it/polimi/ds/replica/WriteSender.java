@@ -2,63 +2,205 @@ package it.polimi.ds.replica;
 
 import it.polimi.ds.network.*;
 
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Represents the Thread that will broadcast the Messages regarding the updates made by a Client on a Replica.
+ * Represents the queue of the updates made by the Clients of this Replica that have to be sent to one of the other Replicas.
+ * The updates are sent in order, grouped in UPDATE_BATCH messages: only one batch at a time is waiting for the reply,
+ * the updates arriving meanwhile are sent together in the next batch.
+ * A batch is sent when it reaches the batch size or, if a batch window is set, when its first update has waited for the window.
+ * The Metrics named after the other Replica measure the lag of every update, from when it is queued to when it is acknowledged,
+ * the WAIT replies and the updates in the queue.
  */
-public class WriteSender extends Thread {
+public class WriteSender {
+    public static final int DEFAULT_BATCH_SIZE = 128;
+    public static final int DEFAULT_BATCH_WINDOW = 0;
     private static final Logger logger = Logger.getLogger("WriteSender");
     private final Address otherReplica;
-    private final Update update;
-    private final List<Address> activeReplicas;
-    private final List<Address> otherReplicasBeforeSend;
-    private final int outgoingTrackerIndex;
     private final TrackerIndexHandler trackerIndexHandler;
+    private final ChannelPool connections;
+    private final WorkerPool senders;
+    private final ScheduledExecutorService timer;
+    private final int batchSize;
+    private final int batchWindow;
+    private final Metrics metrics;
+    private final String metricsPrefix;
+    private final Histogram lag;
+    private final LongAdder waits;
+    private final Deque<PendingUpdate> pending = new ArrayDeque<>();
+    private boolean flushing = false;
+    private ScheduledFuture<?> scheduledFlush;
 
     /**
-     * @param otherReplica   this is the
-     * @param update         this is the update to be sent
-     * @param activeReplicas this is used to check other replica is removed from the list of activeReplica
+     * @param otherReplica        the Replica receiving the updates
+     * @param trackerIndexHandler used when the other Replica replies with WAIT
+     * @param connections         the channels towards the other replicas
+     * @param senders             the pool running the flushes
+     * @param timer               used to wait for the batch window, it can be null if the window is 0
+     * @param batchSize           the maximum number of updates in a batch
+     * @param batchWindow         the milliseconds an update can wait for other updates before being sent
+     * @param metrics             the registry of the measures of the Replica
      */
-    public WriteSender(Address otherReplica, Update update, List<Address> activeReplicas, int outgoingTrackerIndex, TrackerIndexHandler trackerIndexHandler, List<Address> otherReplicasBeforeSend) {
+    public WriteSender(Address otherReplica, TrackerIndexHandler trackerIndexHandler, ChannelPool connections, WorkerPool senders,
+                       ScheduledExecutorService timer, int batchSize, int batchWindow, Metrics metrics) {
         this.otherReplica = otherReplica;
-        this.update = update;
-        this.activeReplicas = activeReplicas;
-        this.otherReplicasBeforeSend = otherReplicasBeforeSend;
-        this.outgoingTrackerIndex = outgoingTrackerIndex;
         this.trackerIndexHandler = trackerIndexHandler;
+        this.connections = connections;
+        this.senders = senders;
+        this.timer = timer;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindow = Math.max(0, batchWindow);
+        this.metrics = metrics;
+        this.metricsPrefix = "replication." + otherReplica + ".";
+        this.lag = metrics.histogram(metricsPrefix + "lag");
+        this.waits = metrics.counter(metricsPrefix + "wait");
+        metrics.gauge(metricsPrefix + "pending", this::pendingSize);
+    }
+
+    private synchronized int pendingSize() {
+        return pending.size();
     }
 
     /**
-     * This method continuously try to connect to otherReplica to send the update if otherReplica is still in the list of active replicas (activeReplicas)
+     * Adds an update to the queue, Replica.addMessageToBeSent must have already been called for it.
+     *
+     * @param update                  this is the update to be sent
+     * @param activeReplicas          this is used to check other replica is removed from the list of activeReplica
+     * @param outgoingTrackerIndex    the tracker index of this replica when the update has been sent
+     * @param otherReplicasBeforeSend the list of replicas where the update has already been sent
      */
-    @Override
-    public void run() {
-        try {
-            SimulateDelay.uniform(Replica.minDelay, Replica.maxDelay);
-            TCPClient replica = TCPClient.connect(otherReplica);
-            replica.out().writeObject(new Message(MessageType.UPDATE_FROM_REPLICA, update, outgoingTrackerIndex));
-            Message reply = (Message) replica.in().readObject();
-            if (reply.getType() == MessageType.WAIT) {
-                trackerIndexHandler.addToQueueOrRetryWrite(update, outgoingTrackerIndex, reply.getTrackerIndex(), otherReplicasBeforeSend, activeReplicas);
-            }
-            // otherwise the reply should be an ACK and nothing need to be done
-            replica.close();
-            Replica.removeMessageToBeSent();
-        } catch (IOException | ClassNotFoundException e) {
-            logger.log(Level.SEVERE, () -> "Could not update replica " + otherReplica + " properly.");
-            if (activeReplicas.contains(otherReplica)) {
+    public synchronized void send(Update update, List<Address> activeReplicas, int outgoingTrackerIndex, List<Address> otherReplicasBeforeSend) {
+        pending.add(new PendingUpdate(update, activeReplicas, outgoingTrackerIndex, otherReplicasBeforeSend));
+        if (flushing)
+            return;
+        if (batchWindow == 0 || timer == null) {
+            flushing = true;
+            senders.execute(this::flush);
+        } else if (scheduledFlush == null)
+            scheduledFlush = timer.schedule(this::flushNow, batchWindow, TimeUnit.MILLISECONDS);
+        else if (pending.size() >= batchSize && scheduledFlush.cancel(false))
+            flushNow();
+    }
+
+    /**
+     * Drops the updates still in the queue, called when the other Replica leaves the network.
+     */
+    public synchronized void close() {
+        pending.forEach(pendingUpdate -> Replica.removeMessageToBeSent());
+        pending.clear();
+        if (scheduledFlush != null)
+            scheduledFlush.cancel(false);
+        metrics.remove(metricsPrefix);
+    }
+
+    private synchronized void flushNow() {
+        if (flushing)
+            return;
+        scheduledFlush = null;
+        flushing = true;
+        senders.execute(this::flush);
+    }
+
+    /**
+     * @return the next batch, made of the first updates of the queue sent with the same tracker index, empty if the queue is empty
+     */
+    private synchronized List<PendingUpdate> nextBatch() {
+        List<PendingUpdate> batch = new ArrayList<>();
+        while (!pending.isEmpty() && batch.size() < batchSize
+                && (batch.isEmpty() || pending.peek().outgoingTrackerIndex == batch.get(0).outgoingTrackerIndex))
+            batch.add(pending.poll());
+        if (batch.isEmpty())
+            flushing = false;
+        return batch;
+    }
+
+    /**
+     * Sends batches until the queue is empty, each batch is sent after the reply to the previous one.
+     */
+    private void flush() {
+        List<PendingUpdate> batch = nextBatch();
+        while (!batch.isEmpty()) {
+            if (!sendBatch(batch))
+                return;
+            batch = nextBatch();
+        }
+    }
+
+    /**
+     * This method continuously try to send the batch through the channel towards otherReplica if otherReplica is still in the list of active replicas
+     *
+     * @return false if the thread has been interrupted
+     */
+    private boolean sendBatch(List<PendingUpdate> batch) {
+        int outgoingTrackerIndex = batch.get(0).outgoingTrackerIndex;
+        Message message;
+        if (batch.size() == 1)
+            message = new Message(MessageType.UPDATE_FROM_REPLICA, batch.get(0).update, outgoingTrackerIndex);
+        else {
+            List<Update> updates = new ArrayList<>(batch.size());
+            batch.forEach(pendingUpdate -> updates.add(pendingUpdate.update));
+            message = new Message(MessageType.UPDATE_BATCH, outgoingTrackerIndex, updates);
+        }
+        while (true) {
+            try {
+                SimulateDelay.uniform(Replica.minDelay, Replica.maxDelay);
+                Message reply = connections.request(otherReplica, message).get();
+                batch.forEach(pendingUpdate -> lag.recordSince(pendingUpdate.queued));
+                if (reply.getType() == MessageType.WAIT) {
+                    waits.increment();
+                    trackerIndexHandler.getEventLog().record(EventLog.Type.WAIT_RECEIVED, ReplicaIds.idOf(otherReplica), batch.size(), 0,
+                            reply.getTrackerIndex(), outgoingTrackerIndex);
+                    for (PendingUpdate pendingUpdate : batch)
+                        trackerIndexHandler.addToQueueOrRetryWrite(pendingUpdate.update, outgoingTrackerIndex, reply.getTrackerIndex(),
+                                pendingUpdate.otherReplicasBeforeSend, pendingUpdate.activeReplicas);
+                }
+                // otherwise the reply should be an ACK and nothing need to be done
+                batch.forEach(pendingUpdate -> Replica.removeMessageToBeSent());
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, () -> "Could not update replica " + otherReplica + " properly.");
+                if (!batch.get(0).activeReplicas.contains(otherReplica)) {
+                    batch.forEach(pendingUpdate -> Replica.removeMessageToBeSent());
+                    return true;
+                }
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException ex) {
                     Thread.currentThread().interrupt();
+                    return false;
                 }
-                run();
             }
         }
     }
+
+    /**
+     * Represents an update waiting in the queue with the information needed if the other Replica replies with WAIT
+     */
+    private static class PendingUpdate {
+        private final Update update;
+        private final List<Address> activeReplicas;
+        private final int outgoingTrackerIndex;
+        private final List<Address> otherReplicasBeforeSend;
+        private final long queued = System.nanoTime();
+
+        private PendingUpdate(Update update, List<Address> activeReplicas, int outgoingTrackerIndex, List<Address> otherReplicasBeforeSend) {
+            this.update = update;
+            this.activeReplicas = activeReplicas;
+            this.outgoingTrackerIndex = outgoingTrackerIndex;
+            this.otherReplicasBeforeSend = otherReplicasBeforeSend;
+        }
+    }
 }
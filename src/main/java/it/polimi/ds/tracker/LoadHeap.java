@@ -0,0 +1,188 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaLoad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the Replicas of the network in a binary min-heap ordered by the score given by the Placement,
+ * where every Entry knows its position: the least loaded Replica is read in O(1), and adding, removing or
+ * changing the load of a Replica moves only its Entry, in O(log N). The heap is not synchronized, the Storage locks it.
+ */
+class LoadHeap {
+    private final Map<Address, Entry> entries = new HashMap<>();
+    private Entry[] heap = new Entry[16];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public Entry get(Address address) {
+        return entries.get(address);
+    }
+
+    /**
+     * @param position between 0 and size - 1, the positions follow the heap and not the order of the Replicas
+     */
+    public Entry get(int position) {
+        return heap[position];
+    }
+
+    /**
+     * @return the Entry with the lowest score, null if the heap is empty
+     */
+    public Entry peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    /**
+     * Adds an Entry, unless one with the same address is already in the heap.
+     */
+    public void add(Entry entry) {
+        if (entries.putIfAbsent(entry.address, entry) != null)
+            return;
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+        entry.position = size;
+        heap[size++] = entry;
+        siftUp(entry.position);
+    }
+
+    public void remove(Address address) {
+        Entry entry = entries.remove(address);
+        if (entry == null)
+            return;
+        Entry last = heap[--size];
+        heap[size] = null;
+        if (last != entry) {
+            heap[entry.position] = last;
+            last.position = entry.position;
+            update(last);
+        }
+        entry.position = -1;
+    }
+
+    /**
+     * Moves an Entry after its score has changed.
+     */
+    public void update(Entry entry) {
+        siftUp(entry.position);
+        siftDown(entry.position);
+    }
+
+    public List<Address> addresses() {
+        List<Address> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            addresses.add(heap[i].address);
+        return addresses;
+    }
+
+    private void siftUp(int position) {
+        Entry entry = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heap[parent].score <= entry.score)
+                break;
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(entry, position);
+    }
+
+    private void siftDown(int position) {
+        Entry entry = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && heap[child + 1].score < heap[child].score)
+                child++;
+            if (entry.score <= heap[child].score)
+                break;
+            move(heap[child], position);
+            position = child;
+        }
+        move(entry, position);
+    }
+
+    private void move(Entry entry, int position) {
+        heap[position] = entry;
+        entry.position = position;
+    }
+
+    /**
+     * Represents a Replica with the Clients assigned to it and the last load it reported.
+     */
+    static class Entry {
+        private final Address address;
+        private int position;
+        private int clients = 0;
+        private int reportedClients = 0;
+        private int requestRate = 0;
+        private int queueDepth = 0;
+        private int latency = 0;
+        private long score = 0;
+
+        Entry(Address address) {
+            this.address = address;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public int getClients() {
+            return clients;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getLatency() {
+            return latency;
+        }
+
+        public long getScore() {
+            return score;
+        }
+
+        void setScore(long score) {
+            this.score = score;
+        }
+
+        void addClient() {
+            clients++;
+        }
+
+        /**
+         * The count cannot go below zero, since a Client can report the Replica it left more than once.
+         */
+        void removeClient() {
+            if (clients > 0)
+                clients--;
+        }
+
+        void report(ReplicaLoad load) {
+            reportedClients = clients;
+            requestRate = load.getRequestRate();
+            queueDepth = load.getQueueDepth();
+            latency = load.getLatency();
+        }
+
+        /**
+         * @return the requests per second of the last report, corrected by the Clients assigned or removed since then,
+         * each counted with the mean rate of the Clients of the report; before any report every Client counts as one request
+         */
+        public long getEstimatedRate() {
+            long perClient = Math.max(1, requestRate / Math.max(1, reportedClients));
+            return Math.max(0, requestRate + (long) (clients - reportedClients) * perClient);
+        }
+    }
+}
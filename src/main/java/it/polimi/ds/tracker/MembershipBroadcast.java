@@ -0,0 +1,190 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.*;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the dissemination of the joins and the exits of the Replicas from the Tracker to the Replicas in the network.
+ * Every Replica has an outbox of the changes it has not acknowledged yet, in the order of their tracker indexes, sent on a channel kept open:
+ * only one epoch at a time is waiting for the reply, the changes arriving meanwhile are sent together in the next epoch,
+ * so a burst of joins and exits costs every Replica a message per round trip instead of a connection and a thread per change.
+ * A failed epoch is sent again after a backoff doubling at every attempt, after the maximum number of attempts the Replica is
+ * reported unreachable but its outbox is kept: a Replica still in the Storage must receive every change in order, or it would wait
+ * forever for the tracker indexes it missed, so the changes are sent again from the first one not acknowledged until it replies or leaves.
+ * The Replicas ignore the changes they already applied, so resending is safe.
+ */
+public class MembershipBroadcast {
+    public static final int DEFAULT_RETRIES = 30;
+    public static final int MAX_EPOCH = 256;
+    private static final Logger logger = Logger.getLogger("MembershipBroadcast");
+    private static final long FIRST_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+    private final Map<Address, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final ChannelPool connections;
+    private final WorkerPool senders;
+    private final ScheduledExecutorService retryTimer;
+    private final int retries;
+    private final LongAdder epochs;
+    private final LongAdder failures;
+    private final LongAdder unreachable;
+
+    /**
+     * @param connections the channels towards the Replicas
+     * @param senders     the pool sending the epochs
+     * @param retries     the attempts after which a Replica is reported unreachable, its changes are still sent again at the longest backoff
+     * @param metrics     the registry where the epochs, the failed attempts and the changes waiting are measured
+     */
+    public MembershipBroadcast(ChannelPool connections, WorkerPool senders, int retries, Metrics metrics) {
+        this.connections = connections;
+        this.senders = senders;
+        this.retries = retries;
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "membership-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.epochs = metrics.counter("membership.epochs");
+        this.failures = metrics.counter("membership.failures");
+        this.unreachable = metrics.counter("membership.unreachable");
+        metrics.gauge("membership.pending", this::pending);
+    }
+
+    /**
+     * Adds a change to the outboxes of some Replicas, it must be called with the Storage locked so that the outboxes follow the tracker indexes.
+     *
+     * @param replicas the Replicas in the network before the change, except the one that changed
+     */
+    public void publish(MembershipChange change, List<Address> replicas) {
+        for (Address replica : replicas) {
+            Outbox outbox = outboxes.computeIfAbsent(replica, Outbox::new);
+            if (outbox.add(change))
+                senders.execute(outbox::send);
+        }
+    }
+
+    /**
+     * Drops the outbox and the channel of a Replica that left the network.
+     */
+    public void forget(Address replica) {
+        Outbox outbox = outboxes.remove(replica);
+        if (outbox != null)
+            outbox.close();
+        connections.close(replica);
+    }
+
+    /**
+     * @return the number of changes not acknowledged yet, summed over the Replicas
+     */
+    public long pending() {
+        long pending = 0;
+        for (Outbox outbox : outboxes.values())
+            pending += outbox.size();
+        return pending;
+    }
+
+    public void close() {
+        outboxes.values().forEach(Outbox::close);
+        outboxes.clear();
+        retryTimer.shutdownNow();
+        connections.closeAll();
+    }
+
+    /**
+     * Represents the changes a Replica has not acknowledged yet, the first inFlight ones are in the epoch waiting for the reply.
+     */
+    private class Outbox {
+        private final Address replica;
+        private final Deque<MembershipChange> changes = new ArrayDeque<>();
+        private int inFlight = 0;
+        private int attempts = 0;
+        // True while an epoch is scheduled, waiting for the backoff or waiting for the reply
+        private boolean sending = false;
+        private boolean closed = false;
+
+        private Outbox(Address replica) {
+            this.replica = replica;
+        }
+
+        private synchronized int size() {
+            return changes.size();
+        }
+
+        /**
+         * @return true if the outbox was idle, so that an epoch has to be sent
+         */
+        private synchronized boolean add(MembershipChange change) {
+            if (closed)
+                return false;
+            changes.add(change);
+            if (sending)
+                return false;
+            sending = true;
+            return true;
+        }
+
+        private void send() {
+            MembershipChange[] epoch;
+            synchronized (this) {
+                if (closed)
+                    return;
+                epoch = changes.stream().limit(MAX_EPOCH).toArray(MembershipChange[]::new);
+                inFlight = epoch.length;
+            }
+            epochs.increment();
+            SimulateDelay.uniform(Tracker.minDelay, Tracker.maxDelay);
+            connections.request(replica, new Message(MessageType.MEMBERSHIP_EPOCH, epoch)).whenComplete((reply, error) -> {
+                if (error == null)
+                    acknowledged();
+                else
+                    failed();
+            });
+        }
+
+        private void acknowledged() {
+            synchronized (this) {
+                for (int i = 0; i < inFlight; i++)
+                    changes.poll();
+                inFlight = 0;
+                attempts = 0;
+                if (closed || changes.isEmpty()) {
+                    sending = false;
+                    return;
+                }
+            }
+            senders.execute(this::send);
+        }
+
+        private void failed() {
+            long backoff;
+            synchronized (this) {
+                if (closed)
+                    return;
+                inFlight = 0;
+                failures.increment();
+                if (++attempts == retries + 1) {
+                    logger.log(Level.SEVERE, () -> "Replica " + replica + " unreachable after " + retries + " attempts, its changes are kept until it replies or leaves.");
+                    unreachable.increment();
+                }
+                backoff = Math.min(MAX_BACKOFF, FIRST_BACKOFF << Math.min(attempts - 1, 20));
+            }
+            logger.log(Level.WARNING, () -> "Communication with replica " + replica + " interrupted, retrying in " + backoff + " ms.");
+            retryTimer.schedule(() -> senders.execute(this::send), backoff, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void close() {
+            closed = true;
+            changes.clear();
+        }
+    }
+}
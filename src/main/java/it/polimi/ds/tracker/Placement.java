@@ -0,0 +1,68 @@
+package it.polimi.ds.tracker;
+
+import java.util.Random;
+
+/**
+ * Contains the policies choosing the Replica of a new Client from the load the Replicas reported.
+ * Each policy gives a score to every Replica, kept in the LoadHeap, and picks a Replica with a low score.
+ */
+public enum Placement {
+    /**
+     * The Replica with the fewest requests per second and waiting requests.
+     */
+    LEAST_LOADED {
+        @Override
+        long score(LoadHeap.Entry replica) {
+            return replica.getEstimatedRate() + replica.getQueueDepth();
+        }
+
+        @Override
+        LoadHeap.Entry choose(LoadHeap replicas, Random random) {
+            return replicas.peek();
+        }
+    },
+    /**
+     * The least loaded of two Replicas chosen at random: the Clients arriving between two reports are spread
+     * instead of all going to the Replica that was the least loaded at the last report.
+     */
+    POWER_OF_TWO {
+        @Override
+        long score(LoadHeap.Entry replica) {
+            return LEAST_LOADED.score(replica);
+        }
+
+        @Override
+        LoadHeap.Entry choose(LoadHeap replicas, Random random) {
+            if (replicas.size() < 2)
+                return replicas.peek();
+            LoadHeap.Entry first = replicas.get(random.nextInt(replicas.size()));
+            LoadHeap.Entry second = replicas.get(random.nextInt(replicas.size()));
+            return first.getScore() <= second.getScore() ? first : second;
+        }
+    },
+    /**
+     * The Replica whose load multiplied by its latency, as the time a new request would wait, is the lowest.
+     */
+    LATENCY_AWARE {
+        @Override
+        long score(LoadHeap.Entry replica) {
+            return (LEAST_LOADED.score(replica) + 1) * Math.max(1, replica.getLatency());
+        }
+
+        @Override
+        LoadHeap.Entry choose(LoadHeap replicas, Random random) {
+            return replicas.peek();
+        }
+    };
+
+    public static Placement fromString(String name) {
+        return Placement.valueOf(name.toUpperCase().replace('-', '_'));
+    }
+
+    abstract long score(LoadHeap.Entry replica);
+
+    /**
+     * @return the Replica of the new Client, null if there is none
+     */
+    abstract LoadHeap.Entry choose(LoadHeap replicas, Random random);
+}
@@ -0,0 +1,79 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.Address;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Represents the shards of the keyspace, each one replicated by its own group of Replicas with its own Storage:
+ * its own list of Replicas, its own tracker index and its own Clients, so the vector clocks of a group have an entry per Replica of the group.
+ * A joining Replica is placed in the group with the fewest Replicas, or in the group it was in if it joined before,
+ * so that a Replica restarted from its data directory recovers the keys of its own shard.
+ */
+public class Shards {
+    private final Storage[] storages;
+    private final int[] members;
+    private final Map<Address, Integer> shardOfReplica = new HashMap<>();
+
+    /**
+     * @param count     the number of shards, 1 to replicate the whole keyspace on every Replica
+     * @param placement the policy choosing the Replica of a new Client in every shard
+     */
+    public Shards(int count, Placement placement) {
+        this.storages = new Storage[Math.max(1, count)];
+        this.members = new int[storages.length];
+        for (int i = 0; i < storages.length; i++)
+            storages[i] = new Storage(placement);
+    }
+
+    public int count() {
+        return storages.length;
+    }
+
+    public Storage get(int shard) {
+        return storages[shard];
+    }
+
+    /**
+     * @return the shard of a joining Replica
+     */
+    public synchronized int join(Address replica) {
+        Integer shard = shardOfReplica.get(replica);
+        if (shard == null) {
+            shard = 0;
+            for (int i = 1; i < members.length; i++)
+                if (members[i] < members[shard])
+                    shard = i;
+            shardOfReplica.put(replica, shard);
+        }
+        members[shard]++;
+        return shard;
+    }
+
+    /**
+     * @return the Storage of the shard a leaving Replica was in, the shard is kept in case the Replica joins again
+     */
+    public synchronized Storage leave(Address replica) {
+        Integer shard = shardOfReplica.get(replica);
+        if (shard == null)
+            return storages[0];
+        members[shard] = Math.max(0, members[shard] - 1);
+        return storages[shard];
+    }
+
+    /**
+     * @return the Storage of the shard of a Replica, the one of the first shard if the Replica never joined
+     */
+    public synchronized Storage of(Address replica) {
+        Integer shard = shardOfReplica.get(replica);
+        return storages[shard == null ? 0 : shard];
+    }
+
+    public int replicaCount() {
+        int replicas = 0;
+        for (Storage storage : storages)
+            replicas += storage.replicaCount();
+        return replicas;
+    }
+}
@@ -1,11 +1,10 @@
 package it.polimi.ds.tracker;
 
 import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaLoad;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,49 +12,106 @@ import java.util.concurrent.locks.ReentrantLock;
  * Contains all the data needed by the Tracker in order to work
  */
 public class Storage extends ReentrantLock {
-    private final Map<String, Integer> replicas;
+    private final LoadHeap replicas = new LoadHeap();
+    private final Placement placement;
+    private final Random random = new Random();
     private final AtomicInteger trackerIndex = new AtomicInteger(0);
 
     public Storage() {
-        this.replicas = new HashMap<>();
+        this(Placement.LEAST_LOADED);
+    }
+
+    /**
+     * @param placement the policy choosing the Replica of a new Client
+     */
+    public Storage(Placement placement) {
+        this.placement = placement;
     }
 
     protected void addReplica(Address address) {
-        replicas.put(address.toString(), 0);
+        LoadHeap.Entry replica = new LoadHeap.Entry(address);
+        replica.setScore(placement.score(replica));
+        replicas.add(replica);
     }
 
     protected void removeReplica(Address address) {
-        replicas.remove(address.toString());
+        replicas.remove(address);
     }
 
     protected List<Address> getReplicas() {
-        List<Address> addresses = new ArrayList<>();
-        replicas.keySet().forEach(s -> addresses.add(Address.fromString(s)));
-        return addresses;
+        return replicas.addresses();
     }
 
     /**
-     * Assigns the new client to the Replica serving the least amount of Clients
+     * Assigns the new client to the Replica chosen by the Placement from the load of the Replicas
      *
      * @return the Address of the Replica that will be assigned to the Client
      */
     protected Address addClient() {
-        Map.Entry<String, Integer> min = null;
-        for (Map.Entry<String, Integer> entry : replicas.entrySet()) {
-            if (min == null || min.getValue() > entry.getValue())
-                min = entry;
+        lock();
+        try {
+            LoadHeap.Entry replica = placement.choose(replicas, random);
+            if (replica == null)
+                return null;
+            replica.addClient();
+            rescore(replica);
+            return replica.getAddress();
+        } finally {
+            unlock();
         }
-        if (min == null)
-            return null;
-        replicas.replace(min.getKey(), min.getValue() + 1);
-        return Address.fromString(min.getKey());
     }
 
     protected void removeClient(Address from) {
-        replicas.computeIfPresent(from.toString(), (address, integer) -> replicas.put(address, replicas.get(address) - 1));
+        lock();
+        try {
+            LoadHeap.Entry replica = replicas.get(from);
+            if (replica == null)
+                return;
+            replica.removeClient();
+            rescore(replica);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Keeps the load reported by a Replica, the reports of the Replicas not in the network are ignored.
+     */
+    protected void reportLoad(ReplicaLoad load) {
+        lock();
+        try {
+            LoadHeap.Entry replica = replicas.get(load.getAddress());
+            if (replica == null)
+                return;
+            replica.report(load);
+            rescore(replica);
+        } finally {
+            unlock();
+        }
+    }
+
+    private void rescore(LoadHeap.Entry replica) {
+        replica.setScore(placement.score(replica));
+        replicas.update(replica);
     }
 
     public int incrementAndGetTrackerIndex() {
         return trackerIndex.incrementAndGet();
     }
+
+    public int getTrackerIndex() {
+        return trackerIndex.get();
+    }
+
+    /**
+     * @return the number of Replicas in the network, read while holding the lock
+     */
+    public int replicaCount() {
+        lock();
+        try {
+            return replicas.size();
+        } finally {
+            unlock();
+        }
+    }
 }
@@ -5,8 +5,7 @@ import it.polimi.ds.network.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,13 +15,34 @@ import java.util.logging.Logger;
  */
 public class Tracker {
     private static final Logger logger = Logger.getLogger("Tracker");
-    private static int minDelay = 0;
-    private static int maxDelay = 0;
-    private final Storage storage = new Storage();
-    private ServerSocket serverSocket;
+    static int minDelay = 0;
+    static int maxDelay = 0;
+    private final Shards shards;
+    private final WireFormat wireFormat;
+    private final WorkerPool workers;
+    private final WorkerPool senders;
+    private final int ioThreads;
+    private final int metricsPort;
+    private final int membershipRetries;
+    private final Metrics metrics = new Metrics();
+    private MembershipBroadcast membership;
+    private NioServer server;
+
+    private Tracker(Options options) {
+        this.shards = new Shards(options.getInt("shards", 1), Placement.fromString(options.get("placement", Placement.LEAST_LOADED.name())));
+        this.wireFormat = options.getWireFormat();
+        this.workers = options.newWorkerPool("tracker-worker");
+        // The epochs of the MembershipBroadcast are queued while the Storage is locked, their queue is not limited so that the workers never wait for them
+        this.senders = new WorkerPool("tracker-sender", options.getExecutionMode(), options.getInt("workers", WorkerPool.DEFAULT_WORKERS), 0);
+        this.ioThreads = options.getInt("io-threads", NioServer.DEFAULT_IO_THREADS);
+        this.metricsPort = options.getInt("metrics-port", -1);
+        this.membershipRetries = options.getInt("membership-retries", MembershipBroadcast.DEFAULT_RETRIES);
+    }
 
     public static void main(String[] args) {
-        Tracker tracker = new Tracker();
+        Options options = Options.parse(args);
+        args = options.positional();
+        Tracker tracker = new Tracker(options);
         if (args.length >= 3)
             tracker.start(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
         else if (args.length >= 1)
@@ -30,7 +50,9 @@ public class Tracker {
         else {
             logger.log(Level.SEVERE, "Too few arguments, tracker was not launched.");
             logger.log(Level.SEVERE, () -> "Please relaunch the tracker with " +
-                    "<trackerPort> [<minDelay> <maxDelay>] as parameters.");
+                    "<trackerPort> [<minDelay> <maxDelay>] [--wire=serialized|binary] " +
+                    "[--executor=pool|thread|virtual] [--workers=<threads>] [--queue=<length>] [--io-threads=<threads>] [--metrics-port=<port>] " +
+                    "[--membership-retries=<attempts>] [--placement=least-loaded|power-of-two|latency-aware] [--shards=<groups>] as parameters.");
         }
     }
 
@@ -60,135 +82,173 @@ public class Tracker {
     }
 
     private void start(String port) {
-        Thread tracker = new Thread(() -> runTracker(Integer.parseInt(port)));
-        tracker.start();
+        // The address of the Tracker is only shown in the logs of the Replicas when a channel is opened
+        membership = new MembershipBroadcast(new ChannelPool(new Address("tracker", Integer.parseInt(port)), wireFormat), senders,
+                membershipRetries, metrics);
+        // The socket is bound before returning to the caller so that Replicas and Clients can connect immediately
+        try {
+            // With a bounded pool the I/O threads wait while the queue of the workers is full, so the connections stop being read
+            server = new NioServer("tracker", Integer.parseInt(port), ioThreads, workers, new ClientHandler(shards, membership, metrics));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, () -> "Could not open port " + port + ", tracker was not launched.");
+            return;
+        }
+        MetricsServer metricsServer = publishMetrics(port);
         do {
             logger.log(Level.INFO, "Press 1 to close the Tracker.");
         }
         while (getChoice() != 1);
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Could not close the tracker properly.");
-        }
-        tracker.interrupt();
+        server.close();
+        workers.shutdown();
+        membership.close();
+        senders.shutdown();
+        metrics.unregister();
+        if (metricsServer != null)
+            metricsServer.close();
         logger.log(Level.INFO, "The tracker is now closed.");
     }
 
-    private void runTracker(int port) {
-        try {
-            serverSocket = new ServerSocket(port);
-            while (true) {
-                new ClientHandler(serverSocket.accept(), storage).start();
+    /**
+     * Adds the gauges of the network and of the threads and publishes the Metrics in JMX and, if a port is given, on HTTP.
+     *
+     * @return the HTTP endpoint, null if it is disabled or could not be opened
+     */
+    private MetricsServer publishMetrics(String port) {
+        metrics.gauge("replicas", shards::replicaCount);
+        if (shards.count() == 1)
+            metrics.gauge("tracker-index", shards.get(0)::getTrackerIndex);
+        else
+            for (int i = 0; i < shards.count(); i++) {
+                metrics.gauge("shard." + i + ".replicas", shards.get(i)::replicaCount);
+                metrics.gauge("shard." + i + ".tracker-index", shards.get(i)::getTrackerIndex);
             }
-        } catch (IOException e) {
-            // This exception must be ignored, it happens when the main thread interrupts this one
-        }
-        stop();
-    }
-
-    private void stop() {
+        metrics.gauge("queue.workers", workers::queued);
+        metrics.gauge("queue.senders", senders::queued);
+        metrics.gaugeThreads();
+        metrics.register("Tracker", port);
+        if (metricsPort < 0)
+            return null;
         try {
-            serverSocket.close();
+            MetricsServer metricsServer = new MetricsServer(metrics, metricsPort);
+            logger.log(Level.INFO, () -> "Metrics published on http://localhost:" + metricsServer.getPort() + "/metrics.");
+            return metricsServer;
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Could not close tracker properly.");
+            logger.log(Level.WARNING, () -> "Could not open the metrics port " + metricsPort + ".");
+            return null;
         }
     }
 
     /**
-     * Represents the Thread that will handle the various requests of both Replicas and Clients.
+     * Represents the handler of the various requests of both Replicas and Clients, every connection carries a single request.
      */
-    private static class ClientHandler extends Thread {
-        private final Socket clientSocket;
-        private final Storage storage;
+    private static class ClientHandler implements NioServer.Handler {
+        private final Shards shards;
+        private final MembershipBroadcast membership;
+        private final Metrics metrics;
+        private final Histogram latency;
+
+        /**
+         * @param shards     the groups of Replicas, each one with its own Storage
+         * @param membership sends the joins and the exits to the Replicas already in the network
+         * @param metrics    the registry where the requests are counted by type and their latency is measured
+         */
+        public ClientHandler(Shards shards, MembershipBroadcast membership, Metrics metrics) {
+            this.shards = shards;
+            this.membership = membership;
+            this.metrics = metrics;
+            this.latency = metrics.histogram("requests.micros");
+        }
 
-        public ClientHandler(Socket socket, Storage storage) {
-            this.clientSocket = socket;
-            this.storage = storage;
+        @Override
+        public void serve(TCPClient client) {
+            try {
+                handle(client, client.receive());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Communication with a replica interrupted.");
+                client.close();
+            } catch (ClassNotFoundException e) {
+                logger.log(Level.SEVERE, "Could not read the message properly.");
+                client.close();
+            }
         }
 
+        /**
+         * Executes the request and closes the connection once the reply is written.
+         */
         @Override
-        public void run() {
+        public void handle(Connection replica, Message inputMessage) {
+            long start = System.nanoTime();
+            metrics.counter("requests." + inputMessage.getType()).increment();
             try {
-                TCPClient replica = new TCPClient(clientSocket);
-                Message inputMessage = (Message) replica.in().readObject();
                 List<Address> otherReplicas;
                 int newTrackerIndex;
+                Storage storage;
                 switch (inputMessage.getType()) {
                     case ADD_REPLICA:
+                        // The Replica only learns the members of its own group, so its vector clocks span the group
+                        storage = shards.get(shards.join(inputMessage.getAddress()));
                         storage.lock();
                         otherReplicas = storage.getReplicas();
                         storage.addReplica(inputMessage.getAddress());
                         newTrackerIndex = storage.incrementAndGetTrackerIndex();
+                        membership.publish(new MembershipChange(true, inputMessage.getAddress(), newTrackerIndex), otherReplicas);
                         storage.unlock();
-                        for (Address address : otherReplicas) {
-                            new MessageSender(new Message(MessageType.SEND_NEW_REPLICA, inputMessage.getAddress(), newTrackerIndex), address).start();
-                        }
                         SimulateDelay.uniform(minDelay, maxDelay);
-                        replica.out().writeObject(new Message(MessageType.SEND_OTHER_REPLICAS, otherReplicas, newTrackerIndex));
+                        replica.send(new Message(MessageType.SEND_OTHER_REPLICAS, otherReplicas, newTrackerIndex));
                         logger.log(Level.INFO, () -> "Successfully connected with Replica " + inputMessage.getAddress().toString() + ".");
                         break;
                     case ADD_CLIENT:
                         SimulateDelay.uniform(minDelay, maxDelay);
-                        replica.out().writeObject(new Message(MessageType.SEND_REPLICA, storage.addClient()));
+                        if (shards.count() == 1)
+                            replica.send(new Message(MessageType.SEND_REPLICA, shards.get(0).addClient()));
+                        else
+                            replica.send(new Message(MessageType.SEND_SHARD_REPLICAS, addShardClients(), 0));
+                        break;
+                    case ADD_SHARD_CLIENT:
+                        SimulateDelay.uniform(minDelay, maxDelay);
+                        replica.send(new Message(MessageType.SEND_REPLICA, addShardClient(inputMessage.getShard())));
                         break;
                     case REMOVE_REPLICA:
+                        storage = shards.leave(inputMessage.getAddress());
                         storage.lock();
                         storage.removeReplica(inputMessage.getAddress());
                         otherReplicas = storage.getReplicas();
                         newTrackerIndex = storage.incrementAndGetTrackerIndex();
+                        membership.publish(new MembershipChange(false, inputMessage.getAddress(), newTrackerIndex), otherReplicas);
                         storage.unlock();
-                        for (Address address : otherReplicas) {
-                            new MessageSender(new Message(MessageType.REMOVE_OLD_REPLICA, inputMessage.getAddress(), newTrackerIndex), address).start();
-                        }
+                        membership.forget(inputMessage.getAddress());
                         logger.log(Level.INFO, () -> "Successfully disconnected with Replica " + inputMessage.getAddress().toString() + ".");
                         break;
                     case REMOVE_CLIENT:
-                        storage.removeClient(inputMessage.getAddress());
+                        shards.of(inputMessage.getAddress()).removeClient(inputMessage.getAddress());
+                        break;
+                    case LOAD_REPORT:
+                        shards.of(inputMessage.getLoad().getAddress()).reportLoad(inputMessage.getLoad());
                         break;
                     default:
                         logger.log(Level.WARNING, "Message type not found.");
                 }
-                replica.close();
-                clientSocket.close();
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Communication with a replica interrupted.");
-            } catch (ClassNotFoundException e) {
-                logger.log(Level.SEVERE, "Could not read the message properly.");
             }
+            replica.close();
+            latency.recordSince(start);
         }
-    }
-
-    /**
-     * Represents the Thread that will broadcast the Messages regarding insertion or deletion of Replicas.
-     */
-    private static class MessageSender extends Thread {
-        private final Message message;
-        private final Address to;
 
-        public MessageSender(Message message, Address to) {
-            this.message = message;
-            this.to = to;
+        /**
+         * @return a Replica of every shard in the order of the shards, null for the shards without Replicas
+         */
+        private List<Address> addShardClients() {
+            List<Address> replicas = new ArrayList<>(shards.count());
+            for (int i = 0; i < shards.count(); i++)
+                replicas.add(shards.get(i).addClient());
+            return replicas;
         }
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    SimulateDelay.uniform(minDelay, maxDelay);
-                    TCPClient currentOtherReplica = TCPClient.connect(to);
-                    currentOtherReplica.out().writeObject(message);
-                    currentOtherReplica.close();
-                    return;
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, () -> Thread.currentThread().toString() + ": Communication with replica " + to + " interrupted, retrying.");
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
+        private Address addShardClient(int shard) {
+            if (shard < 0 || shard >= shards.count())
+                return null;
+            return shards.get(shard).addClient();
         }
     }
 }
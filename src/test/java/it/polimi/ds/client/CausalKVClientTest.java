@@ -0,0 +1,278 @@
+package it.polimi.ds.client;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.Message;
+import it.polimi.ds.network.MessageType;
+import it.polimi.ds.network.TCPClient;
+import it.polimi.ds.network.VectorClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CausalKVClientTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private final List<FakeServer> servers = new ArrayList<>();
+
+    @AfterEach
+    public void stopServers() {
+        servers.forEach(FakeServer::stop);
+    }
+
+    private FakeReplica replica() throws IOException {
+        FakeReplica replica = new FakeReplica();
+        servers.add(replica);
+        return replica;
+    }
+
+    private FakeTracker tracker(FakeReplica... replicas) throws IOException {
+        FakeTracker tracker = new FakeTracker(replicas);
+        servers.add(tracker);
+        return tracker;
+    }
+
+    @Test
+    public void readsItsWritesAndBatches() throws IOException, ExecutionException, InterruptedException {
+        FakeReplica replica = replica();
+        FakeTracker tracker = tracker(replica);
+        try (CausalKVClient client = CausalKVClient.connect(tracker.address)) {
+            assertEquals(replica.address, client.getReplica());
+            assertNull(client.get("x").get());
+            client.put("x", "1");
+            assertEquals("1", client.get("x").get());
+
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < 100; i++)
+                values.put("key" + i, "value" + i);
+            client.putAll(values).get();
+            Map<String, String> read = client.getAll(values.keySet()).get();
+            assertEquals(values, read);
+            assertEquals(Arrays.asList(values.keySet().toArray()), Arrays.asList(read.keySet().toArray()));
+        }
+        assertEquals(replica.address, tracker.removed.take());
+    }
+
+    // The requests pending on a replica that leaves are sent again to the next replica given by the tracker
+    @Test
+    public void failoverToAnotherReplica() throws IOException, ExecutionException, InterruptedException {
+        FakeReplica first = replica();
+        FakeReplica second = replica();
+        FakeTracker tracker = tracker(first, second);
+        try (CausalKVClient client = CausalKVClient.connect(tracker.address)) {
+            client.put("x", "1").get();
+            first.stop();
+            assertEquals("2", client.put("x", "2").thenCompose(done -> client.get("x")).get());
+            assertEquals(second.address, client.getReplica());
+        }
+    }
+
+    // A replica leaving the network replies WAIT to the writes
+    @Test
+    public void failoverOnWait() throws IOException, ExecutionException, InterruptedException {
+        FakeReplica first = replica();
+        FakeReplica second = replica();
+        FakeTracker tracker = tracker(first, second);
+        try (CausalKVClient client = CausalKVClient.connect(tracker.address)) {
+            first.closing = true;
+            client.put("x", "1").get();
+            assertEquals(second.address, client.getReplica());
+            assertEquals("1", second.store.get("x"));
+        }
+    }
+
+    // The token of the writes made on a replica goes with the requests sent to the next one
+    @Test
+    public void tokenFollowsFailover() throws IOException, ExecutionException, InterruptedException {
+        FakeReplica first = replica();
+        FakeReplica second = replica();
+        FakeTracker tracker = tracker(first, second);
+        try (CausalKVClient client = CausalKVClient.connect(tracker.address)) {
+            assertNull(client.get("x").get());
+            assertNull(first.lastToken);
+            client.put("x", "1").get();
+            client.put("y", "1").get();
+            first.stop();
+            client.get("x").get();
+            assertEquals(first.clock, second.lastToken);
+            assertEquals(2, second.lastToken.get(first.address));
+        }
+    }
+
+    // Every key is sent to the replica of its shard, the batches are split by shard
+    @Test
+    public void keysAreRoutedToTheirShard() throws IOException, ExecutionException, InterruptedException {
+        FakeReplica first = replica();
+        FakeReplica second = replica();
+        FakeTracker tracker = tracker(first, second);
+        tracker.sharded = true;
+        try (CausalKVClient client = CausalKVClient.connect(tracker.address)) {
+            assertEquals(first.address, client.getReplica(0));
+            assertEquals(second.address, client.getReplica(1));
+            Map<String, String> values = new LinkedHashMap<>();
+            for (int i = 0; i < 100; i++)
+                values.put("key" + i, "value" + i);
+            client.putAll(values).get();
+            client.put("x", "1").get();
+            assertEquals(values, client.getAll(values.keySet()).get());
+            assertEquals("1", client.get("x").get());
+
+            FakeReplica[] replicas = {first, second};
+            for (String key : values.keySet()) {
+                FakeReplica owner = replicas[client.getRing().shardOf(key)];
+                assertEquals(values.get(key), owner.store.get(key));
+                assertNull(replicas[1 - client.getRing().shardOf(key)].store.get(key));
+            }
+        }
+        // The tracker serves every connection on its own thread, so the removals can arrive in any order
+        assertEquals(Set.of(first.address, second.address), Set.of(tracker.removed.take(), tracker.removed.take()));
+    }
+
+    private abstract static class FakeServer {
+        protected final ServerSocket serverSocket = new ServerSocket(0);
+        protected final Address address = new Address(LOCALHOST, serverSocket.getLocalPort());
+        private final List<TCPClient> connections = new ArrayList<>();
+        // Guarded by connections
+        private boolean stopped = false;
+
+        private FakeServer() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        TCPClient connection = TCPClient.accept(serverSocket.accept());
+                        synchronized (connections) {
+                            // A connection already on its way when the socket was closed
+                            if (stopped) {
+                                connection.close();
+                                continue;
+                            }
+                            connections.add(connection);
+                        }
+                        Thread server = new Thread(() -> serve(connection));
+                        server.setDaemon(true);
+                        server.start();
+                    }
+                } catch (IOException e) {
+                    // Closed by stop
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        protected abstract void serve(TCPClient connection);
+
+        void stop() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            synchronized (connections) {
+                stopped = true;
+                connections.forEach(TCPClient::close);
+            }
+        }
+    }
+
+    /**
+     * Gives the replicas in order to the clients, or all of them as the shards of the keyspace if sharded.
+     */
+    private static class FakeTracker extends FakeServer {
+        private final FakeReplica[] replicas;
+        private final BlockingQueue<Address> removed = new LinkedBlockingQueue<>();
+        private volatile boolean sharded = false;
+        private int next = 0;
+
+        private FakeTracker(FakeReplica... replicas) throws IOException {
+            this.replicas = replicas;
+        }
+
+        @Override
+        protected void serve(TCPClient connection) {
+            try {
+                Message request = connection.receive();
+                if (request.getType() == MessageType.ADD_CLIENT && sharded) {
+                    // Every replica is the only one of its shard
+                    List<Address> shards = new ArrayList<>();
+                    for (FakeReplica replica : replicas)
+                        shards.add(replica.address);
+                    connection.send(new Message(MessageType.SEND_SHARD_REPLICAS, shards, 0));
+                } else if (request.getType() == MessageType.ADD_CLIENT) {
+                    Address replica;
+                    synchronized (this) {
+                        replica = next < replicas.length ? replicas[next++].address : null;
+                    }
+                    connection.send(new Message(MessageType.SEND_REPLICA, replica));
+                } else if (request.getType() == MessageType.REMOVE_CLIENT)
+                    removed.add(request.getAddress());
+            } catch (IOException | ClassNotFoundException e) {
+                // The client left
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Serves the sessions of the clients on a map.
+     */
+    private static class FakeReplica extends FakeServer {
+        private final Map<String, String> store = new ConcurrentHashMap<>();
+        private final VectorClock clock = new VectorClock();
+        private volatile VectorClock lastToken;
+        private volatile boolean closing = false;
+
+        private FakeReplica() throws IOException {
+        }
+
+        @Override
+        protected void serve(TCPClient connection) {
+            try {
+                assertEquals(MessageType.OPEN_SESSION, connection.receive().getType());
+                while (true) {
+                    Message request = connection.receive();
+                    lastToken = request.getToken();
+                    Message reply;
+                    if (request.getType() == MessageType.READ_FROM_CLIENT)
+                        reply = new Message(MessageType.READ_ANSWER, request.getResource(), store.get(request.getResource()));
+                    else if (request.getType() == MessageType.MGET_FROM_CLIENT) {
+                        Map<String, String> values = new HashMap<>();
+                        request.getResources().forEach(key -> values.put(key, store.get(key)));
+                        reply = new Message(MessageType.MGET_ANSWER, values);
+                    } else if (closing)
+                        reply = new Message(MessageType.WAIT);
+                    else {
+                        if (request.getType() == MessageType.MPUT_FROM_CLIENT)
+                            store.putAll(request.getValues());
+                        else
+                            store.put(request.getResource(), request.getValue());
+                        reply = new Message(MessageType.ACK);
+                        synchronized (clock) {
+                            clock.increment(address);
+                            reply.setToken(new VectorClock(clock));
+                        }
+                    }
+                    reply.setRequestId(request.getRequestId());
+                    connection.send(reply);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // The client left
+            }
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryCodecTest {
+    private static final int REPLICAS = 10;
+    private final Address from = new Address("127.0.0.1", 2000);
+
+    private static Message roundTrip(Message message) throws IOException {
+        message.setRequestId(42);
+        Message decoded = BinaryCodec.decode(BinaryCodec.encode(message));
+        assertEquals(message.getType(), decoded.getType());
+        assertEquals(42, decoded.getRequestId());
+        return decoded;
+    }
+
+    private static byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private Update update(int sequence) {
+        VectorClock vectorClock = new VectorClock();
+        for (int i = 0; i < REPLICAS; i++)
+            vectorClock.set(ReplicaIds.idOf(new Address("127.0.0.1", 2000 + i)), sequence * 31 + i);
+        return new Update(vectorClock, from, "key" + sequence, "value" + sequence);
+    }
+
+    private void write(ReplicaState state, int sequence) {
+        state.getVectorClock().merge(update(sequence).getVectorClock());
+        state.write("key" + sequence, new Versioned("value" + sequence, ReplicaIds.idOf(from), sequence + 1));
+    }
+
+    @Test
+    public void addressPayloads() throws IOException {
+        Message decoded = roundTrip(new Message(MessageType.ADD_REPLICA, from));
+        assertEquals(from, decoded.getAddress());
+
+        decoded = roundTrip(new Message(MessageType.SEND_REPLICA, (Address) null));
+        assertNull(decoded.getAddress());
+
+        decoded = roundTrip(new Message(MessageType.SEND_NEW_REPLICA, from, 7));
+        assertEquals(from, decoded.getAddress());
+        assertEquals(7, decoded.getTrackerIndex());
+
+        List<Address> addresses = Arrays.asList(from, new Address("10.0.0.1", 3000), from);
+        decoded = roundTrip(new Message(MessageType.SEND_OTHER_REPLICAS, addresses, 300));
+        assertEquals(addresses, decoded.getAddressSet());
+        assertEquals(300, decoded.getTrackerIndex());
+
+        decoded = roundTrip(new Message(MessageType.MEMBERSHIP_EPOCH, new MembershipChange[]{
+                new MembershipChange(true, from, 8), new MembershipChange(false, from, 9)}));
+        assertEquals(2, decoded.getChanges().size());
+        assertTrue(decoded.getChanges().get(0).isJoin());
+        assertEquals(from, decoded.getChanges().get(0).getAddress());
+        assertFalse(decoded.getChanges().get(1).isJoin());
+        assertEquals(9, decoded.getChanges().get(1).getTrackerIndex());
+
+        decoded = roundTrip(new Message(MessageType.LOAD_REPORT, new ReplicaLoad(from, 1200, 3, 450)));
+        assertEquals(from, decoded.getLoad().getAddress());
+        assertEquals(1200, decoded.getLoad().getRequestRate());
+        assertEquals(3, decoded.getLoad().getQueueDepth());
+        assertEquals(450, decoded.getLoad().getLatency());
+
+        decoded = roundTrip(Message.ofShard(MessageType.ADD_SHARD_CLIENT, 5));
+        assertEquals(5, decoded.getShard());
+        assertEquals(0, decoded.getTrackerIndex());
+        // A shard is never taken for a tracker index, nor the other way around
+        assertThrows(RuntimeException.class, () -> new Message(MessageType.ADD_SHARD_CLIENT, 5));
+        assertThrows(RuntimeException.class, () -> Message.ofShard(MessageType.WAIT, 5));
+    }
+
+    @Test
+    public void keyValuePayloads() throws IOException {
+        Message decoded = roundTrip(new Message(MessageType.READ_FROM_CLIENT, "x"));
+        assertEquals("x", decoded.getResource());
+
+        decoded = roundTrip(new Message(MessageType.WRITE_FROM_CLIENT, "x", "àèìòù €"));
+        assertEquals("x", decoded.getResource());
+        assertEquals("àèìòù €", decoded.getValue());
+
+        decoded = roundTrip(new Message(MessageType.READ_ANSWER, "x", null));
+        assertNull(decoded.getValue());
+
+        decoded = roundTrip(new Message(MessageType.WAIT, Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, decoded.getTrackerIndex());
+
+        assertNull(roundTrip(new Message(MessageType.ACK)).getToken());
+    }
+
+    // The causal token of a Client travels with any request or reply, before the payload
+    @Test
+    public void causalToken() throws IOException {
+        Message request = new Message(MessageType.WRITE_FROM_CLIENT, "x", "1");
+        request.setToken(update(3).getVectorClock());
+        Message decoded = roundTrip(request);
+        assertEquals(update(3).getVectorClock(), decoded.getToken());
+        assertEquals("1", decoded.getValue());
+
+        Message ack = new Message(MessageType.ACK);
+        ack.setToken(new VectorClock());
+        assertEquals(new VectorClock(), roundTrip(ack).getToken());
+    }
+
+    @Test
+    public void batchPayloads() throws IOException {
+        List<String> keys = Arrays.asList("x", "y", "z");
+        Message decoded = roundTrip(new Message(MessageType.MGET_FROM_CLIENT, keys));
+        assertEquals(keys, decoded.getResources());
+
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("z", "1");
+        values.put("x", null);
+        values.put("y", "àèìòù €");
+        decoded = roundTrip(new Message(MessageType.MGET_ANSWER, values));
+        assertEquals(values, decoded.getValues());
+        assertEquals(new ArrayList<>(values.keySet()), new ArrayList<>(decoded.getValues().keySet()));
+
+        decoded = roundTrip(new Message(MessageType.MPUT_FROM_CLIENT, values));
+        assertEquals(values, decoded.getValues());
+
+        Update update = new Update(update(1).getVectorClock(), from, values);
+        decoded = roundTrip(new Message(MessageType.UPDATE_FROM_REPLICA, update, 1));
+        assertEquals(update, decoded.getUpdate());
+    }
+
+    @Test
+    public void updatePayload() throws IOException {
+        Update update = update(5);
+        Message decoded = roundTrip(new Message(MessageType.UPDATE_FROM_REPLICA, update, 3));
+        assertEquals(update, decoded.getUpdate());
+        assertEquals(3, decoded.getTrackerIndex());
+
+        List<Update> updates = Arrays.asList(update(6), update(7), update(8));
+        decoded = roundTrip(new Message(MessageType.UPDATE_BATCH, 4, updates));
+        assertEquals(updates, decoded.getUpdates());
+        assertEquals(4, decoded.getTrackerIndex());
+    }
+
+    @Test
+    public void statePayload() throws IOException {
+        ReplicaState state = new ReplicaState(from);
+        for (int i = 0; i < 100; i++)
+            write(state, i);
+        state.getQueue().add(new UpdateWithTracker(update(200), 4));
+        state.getQueue().add(new UpdateWithTracker(update(201), 5));
+
+        ReplicaState decoded = roundTrip(new Message(MessageType.SEND_STATE, state)).getState();
+        assertEquals(state.getVectorClock(), decoded.getVectorClock());
+        assertEquals(state.getStore(), decoded.getStore());
+        assertArrayEquals(state.getQueue().toList().stream().sorted().toArray(), decoded.getQueue().toList().stream().sorted().toArray());
+
+        Message request = roundTrip(new Message(MessageType.GET_STATE_SINCE, 6, state.getVectorClock()));
+        assertEquals(6, request.getTrackerIndex());
+        assertEquals(state.getVectorClock(), request.getVectorClock());
+    }
+
+    // The binary frames are smaller than the serialized Messages, the encoding times are measured by the MessageBenchmark
+    @Test
+    public void binaryIsSmaller() throws IOException {
+        Message message = new Message(MessageType.UPDATE_FROM_REPLICA, update(1000), 12);
+        int serializedSize = serialize(message).length;
+        int binarySize = BinaryCodec.encode(message).length + Integer.BYTES;
+        assertTrue(binarySize * 3 < serializedSize);
+
+        ReplicaState state = new ReplicaState(from);
+        for (int i = 0; i < 1000; i++)
+            write(state, i);
+        Message stateMessage = new Message(MessageType.SEND_STATE, state);
+        int serializedStateSize = serialize(stateMessage).length;
+        int binaryStateSize = BinaryCodec.encode(stateMessage).length + Integer.BYTES;
+        assertTrue(binaryStateSize < serializedStateSize);
+    }
+
+    // The sizes read from a corrupted frame are not trusted to allocate the lists
+    @Test
+    public void malformedFrames() {
+        byte hugeList = (byte) MessageType.SEND_OTHER_REPLICAS.ordinal();
+        assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(new byte[]{hugeList, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}));
+        // A size above 2^31 is read as a negative int
+        assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(new byte[]{hugeList, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}));
+        byte keys = (byte) MessageType.MGET_FROM_CLIENT.ordinal();
+        assertThrows(StreamCorruptedException.class, () -> BinaryCodec.decode(new byte[]{keys, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}));
+    }
+
+    @Test
+    public void acceptRecognizesWireFormat() throws IOException, ClassNotFoundException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Address address = new Address("127.0.0.1", serverSocket.getLocalPort());
+            for (WireFormat wireFormat : WireFormat.values()) {
+                // The serialized format exchanges a header when the connection is created, so the accept runs on another thread
+                CompletableFuture<TCPClient> accepted = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return TCPClient.accept(serverSocket.accept());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+                TCPClient client = TCPClient.connect(address, wireFormat);
+                TCPClient server = accepted.join();
+                assertEquals(wireFormat, server.getWireFormat());
+                client.send(new Message(MessageType.WRITE_FROM_CLIENT, "x", "1"));
+                assertEquals("1", server.receive().getValue());
+                server.send(new Message(MessageType.ACK));
+                assertEquals(MessageType.ACK, client.receive().getType());
+                client.close();
+                server.close();
+            }
+        }
+    }
+}
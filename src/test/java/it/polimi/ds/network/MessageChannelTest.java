@@ -0,0 +1,94 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessageChannelTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private final AtomicInteger acceptedConnections = new AtomicInteger(0);
+    private ServerSocket serverSocket;
+    private Thread server;
+
+    @BeforeEach
+    public void startEchoServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        server = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    acceptedConnections.incrementAndGet();
+                    new Thread(() -> echo(socket)).start();
+                }
+            } catch (IOException e) {
+                // The server socket has been closed
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopEchoServer() throws IOException {
+        serverSocket.close();
+    }
+
+    // Replies to every request with a READ_ANSWER containing the requested resource, closing the connection on "close"
+    private void echo(Socket socket) {
+        try {
+            TCPClient client = new TCPClient(socket);
+            assertEquals(MessageType.OPEN_CHANNEL, client.receive().getType());
+            while (true) {
+                Message request = client.receive();
+                if (request.getResource().equals("close")) {
+                    client.close();
+                    return;
+                }
+                Message reply = new Message(MessageType.READ_ANSWER, request.getResource(), request.getResource());
+                reply.setRequestId(request.getRequestId());
+                client.send(reply);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // The channel has been closed
+        }
+    }
+
+    @Test
+    public void manyRequestsOnOneConnection() throws InterruptedException, ExecutionException {
+        ChannelPool pool = new ChannelPool(new Address(LOCALHOST, 0));
+        Address to = new Address(LOCALHOST, serverSocket.getLocalPort());
+        List<CompletableFuture<Message>> replies = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            replies.add(pool.request(to, new Message(MessageType.READ_FROM_CLIENT, Integer.toString(i))));
+        for (int i = 0; i < 100; i++)
+            assertEquals(Integer.toString(i), replies.get(i).get().getValue());
+        assertEquals(1, acceptedConnections.get());
+        pool.closeAll();
+    }
+
+    @Test
+    public void reconnectAfterFailure() throws InterruptedException, ExecutionException {
+        ChannelPool pool = new ChannelPool(new Address(LOCALHOST, 0));
+        Address to = new Address(LOCALHOST, serverSocket.getLocalPort());
+        assertEquals("x", pool.request(to, new Message(MessageType.READ_FROM_CLIENT, "x")).get().getValue());
+        CompletableFuture<Message> lost = pool.request(to, new Message(MessageType.READ_FROM_CLIENT, "close"));
+        try {
+            lost.get();
+        } catch (ExecutionException e) {
+            // Expected, the server closed the connection
+        }
+        assertEquals("y", pool.request(to, new Message(MessageType.READ_FROM_CLIENT, "y")).get().getValue());
+        assertEquals(2, acceptedConnections.get());
+        pool.closeAll();
+    }
+}
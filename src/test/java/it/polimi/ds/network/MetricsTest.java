@@ -0,0 +1,78 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTest {
+    // Every value falls in a bucket whose highest value is at most 1/16 above it
+    @Test
+    public void bucketsBoundTheError() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> 1 >>> random.nextInt(Long.SIZE - 1);
+            long highest = Histogram.highestOf(Histogram.bucketOf(value));
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 16, value + " in a bucket up to " + highest);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++)
+            histogram.record(i);
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000, histogram.getMean());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getPercentile(50), 5000 / 16.0);
+        assertEquals(9900, histogram.getPercentile(99), 9900 / 16.0);
+        assertEquals(10000, histogram.getPercentile(100));
+        assertEquals(0, new Histogram().getPercentile(99));
+    }
+
+    @Test
+    public void publishedInJmxAndHttp() throws JMException, IOException {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests").add(3);
+        metrics.gauge("queue", () -> 7);
+        metrics.histogram("latency").record(100);
+        metrics.register("Test", "127.0.0.1:1");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("it.polimi.ds:type=Test,name=" + ObjectName.quote("127.0.0.1:1"));
+        assertEquals(3L, server.getAttribute(name, "requests"));
+        assertEquals(7L, server.getAttribute(name, "queue"));
+        assertEquals(100L, server.getAttribute(name, "latency.p99"));
+
+        try (MetricsServer metricsServer = new MetricsServer(metrics, 0)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + metricsServer.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            String text;
+            try (InputStream in = connection.getInputStream()) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(text.contains("requests 3\n"));
+            assertTrue(text.contains("queue 7\n"));
+            assertTrue(text.contains("latency.count 1\n"));
+        }
+
+        metrics.remove("latency");
+        assertFalse(metrics.snapshot().containsKey("latency.count"));
+        metrics.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,322 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NioServerTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private final WorkerPool workers = new WorkerPool("test-worker", ExecutionMode.POOL, 4, 0);
+    private NioServer server;
+    private Address address;
+
+    @BeforeEach
+    public void startEchoServer() throws IOException {
+        server = new NioServer("test", 0, 2, workers, new Echo());
+        address = new Address(LOCALHOST, server.getPort());
+    }
+
+    @AfterEach
+    public void stopEchoServer() {
+        server.close();
+        workers.shutdown();
+    }
+
+    // Many connections at once, each one sending its requests without waiting for the replies
+    @Test
+    public void pipelinedConnections() throws InterruptedException, ExecutionException {
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int c = 0; c < 50; c++) {
+            int client = c;
+            clients.add(CompletableFuture.runAsync(() -> {
+                try {
+                    TCPClient connection = TCPClient.connect(address, WireFormat.BINARY);
+                    for (int i = 0; i < 100; i++)
+                        connection.send(new Message(MessageType.READ_FROM_CLIENT, client + "-" + i));
+                    for (int i = 0; i < 100; i++)
+                        assertEquals(client + "-" + i, connection.receive().getValue());
+                    connection.close();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Void> client : clients)
+            client.get();
+    }
+
+    // The frames are read even when they arrive a few bytes at a time
+    @Test
+    public void splitFrames() throws IOException, ClassNotFoundException {
+        Socket socket = new Socket(LOCALHOST, server.getPort());
+        socket.setTcpNoDelay(true);
+        OutputStream out = socket.getOutputStream();
+        byte[] frame = BinaryCodec.frame(new Message(MessageType.READ_FROM_CLIENT, "split")).array();
+        out.write(BinaryCodec.MAGIC, 0, 1);
+        out.flush();
+        out.write(BinaryCodec.MAGIC, 1, BinaryCodec.MAGIC.length - 1);
+        for (byte b : frame) {
+            out.write(b);
+            out.flush();
+        }
+        TCPClient reader = TCPClient.accept(socket, BinaryCodec.MAGIC);
+        assertEquals("split", reader.receive().getValue());
+        reader.close();
+    }
+
+    // The replies written before a close are still delivered
+    @Test
+    public void replyBeforeClose() throws IOException, ClassNotFoundException {
+        TCPClient connection = TCPClient.connect(address, WireFormat.BINARY);
+        connection.send(new Message(MessageType.READ_FROM_CLIENT, "close"));
+        assertEquals("close", connection.receive().getValue());
+        assertThrows(IOException.class, connection::receive);
+        connection.close();
+    }
+
+    @Test
+    public void serializedFallback() throws IOException, ClassNotFoundException {
+        TCPClient connection = TCPClient.connect(address, WireFormat.SERIALIZED);
+        for (int i = 0; i < 10; i++) {
+            connection.send(new Message(MessageType.READ_FROM_CLIENT, Integer.toString(i)));
+            assertEquals(Integer.toString(i), connection.receive().getValue());
+        }
+        connection.close();
+    }
+
+    @Test
+    public void unknownFormat() throws IOException {
+        Socket socket = new Socket(LOCALHOST, server.getPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeBytes("GET / HTTP/1.1\r\n\r\n");
+        out.flush();
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    // A sender faster than the workers is stopped by TCP once the inbox of its connection is full, then read again
+    @Test
+    public void fullInboxStopsReading() throws Exception {
+        WorkerPool slowWorkers = new WorkerPool("test-slow", ExecutionMode.POOL, 1, 0);
+        Gate gate = new Gate();
+        NioServer gated = new NioServer("test-gated", 0, 1, slowWorkers, gate);
+        TCPClient connection = TCPClient.connect(new Address(LOCALHOST, gated.getPort()), WireFormat.BINARY);
+        connection.send(new Message(MessageType.READ_FROM_CLIENT, "hold"));
+        gate.held.get(5, TimeUnit.SECONDS);
+        String large = "x".repeat(1024);
+        int requests = 20000;
+        CompletableFuture<Void> sender = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < requests; i++)
+                    connection.send(new Message(MessageType.READ_FROM_CLIENT, large));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        // 20 MB do not fit in the socket buffers, so the sender waits for the server to read again
+        assertThrows(TimeoutException.class, () -> sender.get(1, TimeUnit.SECONDS));
+        assertFalse(sender.isDone());
+
+        gate.open.countDown();
+        for (int i = 0; i <= requests; i++)
+            connection.receive();
+        sender.get(10, TimeUnit.SECONDS);
+        connection.close();
+        gated.close();
+        slowWorkers.shutdown();
+    }
+
+    // With every worker busy and their queue full, the I/O thread keeps writing the replies of the other connections
+    @Test
+    public void ioThreadNeverWaitsForWorkers() throws Exception {
+        WorkerPool slowWorkers = new WorkerPool("test-slow", ExecutionMode.POOL, 1, 1);
+        Gate gate = new Gate();
+        NioServer gated = new NioServer("test-gated", 0, 1, slowWorkers, gate);
+        Address gatedAddress = new Address(LOCALHOST, gated.getPort());
+        TCPClient holding = TCPClient.connect(gatedAddress, WireFormat.BINARY);
+        holding.send(new Message(MessageType.READ_FROM_CLIENT, "hold"));
+        Connection held = gate.held.get(5, TimeUnit.SECONDS);
+        List<TCPClient> queued = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TCPClient client = TCPClient.connect(gatedAddress, WireFormat.BINARY);
+            client.send(new Message(MessageType.READ_FROM_CLIENT, "queued" + i));
+            queued.add(client);
+        }
+        Thread.sleep(200);
+
+        held.send(new Message(MessageType.READ_ANSWER, "held", "held"));
+        assertEquals("held", CompletableFuture.supplyAsync(() -> {
+            try {
+                return holding.receive().getValue();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new AssertionError(e);
+            }
+        }).get(5, TimeUnit.SECONDS));
+
+        gate.open.countDown();
+        assertEquals("hold", holding.receive().getValue());
+        for (int i = 0; i < queued.size(); i++) {
+            assertEquals("queued" + i, queued.get(i).receive().getValue());
+            queued.get(i).close();
+        }
+        holding.close();
+        gated.close();
+        slowWorkers.shutdown();
+    }
+
+    // The replies to a peer that does not read are bounded: the worker sending them waits instead of queuing them all in the heap
+    @Test
+    public void slowReaderBoundsTheReplies() throws Exception {
+        Flood flood = new Flood();
+        NioServer flooding = new NioServer("test-flooding", 0, 1, workers, flood);
+        TCPClient connection = TCPClient.connect(new Address(LOCALHOST, flooding.getPort()), WireFormat.BINARY);
+        connection.send(new Message(MessageType.READ_FROM_CLIENT, "flood"));
+        Thread.sleep(1000);
+        // 64 MB of replies do not fit in the bound and in the socket buffers
+        assertTrue(flood.sent.get() < Flood.REPLIES / 2, flood.sent.get() + " replies sent");
+        assertFalse(flood.done.isDone());
+
+        for (int i = 0; i < Flood.REPLIES; i++)
+            assertEquals(Flood.VALUE.length(), connection.receive().getValue().length());
+        flood.done.get(5, TimeUnit.SECONDS);
+        connection.close();
+        flooding.close();
+    }
+
+    // A deferred request releases its worker, the requests sent after it on the same connection are handled once it is handed back
+    @Test
+    public void deferredMessageKeepsTheOrder() throws Exception {
+        WorkerPool oneWorker = new WorkerPool("test-one", ExecutionMode.POOL, 1, 0);
+        Deferring deferring = new Deferring();
+        NioServer deferred = new NioServer("test-deferred", 0, 1, oneWorker, deferring);
+        Address deferredAddress = new Address(LOCALHOST, deferred.getPort());
+        TCPClient connection = TCPClient.connect(deferredAddress, WireFormat.BINARY);
+        connection.send(new Message(MessageType.READ_FROM_CLIENT, "defer"));
+        connection.send(new Message(MessageType.READ_FROM_CLIENT, "after"));
+        Runnable handBack = deferring.handBack.get(5, TimeUnit.SECONDS);
+
+        // The only worker serves the other connections meanwhile
+        TCPClient other = TCPClient.connect(deferredAddress, WireFormat.BINARY);
+        other.send(new Message(MessageType.READ_FROM_CLIENT, "other"));
+        assertEquals("other", other.receive().getValue());
+        assertEquals(List.of("defer", "other"), deferring.handled);
+
+        handBack.run();
+        assertEquals("defer", connection.receive().getValue());
+        assertEquals("after", connection.receive().getValue());
+        assertEquals(List.of("defer", "other", "defer", "after"), deferring.handled);
+        other.close();
+        connection.close();
+        deferred.close();
+        oneWorker.shutdown();
+    }
+
+    /**
+     * Replies as Echo, but defers the first request "defer" until the test hands it back.
+     */
+    private static class Deferring extends Echo {
+        private final CompletableFuture<Runnable> handBack = new CompletableFuture<>();
+        private final List<String> handled = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void handle(Connection connection, Message message) {
+            handled.add(message.getResource());
+            if (message.getResource().equals("defer") && !handBack.isDone()) {
+                handBack.complete(connection.defer());
+                return;
+            }
+            super.handle(connection, message);
+        }
+    }
+
+    /**
+     * Replies to a request with many large replies, counting the ones already queued.
+     */
+    private static class Flood extends Echo {
+        private static final int REPLIES = 256;
+        private static final String VALUE = "x".repeat(256 * 1024);
+        private final AtomicInteger sent = new AtomicInteger();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        @Override
+        public void handle(Connection connection, Message message) {
+            try {
+                for (int i = 0; i < REPLIES; i++) {
+                    connection.send(new Message(MessageType.READ_ANSWER, message.getResource(), VALUE));
+                    sent.incrementAndGet();
+                }
+                done.complete(null);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Replies as Echo, but the request "hold" keeps its worker until the gate is opened.
+     */
+    private static class Gate extends Echo {
+        private final CompletableFuture<Connection> held = new CompletableFuture<>();
+        private final CountDownLatch open = new CountDownLatch(1);
+
+        @Override
+        public void handle(Connection connection, Message message) {
+            if (message.getResource().equals("hold")) {
+                held.complete(connection);
+                try {
+                    open.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.handle(connection, message);
+        }
+    }
+
+    /**
+     * Replies to every request with a READ_ANSWER containing the requested resource, closing the connection on "close".
+     */
+    private static class Echo implements NioServer.Handler {
+        @Override
+        public void handle(Connection connection, Message message) {
+            try {
+                Message reply = new Message(MessageType.READ_ANSWER, message.getResource(), message.getResource());
+                reply.setRequestId(message.getRequestId());
+                connection.send(reply);
+                if (message.getResource().equals("close"))
+                    connection.close();
+            } catch (IOException e) {
+                // The connection has been closed
+            }
+        }
+
+        @Override
+        public void serve(TCPClient client) {
+            try {
+                while (true)
+                    handle(client, client.receive());
+            } catch (IOException | ClassNotFoundException e) {
+                client.close();
+            }
+        }
+    }
+}
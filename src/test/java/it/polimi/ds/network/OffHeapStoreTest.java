@@ -0,0 +1,131 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapStoreTest {
+
+    // The store behaves as a ConcurrentHashMap receiving the same writes
+    @Test
+    public void sameAsHeapStore() {
+        OffHeapStore store = new OffHeapStore();
+        Map<String, Versioned> expected = new ConcurrentHashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            String key = "key" + i % 1200;
+            Versioned value = new Versioned(i % 7 == 0 ? null : "value" + i, i % 3, i, i);
+            assertEquals(expected.put(key, value), store.put(key, value));
+            if (i % 11 == 0)
+                assertEquals(expected.remove("key" + i % 500), store.remove("key" + i % 500));
+        }
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected, store);
+        assertEquals(store, expected);
+        Versioned value = store.get("key5");
+        assertEquals(expected.get("key5").getCommit(), value.getCommit());
+        assertNotSame(value, store.get("key5"));
+        assertNull(store.get("missing"));
+        assertNull(store.putIfAbsent("missing", value));
+        assertEquals(value, store.putIfAbsent("missing", new Versioned("other", 0, 0)));
+        assertNull(store.compute("missing", (key, old) -> null));
+        assertNull(store.get("missing"));
+    }
+
+    // A snapshot does not see the writes made afterwards on the store, nor the store the writes on the snapshot
+    @Test
+    public void snapshotIsIsolated() {
+        OffHeapStore store = new OffHeapStore();
+        for (int i = 0; i < 1000; i++)
+            store.put("key" + i, new Versioned("old" + i, 1, i));
+        OffHeapStore snapshot = store.snapshot();
+        for (int i = 0; i < 1000; i += 2)
+            store.put("key" + i, new Versioned("new" + i, 1, 1000 + i));
+        store.remove("key1");
+        snapshot.put("key3", new Versioned("copy", 2, 1));
+
+        assertEquals(999, store.size());
+        assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++)
+            if (i != 3)
+                assertEquals("old" + i, snapshot.get("key" + i).getValue(), "key" + i);
+        assertEquals("copy", snapshot.get("key3").getValue());
+        assertEquals("old3", store.get("key3").getValue());
+        assertEquals("new0", store.get("key0").getValue());
+        assertNull(store.get("key1"));
+    }
+
+    // The replaced records are dropped by the compactions, the live values are kept
+    @Test
+    public void compactionKeepsTheValues() {
+        OffHeapStore store = new OffHeapStore(8192);
+        for (int round = 0; round < 600; round++)
+            for (int i = 0; i < 500; i++)
+                store.put("key" + i, new Versioned("value" + round + "-" + i, 1, round * 500 + i));
+        for (int i = 0; i < 500; i++)
+            assertEquals("value599-" + i, store.get("key" + i).getValue());
+        assertEquals(500, store.size());
+        // 300000 records of about 40 bytes were written, every segment keeps at most 64 KB of replaced records
+        assertTrue(store.getArenaBytes() < 6_000_000, store.getArenaBytes() + " bytes");
+    }
+
+    // A value with older versions stays on the heap, once its chain is dropped only the truncated flag is kept
+    @Test
+    public void chainsAndTruncation() {
+        OffHeapStore store = new OffHeapStore();
+        store.compute("key", (key, head) -> Versioned.chain(head, new Versioned("first", 1, 1, 1), Long.MAX_VALUE, 16));
+        store.compute("key", (key, head) -> Versioned.chain(head, new Versioned("second", 1, 2, 2), 1, 16));
+        Versioned head = store.get("key");
+        assertSame(head, store.get("key"));
+        assertEquals("first", head.visibleAt(1).getValue());
+
+        store.compute("key", (key, old) -> Versioned.chain(old, new Versioned("third", 1, 3, 3), Long.MAX_VALUE, 16));
+        head = store.get("key");
+        assertNotSame(head, store.get("key"));
+        assertEquals("third", head.getValue());
+        assertTrue(head.isTruncated());
+        Versioned last = head;
+        assertThrows(IllegalStateException.class, () -> last.visibleAt(2));
+    }
+
+    // Once the snapshots are closed a chain is dropped without waiting for its key to be written again
+    @Test
+    public void truncatedChainMovesBackToTheArena() {
+        OffHeapStore store = new OffHeapStore();
+        store.compute("key", (key, head) -> Versioned.chain(head, new Versioned("first", 1, 1, 1), Long.MAX_VALUE, 16));
+        store.compute("key", (key, head) -> Versioned.chain(head, new Versioned("second", 1, 2, 2), 1, 16));
+        store.truncateChains(1, 16);
+        assertSame(store.get("key"), store.get("key"));
+
+        store.truncateChains(Long.MAX_VALUE, 16);
+        Versioned head = store.get("key");
+        assertNotSame(head, store.get("key"));
+        assertEquals("second", head.getValue());
+        assertTrue(head.isTruncated());
+        assertEquals(1, store.size());
+        assertThrows(IllegalStateException.class, () -> head.visibleAt(1));
+    }
+
+    // The state of a Replica can be moved to the store off the heap and copied on write
+    @Test
+    public void replicaStateOffHeap() {
+        ReplicaState state = new ReplicaState(new Address("127.0.0.1", 5400));
+        state.getStore().put("key", new Versioned("value", 1, 1));
+        ReplicaState moved = state.moveTo(StoreBackend.OFF_HEAP);
+        assertTrue(moved.getStore() instanceof OffHeapStore);
+        assertSame(moved, moved.moveTo(StoreBackend.fromString("off-heap")));
+
+        ReplicaState copy = new ReplicaState(moved);
+        moved.getStore().put("key", new Versioned("newer", 1, 2));
+        assertEquals("value", copy.getStore().get("key").getValue());
+        assertEquals("newer", moved.getStore().get("key").getValue());
+        assertEquals(state.getStore(), copy.moveTo(StoreBackend.HEAP).getStore());
+    }
+}
@@ -0,0 +1,39 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardRingTest {
+    private static final int KEYS = 100000;
+
+    @Test
+    public void keysAreSpreadOverTheShards() {
+        ShardRing ring = new ShardRing(4);
+        int[] keys = new int[4];
+        for (int i = 0; i < KEYS; i++)
+            keys[ring.shardOf("key" + i)]++;
+        for (int shard = 0; shard < 4; shard++)
+            assertEquals(KEYS / 4.0, keys[shard], KEYS / 4.0 * 0.2, "shard " + shard + " has " + keys[shard] + " keys");
+        assertEquals(0, new ShardRing(1).shardOf("key"));
+    }
+
+    // A new shard takes about a fifth of the keys from the others, the remaining keys do not move
+    @Test
+    public void addingAShardMovesOnlyItsKeys() {
+        ShardRing four = new ShardRing(4);
+        ShardRing five = new ShardRing(5);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            int before = four.shardOf(key);
+            int after = five.shardOf(key);
+            if (before != after) {
+                assertEquals(4, after);
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 5 * 0.8 && moved < KEYS / 5 * 1.2, moved + " keys moved");
+    }
+}
@@ -0,0 +1,119 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VectorClockTest {
+    private static final int REPLICAS = 64;
+
+    private static Address replica(int i) {
+        return new Address("10.0.0." + (i % 250), 4000 + i);
+    }
+
+    @Test
+    public void joinsAndLeaves() {
+        VectorClock vectorClock = new VectorClock(1);
+        for (int i = REPLICAS - 1; i >= 0; i--)
+            vectorClock.addKey(ReplicaIds.idOf(replica(i)));
+        assertEquals(REPLICAS, vectorClock.size());
+        for (int i = 1; i < vectorClock.size(); i++)
+            assertTrue(vectorClock.idAt(i - 1) < vectorClock.idAt(i));
+
+        assertEquals(1, vectorClock.increment(replica(3)));
+        assertEquals(2, vectorClock.increment(replica(3)));
+        assertEquals(2, vectorClock.get(replica(3)));
+
+        vectorClock.removeKey(ReplicaIds.idOf(replica(3)));
+        assertFalse(vectorClock.contains(replica(3)));
+        assertEquals(0, vectorClock.get(replica(3)));
+        assertEquals(REPLICAS - 1, vectorClock.size());
+
+        // A replica joining again starts from 0
+        vectorClock.addKey(ReplicaIds.idOf(replica(3)));
+        assertEquals(0, vectorClock.get(replica(3)));
+        vectorClock.addKey(ReplicaIds.idOf(replica(3)));
+        assertEquals(REPLICAS, vectorClock.size());
+    }
+
+    @Test
+    public void mergeAndCompare() {
+        VectorClock a = new VectorClock();
+        VectorClock b = new VectorClock();
+        a.set(ReplicaIds.idOf(replica(1)), 3);
+        a.set(ReplicaIds.idOf(replica(2)), 1);
+        b.set(ReplicaIds.idOf(replica(2)), 4);
+        b.set(ReplicaIds.idOf(replica(5)), 2);
+        assertFalse(a.lessOrEqual(b));
+        assertFalse(b.lessOrEqual(a));
+
+        VectorClock merged = new VectorClock(a);
+        merged.merge(b);
+        assertEquals(3, merged.get(replica(1)));
+        assertEquals(4, merged.get(replica(2)));
+        assertEquals(2, merged.get(replica(5)));
+        assertTrue(a.lessOrEqual(merged));
+        assertTrue(b.lessOrEqual(merged));
+        assertNotEquals(a, merged);
+        assertEquals(merged, new VectorClock(merged));
+    }
+
+    @Test
+    public void mapConversionAndSerialization() throws IOException, ClassNotFoundException {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < REPLICAS; i++)
+            map.put(replica(i).toString(), i * 7);
+        VectorClock vectorClock = VectorClock.fromMap(map);
+        assertEquals(map, vectorClock.toMap());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(vectorClock);
+        out.close();
+        VectorClock read = (VectorClock) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(vectorClock, read);
+        assertEquals(map, read.toMap());
+    }
+
+    // The copy, increment and comparison of an update decide as the previous Map based vector clocks, the times are measured by the
+    // vectorCheck of the StateHandlerBenchmark
+    @Test
+    public void sameDecisionsAsMap() {
+        Map<String, Integer> map = new HashMap<>();
+        VectorClock vectorClock = new VectorClock();
+        for (int i = 0; i < REPLICAS; i++) {
+            map.put(replica(i).toString(), i);
+            vectorClock.set(ReplicaIds.idOf(replica(i)), i);
+        }
+
+        int accepted = 0;
+        for (int i = 0; i < REPLICAS; i++) {
+            Address from = replica(i);
+            Map<String, Integer> update = new HashMap<>(map);
+            update.put(from.toString(), update.get(from.toString()) + 1);
+            boolean accept = true;
+            for (Map.Entry<String, Integer> entry : update.entrySet())
+                if (!entry.getKey().equals(from.toString()) && entry.getValue() > map.getOrDefault(entry.getKey(), 0))
+                    accept = false;
+            if (accept)
+                accepted++;
+
+            VectorClock vectorClockUpdate = new VectorClock(vectorClock);
+            vectorClockUpdate.increment(from);
+            if (vectorClock.lessOrEqual(vectorClockUpdate))
+                accepted--;
+        }
+        assertEquals(0, accepted);
+    }
+}
@@ -0,0 +1,83 @@
+package it.polimi.ds.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorkerPoolTest {
+    private static final int WORKERS = 2;
+    private static final int QUEUE_LENGTH = 3;
+    private static final int TASKS = 20;
+
+    // The submitter must stop once the threads are busy and the queue is full, and continue when the tasks complete
+    @Test
+    public void boundedPoolBlocksTheSubmitter() throws InterruptedException {
+        WorkerPool pool = new WorkerPool("test-worker", ExecutionMode.POOL, WORKERS, QUEUE_LENGTH);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(TASKS);
+        AtomicInteger submitted = new AtomicInteger(0);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        Thread submitter = new Thread(() -> {
+            for (int i = 0; i < TASKS; i++) {
+                pool.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    completed.countDown();
+                });
+                submitted.incrementAndGet();
+            }
+        });
+        submitter.start();
+
+        SimulateDelay.fixed(300);
+        assertEquals(WORKERS + QUEUE_LENGTH, submitted.get());
+        assertEquals(QUEUE_LENGTH, pool.queued());
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        submitter.join(1000);
+        assertFalse(submitter.isAlive());
+        assertEquals(TASKS, submitted.get());
+        assertTrue(maxRunning.get() <= WORKERS);
+        pool.shutdown();
+    }
+
+    @Test
+    public void everyModeRunsTheTasks() throws InterruptedException {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            WorkerPool pool = new WorkerPool("test-" + mode, mode, WORKERS, QUEUE_LENGTH);
+            CountDownLatch completed = new CountDownLatch(TASKS);
+            for (int i = 0; i < TASKS; i++)
+                pool.execute(completed::countDown);
+            assertTrue(completed.await(5, TimeUnit.SECONDS), mode.name());
+            pool.shutdown();
+        }
+    }
+
+    // On a JVM without virtual threads the pool falls back to a thread per task
+    @Test
+    public void virtualModeFallsBack() {
+        WorkerPool pool = new WorkerPool("test-virtual", ExecutionMode.VIRTUAL, WORKERS, QUEUE_LENGTH);
+        boolean available = Runtime.version().feature() >= 21;
+        assertEquals(available ? ExecutionMode.VIRTUAL : ExecutionMode.THREAD, pool.getMode());
+        pool.shutdown();
+    }
+
+    @Test
+    public void unboundedPoolDoesNotUseAFixedNumberOfThreads() {
+        assertEquals(ExecutionMode.THREAD, WorkerPool.unbounded("test-channel", ExecutionMode.POOL).getMode());
+    }
+}
@@ -0,0 +1,99 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.BinaryCodec;
+import it.polimi.ds.network.Message;
+import it.polimi.ds.network.MessageType;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AntiEntropyTest {
+    private static final int KEYS = 10000;
+    private final Address first = new Address("127.0.0.1", 5200);
+    private final Address second = new Address("127.0.0.1", 5201);
+    private final Address origin = new Address("127.0.0.1", 5202);
+
+    private StateHandler stateHandler(Address me, Address... others) {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me);
+        for (Address other : others)
+            stateHandler.addAddressKey(other);
+        return stateHandler;
+    }
+
+    private static AntiEntropy antiEntropy(StateHandler stateHandler) {
+        return new AntiEntropy(stateHandler, new TrackerIndexHandler(0, null, null), null, new ArrayList<>());
+    }
+
+    // The messages are encoded as they would be on a channel
+    private static Message wire(Message message) throws IOException {
+        return BinaryCodec.decode(BinaryCodec.encode(message));
+    }
+
+    // The first replica misses an update of the origin and holds the next one in the queue, a round sends only the two keys that differ
+    @Test
+    public void repairMissedUpdate() throws IOException {
+        Logger.getLogger("StateHandler").setLevel(Level.WARNING);
+        StateHandler firstState = stateHandler(first, second, origin);
+        StateHandler secondState = stateHandler(second, first, origin);
+        VectorClock history = new VectorClock();
+        for (int i = 0; i < KEYS; i++) {
+            history.increment(origin);
+            Update update = new Update(new VectorClock(history), origin, "key" + i, "value" + i);
+            firstState.replicaWrite(update, 0, 0);
+            secondState.replicaWrite(update, 0, 0);
+        }
+        history.increment(origin);
+        secondState.replicaWrite(new Update(new VectorClock(history), origin, "missed", "1"), 0, 0);
+        history.increment(origin);
+        Update next = new Update(new VectorClock(history), origin, "key0", "next");
+        firstState.replicaWrite(next, 0, 0);
+        secondState.replicaWrite(next, 0, 0);
+        assertEquals(1, firstState.getState().getQueue().size());
+
+        AntiEntropy firstAntiEntropy = antiEntropy(firstState);
+        AntiEntropy secondAntiEntropy = antiEntropy(secondState);
+        Message digests = wire(firstAntiEntropy.digestRequest());
+        Message fetch = firstAntiEntropy.fetchRequest(digests, wire(secondAntiEntropy.answer(digests)));
+        assertNotNull(fetch);
+        Message values = wire(secondAntiEntropy.answer(wire(fetch)));
+        assertEquals(MessageType.SYNC_VALUES, values.getType());
+        assertEquals(2, values.getState().getStore().size());
+        assertEquals(2, firstAntiEntropy.repair(fetch, values));
+
+        ReplicaState repaired = firstState.getState();
+        assertTrue(repaired.getQueue().isEmpty());
+        assertEquals(history.get(origin), repaired.getVectorClock().get(origin));
+        assertEquals("1", firstState.read("missed"));
+        assertEquals("next", firstState.read("key0"));
+
+        digests = wire(firstAntiEntropy.digestRequest());
+        assertNull(firstAntiEntropy.fetchRequest(digests, wire(secondAntiEntropy.answer(digests))));
+    }
+
+    // The replicas are not repaired while they disagree on the tracker index
+    @Test
+    public void differentTrackerIndex() throws IOException {
+        StateHandler firstState = stateHandler(first, second);
+        StateHandler secondState = stateHandler(second, first);
+        secondState.clientWrite("x", "1");
+        AntiEntropy firstAntiEntropy = antiEntropy(firstState);
+        AntiEntropy secondAntiEntropy = new AntiEntropy(secondState, new TrackerIndexHandler(1, null, null), null, new ArrayList<>());
+        Message digests = wire(firstAntiEntropy.digestRequest());
+        Message reply = wire(secondAntiEntropy.answer(digests));
+        assertEquals(MessageType.NOT_STATE, reply.getType());
+        assertNull(firstAntiEntropy.fetchRequest(digests, reply));
+        assertNull(firstState.read("x"));
+    }
+}
@@ -28,6 +28,7 @@ public class DelayReplicaTest {
             trackerPort = ReplicaTestHelper.getPort();
             tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort), minDelay, maxDelay}));
             tracker.start();
+            SimulateDelay.fixed(100);
 
             // Starting the first replica
             replica1Port = ReplicaTestHelper.getPort();
@@ -0,0 +1,101 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaIds;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventLogTest {
+    private final Address me = new Address("127.0.0.1", 5300);
+    private final Address other = new Address("127.0.0.1", 5301);
+
+    // The events below the verbosity are not written, so they cost nothing but the comparison
+    @Test
+    public void levelGated(@TempDir Path directory) throws IOException {
+        Logger.getLogger("EventLog").setLevel(Level.WARNING);
+        Path trace = directory.resolve("events.trace");
+        EventLog events = new EventLog(EventLog.Verbosity.MEMBERSHIP, 16, trace);
+        assertTrue(events.isEnabled(EventLog.Type.JOIN));
+        assertFalse(events.isEnabled(EventLog.Type.WAIT_SENT));
+        assertFalse(events.isEnabled(EventLog.Type.ACCEPT));
+        for (int i = 0; i < 1000; i++)
+            events.record(EventLog.Type.ACCEPT, ReplicaIds.idOf(other), i, 0, 0, 1);
+        events.record(EventLog.Type.JOIN, ReplicaIds.idOf(other), 0, 0, 0, 2);
+        events.close();
+
+        List<EventLog.Event> read = EventLog.read(trace);
+        assertEquals(1, read.size());
+        assertEquals(EventLog.Type.JOIN, read.get(0).getType());
+        assertEquals(other.toString(), read.get(0).getReplica());
+        assertEquals(2, read.get(0).getTrackerIndex());
+        assertEquals(0, events.getDropped());
+        assertFalse(EventLog.OFF.isEnabled(EventLog.Type.JOIN));
+    }
+
+    // The decisions of a StateHandler are written in the trace with the addresses of the replicas
+    @Test
+    public void traceOfDelivery(@TempDir Path directory) throws IOException {
+        Logger.getLogger("EventLog").setLevel(Level.WARNING);
+        Path trace = directory.resolve("events.trace");
+        EventLog events = new EventLog(EventLog.Verbosity.DELIVERY, 16, trace);
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me);
+        stateHandler.addAddressKey(other);
+        stateHandler.setEventLog(events);
+        VectorClock first = new VectorClock();
+        first.increment(other);
+        VectorClock second = new VectorClock(first);
+        second.increment(other);
+        stateHandler.replicaWrite(new Update(new VectorClock(second), other, "x", "2"), 3, 3);
+        stateHandler.replicaWrite(new Update(new VectorClock(first), other, "x", "1"), 3, 3);
+        stateHandler.replicaWrite(new Update(new VectorClock(first), other, "x", "1"), 3, 3);
+        events.close();
+
+        List<EventLog.Event> read = EventLog.read(trace);
+        assertEquals(4, read.size());
+        EventLog.Event queued = read.get(0);
+        assertEquals(EventLog.Type.QUEUE, queued.getType());
+        assertEquals(other.toString(), queued.getReplica());
+        assertEquals(2, queued.getValue());
+        assertEquals(other.toString(), queued.getOtherReplica());
+        assertEquals(1, queued.getOtherValue());
+        assertEquals(3, queued.getTrackerIndex());
+        assertEquals(EventLog.Type.ACCEPT, read.get(1).getType());
+        assertEquals(1, read.get(1).getValue());
+        assertEquals(EventLog.Type.ACCEPT, read.get(2).getType());
+        assertEquals(2, read.get(2).getValue());
+        assertEquals(EventLog.Type.DISCARD, read.get(3).getType());
+        assertNull(read.get(3).getOtherReplica());
+        assertEquals("2", stateHandler.read("x"));
+    }
+
+    // When the buffer is full the events are dropped and counted, never waited for
+    @Test
+    public void fullBufferDrops(@TempDir Path directory) throws IOException {
+        Logger.getLogger("EventLog").setLevel(Level.WARNING);
+        Path trace = directory.resolve("events.trace");
+        EventLog events = new EventLog(EventLog.Verbosity.DELIVERY, 4, trace);
+        int recorded = 100000;
+        for (int i = 0; i < recorded; i++)
+            events.record(EventLog.Type.ACCEPT, ReplicaIds.idOf(other), i, 0, 0, 0);
+        events.close();
+
+        List<EventLog.Event> read = EventLog.read(trace);
+        assertEquals(recorded, read.size() + events.getDropped());
+        for (int i = 1; i < read.size(); i++)
+            assertTrue(read.get(i).getValue() > read.get(i - 1).getValue());
+    }
+}
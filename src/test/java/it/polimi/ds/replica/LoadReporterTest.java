@@ -0,0 +1,39 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ExecutionMode;
+import it.polimi.ds.network.Metrics;
+import it.polimi.ds.network.ReplicaLoad;
+import it.polimi.ds.network.WireFormat;
+import it.polimi.ds.network.WorkerPool;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoadReporterTest {
+    // Every report measures only the requests served since the previous one
+    @Test
+    public void loadSinceLastReport() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        WorkerPool workers = new WorkerPool("test-worker", ExecutionMode.POOL, 1, 10);
+        Address replica = new Address("127.0.0.1", 5400);
+        LoadReporter reporter = new LoadReporter(replica, new Address("127.0.0.1", 5401), WireFormat.SERIALIZED, workers, metrics);
+        reporter.measure();
+        for (int i = 0; i < 100; i++) {
+            metrics.histogram("client.read.micros").record(100);
+            metrics.histogram("client.write.micros").record(300);
+        }
+        Thread.sleep(100);
+        ReplicaLoad load = reporter.measure();
+        assertEquals(replica, load.getAddress());
+        assertEquals(200, load.getLatency());
+        assertTrue(load.getRequestRate() > 0 && load.getRequestRate() <= 2000, load.getRequestRate() + " requests per second");
+        assertEquals(0, load.getQueueDepth());
+
+        load = reporter.measure();
+        assertEquals(0, load.getRequestRate());
+        assertEquals(0, load.getLatency());
+        workers.shutdown();
+    }
+}
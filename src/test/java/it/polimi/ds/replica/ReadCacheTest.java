@@ -0,0 +1,81 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaIds;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import it.polimi.ds.network.Versioned;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReadCacheTest {
+    private final Address me = new Address("127.0.0.1", 5400);
+    private final Address other = new Address("127.0.0.1", 5401);
+
+    private static Versioned value(String text) {
+        return new Versioned(text, 1, 1);
+    }
+
+    // The size in bytes of the entries never goes above the limit
+    @Test
+    public void boundedInBytes() {
+        long limit = 64 * 1024;
+        ReadCache cache = new ReadCache(limit);
+        for (int i = 0; i < 10000; i++) {
+            String key = "key" + i;
+            cache.get(key);
+            cache.put(key, value("value" + i));
+        }
+        assertTrue(cache.getBytes() <= limit, cache.getBytes() + " bytes");
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(10000, cache.getMisses());
+    }
+
+    // A hot key is not evicted by the keys read only once
+    @Test
+    public void hotKeysStay() {
+        ReadCache cache = new ReadCache(16 * 1024);
+        for (int i = 0; i < 10; i++)
+            cache.get("hot");
+        cache.put("hot", value("hot"));
+        for (int i = 0; i < 10000; i++) {
+            String key = "cold" + i;
+            cache.get(key);
+            cache.put(key, value(key));
+            if (i % 100 == 0)
+                assertNotNull(cache.get("hot"), "evicted after " + i + " cold keys");
+        }
+        assertNotNull(cache.get("hot"));
+        assertTrue(cache.getHits() >= 100);
+    }
+
+    // The writes of the Clients and of the other Replicas invalidate the keys, so the reads never see an older value
+    @Test
+    public void writesInvalidate() {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me);
+        stateHandler.addAddressKey(other);
+        ReadCache cache = new ReadCache(1024 * 1024);
+        stateHandler.setReadCache(cache);
+        assertNull(stateHandler.read("x"));
+        stateHandler.clientWrite("x", "1");
+        assertEquals("1", stateHandler.read("x"));
+        assertEquals("1", stateHandler.read("x"));
+        assertEquals(1, cache.getHits());
+
+        VectorClock otherClock = new VectorClock();
+        otherClock.increment(other);
+        stateHandler.replicaWrite(new Update(otherClock, other, "x", "2"), 0, 0);
+        assertEquals("2", stateHandler.read("x"));
+        stateHandler.clientWrite("x", "3");
+        assertEquals("3", stateHandler.read("x"));
+        assertEquals(ReplicaIds.idOf(me), cache.get("x").getOrigin());
+
+        stateHandler.setState(new ReplicaState(me));
+        assertNull(stateHandler.read("x"));
+    }
+}
@@ -0,0 +1,98 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Message;
+import it.polimi.ds.network.MessageType;
+import it.polimi.ds.network.SimulateDelay;
+import it.polimi.ds.tracker.Tracker;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaLoadTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int CLIENTS = 32;
+    private static final int WRITES_PER_CLIENT = 50;
+    private static final int WORKERS = 4;
+    private static final int DELIVERY_TIMEOUT = 60 * 1000;
+    // Threads of the two replicas besides the clients: workers, senders, channels and the accepting threads
+    private static final int MAX_REPLICA_THREADS = 4 * WORKERS + 16;
+
+    private void runLoad(boolean boundedThreads, String... executorOptions) throws InterruptedException, IOException, ClassNotFoundException {
+        // The delays are static and could have been set by the tests run before in the same JVM
+        Replica.minDelay = 0;
+        Replica.maxDelay = 0;
+        int trackerPort = ReplicaTestHelper.getPort();
+        new Thread(() -> Tracker.main(with(new String[]{Integer.toString(trackerPort)}, executorOptions))).start();
+        SimulateDelay.fixed(100);
+        int replica1Port = ReplicaTestHelper.getPort();
+        new Thread(() -> Replica.main(with(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica1Port)}, executorOptions))).start();
+        SimulateDelay.fixed(1000);
+        int replica2Port = ReplicaTestHelper.getPort();
+        new Thread(() -> Replica.main(with(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica2Port)}, executorOptions))).start();
+        SimulateDelay.fixed(1000);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            int client = c;
+            Thread clientThread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < WRITES_PER_CLIENT; i++) {
+                        Message ack = ReplicaTestHelper.sendMessageAndReceive(replica1Port, new Message(MessageType.WRITE_FROM_CLIENT, client + "-" + i, Integer.toString(i)));
+                        assertEquals(MessageType.ACK, ack.getType());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            clients.add(clientThread);
+            clientThread.start();
+        }
+        for (Thread clientThread : clients)
+            clientThread.join();
+        int peakThreads = threads.getPeakThreadCount() - threadsBefore;
+        assertTrue(errors.isEmpty(), () -> errors.peek().toString());
+        if (boundedThreads)
+            assertTrue(peakThreads <= CLIENTS + MAX_REPLICA_THREADS, () -> peakThreads + " threads");
+
+        // Every write must eventually reach the second replica
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+        for (int c = 0; c < CLIENTS; c++) {
+            Message answer = ReplicaTestHelper.sendMessageAndReceive(replica2Port, new Message(MessageType.READ_FROM_CLIENT, c + "-" + (WRITES_PER_CLIENT - 1)));
+            while (answer.getValue() == null && System.currentTimeMillis() < deadline) {
+                SimulateDelay.fixed(100);
+                answer = ReplicaTestHelper.sendMessageAndReceive(replica2Port, new Message(MessageType.READ_FROM_CLIENT, c + "-" + (WRITES_PER_CLIENT - 1)));
+            }
+            assertEquals(Integer.toString(WRITES_PER_CLIENT - 1), answer.getValue());
+        }
+    }
+
+    private static String[] with(String[] args, String[] options) {
+        List<String> all = new ArrayList<>(List.of(args));
+        all.addAll(List.of(options));
+        return all.toArray(new String[0]);
+    }
+
+    // Many concurrent clients on a replica with a small bounded pool, the accepting thread waits instead of creating threads
+    @Test
+    public void boundedPoolUnderLoad() throws InterruptedException, IOException, ClassNotFoundException {
+        runLoad(true, "--executor=pool", "--workers=" + WORKERS, "--queue=8");
+    }
+
+    // The same load with a virtual thread per request, or a platform thread if the JVM does not support them
+    @Test
+    public void virtualThreadsUnderLoad() throws InterruptedException, IOException, ClassNotFoundException {
+        runLoad(false, "--executor=virtual");
+    }
+}
@@ -1,19 +1,44 @@
 package it.polimi.ds.replica;
 
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ChannelPool;
+import it.polimi.ds.network.Connection;
+import it.polimi.ds.network.ExecutionMode;
 import it.polimi.ds.network.Message;
+import it.polimi.ds.network.MessageChannel;
 import it.polimi.ds.network.MessageType;
+import it.polimi.ds.network.Metrics;
+import it.polimi.ds.network.ReplicaState;
 import it.polimi.ds.network.SimulateDelay;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import it.polimi.ds.network.WireFormat;
+import it.polimi.ds.network.WorkerPool;
 import it.polimi.ds.tracker.Tracker;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 class ReplicaTest {
     private static final String LOCALHOST = "127.0.0.1";
     private static final int N = 5;
+    private static final int SESSION_REQUESTS = 2000;
     private static Thread tracker, replica1, replica2;
     private int trackerPort;
     private int replica1Port;
@@ -28,6 +53,7 @@ class ReplicaTest {
             trackerPort = ReplicaTestHelper.getPort();
             tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort)}));
             tracker.start();
+            SimulateDelay.fixed(100);
 
             // Starting the first replica
             replica1Port = ReplicaTestHelper.getPort();
@@ -88,6 +114,7 @@ class ReplicaTest {
             trackerPort = ReplicaTestHelper.getPort();
             tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort)}));
             tracker.start();
+            SimulateDelay.fixed(100);
 
             // Starting the replica
             replica1Port = ReplicaTestHelper.getPort();
@@ -131,6 +158,7 @@ class ReplicaTest {
             trackerPort = ReplicaTestHelper.getPort();
             tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort)}));
             tracker.start();
+            SimulateDelay.fixed(100);
 
             // Starting the first replica
             replica1Port = ReplicaTestHelper.getPort();
@@ -163,4 +191,198 @@ class ReplicaTest {
             fail();
         }
     }
+
+    // This test runs the base scenario with the tracker and the replicas talking in the binary wire format
+    @Test
+    public void binaryWireTest() {
+        try {
+            // Starting the tracker
+            trackerPort = ReplicaTestHelper.getPort();
+            tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort), "--wire=binary"}));
+            tracker.start();
+            SimulateDelay.fixed(100);
+
+            // Starting the two replicas
+            replica1Port = ReplicaTestHelper.getPort();
+            replica1 = new Thread(() -> Replica.main(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica1Port), "--wire=binary"}));
+            replica1.start();
+            SimulateDelay.fixed(100);
+            replica2Port = ReplicaTestHelper.getPort();
+            replica2 = new Thread(() -> Replica.main(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica2Port), "--wire=binary"}));
+            replica2.start();
+            SimulateDelay.fixed(100);
+
+            // Write on replica1, propagated to replica2 in the binary format
+            ReplicaTestHelper.sendMessage(replica1Port, new Message(MessageType.WRITE_FROM_CLIENT, "x", "1"));
+            SimulateDelay.fixed(500);
+
+            answer = ReplicaTestHelper.sendMessageAndReceive(replica2Port, new Message(MessageType.READ_FROM_CLIENT, "x"));
+            assertEquals("x", answer.getResource());
+            assertEquals("1", answer.getValue());
+
+            // Closing all replicas and tracker
+            replica1.interrupt();
+            replica2.interrupt();
+            tracker.interrupt();
+        } catch (IOException | ClassNotFoundException e) {
+            fail();
+        }
+    }
+
+    // This test writes many keys on a replica as a single update and reads them together on the other replica
+    @Test
+    public void batchTest() throws IOException, ClassNotFoundException {
+        trackerPort = ReplicaTestHelper.getPort();
+        tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort)}));
+        tracker.start();
+        SimulateDelay.fixed(100);
+        replica1Port = ReplicaTestHelper.getPort();
+        replica1 = new Thread(() -> Replica.main(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica1Port)}));
+        replica1.start();
+        SimulateDelay.fixed(100);
+        replica2Port = ReplicaTestHelper.getPort();
+        replica2 = new Thread(() -> Replica.main(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica2Port)}));
+        replica2.start();
+        SimulateDelay.fixed(100);
+
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++)
+            values.put("batch" + i, String.valueOf(i));
+        answer = ReplicaTestHelper.sendMessageAndReceive(replica1Port, new Message(MessageType.MPUT_FROM_CLIENT, values));
+        assertEquals(MessageType.ACK, answer.getType());
+        SimulateDelay.fixed(500);
+
+        answer = ReplicaTestHelper.sendMessageAndReceive(replica2Port, new Message(MessageType.MGET_FROM_CLIENT, new ArrayList<>(values.keySet())));
+        assertEquals(values, answer.getValues());
+
+        replica1.interrupt();
+        replica2.interrupt();
+        tracker.interrupt();
+    }
+
+    // This test sends many pipelined requests on the session of a client, every read sees the writes sent before it
+    @Test
+    public void pipelinedClientSession() throws InterruptedException, ExecutionException {
+        trackerPort = ReplicaTestHelper.getPort();
+        tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(trackerPort)}));
+        tracker.start();
+        SimulateDelay.fixed(100);
+        replica1Port = ReplicaTestHelper.getPort();
+        replica1 = new Thread(() -> Replica.main(new String[]{LOCALHOST, Integer.toString(trackerPort), LOCALHOST, Integer.toString(replica1Port)}));
+        replica1.start();
+        SimulateDelay.fixed(100);
+
+        MessageChannel session = new MessageChannel(new Address(LOCALHOST, replica1Port), new Message(MessageType.OPEN_SESSION), WireFormat.SERIALIZED);
+        List<CompletableFuture<Message>> writes = new ArrayList<>();
+        List<CompletableFuture<Message>> reads = new ArrayList<>();
+        for (int i = 0; i < SESSION_REQUESTS; i++) {
+            writes.add(session.request(new Message(MessageType.WRITE_FROM_CLIENT, "x", String.valueOf(i))));
+            reads.add(session.request(new Message(MessageType.READ_FROM_CLIENT, "x")));
+        }
+        for (int i = 0; i < SESSION_REQUESTS; i++) {
+            assertEquals(MessageType.ACK, writes.get(i).get().getType());
+            assertEquals(String.valueOf(i), reads.get(i).get().getValue());
+        }
+        session.close();
+
+        replica1.interrupt();
+        tracker.interrupt();
+    }
+
+    // Once the log has failed the writes are neither applied nor acknowledged, and the Replica leaves the network
+    @Test
+    public void failedLogRefusesWrites(@TempDir Path directory) throws IOException {
+        Address me = new Address(LOCALHOST, ReplicaTestHelper.getPort());
+        Address other = new Address(LOCALHOST, ReplicaTestHelper.getPort());
+        StatePersistence persistence = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY);
+        StateHandler state = new StateHandler(new ReplicaState(me), me, persistence);
+        state.addAddressKey(other);
+        WorkerPool senders = WorkerPool.unbounded("test-sender", ExecutionMode.POOL);
+        TrackerIndexHandler trackerIndexHandler = new TrackerIndexHandler(0, new ChannelPool(me), senders);
+        AtomicInteger leaves = new AtomicInteger();
+        Replica.IncomingMessageHandler handler = new Replica.IncomingMessageHandler(new ArrayList<>(), state, trackerIndexHandler, null, senders,
+                StateHandler.DEFAULT_TOKEN_WAIT, new Metrics(), leaves::incrementAndGet);
+        RecordingConnection connection = new RecordingConnection();
+        handler.handle(connection, new Message(MessageType.WRITE_FROM_CLIENT, "x", "synced"));
+        assertEquals(MessageType.ACK, connection.replies.get(0).getType());
+        assertEquals(0, leaves.get());
+
+        // The writes are refused before being applied, so the Client can send them to another Replica without applying them twice
+        persistence.close();
+        handler.handle(connection, new Message(MessageType.WRITE_FROM_CLIENT, "x", "lost"));
+        assertEquals(MessageType.WAIT, connection.replies.get(1).getType());
+        handler.handle(connection, new Message(MessageType.MPUT_FROM_CLIENT, Collections.singletonMap("y", "lost")));
+        assertEquals(MessageType.WAIT, connection.replies.get(2).getType());
+        VectorClock clock = new VectorClock();
+        clock.increment(other);
+        handler.handle(connection, new Message(MessageType.UPDATE_FROM_REPLICA, new Update(clock, other, "z", "lost"), 0));
+        assertEquals(3, connection.replies.size());
+        assertTrue(connection.closed);
+        assertEquals("synced", state.read("x"));
+        assertNull(state.read("y"));
+        assertNull(state.read("z"));
+        assertEquals(0, state.getVectorClock().get(other));
+        assertTrue(leaves.get() > 0);
+        senders.shutdown();
+    }
+
+    // A request behind its token is deferred instead of holding the worker, and answered once the missing update is applied
+    @Test
+    public void staleTokenIsDeferred() throws Exception {
+        Address me = new Address(LOCALHOST, ReplicaTestHelper.getPort());
+        Address other = new Address(LOCALHOST, ReplicaTestHelper.getPort());
+        StateHandler state = new StateHandler(new ReplicaState(me), me);
+        state.addAddressKey(other);
+        WorkerPool senders = WorkerPool.unbounded("test-sender", ExecutionMode.POOL);
+        TrackerIndexHandler trackerIndexHandler = new TrackerIndexHandler(0, new ChannelPool(me), senders);
+        Replica.IncomingMessageHandler handler = new Replica.IncomingMessageHandler(new ArrayList<>(), state, trackerIndexHandler, null, senders,
+                200, new Metrics(), () -> { });
+        VectorClock clock = new VectorClock();
+        clock.increment(other);
+        Message read = new Message(MessageType.READ_FROM_CLIENT, "x");
+        read.setToken(new VectorClock(clock));
+        RecordingConnection connection = new RecordingConnection();
+        handler.handle(connection, read);
+        assertTrue(connection.replies.isEmpty());
+
+        state.replicaWrite(new Update(clock, other, "x", "seen"), 0, 0);
+        connection.handedBack.get(5, TimeUnit.SECONDS);
+        handler.handle(connection, read);
+        assertEquals("seen", connection.replies.get(0).getValue());
+
+        // Once the token wait is over the request is answered WAIT, and the Client asks for another Replica
+        clock.increment(other);
+        Message late = new Message(MessageType.READ_FROM_CLIENT, "x");
+        late.setToken(new VectorClock(clock));
+        connection = new RecordingConnection();
+        handler.handle(connection, late);
+        connection.handedBack.get(5, TimeUnit.SECONDS);
+        handler.handle(connection, late);
+        assertEquals(MessageType.WAIT, connection.replies.get(0).getType());
+        senders.shutdown();
+    }
+
+    /**
+     * Represents the connection of a Client or a Replica keeping the replies it receives.
+     */
+    private static class RecordingConnection implements Connection {
+        private final List<Message> replies = new ArrayList<>();
+        private final CompletableFuture<Void> handedBack = new CompletableFuture<>();
+        private boolean closed = false;
+
+        @Override
+        public Runnable defer() {
+            return () -> handedBack.complete(null);
+        }
+
+        @Override
+        public void send(Message message) {
+            replies.add(message);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
 }
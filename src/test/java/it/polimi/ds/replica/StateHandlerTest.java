@@ -0,0 +1,460 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaIds;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.StoreBackend;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import it.polimi.ds.network.Versioned;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StateHandlerTest {
+    private static final int ORIGINS = 4;
+    private static final int BACKLOG = 100000;
+    private static final int KEYS = 1000;
+    private final Address me = new Address("127.0.0.1", 5100);
+
+    private static Address origin(int i) {
+        return new Address("127.0.0.1", 5101 + i);
+    }
+
+    private StateHandler stateHandler(int origins) {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me);
+        for (int i = 0; i < origins; i++)
+            stateHandler.addAddressKey(origin(i));
+        return stateHandler;
+    }
+
+    private static Update update(Address from, VectorClock vectorClock, String key, String value) {
+        return new Update(new VectorClock(vectorClock), from, key, value);
+    }
+
+    // Replays a backlog where every update depends on all the previous ones, received in random order
+    @Test
+    public void outOfOrderBacklog() {
+        Logger.getLogger("StateHandler").setLevel(Level.WARNING);
+        StateHandler stateHandler = stateHandler(ORIGINS);
+        Random random = new Random(42);
+        VectorClock history = new VectorClock();
+        List<Update> updates = new ArrayList<>(BACKLOG);
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < BACKLOG; i++) {
+            Address from = origin(random.nextInt(ORIGINS));
+            history.increment(from);
+            updates.add(update(from, history, "key" + i % KEYS, String.valueOf(i)));
+            expected.put("key" + i % KEYS, String.valueOf(i));
+        }
+        Collections.shuffle(updates, random);
+
+        for (Update update : updates)
+            stateHandler.replicaWrite(update, 0, 0);
+
+        ReplicaState state = stateHandler.getState();
+        assertTrue(state.getQueue().isEmpty());
+        for (int i = 0; i < ORIGINS; i++)
+            assertEquals(history.get(origin(i)), state.getVectorClock().get(origin(i)));
+        expected.forEach((key, value) -> assertEquals(value, stateHandler.read(key)));
+    }
+
+    // Client writes, updates from other replicas and reads run together, every key ends with its last write
+    @Test
+    public void concurrentWritesAndReads() throws Exception {
+        Logger.getLogger("StateHandler").setLevel(Level.WARNING);
+        StateHandler stateHandler = stateHandler(ORIGINS);
+        int writes = 20000;
+        ExecutorService threads = Executors.newFixedThreadPool(2 * ORIGINS + 1);
+        List<Future<Update>> lastClientWrites = new ArrayList<>();
+        for (int t = 0; t < ORIGINS; t++) {
+            int thread = t;
+            lastClientWrites.add(threads.submit(() -> {
+                Update last = null;
+                for (int i = 0; i < writes; i++) {
+                    stateHandler.clientWrite("client" + thread, String.valueOf(i));
+                    last = stateHandler.clientWrite("shared", thread + "-" + i);
+                }
+                return last;
+            }));
+            threads.submit(() -> {
+                VectorClock vectorClock = new VectorClock();
+                for (int i = 0; i < writes; i++) {
+                    vectorClock.increment(origin(thread));
+                    stateHandler.replicaWrite(update(origin(thread), vectorClock, "replica" + thread, String.valueOf(i)), 0, 0);
+                }
+            });
+        }
+        Future<?> reader = threads.submit(() -> {
+            for (int i = 0; i < writes; i++)
+                stateHandler.read("shared");
+        });
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(60, TimeUnit.SECONDS));
+        reader.get();
+
+        Update lastShared = null;
+        for (Future<Update> lastClientWrite : lastClientWrites) {
+            Update update = lastClientWrite.get();
+            if (lastShared == null || update.getVectorClock().get(me) > lastShared.getVectorClock().get(me))
+                lastShared = update;
+        }
+        assertEquals(lastShared.getWrites().get("shared"), stateHandler.read("shared"));
+        ReplicaState state = stateHandler.getState();
+        assertEquals(2 * ORIGINS * writes, state.getVectorClock().get(me));
+        for (int i = 0; i < ORIGINS; i++) {
+            assertEquals(String.valueOf(writes - 1), stateHandler.read("client" + i));
+            assertEquals(String.valueOf(writes - 1), stateHandler.read("replica" + i));
+            assertEquals(writes, state.getVectorClock().get(origin(i)));
+        }
+    }
+
+    // The writes of a batch are a single update, applied and read together
+    @Test
+    public void batchIsOneUpdate() {
+        StateHandler stateHandler = stateHandler(1);
+        Map<String, String> writes = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++)
+            writes.put("key" + i, "mine" + i);
+        Update update = stateHandler.clientWrite(writes);
+        assertEquals(1, update.getVectorClock().get(me));
+        assertEquals(writes, update.getWrites());
+        assertEquals(writes, stateHandler.readAll(writes.keySet()));
+
+        VectorClock otherClock = new VectorClock();
+        otherClock.increment(origin(0));
+        Map<String, String> otherWrites = new LinkedHashMap<>();
+        otherWrites.put("key0", "other");
+        otherWrites.put("missing", null);
+        stateHandler.replicaWrite(new Update(otherClock, origin(0), otherWrites), 0, 0);
+        assertEquals(1, stateHandler.getState().getVectorClock().get(origin(0)));
+        assertEquals(otherWrites, stateHandler.readAll(Arrays.asList("key0", "missing")));
+        assertEquals("mine1", stateHandler.read("key1"));
+    }
+
+    @Test
+    public void duplicatesAreDiscarded() {
+        StateHandler stateHandler = stateHandler(1);
+        VectorClock vectorClock = new VectorClock();
+        vectorClock.increment(origin(0));
+        Update first = update(origin(0), vectorClock, "x", "1");
+        vectorClock.increment(origin(0));
+        Update second = update(origin(0), vectorClock, "x", "2");
+
+        stateHandler.replicaWrite(second, 0, 0);
+        stateHandler.replicaWrite(second, 0, 0);
+        assertEquals(2, stateHandler.getState().getQueue().size());
+        stateHandler.replicaWrite(first, 0, 0);
+        stateHandler.replicaWrite(first, 0, 0);
+
+        assertEquals("2", stateHandler.read("x"));
+        assertEquals(2, stateHandler.getState().getVectorClock().get(origin(0)));
+        assertTrue(stateHandler.getState().getQueue().isEmpty());
+    }
+
+    // An update waiting for a replica that leaves the network is applied when the exit is known
+    @Test
+    public void exitReleasesQueuedUpdates() {
+        StateHandler stateHandler = stateHandler(2);
+        VectorClock vectorClock = new VectorClock();
+        vectorClock.increment(origin(1));
+        vectorClock.increment(origin(0));
+        stateHandler.replicaWrite(update(origin(0), vectorClock, "x", "1"), 0, 0);
+        assertEquals(1, stateHandler.getState().getQueue().size());
+
+        stateHandler.removeAddressKey(origin(1));
+        stateHandler.checkQueue(1);
+        assertEquals("1", stateHandler.read("x"));
+        assertTrue(stateHandler.getState().getQueue().isEmpty());
+    }
+
+    // With a bounded queue the backlog is spilled and read back, and the result is the same as with an unbounded one
+    @Test
+    public void boundedQueueSpills(@TempDir Path directory) throws IOException {
+        Logger.getLogger("StateHandler").setLevel(Level.WARNING);
+        StateHandler stateHandler = stateHandler(ORIGINS);
+        stateHandler.boundQueue(100, directory);
+        Random random = new Random(7);
+        VectorClock history = new VectorClock();
+        List<Update> updates = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Address from = origin(random.nextInt(ORIGINS));
+            history.increment(from);
+            updates.add(update(from, history, "key" + i % KEYS, String.valueOf(i)));
+        }
+        Collections.reverse(updates);
+
+        for (Update update : updates) {
+            stateHandler.replicaWrite(update, 0, 0);
+            assertTrue(stateHandler.getQueueSize() - stateHandler.getSpilledSize() <= 100);
+        }
+        assertEquals(0, stateHandler.getQueueSize());
+        assertEquals(4999, stateHandler.getQueueHighWater());
+        for (int i = 0; i < ORIGINS; i++)
+            assertEquals(history.get(origin(i)), stateHandler.getVectorClock().get(origin(i)));
+        for (int i = 4000; i < 5000; i++)
+            assertEquals(String.valueOf(i), stateHandler.read("key" + i % KEYS));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    // An update waiting for a previous update of a replica that has left is dropped, since that update will never arrive
+    @Test
+    public void departedSenderIsPruned() {
+        StateHandler stateHandler = stateHandler(1);
+        VectorClock vectorClock = new VectorClock();
+        vectorClock.increment(origin(0));
+        vectorClock.increment(origin(0));
+        stateHandler.replicaWrite(update(origin(0), vectorClock, "x", "2"), 0, 0);
+        assertEquals(1, stateHandler.getQueueSize());
+
+        stateHandler.removeAddressKey(origin(0));
+        stateHandler.checkQueue(1);
+        assertEquals(0, stateHandler.getQueueSize());
+        assertNull(stateHandler.read("x"));
+    }
+
+    // The values written while the pages are read are sent again with the last page
+    @Test
+    public void transferSendsNewerValuesAndConcurrentWrites() {
+        StateHandler donor = stateHandler(1);
+        VectorClock otherClock = new VectorClock();
+        for (int i = 0; i < 100; i++) {
+            donor.clientWrite("key" + i, "mine" + i);
+            otherClock.increment(origin(0));
+            donor.replicaWrite(update(origin(0), otherClock, "other" + i, "other" + i), 0, 0);
+        }
+        ReplicaState base = donor.getState();
+        for (int i = 0; i < 50; i++)
+            donor.clientWrite("key" + i, "newer" + i);
+
+        StateTransfer transfer = donor.startTransfer(base.getVectorClock(), 10);
+        List<ReplicaState> pages = new ArrayList<>();
+        pages.add(transfer.nextPage());
+        for (int i = 0; i < 100; i++)
+            donor.clientWrite("key" + i, "during" + i);
+        for (ReplicaState page = transfer.nextPage(); page != null; page = transfer.nextPage())
+            pages.add(page);
+        ReplicaState tail = donor.finishTransfer(transfer);
+
+        pages.add(tail);
+        for (ReplicaState page : pages)
+            // The values of the other replica were already known
+            assertTrue(page.getStore().keySet().stream().allMatch(key -> key.startsWith("key")));
+        for (ReplicaState page : pages.subList(0, pages.size() - 1))
+            base.getStore().putAll(page.getStore());
+        base.complete(tail);
+        ReplicaState expected = donor.getState();
+        assertEquals(expected.getVectorClock(), base.getVectorClock());
+        assertEquals(expected.getStore(), base.getStore());
+    }
+
+    // A counter of the joining replica higher than ours belongs to an older incarnation of that replica
+    @Test
+    public void restartedCounterSendsWholeState() {
+        StateHandler donor = stateHandler(1);
+        VectorClock otherClock = new VectorClock();
+        for (int i = 0; i < 10; i++) {
+            otherClock.increment(origin(0));
+            donor.replicaWrite(update(origin(0), otherClock, "key" + i, "value" + i), 0, 0);
+        }
+        VectorClock since = new VectorClock();
+        since.set(ReplicaIds.idOf(origin(0)), 20);
+
+        StateTransfer transfer = donor.startTransfer(since, 100);
+        ReplicaState page = transfer.nextPage();
+        donor.finishTransfer(transfer);
+        assertEquals(10, page.getStore().size());
+    }
+
+    // A replica rejoining at the same address drops the values of its previous incarnation, seen or not by the others
+    @Test
+    public void rejoiningReplicaDropsItsOldValues() {
+        StateHandler donor = stateHandler(0);
+        Address restarted = origin(0);
+        VectorClock oldClock = new VectorClock();
+        oldClock.increment(restarted);
+        donor.addAddressKey(restarted);
+        donor.replicaWrite(update(restarted, oldClock, "shared", "old"), 0, 0);
+        donor.removeAddressKey(restarted);
+        donor.clientWrite("shared", "overwritten");
+
+        // The recovered state has a write that never reached the donor
+        ReplicaState base = new ReplicaState(restarted);
+        base.getVectorClock().set(ReplicaIds.idOf(restarted), 2);
+        base.getStore().put("shared", new Versioned("old", ReplicaIds.idOf(restarted), 1));
+        base.getStore().put("unseen", new Versioned("lost", ReplicaIds.idOf(restarted), 2));
+        donor.addAddressKey(restarted);
+
+        StateTransfer transfer = donor.startTransfer(base.getVectorClock(), 100);
+        assertTrue(transfer.isFull());
+        Map<String, Versioned> received = new HashMap<>();
+        for (ReplicaState page = transfer.nextPage(); page != null; page = transfer.nextPage())
+            received.putAll(page.getStore());
+        base.complete(received, donor.finishTransfer(transfer), transfer.isFull());
+
+        assertNull(base.read("unseen"));
+        assertEquals("overwritten", base.read("shared"));
+        assertEquals(donor.getState().getStore(), base.getStore());
+        assertEquals(donor.getState().getVectorClock(), base.getVectorClock());
+    }
+
+    // A snapshot keeps reading the values of its commit while the keys are written again, the older values are dropped once it is closed
+    @Test
+    public void snapshotReadsItsCommit() {
+        StateHandler stateHandler = stateHandler(0);
+        stateHandler.clientWrite(pair("1"));
+        Snapshot snapshot = stateHandler.openSnapshot();
+        stateHandler.clientWrite(pair("2"));
+        stateHandler.clientWrite("z", "2");
+        assertEquals(pair("1"), snapshot.readAll(Arrays.asList("x", "y")));
+        assertNull(snapshot.read("z"));
+        assertEquals(pair("2"), stateHandler.readAll(Arrays.asList("x", "y")));
+        assertEquals(1, stateHandler.getSnapshots());
+        long commit = snapshot.getCommit();
+        snapshot.close();
+
+        stateHandler.clientWrite(pair("3"));
+        assertEquals(0, stateHandler.getSnapshots());
+        assertThrows(IllegalStateException.class, () -> stateHandler.getState().getStore().get("x").visibleAt(commit));
+    }
+
+    // The chains are bounded: a snapshot older than the values kept cannot read the key, the reads of many keys move to a newer snapshot
+    @Test
+    public void versionsAreBounded() {
+        StateHandler stateHandler = stateHandler(0);
+        stateHandler.setMaxVersions(4);
+        stateHandler.clientWrite(pair("0"));
+        try (Snapshot snapshot = stateHandler.openSnapshot()) {
+            for (int i = 1; i <= 10; i++)
+                stateHandler.clientWrite(pair(String.valueOf(i)));
+            assertThrows(IllegalStateException.class, () -> snapshot.read("x"));
+            assertEquals(pair("10"), stateHandler.readAll(Arrays.asList("x", "y")));
+        }
+    }
+
+    // Every write changes both keys, so a snapshot never sees them with different values while the writers go on
+    @Test
+    public void snapshotsAreConsistentUnderWrites() throws Exception {
+        Logger.getLogger("StateHandler").setLevel(Level.WARNING);
+        StateHandler stateHandler = stateHandler(0);
+        stateHandler.clientWrite(pair("0"));
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        List<Future<?>> written = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            written.add(writers.submit(() -> {
+                for (int i = 0; i < 5000; i++)
+                    stateHandler.clientWrite(pair(writer + "-" + i));
+            }));
+        }
+        int reads = 0;
+        while (!written.stream().allMatch(Future::isDone)) {
+            Map<String, String> read = stateHandler.readAll(Arrays.asList("x", "y"));
+            assertEquals(read.get("x"), read.get("y"));
+            reads++;
+        }
+        for (Future<?> future : written)
+            future.get();
+        writers.shutdown();
+        assertTrue(reads > 0);
+        assertEquals(0, stateHandler.getSnapshots());
+    }
+
+    // The store off the heap serves the snapshots and the read cache as the one on the heap
+    @Test
+    public void offHeapStore() {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me, StoreBackend.OFF_HEAP), me);
+        stateHandler.setReadCache(new ReadCache(1024 * 1024));
+        stateHandler.clientWrite(pair("1"));
+        assertEquals("1", stateHandler.read("x"));
+        long commit;
+        try (Snapshot snapshot = stateHandler.openSnapshot()) {
+            stateHandler.clientWrite(pair("2"));
+            assertEquals(pair("1"), snapshot.readAll(Arrays.asList("x", "y")));
+            commit = snapshot.getCommit();
+        }
+        // Closing the last snapshot drops the chain without another write of the key
+        assertThrows(IllegalStateException.class, () -> stateHandler.getState().getStore().get("x").visibleAt(commit));
+        assertEquals("2", stateHandler.read("x"));
+        stateHandler.clientWrite(pair("3"));
+        ReplicaState copy = stateHandler.getState();
+        stateHandler.clientWrite(pair("4"));
+        assertEquals("3", copy.getStore().get("x").getValue());
+        assertEquals("4", stateHandler.read("x"));
+        assertTrue(stateHandler.getArenaBytes() > 0);
+    }
+
+    private static Map<String, String> pair(String value) {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("x", value);
+        values.put("y", value);
+        return values;
+    }
+
+    // A request with a token waits for the updates it has seen on another replica, and gives up after the timeout
+    @Test
+    public void tokenWaitsForMissingUpdates() throws Exception {
+        StateHandler stateHandler = stateHandler(1);
+        VectorClock otherClock = new VectorClock();
+        otherClock.increment(origin(0));
+        VectorClock token = new VectorClock(otherClock);
+        assertFalse(stateHandler.awaitToken(token, 50));
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        Future<Boolean> waited = reader.submit(() -> stateHandler.awaitToken(token, 10000));
+        Thread.sleep(50);
+        stateHandler.replicaWrite(update(origin(0), otherClock, "x", "1"), 0, 0);
+        assertTrue(waited.get(5, TimeUnit.SECONDS));
+        assertEquals("1", stateHandler.read("x"));
+        reader.shutdown();
+
+        // The counters of the replicas that left are not waited for
+        token.increment(origin(1));
+        assertTrue(stateHandler.awaitToken(token, 0));
+        assertTrue(stateHandler.awaitToken(null, 0));
+    }
+
+    // The token can be waited for without a thread: the future is completed by the update including it, or after the timeout
+    @Test
+    public void whenTokenHoldsNoThread() throws Exception {
+        StateHandler stateHandler = stateHandler(1);
+        VectorClock otherClock = new VectorClock();
+        otherClock.increment(origin(0));
+        VectorClock token = new VectorClock(otherClock);
+        assertFalse(stateHandler.whenToken(token, 50).get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Boolean> reached = stateHandler.whenToken(token, 10000);
+        assertFalse(reached.isDone());
+        stateHandler.replicaWrite(update(origin(0), otherClock, "x", "1"), 0, 0);
+        assertTrue(reached.getNow(false));
+        assertTrue(stateHandler.whenToken(token, 0).isDone());
+        assertTrue(stateHandler.includesToken(null));
+    }
+}
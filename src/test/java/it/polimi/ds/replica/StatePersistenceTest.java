@@ -0,0 +1,153 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.Address;
+import it.polimi.ds.network.OffHeapStore;
+import it.polimi.ds.network.ReplicaState;
+import it.polimi.ds.network.StoreBackend;
+import it.polimi.ds.network.Update;
+import it.polimi.ds.network.VectorClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatePersistenceTest {
+    private static final int CLIENTS = 16;
+    private static final int WRITES = 200;
+    private static final int RECORDS = 200000;
+    private final Address me = new Address("127.0.0.1", 5200);
+    private final Address other = new Address("127.0.0.1", 5201);
+
+    private static void assertSameState(ReplicaState expected, ReplicaState actual) {
+        assertEquals(expected.getVectorClock(), actual.getVectorClock());
+        for (int i = 0; i < 100; i++)
+            assertEquals(expected.read("key" + i), actual.read("key" + i));
+    }
+
+    // The replica stops without closing the data directory, as in a crash
+    @Test
+    public void recoverSnapshotAndLog(@TempDir Path directory) throws IOException {
+        StatePersistence persistence = new StatePersistence(directory, 50);
+        assertNull(persistence.getRecovered());
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, persistence);
+        stateHandler.addAddressKey(other);
+        VectorClock otherClock = new VectorClock();
+        for (int i = 0; i < 120; i++) {
+            stateHandler.clientWrite("key" + i % 100, "mine" + i);
+            otherClock.increment(other);
+            stateHandler.replicaWrite(new Update(new VectorClock(otherClock), other, "key" + (i + 50) % 100, "other" + i), 0, 0);
+        }
+        Map<String, String> batch = new HashMap<>();
+        for (int i = 0; i < 10; i++)
+            batch.put("batch" + i, "value" + i);
+        stateHandler.clientWrite(batch);
+        stateHandler.awaitDurable();
+
+        ReplicaState recovered = new StatePersistence(directory, 50).getRecovered();
+        assertSameState(stateHandler.getState(), recovered);
+    }
+
+    @Test
+    public void tornTailIsIgnored(@TempDir Path directory) throws IOException {
+        StatePersistence persistence = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY);
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, persistence);
+        for (int i = 0; i < 10; i++)
+            stateHandler.clientWrite("key" + i, "value" + i);
+        stateHandler.awaitDurable();
+        List<Integer> segments = WriteAheadLog.segments(directory);
+        Path last = WriteAheadLog.segmentPath(directory, segments.get(segments.size() - 1));
+        Files.write(last, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        ReplicaState recovered = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY).getRecovered();
+        assertSameState(stateHandler.getState(), recovered);
+    }
+
+    // A write whose record cannot reach the disk is not reported as durable
+    @Test
+    public void failedSyncIsReported(@TempDir Path directory) throws IOException {
+        Logger.getLogger("StateHandler").setLevel(Level.OFF);
+        StatePersistence persistence = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY);
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, persistence);
+        stateHandler.clientWrite("key", "synced");
+        stateHandler.awaitDurable();
+        persistence.close();
+        stateHandler.clientWrite("key", "lost");
+        assertThrows(IOException.class, stateHandler::awaitDurable);
+    }
+
+    // Many clients waiting for their writes to be on disk share the same flushes
+    @Test
+    public void groupCommit(@TempDir Path directory) throws IOException, InterruptedException {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY));
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < WRITES; i++) {
+                        stateHandler.clientWrite("key" + client, String.valueOf(i));
+                        stateHandler.awaitDurable();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            clients.add(thread);
+            thread.start();
+        }
+        for (Thread thread : clients)
+            thread.join();
+        stateHandler.close();
+
+        ReplicaState recovered = new StatePersistence(directory, StatePersistence.DEFAULT_SNAPSHOT_EVERY).getRecovered();
+        assertEquals(CLIENTS * WRITES, recovered.getVectorClock().get(me));
+        assertEquals(String.valueOf(WRITES - 1), recovered.read("key0"));
+    }
+
+    // A store off the heap larger than a chunk is written and recovered a few entries at a time, back into a store off the heap
+    @Test
+    public void offHeapSnapshotIsStreamed(@TempDir Path directory) throws IOException {
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me, StoreBackend.OFF_HEAP), me,
+                new StatePersistence(directory, 1000, StoreBackend.OFF_HEAP));
+        String value = "v".repeat(100);
+        for (int i = 0; i < 5000; i++)
+            stateHandler.clientWrite("key" + i % 2000, value + i);
+        stateHandler.awaitDurable();
+        stateHandler.close();
+
+        ReplicaState recovered = new StatePersistence(directory, 1000, StoreBackend.OFF_HEAP).getRecovered();
+        assertTrue(recovered.getStore() instanceof OffHeapStore);
+        assertEquals(2000, recovered.getStore().size());
+        assertSameState(stateHandler.getState(), recovered);
+        assertEquals(value + 4999, recovered.read("key999"));
+    }
+
+    // The recovery reads the last snapshot and the log written after it, the older segments are deleted
+    @Test
+    public void recoveryFromSnapshotAndLog(@TempDir Path directory) throws IOException {
+        Logger.getLogger("StatePersistence").setLevel(Level.WARNING);
+        StateHandler stateHandler = new StateHandler(new ReplicaState(me), me, new StatePersistence(directory, RECORDS / 4));
+        for (int i = 0; i < RECORDS + RECORDS / 8; i++)
+            stateHandler.clientWrite("key" + i % 10000, String.valueOf(i));
+        stateHandler.awaitDurable();
+
+        ReplicaState recovered = new StatePersistence(directory, RECORDS / 4).getRecovered();
+        assertEquals(RECORDS + RECORDS / 8, recovered.getVectorClock().get(me));
+        assertTrue(WriteAheadLog.segments(directory).size() <= 3);
+    }
+}
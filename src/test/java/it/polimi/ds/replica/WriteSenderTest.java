@@ -0,0 +1,139 @@
+package it.polimi.ds.replica;
+
+import it.polimi.ds.network.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteSenderTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final int UPDATES = 2000;
+    private static final int REPLY_DELAY = 2;
+    private final Address myAddress = new Address(LOCALHOST, 1);
+    private final ConcurrentLinkedQueue<Message> received = new ConcurrentLinkedQueue<>();
+    private ServerSocket serverSocket;
+    private Address peer;
+    private WorkerPool senders;
+
+    // Starts a peer that records the messages received on the channel and acknowledges them after a short delay
+    @BeforeEach
+    public void startPeer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        peer = new Address(LOCALHOST, serverSocket.getLocalPort());
+        senders = new WorkerPool("test-sender", ExecutionMode.POOL, 4, 0);
+        new Thread(() -> {
+            try {
+                TCPClient channel = TCPClient.accept(serverSocket.accept());
+                assertEquals(MessageType.OPEN_CHANNEL, channel.receive().getType());
+                while (true) {
+                    Message message = channel.receive();
+                    received.add(message);
+                    SimulateDelay.fixed(REPLY_DELAY);
+                    Message ack = new Message(MessageType.ACK);
+                    ack.setRequestId(message.getRequestId());
+                    channel.send(ack);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // The channel has been closed
+            }
+        }).start();
+    }
+
+    @AfterEach
+    public void stopPeer() throws IOException {
+        serverSocket.close();
+        senders.shutdown();
+    }
+
+    private void broadcast(TrackerIndexHandler trackerIndexHandler) {
+        List<Address> activeReplicas = new ArrayList<>(List.of(peer));
+        long start = System.nanoTime();
+        for (int i = 1; i <= UPDATES; i++) {
+            VectorClock vectorClock = new VectorClock();
+            vectorClock.set(ReplicaIds.idOf(myAddress), i);
+            trackerIndexHandler.broadcastUpdate(new Update(vectorClock, myAddress, "k" + i, Integer.toString(i)), activeReplicas);
+        }
+        while (receivedUpdates().size() < UPDATES && System.nanoTime() - start < 30_000_000_000L)
+            SimulateDelay.fixed(10);
+    }
+
+    private List<Update> receivedUpdates() {
+        List<Update> updates = new ArrayList<>();
+        for (Message message : received) {
+            if (message.getType() == MessageType.UPDATE_BATCH)
+                updates.addAll(message.getUpdates());
+            else
+                updates.add(message.getUpdate());
+        }
+        return updates;
+    }
+
+    private void assertReceivedInOrder() {
+        List<Update> updates = receivedUpdates();
+        assertEquals(UPDATES, updates.size());
+        for (int i = 0; i < UPDATES; i++)
+            assertEquals(Collections.singleton("k" + (i + 1)), updates.get(i).getWrites().keySet());
+    }
+
+    // Every update dropped from a full resend queue is counted, without a limit none is dropped
+    @Test
+    public void droppedUpdatesAreCounted() {
+        Metrics metrics = new Metrics();
+        TrackerIndexHandler bounded = new TrackerIndexHandler(0, new ChannelPool(myAddress), senders, 1, 0, 2, metrics);
+        TrackerIndexHandler unbounded = new TrackerIndexHandler(0, new ChannelPool(myAddress), senders, 1, 0, 0, new Metrics());
+        List<Address> activeReplicas = new ArrayList<>(List.of(peer));
+        for (int i = 1; i <= 5; i++) {
+            VectorClock vectorClock = new VectorClock();
+            vectorClock.set(ReplicaIds.idOf(myAddress), i);
+            Update update = new Update(vectorClock, myAddress, "k" + i, Integer.toString(i));
+            bounded.addToQueueOrRetryWrite(update, 0, 1, new ArrayList<>(activeReplicas), activeReplicas);
+            unbounded.addToQueueOrRetryWrite(update, 0, 1, new ArrayList<>(activeReplicas), activeReplicas);
+        }
+        assertEquals(2, bounded.getOutgoingQueueSize());
+        assertEquals(3, bounded.getDroppedUpdates());
+        assertEquals(3, metrics.snapshot().get("queue.resend.dropped"));
+        assertEquals(5, unbounded.getOutgoingQueueSize());
+        assertEquals(0, unbounded.getDroppedUpdates());
+    }
+
+    // The updates written while a batch waits for its reply are sent together in the next one
+    @Test
+    public void updatesAreBatchedInOrder() {
+        ChannelPool connections = new ChannelPool(myAddress);
+        broadcast(new TrackerIndexHandler(0, connections, senders, 64, 0));
+        assertReceivedInOrder();
+        assertTrue(received.size() < UPDATES / 4);
+        received.forEach(message -> assertTrue(message.getType() != MessageType.UPDATE_BATCH || message.getUpdates().size() <= 64));
+        connections.closeAll();
+    }
+
+    // With a batch size of 1 every update is sent in its own message, as before the batching
+    @Test
+    public void batchSizeOneSendsSingleUpdates() {
+        ChannelPool connections = new ChannelPool(myAddress);
+        broadcast(new TrackerIndexHandler(0, connections, senders, 1, 0));
+        assertReceivedInOrder();
+        received.forEach(message -> assertEquals(MessageType.UPDATE_FROM_REPLICA, message.getType()));
+        connections.closeAll();
+    }
+
+    // With a window the first update waits for the others, so even a fast peer receives few large batches
+    @Test
+    public void batchWindowGroupsUpdates() {
+        ChannelPool connections = new ChannelPool(myAddress, WireFormat.BINARY);
+        broadcast(new TrackerIndexHandler(0, connections, senders, 500, 20));
+        assertReceivedInOrder();
+        assertTrue(received.size() <= UPDATES / 100);
+        connections.closeAll();
+    }
+}
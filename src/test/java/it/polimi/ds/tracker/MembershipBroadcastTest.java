@@ -0,0 +1,161 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MembershipBroadcastTest {
+    private static final String LOCALHOST = "127.0.0.1";
+    private final List<MembershipChange> received = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger acceptedConnections = new AtomicInteger(0);
+    private final AtomicInteger epochs = new AtomicInteger(0);
+    private ServerSocket serverSocket;
+    private WorkerPool senders;
+
+    @BeforeEach
+    public void startReplica() throws IOException {
+        Logger.getLogger("MembershipBroadcast").setLevel(Level.SEVERE);
+        senders = WorkerPool.unbounded("test-sender", ExecutionMode.POOL);
+        serverSocket = new ServerSocket(0);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    acceptedConnections.incrementAndGet();
+                    new Thread(() -> acknowledge(socket)).start();
+                }
+            } catch (IOException e) {
+                // The server socket has been closed
+            }
+        }).start();
+    }
+
+    @AfterEach
+    public void stopReplica() throws IOException {
+        serverSocket.close();
+        senders.shutdown();
+    }
+
+    // Acts as a Replica slow to reply, so that the changes published meanwhile are gathered in the next epoch
+    private void acknowledge(Socket socket) {
+        try {
+            TCPClient client = new TCPClient(socket);
+            assertEquals(MessageType.OPEN_CHANNEL, client.receive().getType());
+            while (true) {
+                Message epoch = client.receive();
+                epochs.incrementAndGet();
+                received.addAll(epoch.getChanges());
+                Thread.sleep(20);
+                Message reply = new Message(MessageType.ACK);
+                reply.setRequestId(epoch.getRequestId());
+                client.send(reply);
+            }
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            // The channel has been closed
+        }
+    }
+
+    private static void await(Runnable condition) throws InterruptedException {
+        for (int i = 0; ; i++) {
+            try {
+                condition.run();
+                return;
+            } catch (AssertionError e) {
+                if (i == 500)
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void changesAreGatheredInEpochs() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        MembershipBroadcast membership = new MembershipBroadcast(new ChannelPool(new Address("tracker", 0)), senders, 3, metrics);
+        List<Address> replicas = Collections.singletonList(new Address(LOCALHOST, serverSocket.getLocalPort()));
+        int changes = 500;
+        for (int i = 1; i <= changes; i++)
+            membership.publish(new MembershipChange(i % 2 == 1, new Address("10.0.0.1", 1000 + i / 2), i), replicas);
+
+        await(() -> assertEquals(changes, received.size()));
+        for (int i = 0; i < changes; i++)
+            assertEquals(i + 1, received.get(i).getTrackerIndex());
+        assertEquals(1, acceptedConnections.get());
+        assertTrue(epochs.get() < changes / 10, epochs.get() + " epochs");
+        assertEquals(epochs.get(), metrics.snapshot().get("membership.epochs"));
+        await(() -> assertEquals(0, membership.pending()));
+        membership.close();
+    }
+
+    @Test
+    public void unreachableReplicaKeepsItsChanges() throws InterruptedException, IOException {
+        ServerSocket closed = new ServerSocket(0);
+        Address unreachable = new Address(LOCALHOST, closed.getLocalPort());
+        closed.close();
+        Metrics metrics = new Metrics();
+        MembershipBroadcast membership = new MembershipBroadcast(new ChannelPool(new Address("tracker", 0)), senders, 2, metrics);
+        membership.publish(new MembershipChange(true, new Address("10.0.0.1", 1000), 1), Collections.singletonList(unreachable));
+
+        await(() -> assertEquals(1L, metrics.snapshot().get("membership.unreachable")));
+        assertTrue(metrics.snapshot().get("membership.failures") >= 3);
+        assertEquals(1, membership.pending());
+        membership.close();
+    }
+
+    // A Replica reachable again after being reported unreachable receives the changes from the first one it missed, in order
+    @Test
+    public void replicaComingBackReceivesTheMissedChanges() throws InterruptedException, IOException {
+        ServerSocket closed = new ServerSocket(0);
+        int port = closed.getLocalPort();
+        closed.close();
+        Address replica = new Address(LOCALHOST, port);
+        Metrics metrics = new Metrics();
+        MembershipBroadcast membership = new MembershipBroadcast(new ChannelPool(new Address("tracker", 0)), senders, 1, metrics);
+        membership.publish(new MembershipChange(true, new Address("10.0.0.1", 1000), 1), Collections.singletonList(replica));
+        await(() -> assertEquals(1L, metrics.snapshot().get("membership.unreachable")));
+        membership.publish(new MembershipChange(false, new Address("10.0.0.1", 1000), 2), Collections.singletonList(replica));
+
+        try (ServerSocket back = new ServerSocket(port)) {
+            new Thread(() -> {
+                try {
+                    acknowledge(back.accept());
+                } catch (IOException e) {
+                    // The server socket has been closed
+                }
+            }).start();
+            await(() -> assertEquals(2, received.size()));
+            assertEquals(1, received.get(0).getTrackerIndex());
+            assertEquals(2, received.get(1).getTrackerIndex());
+            await(() -> assertEquals(0, membership.pending()));
+        }
+        membership.close();
+    }
+
+    @Test
+    public void forgottenReplicaIsNotUpdated() throws InterruptedException {
+        MembershipBroadcast membership = new MembershipBroadcast(new ChannelPool(new Address("tracker", 0)), senders, 3, new Metrics());
+        Address replica = new Address(LOCALHOST, serverSocket.getLocalPort());
+        membership.publish(new MembershipChange(true, new Address("10.0.0.1", 1000), 1), Collections.singletonList(replica));
+        await(() -> assertEquals(1, received.size()));
+        membership.forget(replica);
+        membership.publish(new MembershipChange(true, new Address("10.0.0.1", 1001), 2), Collections.emptyList());
+        Thread.sleep(100);
+        assertEquals(1, received.size());
+        assertEquals(0, membership.pending());
+        membership.close();
+    }
+}
@@ -0,0 +1,26 @@
+package it.polimi.ds.tracker;
+
+import it.polimi.ds.network.Address;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ShardsTest {
+    // The Replicas fill the smallest group, a Replica joining again goes back to the group it left
+    @Test
+    public void replicasFillTheSmallestShard() {
+        Shards shards = new Shards(3, Placement.LEAST_LOADED);
+        Address[] replicas = new Address[6];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new Address("127.0.0.1", 6000 + i);
+            assertEquals(i % 3, shards.join(replicas[i]));
+        }
+        assertSame(shards.get(1), shards.leave(replicas[1]));
+        assertSame(shards.get(1), shards.leave(replicas[4]));
+        assertEquals(1, shards.join(replicas[4]));
+        assertSame(shards.get(1), shards.of(replicas[4]));
+        assertEquals(1, shards.join(new Address("127.0.0.1", 6100)));
+        assertSame(shards.get(0), shards.of(new Address("127.0.0.1", 6200)));
+    }
+}
@@ -1,15 +1,25 @@
 package it.polimi.ds.tracker;
 
 import it.polimi.ds.network.Address;
+import it.polimi.ds.network.ReplicaLoad;
 import org.junit.jupiter.api.Test;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class StorageTest {
     private final Storage storage = new Storage();
 
+    private static Address replica(int i) {
+        return new Address("0.0.0." + i, i);
+    }
+
     @Test
     public void testAddReplica() {
         for (int i = 0; i < 10; i++) {
@@ -24,4 +34,78 @@ public class StorageTest {
         }
         assertTrue(storage.getReplicas().isEmpty());
     }
+
+    // Without reports the Clients are spread evenly, and removing a Client twice does not make the count drift
+    @Test
+    public void clientsWithoutReports() {
+        assertNull(storage.addClient());
+        for (int i = 0; i < 4; i++)
+            storage.addReplica(replica(i));
+        Map<Address, Integer> clients = new HashMap<>();
+        for (int i = 0; i < 40; i++)
+            clients.merge(storage.addClient(), 1, Integer::sum);
+        for (int i = 0; i < 4; i++)
+            assertEquals(10, clients.get(replica(i)));
+
+        for (int i = 0; i < 20; i++)
+            storage.removeClient(replica(0));
+        for (int i = 0; i < 10; i++)
+            assertEquals(replica(0), storage.addClient());
+        assertEquals(4, storage.replicaCount());
+    }
+
+    @Test
+    public void reportedLoadSteersClients() {
+        for (int i = 0; i < 3; i++)
+            storage.addReplica(replica(i));
+        storage.reportLoad(new ReplicaLoad(replica(0), 1000, 0, 100));
+        storage.reportLoad(new ReplicaLoad(replica(1), 10, 0, 100));
+        storage.reportLoad(new ReplicaLoad(replica(2), 500, 50, 100));
+        storage.reportLoad(new ReplicaLoad(replica(9), 0, 0, 0));
+        assertEquals(replica(1), storage.addClient());
+
+        Storage latencyAware = new Storage(Placement.LATENCY_AWARE);
+        latencyAware.addReplica(replica(0));
+        latencyAware.addReplica(replica(1));
+        latencyAware.reportLoad(new ReplicaLoad(replica(0), 100, 0, 50));
+        latencyAware.reportLoad(new ReplicaLoad(replica(1), 50, 0, 1000));
+        assertEquals(replica(0), latencyAware.addClient());
+    }
+
+    // The heap always gives the Replica with the lowest score, checked against a scan of every Replica
+    @Test
+    public void heapFollowsTheLoad() {
+        Random random = new Random(5);
+        int replicas = 2000;
+        LoadHeap heap = new LoadHeap();
+        for (int i = 0; i < replicas; i++)
+            heap.add(new LoadHeap.Entry(replica(i)));
+        for (int round = 0; round < 20000; round++) {
+            LoadHeap.Entry entry = heap.get(replica(random.nextInt(replicas)));
+            if (entry == null) {
+                Address address = replica(random.nextInt(replicas));
+                if (heap.get(address) == null)
+                    heap.add(new LoadHeap.Entry(address));
+                continue;
+            }
+            if (random.nextInt(10) == 0) {
+                heap.remove(entry.getAddress());
+                continue;
+            }
+            entry.report(new ReplicaLoad(entry.getAddress(), random.nextInt(10000), random.nextInt(100), random.nextInt(1000)));
+            entry.setScore(Placement.LEAST_LOADED.score(entry));
+            heap.update(entry);
+
+            long lowest = Long.MAX_VALUE;
+            for (int i = 0; i < heap.size(); i++)
+                lowest = Math.min(lowest, heap.get(i).getScore());
+            assertEquals(lowest, heap.peek().getScore());
+        }
+
+        Storage twoChoices = new Storage(Placement.POWER_OF_TWO);
+        for (int i = 0; i < replicas; i++)
+            twoChoices.addReplica(replica(i));
+        for (int i = 0; i < 100000; i++)
+            assertTrue(twoChoices.addClient() != null);
+    }
 }
@@ -3,6 +3,7 @@ package it.polimi.ds.tracker;
 import it.polimi.ds.network.Address;
 import it.polimi.ds.network.Message;
 import it.polimi.ds.network.MessageType;
+import it.polimi.ds.network.SimulateDelay;
 import it.polimi.ds.network.TCPClient;
 import org.junit.jupiter.api.*;
 
@@ -20,6 +21,7 @@ public class TrackerTest {
     public static void startTracker() {
         tracker = new Thread(() -> Tracker.main(new String[]{Integer.toString(PORT)}));
         tracker.start();
+        SimulateDelay.fixed(100);
     }
 
     @AfterAll